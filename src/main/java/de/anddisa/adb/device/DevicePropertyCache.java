@@ -0,0 +1,259 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.adb.device;
+
+import de.anddisa.adb.device.IDeviceStateMonitor.IStateChangeListener;
+import de.anddisa.adb.log.LogUtil.CLog;
+import de.anddisa.adb.util.CommandResult;
+import de.anddisa.adb.util.CommandStatus;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A snapshot of the properties of one device, loaded with a single <code>getprop</code> (or
+ * <code>fastboot getvar all</code> while the device is in the bootloader) and served from memory.
+ * <p/>
+ * Both snapshots are dropped as soon as the device changes its state, e.g. when it reboots. Read
+ * only properties are served from the snapshot until then; volatile properties are served from it
+ * only while it is younger than {@link TestDeviceOptions#getPropertyRefreshInterval()}, otherwise
+ * they are queried one by one.
+ */
+public class DevicePropertyCache implements IStateChangeListener {
+
+    private static final Pattern GETPROP_PATTERN = Pattern.compile("^\\[([^\\]]+)\\]: \\[(.*)$");
+    private static final Pattern GETVAR_PATTERN =
+            Pattern.compile("^(?:\\(bootloader\\)\\s*)?(\\S+?):\\s+(.*?)\\s*$");
+
+    private final TestDevice mTestDevice;
+    private Map<String, String> mProperties = null;
+    private long mLoadTime = 0;
+    private Map<String, String> mFastbootVariables = null;
+    /** incremented on every invalidation, snapshots loaded meanwhile are not kept */
+    private long mGeneration = 0;
+
+    private long mHits = 0;
+    private long mLoads = 0;
+    private long mInvalidations = 0;
+
+    /**
+     * Creates a {@link DevicePropertyCache}.
+     *
+     * @param testDevice the {@link TestDevice} whose properties are cached
+     */
+    DevicePropertyCache(TestDevice testDevice) {
+        mTestDevice = testDevice;
+    }
+
+    /**
+     * Gets the property snapshot of the device, loading it if there is none.
+     *
+     * @return an unmodifiable {@link Map} of all properties, or <code>null</code> if
+     *         <code>getprop</code> did not list any
+     * @throws DeviceNotAvailableException
+     */
+    public Map<String, String> getProperties() throws DeviceNotAvailableException {
+        long generation;
+        synchronized (this) {
+            if (mProperties != null) {
+                mHits++;
+                return mProperties;
+            }
+            mLoads++;
+            generation = mGeneration;
+        }
+        Map<String, String> properties = parseGetprop(mTestDevice.executeShellCommand("getprop"));
+        if (properties.isEmpty()) {
+            CLog.d("getprop listed no properties on %s", mTestDevice.getSerialNumber());
+            return null;
+        }
+        properties = Collections.unmodifiableMap(properties);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mProperties = properties;
+                mLoadTime = System.currentTimeMillis();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Gets the property snapshot for volatile properties. It is never loaded for them, listing
+     * all properties costs more than querying a single one.
+     *
+     * @return an unmodifiable {@link Map} of all properties, or <code>null</code> if there is no
+     *         snapshot younger than the refresh interval
+     */
+    public synchronized Map<String, String> getFreshProperties() {
+        if (mProperties != null && System.currentTimeMillis() - mLoadTime
+                < mTestDevice.getOptions().getPropertyRefreshInterval()) {
+            mHits++;
+            return mProperties;
+        }
+        return null;
+    }
+
+    /**
+     * Gets a bootloader variable. All variables are fetched with <code>fastboot getvar all</code>
+     * once; variables missing from that list are queried one by one. Failed queries are not
+     * cached.
+     *
+     * @param name the name of the variable
+     * @return the value of the variable, or <code>null</code> if the bootloader does not know it
+     * @throws DeviceNotAvailableException
+     */
+    public String getFastbootVariable(String name) throws DeviceNotAvailableException {
+        long generation;
+        boolean loaded;
+        synchronized (this) {
+            if (mFastbootVariables != null && mFastbootVariables.containsKey(name)) {
+                mHits++;
+                return mFastbootVariables.get(name);
+            }
+            generation = mGeneration;
+            loaded = mFastbootVariables != null;
+            if (!loaded) {
+                mLoads++;
+            }
+        }
+        Map<String, String> variables = null;
+        if (!loaded) {
+            String output = getvar("all");
+            if (output != null) {
+                variables = parseGetvar(output);
+            }
+        }
+        String value = variables != null ? variables.get(name) : null;
+        if (value == null) {
+            String output = getvar(name);
+            if (output != null) {
+                value = parseGetvar(output).get(name);
+            }
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                if (mFastbootVariables == null && variables != null) {
+                    mFastbootVariables = variables;
+                }
+                if (mFastbootVariables != null && value != null) {
+                    mFastbootVariables.put(name, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Drops both snapshots.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            if (mProperties != null || mFastbootVariables != null) {
+                mInvalidations++;
+            }
+            mProperties = null;
+            mFastbootVariables = null;
+        }
+    }
+
+    /**
+     * Drops the snapshots, since properties change on a reboot and the bootloader variables are
+     * only available in fastboot mode.
+     */
+    @Override
+    public void stateChanged(TestDeviceState newState) {
+        CLog.d("Invalidating properties of %s, device is now %s", mTestDevice.getSerialNumber(),
+                newState);
+        invalidate();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("properties: %d hits, %d loads, %d invalidated", mHits, mLoads,
+                mInvalidations);
+    }
+
+    /**
+     * @return the output of <code>fastboot getvar</code>, <code>null</code> if it failed
+     */
+    private String getvar(String name) throws DeviceNotAvailableException {
+        CommandResult result = mTestDevice.executeFastbootCommand("getvar", name);
+        if (result.getStatus() != CommandStatus.SUCCESS) {
+            return null;
+        }
+        // fastboot is weird, and may dump the output on stderr instead of stdout
+        String output = result.getStdout();
+        if (output == null || output.length() < 1) {
+            output = result.getStderr();
+        }
+        return output;
+    }
+
+    /**
+     * Parses the output of <code>getprop</code>, i.e. lines like
+     * <code>[ro.hardware]: [mako]</code>; values may span several lines.
+     *
+     * @param output the output of <code>getprop</code>
+     * @return a {@link Map} of property names to values
+     */
+    static Map<String, String> parseGetprop(String output) {
+        Map<String, String> properties = new HashMap<String, String>();
+        String name = null;
+        StringBuilder value = new StringBuilder();
+        for (String line : output.split("\r?\n")) {
+            if (name == null) {
+                Matcher matcher = GETPROP_PATTERN.matcher(line);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                name = matcher.group(1);
+                value.setLength(0);
+                line = matcher.group(2);
+            } else {
+                value.append('\n');
+            }
+            if (line.endsWith("]")) {
+                value.append(line, 0, line.length() - 1);
+                properties.put(name, value.toString());
+                name = null;
+            } else {
+                value.append(line);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Parses the output of <code>fastboot getvar</code>, i.e. lines like
+     * <code>(bootloader) product: mako</code> or <code>product: mako</code>.
+     *
+     * @param output the output of <code>fastboot getvar</code>
+     * @return a {@link Map} of variable names to values
+     */
+    static Map<String, String> parseGetvar(String output) {
+        Map<String, String> variables = new HashMap<String, String>();
+        for (String line : output.split("\r?\n")) {
+            Matcher matcher = GETVAR_PATTERN.matcher(line);
+            if (matcher.matches() && !"all".equals(matcher.group(1))) {
+                variables.put(matcher.group(1), matcher.group(2));
+            }
+        }
+        return variables;
+    }
+}
@@ -20,6 +20,7 @@
 package de.anddisa.adb.device;
 
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
@@ -33,6 +34,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Container for for device selection criteria.
@@ -96,6 +98,13 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 
     private static final String VARIANT_SEPARATOR = ":";
 
+    /**
+     * properties listed by one getprop per device, a device which reconnects gets a new
+     * {@link IDevice} and so a new snapshot
+     */
+    private final Map<IDevice, Map<String, String>> mPropertySnapshots =
+            new WeakHashMap<IDevice, Map<String, String>>();
+
     /**
      * Add a serial number to the device selection options.
      *
@@ -335,7 +344,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             }
         }
         for (Map.Entry<String, String> propEntry : properties.entrySet()) {
-            if (!propEntry.getValue().equals(device.getProperty(propEntry.getKey()))) {
+            if (!propEntry.getValue().equals(getProperty(device, propEntry.getKey()))) {
                 return false;
             }
         }
@@ -421,6 +430,13 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     }
 
     private String getProperty(IDevice device, String propName) {
+        if (device.arePropertiesSet()) {
+            return device.getProperty(propName);
+        }
+        Map<String, String> properties = getPropertySnapshot(device);
+        if (properties != null) {
+            return properties.get(propName);
+        }
         try {
             return device.getPropertyCacheOrSync(propName);
         } catch (TimeoutException e) {
@@ -435,6 +451,44 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return null;
     }
 
+    /**
+     * Lists all properties of the device with a single getprop, instead of one query per
+     * property.
+     *
+     * @return a {@link Map} of the properties, or <code>null</code> if getprop listed none
+     */
+    private Map<String, String> getPropertySnapshot(IDevice device) {
+        synchronized (mPropertySnapshots) {
+            if (mPropertySnapshots.containsKey(device)) {
+                return mPropertySnapshots.get(device);
+            }
+        }
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            device.executeShellCommand("getprop", receiver);
+        } catch (TimeoutException e) {
+            handlePropException(device, e);
+            return null;
+        } catch (AdbCommandRejectedException e) {
+            handlePropException(device, e);
+            return null;
+        } catch (IOException e) {
+            handlePropException(device, e);
+            return null;
+        } catch (ShellCommandUnresponsiveException e) {
+            handlePropException(device, e);
+            return null;
+        }
+        Map<String, String> properties = DevicePropertyCache.parseGetprop(receiver.getOutput());
+        if (properties.isEmpty()) {
+            return null;
+        }
+        synchronized (mPropertySnapshots) {
+            mPropertySnapshots.put(device, properties);
+        }
+        return properties;
+    }
+
     private void handlePropException(IDevice device, Exception e) {
         CLog.w("Failed to query device property for %s: %s", device.getSerialNumber(),
                 e.toString());
@@ -56,6 +56,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     private long mDefaultAvailableTimeout = 6 * 60 * 1000;
 
     private List<DeviceStateListener> mStateListeners;
+    private List<IStateChangeListener> mStateChangeListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
 
@@ -63,6 +64,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         mMgr = mgr;
         mDevice = device;
         mStateListeners = new ArrayList<DeviceStateListener>();
+        mStateChangeListeners = new ArrayList<IStateChangeListener>();
         mDeviceState = TestDeviceState.getStateByDdms(device.getState());
         mFastbootEnabled = fastbootEnabled;
     }
@@ -481,6 +483,33 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         for (DeviceStateListener listener: listenerCopy) {
             listener.stateChanged(deviceState);
         }
+        Collection<IStateChangeListener> changeListenerCopy;
+        synchronized (mStateChangeListeners) {
+            changeListenerCopy = new ArrayList<IStateChangeListener>(mStateChangeListeners);
+        }
+        for (IStateChangeListener listener: changeListenerCopy) {
+            listener.stateChanged(deviceState);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addStateChangeListener(IStateChangeListener listener) {
+        synchronized (mStateChangeListeners) {
+            mStateChangeListeners.add(listener);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeStateChangeListener(IStateChangeListener listener) {
+        synchronized (mStateChangeListeners) {
+            mStateChangeListeners.remove(listener);
+        }
     }
 
     @Override
@@ -26,6 +26,19 @@ import com.android.ddmlib.IDevice;
  */
 public interface IDeviceStateMonitor {
 
+    /**
+     * Listener for device state changes reported through {@link #setState(TestDeviceState)}.
+     */
+    public static interface IStateChangeListener {
+
+        /**
+         * Callback when the state of the monitored device has changed.
+         *
+         * @param newState the new {@link TestDeviceState}
+         */
+        public void stateChanged(TestDeviceState newState);
+    }
+
     /**
      * Waits for device to be online.
      * <p/>
@@ -168,4 +181,18 @@ public interface IDeviceStateMonitor {
      */
     public void setDefaultAvailableTimeout(long timeoutMs);
 
+    /**
+     * Registers a listener that is notified on every device state change.
+     *
+     * @param listener the {@link IStateChangeListener} to add
+     */
+    public void addStateChangeListener(IStateChangeListener listener);
+
+    /**
+     * Removes a previously registered {@link IStateChangeListener}.
+     *
+     * @param listener the {@link IStateChangeListener} to remove
+     */
+    public void removeStateChangeListener(IStateChangeListener listener);
+
 }
@@ -910,4 +910,18 @@ public interface ITestDevice {
      */
     public List<PartitionInfo> getPartitionInfo() throws DeviceNotAvailableException;
 
+    /**
+     * Returns the pool of sync connections shared by all file transfers of this device.
+     *
+     * @return the {@link SyncServicePool} of the device
+     */
+    public SyncServicePool getSyncServicePool();
+
+    /**
+     * Returns the snapshot of the properties and bootloader variables of this device.
+     *
+     * @return the {@link DevicePropertyCache} of the device
+     */
+    public DevicePropertyCache getPropertyCache();
+
 }
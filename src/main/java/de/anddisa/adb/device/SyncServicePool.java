@@ -0,0 +1,261 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.adb.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.TimeoutException;
+
+import de.anddisa.adb.device.IDeviceStateMonitor.IStateChangeListener;
+import de.anddisa.adb.log.LogUtil.CLog;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A bounded pool of warm {@link SyncService} connections for one device.
+ * <p/>
+ * Opening a sync connection costs an adb round trip, so file operations check a connection out
+ * of this pool and return it afterwards instead of closing it. Idle connections are health checked
+ * on checkout, dropped together with a connection whose transfer failed, and all connections are
+ * evicted as soon as the device changes its state.
+ */
+public class SyncServicePool implements IStateChangeListener {
+
+    /**
+     * Bookkeeping for a pooled connection.
+     */
+    private static class PooledSyncService {
+        final SyncService mService;
+        final IDevice mDevice;
+        final long mGeneration;
+        long mLastUsed;
+
+        PooledSyncService(SyncService service, IDevice device, long generation) {
+            mService = service;
+            mDevice = device;
+            mGeneration = generation;
+            mLastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final TestDevice mTestDevice;
+    private final LinkedList<PooledSyncService> mIdle = new LinkedList<PooledSyncService>();
+    private final Map<SyncService, PooledSyncService> mCheckedOut =
+            new IdentityHashMap<SyncService, PooledSyncService>();
+    /** number of connections currently being opened outside of the pool lock */
+    private int mOpening = 0;
+    /** incremented on every eviction, connections of older generations are never reused */
+    private long mGeneration = 0;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    /**
+     * Creates a {@link SyncServicePool}.
+     *
+     * @param testDevice the {@link TestDevice} the connections are opened for
+     */
+    SyncServicePool(TestDevice testDevice) {
+        mTestDevice = testDevice;
+    }
+
+    /**
+     * Checks a connection out of the pool, opening a new one if no healthy idle connection is
+     * available. Blocks while the maximum number of connections is in use; a busy pool is not a
+     * device failure, every connection is given back once its transfer ends.
+     *
+     * @return a {@link SyncService} which must be given back using
+     *         {@link #checkin(SyncService, boolean)}
+     * @throws TimeoutException if opening the connection timed out
+     * @throws AdbCommandRejectedException if adb rejected the sync request
+     * @throws IOException if the connection could not be opened or the wait was interrupted
+     */
+    public SyncService checkout() throws TimeoutException, AdbCommandRejectedException,
+            IOException {
+        IDevice device = mTestDevice.getIDevice();
+        long generation;
+        synchronized (this) {
+            boolean waiting = false;
+            while (true) {
+                PooledSyncService pooled = pollHealthy(device);
+                if (pooled != null) {
+                    mHits++;
+                    mCheckedOut.put(pooled.mService, pooled);
+                    return pooled.mService;
+                }
+                if (mCheckedOut.size() + mOpening < getMaxConnections()) {
+                    break;
+                }
+                if (!waiting) {
+                    CLog.d("All %d sync connections of %s in use, waiting", getMaxConnections(),
+                            mTestDevice.getSerialNumber());
+                    waiting = true;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for a sync connection");
+                }
+            }
+            mMisses++;
+            generation = mGeneration;
+            // reserve the slot while the connection is opened outside of the lock
+            mOpening++;
+        }
+        SyncService service = null;
+        try {
+            service = device.getSyncService();
+            if (service == null) {
+                throw new IOException(String.format("Could not open sync service on %s",
+                        mTestDevice.getSerialNumber()));
+            }
+        } finally {
+            synchronized (this) {
+                mOpening--;
+                if (service != null) {
+                    mCheckedOut.put(service, new PooledSyncService(service, device, generation));
+                }
+                notifyAll();
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param service the {@link SyncService} obtained from {@link #checkout()}
+     * @param reusable <code>false</code> if the transfer failed; neither the connection nor the
+     *            idle ones are handed out again, they may have been closed by adbd as well
+     */
+    public void checkin(SyncService service, boolean reusable) {
+        PooledSyncService pooled;
+        boolean close = true;
+        LinkedList<PooledSyncService> dropped = new LinkedList<PooledSyncService>();
+        synchronized (this) {
+            pooled = mCheckedOut.remove(service);
+            if (!reusable) {
+                dropped.addAll(mIdle);
+                mEvictions += mIdle.size();
+                mIdle.clear();
+            } else if (pooled != null && pooled.mGeneration == mGeneration
+                    && mIdle.size() < getMaxConnections()) {
+                pooled.mLastUsed = System.currentTimeMillis();
+                mIdle.addFirst(pooled);
+                close = false;
+            }
+            notifyAll();
+        }
+        if (close) {
+            service.close();
+        }
+        for (PooledSyncService idle : dropped) {
+            idle.mService.close();
+        }
+    }
+
+    /**
+     * Closes all idle connections and makes sure connections currently checked out are closed
+     * when they are given back.
+     */
+    public void evictAll() {
+        LinkedList<PooledSyncService> evicted;
+        synchronized (this) {
+            mGeneration++;
+            evicted = new LinkedList<PooledSyncService>(mIdle);
+            mEvictions += evicted.size();
+            mIdle.clear();
+        }
+        for (PooledSyncService pooled : evicted) {
+            pooled.mService.close();
+        }
+    }
+
+    /**
+     * Evicts all connections, since they don't survive a reboot or a state change.
+     */
+    @Override
+    public void stateChanged(TestDeviceState newState) {
+        CLog.d("Evicting sync connections of %s, device is now %s", mTestDevice.getSerialNumber(),
+                newState);
+        evictAll();
+    }
+
+    /**
+     * @return the number of checkouts served by an idle connection
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return the number of checkouts which had to open a new connection
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return the number of idle connections closed because they were unhealthy or evicted
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * @return the number of connections currently waiting in the pool
+     */
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("sync connections: %d hits, %d misses, %d evicted, %d idle", mHits,
+                mMisses, mEvictions, mIdle.size());
+    }
+
+    /**
+     * Takes the most recently used healthy connection out of the idle list, closing every stale
+     * one found on the way. Must be called holding the pool lock.
+     */
+    private PooledSyncService pollHealthy(IDevice device) {
+        long now = System.currentTimeMillis();
+        while (!mIdle.isEmpty()) {
+            PooledSyncService pooled = mIdle.removeFirst();
+            if (pooled.mDevice == device && device.isOnline()
+                    && now - pooled.mLastUsed < getIdleTimeout()) {
+                return pooled;
+            }
+            mEvictions++;
+            pooled.mService.close();
+        }
+        return null;
+    }
+
+    private int getMaxConnections() {
+        return Math.max(1, mTestDevice.getOptions().getSyncPoolSize());
+    }
+
+    private long getIdleTimeout() {
+        return mTestDevice.getOptions().getSyncIdleTimeout();
+    }
+}
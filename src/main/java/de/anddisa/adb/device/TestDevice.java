@@ -34,6 +34,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
@@ -139,6 +140,10 @@ class TestDevice implements IManagedTestDevice {
     private Boolean mIsRootShell = null;
     
     private List<PartitionInfo> mDevicePartitions = null;
+
+    private final SyncServicePool mSyncServicePool;
+
+    private final DevicePropertyCache mPropertyCache;
     
     /**
      * Interface for a generic device communication attempt.
@@ -196,6 +201,10 @@ class TestDevice implements IManagedTestDevice {
         throwIfNull(monitor);
         mIDevice = device;
         mMonitor = monitor;
+        mSyncServicePool = new SyncServicePool(this);
+        mMonitor.addStateChangeListener(mSyncServicePool);
+        mPropertyCache = new DevicePropertyCache(this);
+        mMonitor.addStateChangeListener(mPropertyCache);
     }
 
     /**
@@ -258,6 +267,8 @@ class TestDevice implements IManagedTestDevice {
                 mIDevice = newDevice;
             }
             mMonitor.setIDevice(mIDevice);
+            mSyncServicePool.evictAll();
+            mPropertyCache.invalidate();
         }
     }
 
@@ -305,6 +316,10 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public String getProperty(final String name) throws DeviceNotAvailableException {
+        Map<String, String> properties = mPropertyCache.getProperties();
+        if (properties != null) {
+            return properties.get(name);
+        }
         final String[] result = new String[1];
         DeviceAction propAction = new DeviceAction() {
 
@@ -325,6 +340,10 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public String getPropertySync(final String name) throws DeviceNotAvailableException {
+        Map<String, String> properties = mPropertyCache.getFreshProperties();
+        if (properties != null) {
+            return properties.get(name);
+        }
         final String[] result = new String[1];
         DeviceAction propAction = new DeviceAction() {
 
@@ -411,20 +430,7 @@ class TestDevice implements IManagedTestDevice {
 
     private String getFastbootVariable(String variableName)
             throws DeviceNotAvailableException, UnsupportedOperationException {
-        CommandResult result = executeFastbootCommand("getvar", variableName);
-        if (result.getStatus() == CommandStatus.SUCCESS) {
-            Pattern fastbootProductPattern = Pattern.compile(variableName + ":\\s(.*)\\s");
-            // fastboot is weird, and may dump the output on stderr instead of stdout
-            String resultText = result.getStdout();
-            if (resultText == null || resultText.length() < 1) {
-                resultText = result.getStderr();
-            }
-            Matcher matcher = fastbootProductPattern.matcher(resultText);
-            if (matcher.find()) {
-                return matcher.group(1);
-            }
-        }
-        return null;
+        return mPropertyCache.getFastbootVariable(variableName);
     }
 
     /**
@@ -633,7 +639,7 @@ class TestDevice implements IManagedTestDevice {
                 SyncService syncService = null;
                 boolean status = false;
                 try {
-                    syncService = getIDevice().getSyncService();
+                    syncService = mSyncServicePool.checkout();
                     syncService.pullFile(remoteFilePath,
                             localFile.getAbsolutePath(), SyncService.getNullProgressMonitor());
                     status = true;
@@ -643,7 +649,7 @@ class TestDevice implements IManagedTestDevice {
                     throw e;
                 } finally {
                     if (syncService != null) {
-                        syncService.close();
+                        mSyncServicePool.checkin(syncService, status);
                     }
                 }
                 return status;
@@ -692,7 +698,7 @@ class TestDevice implements IManagedTestDevice {
                 SyncService syncService = null;
                 boolean status = false;
                 try {
-                    syncService = getIDevice().getSyncService();
+                    syncService = mSyncServicePool.checkout();
                     syncService.pushFile(localFile.getAbsolutePath(),
                         remoteFilePath, SyncService.getNullProgressMonitor());
                     status = true;
@@ -703,7 +709,7 @@ class TestDevice implements IManagedTestDevice {
                     throw e;
                 } finally {
                     if (syncService != null) {
-                        syncService.close();
+                        mSyncServicePool.checkin(syncService, status);
                     }
                 }
                 return status;
@@ -1009,7 +1015,7 @@ class TestDevice implements IManagedTestDevice {
                 SyncService syncService = null;
                 boolean status = false;
                 try {
-                    syncService = getIDevice().getSyncService();
+                    syncService = mSyncServicePool.checkout();
                     syncService.push(files, remoteFileEntry.getFileEntry(),
                             SyncService.getNullProgressMonitor());
                     status = true;
@@ -1019,7 +1025,7 @@ class TestDevice implements IManagedTestDevice {
                     throw e;
                 } finally {
                     if (syncService != null) {
-                        syncService.close();
+                        mSyncServicePool.checkin(syncService, status);
                     }
                 }
                 return status;
@@ -2389,6 +2395,22 @@ class TestDevice implements IManagedTestDevice {
         return mOptions;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DevicePropertyCache getPropertyCache() {
+        return mPropertyCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SyncServicePool getSyncServicePool() {
+        return mSyncServicePool;
+    }
+
 	@Override
 	public List<PartitionInfo> getPartitionInfo() throws DeviceNotAvailableException {
 		return getPartitionsFromProcCpuinfo();
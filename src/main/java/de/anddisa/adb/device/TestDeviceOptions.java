@@ -67,6 +67,18 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "sync-pool-size", description = "maximum number of sync connections kept open "
+            + "per device.")
+    private int mSyncPoolSize = 4;
+
+    @Option(name = "sync-idle-timeout", description = "time in ms an idle sync connection is "
+            + "kept open before it is discarded.")
+    private long mSyncIdleTimeout = 30 * 1000;
+
+    @Option(name = "property-refresh-interval", description = "time in ms the property snapshot "
+            + "of a device is used for volatile properties, afterwards they are queried one by one.")
+    private long mPropertyRefreshInterval = 0;
+
     /**
      * @return the mEnableAdbRoot
      */
@@ -218,4 +230,37 @@ public class TestDeviceOptions {
     public long getAvailableTimeout() {
         return mAvailableTimeout;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the maximum number of sync connections kept open per device.
+     */
+    public int getSyncPoolSize() {
+        return mSyncPoolSize;
+    }
+
+    public void setSyncPoolSize(int syncPoolSize) {
+        mSyncPoolSize = syncPoolSize;
+    }
+
+    /**
+     * @return the time in ms an idle sync connection is kept open.
+     */
+    public long getSyncIdleTimeout() {
+        return mSyncIdleTimeout;
+    }
+
+    public void setSyncIdleTimeout(long syncIdleTimeout) {
+        mSyncIdleTimeout = syncIdleTimeout;
+    }
+
+    /**
+     * @return the time in ms the property snapshot is used for volatile properties.
+     */
+    public long getPropertyRefreshInterval() {
+        return mPropertyRefreshInterval;
+    }
+
+    public void setPropertyRefreshInterval(long propertyRefreshInterval) {
+        mPropertyRefreshInterval = propertyRefreshInterval;
+    }
+}
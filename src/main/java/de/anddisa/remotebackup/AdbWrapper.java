@@ -14,14 +14,45 @@
  */
 package de.anddisa.remotebackup;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
+import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.FileListingService.FileEntry;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.NullOutputReceiver;
@@ -33,7 +64,31 @@ import de.anddisa.adb.device.IDeviceManager;
 import de.anddisa.adb.device.ITestDevice;
 import de.anddisa.adb.device.ITestDevice.MountPointInfo;
 import de.anddisa.adb.device.PartitionInfo;
+import de.anddisa.adb.device.TestDeviceState;
+import de.anddisa.adb.util.CommandResult;
+import de.anddisa.adb.util.CommandStatus;
+import de.anddisa.adb.util.RunUtil;
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.apps.ApkStore;
+import de.anddisa.remotebackup.image.ChunkManifest;
+import de.anddisa.remotebackup.image.SparseImageWriter;
+import de.anddisa.remotebackup.shell.RootShell;
+import de.anddisa.remotebackup.tar.FileManifest;
+import de.anddisa.remotebackup.tar.FindFilter;
+import de.anddisa.remotebackup.tar.IndexedTarReader;
+import de.anddisa.remotebackup.tar.ParallelTarExtractor;
+import de.anddisa.remotebackup.tar.SubtreePartitioner;
+import de.anddisa.remotebackup.tar.TarDigestManifest;
+import de.anddisa.remotebackup.tar.TarIndex;
+import de.anddisa.remotebackup.tar.TarIndexer;
+import de.anddisa.remotebackup.tar.TarMerger;
+import de.anddisa.remotebackup.tar.TarSnapshot;
+import de.anddisa.remotebackup.tar.TarStreamWriter;
+import de.anddisa.remotebackup.tar.TarStreamParser;
+import de.anddisa.remotebackup.tar.TransferPlan;
 import de.anddisa.remotebackup.utils.MD5Utils;
+import de.anddisa.remotebackup.watch.ChangeCollector;
+import de.anddisa.remotebackup.watch.InotifydReceiver;
 /**
  * 
  * This class wraps adb commands to "high level" commands and manages the
@@ -57,6 +112,8 @@ public class AdbWrapper {
 		boolean isCancelled = false;
 		private long size = 0;
 		private long block = 0;
+		private TarStreamParser tarStreamParser = null;
+		private MessageDigest md = null;
 		
 		public FileReceiver(String fileName) {
 			super();
@@ -68,6 +125,31 @@ public class AdbWrapper {
 			System.err.print("transferring file:" + fileName);
 		}
 		
+		/**
+		 * constructor for tar streams, the stream is parsed while it is received
+		 * 
+		 * @param fileName {@link String} local file name
+		 * @param tarStreamParser {@link TarStreamParser} which gets all received data
+		 */
+		public FileReceiver(String fileName, TarStreamParser tarStreamParser) {
+			this(fileName);
+			this.tarStreamParser = tarStreamParser;
+			try {
+				this.md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				// no digest, the transfer cannot be verified
+			}
+		}
+		
+		/**
+		 * gets the md5 sum of the received stream
+		 * 
+		 * @return {@link String} md5 sum or null if not calculated
+		 */
+		public String getMD5() {
+			return md != null ? MD5Utils.toHex(md.digest()) : null;
+		}
+		
 		public void addOutput(byte[] data, int offset, int length) {
 			try {
 				fos.write(data, offset, length);
@@ -77,6 +159,18 @@ public class AdbWrapper {
 			} catch (IOException e) {
 				isCancelled = true;
 			}
+			if (md != null) {
+				md.update(data, offset, length);
+			}
+			if (tarStreamParser != null) {
+				try {
+					tarStreamParser.write(data, offset, length);
+				} catch (IOException e) {
+					// a broken index must not break the transfer itself
+					System.err.println("tar stream parsing failed: " + e.getMessage());
+					tarStreamParser = null;
+				}
+			}
 		}
 
 		public void flush() {
@@ -88,6 +182,58 @@ public class AdbWrapper {
 			} catch (IOException e) {
 				isCancelled = true;
 			}
+			if (tarStreamParser != null) {
+				try {
+					tarStreamParser.close();
+				} catch (IOException e) {
+					System.err.println("tar stream parsing failed: " + e.getMessage());
+				}
+				tarStreamParser = null;
+			}
+		}
+
+		public boolean isCancelled() {
+			return isCancelled;
+		}
+	}
+	
+	/**
+	 * sub class which passes a tar stream received from remote to a parser
+	 * without storing it
+	 *
+	 */
+	public class TarStreamReceiver implements IShellOutputReceiver {
+
+		private final TarStreamParser tarStreamParser;
+		private boolean isCancelled = false;
+		
+		public TarStreamReceiver(TarStreamParser tarStreamParser) {
+			super();
+			this.tarStreamParser = tarStreamParser;
+		}
+		
+		public void addOutput(byte[] data, int offset, int length) {
+			if (isCancelled) {
+				return;
+			}
+			try {
+				tarStreamParser.write(data, offset, length);
+			} catch (IOException e) {
+				System.err.println("tar stream parsing failed: " + e.getMessage());
+				isCancelled = true;
+			}
+		}
+
+		public void flush() {
+			if (isCancelled) {
+				return;
+			}
+			try {
+				tarStreamParser.close();
+			} catch (IOException e) {
+				System.err.println("tar stream parsing failed: " + e.getMessage());
+				isCancelled = true;
+			}
 		}
 
 		public boolean isCancelled() {
@@ -95,16 +241,56 @@ public class AdbWrapper {
 		}
 	}
 	
+	/**
+	 * data sent to the device by {@link AdbWrapper#streamToDevice}
+	 *
+	 */
+	private interface IStreamSource {
+		
+		/**
+		 * writes the data
+		 * 
+		 * @param os {@link OutputStream} connected to the device
+		 * @return {@link Long} number of bytes written
+		 * @throws IOException
+		 */
+		long write(OutputStream os) throws IOException;
+	}
+	
 	// -----------------------------------------------------------------------------
 	// main class
 	// -----------------------------------------------------------------------------
 	
 	private static long TIME0UT = 5000;
+	private static final String TAR_FIFO = "/cache/myfifo";
+	private static final String TAR_FIFO_LIST = TAR_FIFO + ".list";
+	private static final String SYNC_VOLUME_SUFFIX = ".sync.tar";
+	private static final int RESTORE_PORT = 37100;
+	private static final String CHUNK_SCRIPT = "/cache/art_chunks.sh";
+	private static final int IMAGE_MAX_GAP = 4;
+	private static final long DEFAULT_MAX_DOWNLOAD_SIZE = 256L * 1024 * 1024;
+	private static final int FLASH_PREPARE_THREADS = 2;
+	/** number of written image ranges read back at the same time */
+	private static final int IMAGE_VERIFY_THREADS = 2;
+	private static final int MAX_WATCHED_DIRECTORIES = 2000;
+	/** pid of the inotifyd started by watch, to stop it when it is restarted */
+	private static final String INOTIFYD_PID = "/cache/art.inotifyd.pid";
+	/** time in ms an installation of split apks may take */
+	private static final long INSTALL_TIMEOUT = 10 * 60 * 1000;
 	
 	private static IDeviceManager deviceManager = DeviceManager.getInstance();
 	private String ddmsParentLocation = null;
+	private String adbLocation = "adb";
+	private RootShell rootShell = null;
+	private boolean rootShellFailed = false;
 	private ITestDevice selectedDevice;
 	private boolean adbRunsAsRoot;
+	private int tarStreams = 1;
+	private boolean mergeTarVolumes = false;
+	private long syncThreshold = -1;
+	private File extractDirectory = null;
+	private int extractWriters = 1;
+	private FindFilter findFilter = null;
 
 	/**
 	 * constructor
@@ -123,8 +309,6 @@ public class AdbWrapper {
 		// [try to] ensure ADB is running
 		// in the new SDK, adb is in the platform-tools, but when run from the  command line
 		// in the Android source tree, then adb is next to ddms.
-		String adbLocation;
-
 		if (ddmsParentLocation != null && ddmsParentLocation.length() != 0) {
 			// check if there's a platform-tools folder
 			File platformTools = new File(new File(ddmsParentLocation).getParent(), "platform-tools"); //$NON-NLS-1$
@@ -165,6 +349,11 @@ public class AdbWrapper {
 	 * @param deviceId {@link String}
 	 */
 	public synchronized  void selectDevice(String deviceId) {
+		if (rootShell != null) {
+			rootShell.close();
+		}
+		rootShell = null;
+		rootShellFailed = false;
 		if (deviceId != null) {
 			DeviceSelectionOptions dso = new DeviceSelectionOptions();
 			dso.addSerial(deviceId);
@@ -195,7 +384,8 @@ public class AdbWrapper {
 	}
 
 	/**
-	 * wraps a command with su command, if needed
+	 * wraps a command with su command, if needed; the command is escaped for
+	 * the double quotes, so e.g. $? is expanded by the root shell
 	 * 
 	 * @param command {@link String} to be executes
 	 * 
@@ -203,423 +393,2088 @@ public class AdbWrapper {
 	 */
 	private String getRootExecutableCommand(String command) {
 		if (isSuNeeded()) {
-			return "su -c \"" + command + "\"";
+			return "su -c \"" + command.replace("\\", "\\\\").replace("\"", "\\\"").replace("$", "\\$").replace("`", "\\`") + "\"";
 		}
 		return command;
 	}
 
-	// -----------------------------------------------------------------------------
-	// methods related to tar
-	// -----------------------------------------------------------------------------
 	/**
-	 * gets the content of the file system as tar file
-	 * 
-	 * @param mountPoint {@link String} file system to be tared
-	 * @param toFilePath {@link String} where the file shall be stored locally
+	 * runs a short command as root in the persistent root shell (see
+	 * {@link RootShell}) or, if it is not available, in a separate shell
 	 * 
-	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * @param command {@link String} to be executed
 	 * 
-	 * @throws NoSuchAlgorithmException
-	 * @throws IOException
+	 * @return {@link String} output of the command
+	 * @throws DeviceNotAvailableException
 	 */
-	public boolean getMountPointAsTar(String mountPoint, String toFilePath) throws NoSuchAlgorithmException, IOException {
-		final String MP_TAR = (mountPoint.startsWith("/") ? "" : "/") + mountPoint + ".tar";
-		final String MP_TAR_MD5 = MP_TAR + ".md5";
-		
-		boolean result = true;
-		
-		result &= getFileSystemAsTar(toFilePath, (mountPoint.startsWith("/") ? "" : "/") + mountPoint, mountPoint);
-		result &= getTarFileMD5((mountPoint.startsWith("/") ? "" : "/") + mountPoint, toFilePath + MP_TAR_MD5);
-		result &= MD5Utils.compareMD5(toFilePath + "/" + MP_TAR, toFilePath + MP_TAR_MD5);
-		return result;
+	private String executeRootCommand(String command) throws DeviceNotAvailableException {
+		return executeRootCommands(Collections.singletonList(command)).get(0);
 	}
-	
+
 	/**
-	 * gets the content of the system partition as tar file
+	 * runs short commands as root one after another, they are sent to the
+	 * persistent root shell at once; the commands left if the root shell dies
+	 * are run in separate shells
 	 * 
-	 * @param toFilePath {@link String} where the file shall be stored locally
-	 * 
-	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * @param commands {@link List} of commands to be executed
 	 * 
-	 * @throws NoSuchAlgorithmException
-	 * @throws IOException
+	 * @return {@link List} of the outputs of the commands
+	 * @throws DeviceNotAvailableException
 	 */
-	public boolean getSytemPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
-		return getMountPointAsTar("system", toFilePath);
+	private List<String> executeRootCommands(List<String> commands) throws DeviceNotAvailableException {
+		List<String> result = new ArrayList<String>();
+		RootShell shell = getRootShell();
+		if (shell != null) {
+			for (RootShell.Result commandResult : shell.executeBatch(commands)) {
+				result.add(commandResult.output);
+			}
+			if (!shell.isAlive()) {
+				System.err.println("root shell closed, running commands in separate shells");
+			}
+		}
+		for (int i = result.size(); i < commands.size(); i++) {
+			result.add(selectedDevice.executeShellCommand(getRootExecutableCommand(commands.get(i))));
+		}
+		return result;
 	}
 
 	/**
-	 * gets the content of the data partition as tar file
-	 * 
-	 * @param toFilePath {@link String} where the file shall be stored locally
-	 * 
-	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * gets the persistent root shell of the selected device, it is opened
+	 * on first use
 	 * 
-	 * @throws NoSuchAlgorithmException
-	 * @throws IOException
+	 * @return {@link RootShell} or null if it could not be opened or died
+	 */
+	private synchronized RootShell getRootShell() {
+		if (rootShell == null && !rootShellFailed) {
+			try {
+				rootShell = RootShell.open(adbLocation, selectedDevice.getSerialNumber(), isSuNeeded());
+			} catch (IOException e) {
+				System.err.println("no persistent root shell, running commands in separate shells: " + e.getMessage());
+				rootShellFailed = true;
+			}
+		}
+		if (rootShell != null && !rootShell.isAlive()) {
+			// commands are not retried in a new session, it may die the same way
+			rootShell = null;
+			rootShellFailed = true;
+		}
+		return rootShell;
+	}
+
+	// -----------------------------------------------------------------------------
+	// methods related to tar
+	// -----------------------------------------------------------------------------
+	/**
+	 * sets the number of tar streams used in parallel for a mount point
 	 * 
-	 * TODO: md5sum fails when backup is done on a running system ...
-	 * 		(obviously, but how to handle ...) 
+	 * @param tarStreams {@link Integer}
 	 */
-	public boolean getDataPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
-		return getMountPointAsTar("data", toFilePath);
+	public void setTarStreams(int tarStreams) {
+		this.tarStreams = tarStreams;
 	}
 
 	/**
-	 * gets the content of the sd-ext partition as tar file
+	 * sets the directory tar backups are extracted to while they are received
 	 * 
-	 * @param toFilePath {@link String} where the file shall be stored locally
+	 * @param extractDirectory {@link File} or null to not extract
+	 * @param extractWriters {@link Integer} number of threads writing the extracted files
+	 */
+	public void setExtractDirectory(File extractDirectory, int extractWriters) {
+		this.extractDirectory = extractDirectory;
+		this.extractWriters = extractWriters;
+	}
+
+	/**
+	 * sets the filter selecting the files of tar backups on the device
 	 * 
-	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * @param findFilter {@link FindFilter} or null for all files
+	 */
+	public void setFindFilter(FindFilter findFilter) {
+		this.findFilter = findFilter;
+	}
+
+	/**
+	 * sets whether tar volumes transferred in parallel are merged into one archive
 	 * 
-	 * @throws NoSuchAlgorithmException
-	 * @throws IOException
+	 * @param mergeTarVolumes {@link Boolean}
+	 */
+	public void setMergeTarVolumes(boolean mergeTarVolumes) {
+		this.mergeTarVolumes = mergeTarVolumes;
+	}
+
+	/**
+	 * sets the size from which on files of a full tar backup are pulled through
+	 * sync instead of being tared (see {@link TransferPlan})
 	 * 
-	 * TODO: md5sum may fail when backup is done on a running system ...
-	 * 		(obviously, but how to handle ...) 
+	 * @param syncThreshold {@link Long} size in bytes, -1 to tar all files
 	 */
-	public boolean getExtPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
-		return getMountPointAsTar("sd-ext", toFilePath);
+	public void setSyncThreshold(long syncThreshold) {
+		this.syncThreshold = syncThreshold;
 	}
 
 	/**
-	 * gets the content of the sdcard partition as tar file
+	 * gets the content of the file system as tar file
 	 * 
+	 * @param mountPoint {@link String} file system to be tared
 	 * @param toFilePath {@link String} where the file shall be stored locally
 	 * 
 	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
 	 * 
 	 * @throws NoSuchAlgorithmException
 	 * @throws IOException
-	 * 
-	 * TODO: md5sum may fail when backup is done on a running system ...
-	 * 		(obviously, but how to handle ...) 
 	 */
-	public boolean getSdcardPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
-		return getMountPointAsTar("sdcard", toFilePath);
+	public boolean getMountPointAsTar(String mountPoint, String toFilePath) throws NoSuchAlgorithmException, IOException {
+		final String startDirectory = (mountPoint.startsWith("/") ? "" : "/") + mountPoint;
+		
+		if (syncThreshold >= 0) {
+			FileManifest manifest = getFileManifest(startDirectory);
+			if (manifest == null) {
+				return false;
+			}
+			File directory = new File(toFilePath);
+			String name = startDirectory.substring(1);
+			if (getHybridTar(startDirectory, directory, name, manifest) == null) {
+				return false;
+			}
+			// the listing allows a later incremental backup to be based on this one
+			manifest.save(FileManifest.getManifestFile(directory, name));
+			return true;
+		}
+		return getFullTar(startDirectory, new File(toFilePath), startDirectory.substring(1)) != null;
 	}
-
+	
 	/**
-	 * gets the content of a file system as tar file
+	 * gets the content of a directory as one tar file or, if more than one tar stream
+	 * is configured, as several tar volumes transferred in parallel; the top level
+	 * entries of the directory are distributed to the volumes by size. Unless
+	 * the volumes are merged, they are listed in a chain file (see {@link TarSnapshot}).
 	 * 
-	 * @param toFilePath {@link String} where the file shall be stored locally
-	 * @param startDirectory {@link String} root directory where to start
-	 * @param tarFileName {@link String} name of the tar file to be used
+	 * @param startDirectory {@link String} directory to be tared
+	 * @param directory {@link File} where the files shall be stored locally
+	 * @param name {@link String} name of the tar file without extension
 	 * 
-	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * @return {@link List} of the volume file names or null if the transfer failed
 	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
 	 */
-	private boolean getFileSystemAsTar(String toFilePath, String startDirectory, String tarFileName) {
-		boolean result = true;
-
-		final String createFifoString = "busybox rm -f /cache/myfifo; busybox mkfifo /cache/myfifo";
-		final String tarString = "busybox stty raw; busybox tar cvf /cache/myfifo " + startDirectory;
-		final String catString = "busybox stty raw; busybox cat /cache/myfifo";
+	private List<String> getFullTar(String startDirectory, File directory, String name) throws NoSuchAlgorithmException, IOException {
+		List<String> volumes = new ArrayList<String>();
+		Map<String, Long> sizes = null;
+		if (tarStreams > 1) {
+			sizes = getSubtreeSizes(startDirectory);
+		}
+		if (sizes == null || sizes.size() < 2) {
+			volumes.add(name + ".tar");
+			return getTar(TAR_FIFO, getTarCommand(startDirectory, null), getFindExpression(startDirectory), new File(directory, name + ".tar").getPath(), null) ? volumes : null;
+		}
 		
 		//
-		// create a fifo to transfer data from remote to local
+		// each group of subtrees gets its own fifo and tar stream
 		//
-		try {
-			selectedDevice.executeShellCommand(getRootExecutableCommand(createFifoString), NullOutputReceiver.getReceiver());
-		} catch (DeviceNotAvailableException e) {
-			result = false;
+		final List<List<String>> groups = SubtreePartitioner.partition(sizes, tarStreams);
+		final List<File> volumeFiles = new ArrayList<File>();
+		final boolean[] results = new boolean[groups.size()];
+		List<Thread> executors = new ArrayList<Thread>();
+		for (int i = 0; i < groups.size(); i++) {
+			final int group = i;
+			final String volume = String.format("%s.part%02d.tar", name, i);
+			volumes.add(volume);
+			volumeFiles.add(new File(directory, volume));
+			Runnable groupCommand = new Runnable() {
+				@Override
+				public void run() {
+					String fifo = TAR_FIFO + "." + group;
+					StringBuilder roots = new StringBuilder();
+					for (String path : groups.get(group)) {
+						roots.append(' ').append(FindFilter.quote(path));
+					}
+					try {
+						results[group] = pushFileList(groups.get(group), fifo + ".list")
+								&& getTar(fifo, getTarCommand(roots.toString().trim(), fifo + ".list"), getFindExpression(roots.toString().trim()), volumeFiles.get(group).getPath(), null);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			Thread groupCommandExecutor = new Thread(groupCommand);
+			groupCommandExecutor.start();
+			executors.add(groupCommandExecutor);
+		}
+		boolean result = true;
+		for (int i = 0; i < executors.size(); i++) {
+			try {
+				executors.get(i).join();
+			} catch (InterruptedException e) {
+				result = false;
+			}
+			result &= results[i];
+		}
+		if (!result) {
+			return null;
 		}
 		
-		//
-		// run the tar command
-		//
-		Runnable tarCommand = new Runnable() {		
-			@Override
-			public void run() {
-				try {
-					selectedDevice.executeShellCommand(getRootExecutableCommand(tarString), NullOutputReceiver.getReceiver());					
-				} catch (DeviceNotAvailableException e) {
-					e.printStackTrace();
+		if (mergeTarVolumes) {
+			File tarFile = new File(directory, name + ".tar");
+			System.err.println("merging " + volumes.size() + " volumes into " + tarFile);
+			TarMerger.merge(volumeFiles, tarFile);
+			for (File volumeFile : volumeFiles) {
+				for (String suffix : new String[] { "", TarIndex.INDEX_SUFFIX, TarDigestManifest.MANIFEST_SUFFIX, ".md5" }) {
+					FileUtil.deleteFile(new File(volumeFile.getPath() + suffix));
 				}
 			}
-		};
+			volumes.clear();
+			volumes.add(name + ".tar");
+		} else {
+			TarSnapshot snapshot = new TarSnapshot(directory, name);
+			for (String volume : volumes) {
+				snapshot.addVolume(volume);
+			}
+			snapshot.save();
+		}
+		return volumes;
+	}
+	
+	/**
+	 * gets the content of a directory as a chain of two volumes transferred at
+	 * the same time: the directories and small files are tared in one stream,
+	 * the large files are pulled through sync, using as many transfers as tar
+	 * streams are configured (at most one per pooled sync connection), and
+	 * written into a volume of their own. The files are selected by the
+	 * listing of the directory (see {@link TransferPlan}).
+	 * 
+	 * @param startDirectory {@link String} directory to be backed up
+	 * @param directory {@link File} where the files shall be stored locally
+	 * @param name {@link String} name of the chain
+	 * @param manifest {@link FileManifest} listing of the directory
+	 * 
+	 * @return {@link List} of the volume file names or null if the transfer failed
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	private List<String> getHybridTar(String startDirectory, File directory, String name, FileManifest manifest) throws NoSuchAlgorithmException, IOException {
+		final TransferPlan plan = TransferPlan.create(manifest, syncThreshold);
+		if (plan.getSyncFiles().isEmpty()) {
+			return getFullTar(startDirectory, directory, name);
+		}
+		if (isSuNeeded()) {
+			// sync runs with the rights of adbd, it cannot read files of other apps
+			System.err.println(startDirectory + ": adbd does not run as root, all files are tared");
+			return getFullTar(startDirectory, directory, name);
+		}
+		System.err.println(startDirectory + ": " + plan);
 		
-		final FileReceiver tarFileReceiver = new FileReceiver(toFilePath + (tarFileName.startsWith("/") ? "" : "/") + tarFileName + ".tar");
+		List<String> volumes = new ArrayList<String>();
+		final boolean[] tarResult = { true };
+		Thread tarExecutor = null;
+		if (!plan.getTarPaths().isEmpty()) {
+			final String volume = name + ".tar";
+			final File volumeFile = new File(directory, volume);
+			final String rootDirectory = startDirectory;
+			volumes.add(volume);
+			tarExecutor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						tarResult[0] = pushFileList(plan.getTarPaths(), TAR_FIFO_LIST)
+								&& getTar(TAR_FIFO, "busybox tar cf - --no-recursion -T " + TAR_FIFO_LIST, rootDirectory, volumeFile.getPath(), plan.getTarPaths());
+					} catch (Exception e) {
+						e.printStackTrace();
+						tarResult[0] = false;
+					}
+				}
+			});
+			tarExecutor.start();
+		}
 		
-		//
-		// run the cat command
-		//
-		Runnable catCommand = new Runnable() {		
-			@Override
-			public void run() {
+		String syncVolume = name + SYNC_VOLUME_SUFFIX;
+		File syncVolumeFile = new File(directory, syncVolume);
+		List<File> parts = new ArrayList<File>();
+		for (int i = 0; i < plan.getSyncFiles().size(); i++) {
+			parts.add(new File(syncVolumeFile.getPath() + "." + i + ".part"));
+		}
+		boolean result = true;
+		try {
+			TarDigestManifest deviceDigests = pullFiles(plan.getSyncFiles(), parts);
+			if (tarExecutor != null) {
 				try {
-					selectedDevice.executeShellCommand(getRootExecutableCommand(catString), tarFileReceiver);
-				} catch (DeviceNotAvailableException e) {
-					e.printStackTrace();
+					tarExecutor.join();
+				} catch (InterruptedException e) {
+					result = false;
 				}
 			}
-		};
-
-		//
-		// start both threads and wait for the end
-		//
-		Thread catCommandExecutor = new Thread(catCommand);
-		catCommandExecutor.start();
-
-		Thread tarCommandExecutor = new Thread(tarCommand);
-		tarCommandExecutor.start();
-
-		try {
-			catCommandExecutor.join();
-		} catch (InterruptedException e) {
-			result = false;
+			result &= tarResult[0] && deviceDigests != null;
+			if (!result) {
+				return null;
+			}
+			TransferPlan.writeVolume(plan.getSyncFiles(), parts, syncVolumeFile);
+			List<String> differences = TarDigestManifest.load(TarDigestManifest.getManifestFile(syncVolumeFile)).diff(deviceDigests);
+			if (!differences.isEmpty()) {
+				for (String difference : differences) {
+					System.err.println(difference);
+				}
+				return null;
+			}
+		} finally {
+			for (File part : parts) {
+				FileUtil.deleteFile(part);
+			}
 		}
-		try {
-			tarCommandExecutor.join();
-		} catch (InterruptedException e) {
-			result = false;
+		volumes.add(syncVolume);
+		
+		TarSnapshot snapshot = new TarSnapshot(directory, name);
+		for (String volume : volumes) {
+			snapshot.addVolume(volume);
 		}
-
-		return result;
+		snapshot.save();
+		return volumes;
 	}
 	
 	/**
-	 * gets the md5sum of a file system
-	 * 
-	 * @param rootFileName {@link String} rootFileName to get the md5sum for
-	 * @param md5FileName {@link String} filename the md5sum should be stored in
+	 * pulls files through sync, several at a time; the md5 sum of each file is
+	 * computed on the device by a separate md5sum running while it is pulled,
+	 * so the check costs a second read of the file on the device but hardly
+	 * any extra time. Sync needs adbd running as root to read all files.
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @param entries {@link List} of the files
+	 * @param targets {@link List} of the local files, in the same order
+	 * @return {@link TarDigestManifest} md5 sums computed on the device or null if a transfer failed
 	 */
-	private boolean getTarFileMD5(String rootFileName, String md5FileName) {
+	private TarDigestManifest pullFiles(final List<FileManifest.Entry> entries, final List<File> targets) throws IOException {
+		final StringBuffer md5sums = new StringBuffer();
+		List<Callable<Boolean>> transfers = new ArrayList<Callable<Boolean>>();
+		for (int i = 0; i < entries.size(); i++) {
+			final String path = "/" + entries.get(i).path;
+			final File target = targets.get(i);
+			transfers.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					final String[] md5sum = { null };
+					Thread md5Executor = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								md5sum[0] = selectedDevice.executeShellCommand(getRootExecutableCommand("busybox md5sum " + FindFilter.quote(path)));
+							} catch (DeviceNotAvailableException e) {
+								md5sum[0] = null;
+							}
+						}
+					});
+					md5Executor.start();
+					boolean pulled = selectedDevice.pullFile(path, target);
+					md5Executor.join();
+					if (!pulled || md5sum[0] == null) {
+						System.err.println("transfer of " + path + " failed");
+						return false;
+					}
+					md5sums.append(md5sum[0].trim()).append('\n');
+					return true;
+				}
+			});
+		}
+		// more transfers than pooled sync connections would only wait for one
+		int transferThreads = Math.min(Math.min(tarStreams, entries.size()), selectedDevice.getOptions().getSyncPoolSize());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, transferThreads));
 		boolean result = true;
-
-		final String md5sumString = "busybox tar cf - " + rootFileName + " 2&>/dev/null | md5sum";
-
 		try {
-			selectedDevice.executeShellCommand(getRootExecutableCommand(md5sumString), new FileReceiver(md5FileName));
-		} catch (DeviceNotAvailableException e) {
+			for (Future<Boolean> future : executor.invokeAll(transfers)) {
+				try {
+					result &= future.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					result = false;
+				}
+			}
+		} catch (InterruptedException e) {
 			result = false;
+		} finally {
+			executor.shutdownNow();
 		}
-		return result;
+		return result ? TarDigestManifest.parse(md5sums.toString()) : null;
 	}
 	
 	/**
-	 * gets the system partition as an image from remote
+	 * gets the files of a mount point changed since a previous backup as tar file;
+	 * the volumes of the previous backup are hard linked into the new backup
+	 * directory, so it contains a complete chain of volumes (see {@link TarSnapshot}).
+	 * If there is no previous backup, a full backup is created.
 	 * 
-	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * @param mountPoint {@link String} file system to be tared
+	 * @param toFilePath {@link String} where the file shall be stored locally
+	 * @param previousPath {@link String} directory of the previous backup, may be null
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
 	 */
-/*
-	public boolean getSystemPartitionAsImage(String imageFileName) {
-		PartitionInfo systemPartition = selectedDevice.getSystemPartition();
-		if (systemPartition != null && systemPartition.deviceName != null && !"".equals(systemPartition.deviceName)) {
-			return getFileSystemAsImage(systemPartition.deviceName, imageFileName);
-		} else {
+	public boolean getMountPointAsIncrementalTar(String mountPoint, String toFilePath, String previousPath) throws NoSuchAlgorithmException, IOException {
+		final String startDirectory = (mountPoint.startsWith("/") ? "" : "/") + mountPoint;
+		final String name = startDirectory.substring(1);
+		final File directory = new File(toFilePath);
+		
+		//
+		// one find / stat pass to get the current state of the file system
+		//
+		FileManifest manifest = getFileManifest(startDirectory);
+		if (manifest == null) {
 			return false;
 		}
-	}
-*/
-	/**
-	 * gets the data partition as an image from remote
-	 * 
-	 * @param imageFileName {@link String} filename the partition should be stored in
-	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
-	 */
-/*
-	public boolean getDataPartitionAsImage(String imageFileName) {
-		PartitionInfo dataPartition = selectedDevice.getDataPartition();
-		if (dataPartition != null && dataPartition.deviceName != null && !"".equals(dataPartition.deviceName)) {
-			return getFileSystemAsImage(dataPartition.deviceName, imageFileName);
+		
+		TarSnapshot previous = null;
+		FileManifest previousManifest = null;
+		if (previousPath != null) {
+			File previousDirectory = new File(previousPath);
+			if (previousDirectory.getCanonicalFile().equals(directory.getCanonicalFile())) {
+				throw new IOException("incremental backup needs a new directory: " + directory);
+			}
+			File chainFile = TarSnapshot.getChainFile(previousDirectory, name);
+			File previousManifestFile = FileManifest.getManifestFile(previousDirectory, name);
+			if (chainFile.exists() && previousManifestFile.exists()) {
+				previous = TarSnapshot.load(chainFile);
+				previousManifest = FileManifest.load(previousManifestFile);
+			}
+		}
+		
+		boolean result = true;
+		TarSnapshot snapshot;
+		if (previous == null) {
+			System.err.println("no previous backup of " + startDirectory + " found, creating a full backup");
+			snapshot = new TarSnapshot(directory, name);
+			List<String> volumes = syncThreshold >= 0 ? getHybridTar(startDirectory, directory, name, manifest) : getFullTar(startDirectory, directory, name);
+			if (volumes != null) {
+				for (String volume : volumes) {
+					snapshot.addVolume(volume);
+				}
+			} else {
+				result = false;
+			}
 		} else {
-			return false;
+			List<FileManifest.Entry> changed = manifest.getChanged(previousManifest);
+			List<String> deleted = manifest.getDeleted(previousManifest);
+			System.err.println(startDirectory + ": " + changed.size() + " new or changed, " + deleted.size() + " deleted");
+			
+			snapshot = previous.linkTo(directory);
+			String volume = name + "." + directory.getName() + ".tar";
+			File volumeFile = new File(directory, volume);
+			if (changed.isEmpty()) {
+				// an empty archive, i.e. two zero blocks
+				FileOutputStream fos = new FileOutputStream(volumeFile);
+				try {
+					fos.write(new byte[2 * TarStreamParser.BLOCK_SIZE]);
+				} finally {
+					fos.close();
+				}
+			} else {
+				//
+				// the list of files to be tared is pushed to the device
+				//
+				List<String> changedPaths = new ArrayList<String>(changed.size());
+				for (FileManifest.Entry entry : changed) {
+					changedPaths.add("/" + entry.path);
+				}
+				result &= pushFileList(changedPaths, TAR_FIFO_LIST);
+				if (result) {
+					// the directories are listed themselves, tar must not add their unchanged content
+					result &= getTar(TAR_FIFO, "busybox tar cf - --no-recursion -T " + TAR_FIFO_LIST, startDirectory, volumeFile.getPath(), changedPaths);
+				}
+			}
+			if (!deleted.isEmpty()) {
+				TarSnapshot.saveDeleted(volumeFile, deleted);
+			}
+			snapshot.addVolume(volume);
 		}
+		if (result) {
+			manifest.save(FileManifest.getManifestFile(directory, name));
+			snapshot.save();
+		}
+		return result;
 	}
-*/
+	
 	/**
-	 * gets the cache partition as an image from remote
+	 * gets a tar file and verifies it
 	 * 
-	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * @param fifo {@link String} device fifo used for the transfer
+	 * @param tarCommand {@link String} device command writing the tar stream to stdout
+	 * @param findExpression {@link String} directories and find expression selecting the files of the archive
+	 * @param tarFilePath {@link String} where the file shall be stored locally
+	 * @param expectedFiles {@link Collection} of the files the archive consists of, null for all
+	 * files selected by findExpression
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
 	 */
-/*
-	public boolean getCachePartitionAsImage(String imageFileName) {
-		PartitionInfo cachePartition = selectedDevice.getCachePartition();
-		if (cachePartition != null && cachePartition.deviceName != null && !"".equals(cachePartition.deviceName)) {
-			return getFileSystemAsImage(cachePartition.deviceName, imageFileName);
-		} else {
-			return false;
+	private boolean getTar(String fifo, String tarCommand, String findExpression, String tarFilePath, Collection<String> expectedFiles) throws NoSuchAlgorithmException, IOException {
+		final String md5FilePath = tarFilePath + ".md5";
+		
+		//
+		// the host computes the md5 sum of the received stream and the md5 sums
+		// of all files while the device computes the md5 sum of the sent stream,
+		// so the file system is read only once
+		//
+		TarDigestManifest manifest = new TarDigestManifest(TarDigestManifest.getManifestFile(new File(tarFilePath)));
+		TarStreamParser tarStreamParser = new TarStreamParser();
+		tarStreamParser.addListener(new TarIndexer(TarIndex.getIndexFile(new File(tarFilePath))));
+		tarStreamParser.addListener(manifest);
+		ParallelTarExtractor extractor = null;
+		if (extractDirectory != null) {
+			extractor = new ParallelTarExtractor(extractDirectory, extractWriters);
+			tarStreamParser.addListener(extractor);
+		}
+		FileReceiver tarFileReceiver = new FileReceiver(tarFilePath, tarStreamParser);
+
+		boolean result = true;
+		
+		result &= getFileSystemAsTar(fifo, tarCommand, tarFileReceiver);
+		if (extractor != null) {
+			// the writers are still running if the stream could not be parsed
+			extractor.shutdown();
+			if (extractor.getFailure() != null) {
+				// the archive itself is not affected
+				System.err.println("extracting to " + extractDirectory + " failed: " + extractor.getFailure().getMessage());
+			}
 		}
+		result &= getTarStreamMD5(fifo, md5FilePath);
+		if (result) {
+			result &= verifyTar(findExpression, tarFileReceiver.getMD5(), md5FilePath, manifest, expectedFiles);
+		}
+		return result;
 	}
-*/
+	
 	/**
-	 * gets the boot partition as an image from remote
-	 * 
-	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * gets the device command writing a tar stream of the given directories
+	 * to stdout, applying the include / exclude filter
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @param roots {@link String} directories to be tared
+	 * @param listFile {@link String} device file listing the directories, may be null
+	 * @return {@link String}
 	 */
-/*
-	public boolean getBootPartitionAsImage(String imageFileName) {
-		PartitionInfo bootPartition = selectedDevice.getBootPartition();
-		if (bootPartition != null && bootPartition.deviceName != null && !"".equals(bootPartition.deviceName)) {
-			return getFileSystemAsImage(bootPartition.deviceName, imageFileName);
-		} else {
-			return false;
+	private String getTarCommand(String roots, String listFile) {
+		if (findFilter != null && !findFilter.isEmpty()) {
+			return findFilter.toFindCommand(roots) + " | busybox tar cf - --no-recursion --null -T -";
 		}
+		return "busybox tar cf - " + (listFile != null ? "-T " + listFile : roots);
 	}
-*/
+	
 	/**
-	 * gets the recovery partition as an image from remote
+	 * gets the find arguments selecting the files of a tar stream
 	 * 
-	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * @param roots {@link String} directories to be tared
+	 * @return {@link String}
+	 */
+	private String getFindExpression(String roots) {
+		if (findFilter != null && !findFilter.isEmpty()) {
+			return roots + " " + findFilter.toExpression(true);
+		}
+		return roots;
+	}
+	
+	/**
+	 * pushes a list of paths to the device, e.g. to be passed to tar -T
 	 * 
+	 * @param paths {@link Collection} of device paths
+	 * @param deviceFilePath {@link String} list file on the device
 	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @throws IOException
 	 */
-/*
-	public boolean getRecoveryPartitionAsImage(String imageFileName) {
-		PartitionInfo recoveryPartition = selectedDevice.getRecoveryPartition();
-		if (recoveryPartition != null && recoveryPartition.deviceName != null && !"".equals(recoveryPartition.deviceName)) {
-			return getFileSystemAsImage(recoveryPartition.deviceName, imageFileName);
-		} else {
+	private boolean pushFileList(Collection<String> paths, String deviceFilePath) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String path : paths) {
+			sb.append(path).append('\n');
+		}
+		File listFile = FileUtil.createTempFile("art", ".list");
+		try {
+			FileUtil.writeToFile(sb.toString(), listFile);
+			return selectedDevice.pushFile(listFile, deviceFilePath);
+		} catch (DeviceNotAvailableException e) {
 			return false;
+		} finally {
+			FileUtil.deleteFile(listFile);
 		}
 	}
-*/
+	
 	/**
-	 * gets the misc partition as an image from remote
-	 * 
-	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * gets the sizes of the top level entries of a directory
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @param startDirectory {@link String}
+	 * @return {@link Map} path to size in KB or null if the device is not available
+	 * @throws IOException
 	 */
-/*
-	public boolean getMiscPartitionAsImage(String imageFileName) {
-		PartitionInfo miscPartition = selectedDevice.getMiscPartition();
-		if (miscPartition != null && miscPartition.deviceName != null && !"".equals(miscPartition.deviceName)) {
-			return getFileSystemAsImage(miscPartition.deviceName, imageFileName);
-		} else {
-			return false;
+	private Map<String, Long> getSubtreeSizes(String startDirectory) throws IOException {
+		final String duString = "busybox du -k -a -d 1 " + startDirectory;
+
+		String output;
+		try {
+			output = executeRootCommand(duString);
+		} catch (DeviceNotAvailableException e) {
+			return null;
 		}
+		return SubtreePartitioner.parseDu(output, startDirectory);
 	}
-*/
+	
 	/**
-	 * gets the partition with the given name as an image from remote
+	 * gets the manifest (inode, size, mtime, mode) of all files below a directory
 	 * 
-	 * @param partitionName {@link String} name of the partition to be read
-	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * @param startDirectory {@link String}
+	 * @return {@link FileManifest} or null if the device is not available
+	 * @throws IOException
+	 */
+	private FileManifest getFileManifest(String startDirectory) throws IOException {
+		final String expression = findFilter != null && !findFilter.isEmpty() ? " " + findFilter.toExpression(false) : "";
+		final String statString = "busybox find " + startDirectory + expression + " -print0 | busybox xargs -0 busybox stat -c '" + FileManifest.STAT_FORMAT + "'";
+
+		String output;
+		try {
+			output = executeRootCommand(statString);
+		} catch (DeviceNotAvailableException e) {
+			return null;
+		}
+		return FileManifest.parse(output);
+	}
+	
+	/**
+	 * gets the manifest of the paths listed in a device file, directories
+	 * are listed without their content
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @param listFile {@link String} device file, one path per line
+	 * @return {@link FileManifest} or null if the device is not available
+	 * @throws IOException
 	 */
-	public boolean getPartitionAsImage(String partitionName, String imageFileName) {
-		PartitionInfo selectedPartition = selectedDevice.getPartition(partitionName);
-		if (selectedPartition != null && selectedPartition.deviceName != null && !"".equals(selectedPartition.deviceName)) {
-			return getFileSystemAsImage(selectedPartition.deviceName, imageFileName);
-		} else {
-			return false;
+	private FileManifest getListedFileManifest(String listFile) throws IOException {
+		final String statString = "busybox tr '\\n' '\\0' < " + listFile + " | busybox xargs -0 busybox stat -c '" + FileManifest.STAT_FORMAT + "'";
+
+		String output;
+		try {
+			output = executeRootCommand(statString);
+		} catch (DeviceNotAvailableException e) {
+			return null;
 		}
+		return FileManifest.parse(output);
+	}
+	
+	/**
+	 * gets the content of the system partition as tar file
+	 * 
+	 * @param toFilePath {@link String} where the file shall be stored locally
+	 * 
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public boolean getSytemPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
+		return getMountPointAsTar("system", toFilePath);
 	}
 
 	/**
-	 * gets the md5sum of a partition
+	 * gets the content of the data partition as tar file
 	 * 
-	 * @param partitionName {@link String} partitionName to get the md5sum for
-	 * @param md5FileName {@link String} filename the md5sum should be stored in
+	 * @param toFilePath {@link String} where the file shall be stored locally
 	 * 
-	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
 	 */
-	public boolean getPartitionMD5(String partitionName, String md5FileName) {
-		PartitionInfo selectedPartition = selectedDevice.getPartition(partitionName);
-		if (selectedPartition != null && selectedPartition.deviceName != null && !"".equals(selectedPartition.deviceName)) {
-			return getFileSystemImageMD5(selectedPartition.deviceName, md5FileName);
-		} else {
-			return false;
-		}
+	public boolean getDataPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
+		return getMountPointAsTar("data", toFilePath);
 	}
-	
+
 	/**
-	 * gets the content of a file system as an image
+	 * gets the content of the sd-ext partition as tar file
 	 * 
-	 * @param partitionDefinition {@link String}
-	 * @param iamgeFileName {@link String} name of the image file
+	 * @param toFilePath {@link String} where the file shall be stored locally
 	 * 
 	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
 	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
 	 */
-	private boolean getFileSystemAsImage(String partitionDefinition, String imageFileName) {
-		boolean result = true;
+	public boolean getExtPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
+		return getMountPointAsTar("sd-ext", toFilePath);
+	}
 
-		final String createFifoString = "busybox rm -f /cache/myfifo; busybox mkfifo /cache/myfifo";
-		final String dumpString = "busybox stty raw; dd if=" + partitionDefinition + " of=/cache/myfifo bs=4096";
-		final String catString = "busybox stty raw; busybox cat /cache/myfifo";
+	/**
+	 * gets the content of the sdcard partition as tar file
+	 * 
+	 * @param toFilePath {@link String} where the file shall be stored locally
+	 * 
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public boolean getSdcardPartitionAsTar(String toFilePath) throws NoSuchAlgorithmException, IOException {
+		return getMountPointAsTar("sdcard", toFilePath);
+	}
+
+	/**
+	 * gets the content of a file system as tar file
+	 * 
+	 * @param fifo {@link String} device fifo used for the transfer
+	 * @param tarStreamCommand {@link String} device command writing the tar stream to stdout
+	 * @param tarFileReceiver {@link IShellOutputReceiver} which receives the tar stream
+	 * 
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 */
+	private boolean getFileSystemAsTar(String fifo, String tarStreamCommand, final IShellOutputReceiver tarFileReceiver) {
+		boolean result = true;
 
+		final String createFifoString = "busybox rm -f " + fifo + " " + fifo + ".md5; busybox mkfifo " + fifo;
+		final String tarString = "busybox stty raw; " + tarStreamCommand + " 2>/dev/null | busybox tee " + fifo + " | busybox md5sum > " + fifo + ".md5";
+		final String catString = "busybox stty raw; busybox cat " + fifo;
+		
+		//
+		// create a fifo to transfer data from remote to local
+		//
 		try {
-			selectedDevice.executeShellCommand(getRootExecutableCommand(createFifoString), NullOutputReceiver.getReceiver(), 0, 1);
+			executeRootCommand(createFifoString);
 		} catch (DeviceNotAvailableException e) {
 			result = false;
 		}
-
-		Runnable dumpCommand = new Runnable() {		
+		
+		//
+		// run the tar command, the stream is hashed on the device while it is sent
+		//
+		Runnable tarCommand = new Runnable() {		
 			@Override
 			public void run() {
 				try {
-					selectedDevice.executeShellCommand(getRootExecutableCommand(dumpString), NullOutputReceiver.getReceiver(), 0, 1);					
+					selectedDevice.executeShellCommand(getRootExecutableCommand(tarString), NullOutputReceiver.getReceiver());					
 				} catch (DeviceNotAvailableException e) {
 					e.printStackTrace();
 				}
 			}
 		};
 		
-		final FileReceiver imageFileReceiver = new FileReceiver(imageFileName);
-		
+		//
+		// run the cat command
+		//
 		Runnable catCommand = new Runnable() {		
 			@Override
 			public void run() {
 				try {
-					selectedDevice.executeShellCommand(getRootExecutableCommand(catString), imageFileReceiver, 0, 1);
+					selectedDevice.executeShellCommand(getRootExecutableCommand(catString), tarFileReceiver);
 				} catch (DeviceNotAvailableException e) {
 					e.printStackTrace();
 				}
 			}
 		};
 
+		//
+		// start both threads and wait for the end
+		//
 		Thread catCommandExecutor = new Thread(catCommand);
 		catCommandExecutor.start();
 
-		Thread dumpCommandExecutor = new Thread(dumpCommand);
-		dumpCommandExecutor.start();
+		Thread tarCommandExecutor = new Thread(tarCommand);
+		tarCommandExecutor.start();
 
 		try {
-			dumpCommandExecutor.join();
+			catCommandExecutor.join();
 		} catch (InterruptedException e) {
 			result = false;
 		}
 		try {
-			catCommandExecutor.join();
+			tarCommandExecutor.join();
 		} catch (InterruptedException e) {
 			result = false;
 		}
-		return result;
-	}
 
+		return result && !tarFileReceiver.isCancelled();
+	}
+	
 	/**
-	 * gets the md5sum of a partition
+	 * gets the md5sum of the last tar stream as calculated on the device
 	 * 
-	 * @param partitionDefinition {@link String} partitionDefinition to get the md5sum for
+	 * @param fifo {@link String} device fifo used for the transfer
 	 * @param md5FileName {@link String} filename the md5sum should be stored in
 	 * 
 	 * @return {@link Boolean} true if succeeded, false otherwise
 	 */
-	private boolean getFileSystemImageMD5(String partitionDefinition, String md5FileName) {
+	private boolean getTarStreamMD5(String fifo, String md5FileName) {
 		boolean result = true;
 
-		final String md5sumString = "busybox md5sum " + partitionDefinition;
+		final String catString = "busybox cat " + fifo + ".md5";
 
 		try {
-			selectedDevice.executeShellCommand(getRootExecutableCommand(md5sumString), new FileReceiver(md5FileName));
+			FileUtil.writeToFile(executeRootCommand(catString), new File(md5FileName));
 		} catch (DeviceNotAvailableException e) {
 			result = false;
+		} catch (IOException e) {
+			result = false;
 		}
 		return result;
 	}
+	
+	/**
+	 * compares the md5 sum of the received stream with the one calculated on the
+	 * device; in case of a mismatch the md5 sums of all files are calculated on
+	 * the device and compared to the ones of the received archive
+	 * 
+	 * @param findExpression {@link String} directories and find expression selecting the files of the archive
+	 * @param receivedMD5 {@link String} md5 sum of the received stream
+	 * @param md5FileName {@link String} file containing the md5 sum calculated on the device
+	 * @param manifest {@link TarDigestManifest} md5 sums of the files of the received archive
+	 * @param expectedFiles {@link Collection} of the files the archive consists of, null for all
+	 * files selected by findExpression
+	 * 
+	 * @return {@link Boolean} true if the archive is valid, false otherwise
+	 * @throws IOException
+	 */
+	private boolean verifyTar(String findExpression, String receivedMD5, String md5FileName, TarDigestManifest manifest, Collection<String> expectedFiles) throws IOException {
+		String deviceMD5 = MD5Utils.readMD5(md5FileName);
+		if (receivedMD5 != null && receivedMD5.equals(deviceMD5)) {
+			return true;
+		}
+		System.err.println("md5 mismatch: " + receivedMD5 + " (received) <-> " + deviceMD5 + " (device)");
+
+		final String md5sumString = "busybox find " + findExpression + " -type f -exec busybox md5sum {} \\;";
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		try {
+			selectedDevice.executeShellCommand(getRootExecutableCommand(md5sumString), receiver);
+		} catch (DeviceNotAvailableException e) {
+			return false;
+		}
+		TarDigestManifest deviceManifest = TarDigestManifest.parse(receiver.getOutput());
+		if (expectedFiles != null) {
+			deviceManifest = deviceManifest.retain(expectedFiles);
+		}
+		for (String difference : manifest.diff(deviceManifest)) {
+			System.err.println(difference);
+		}
+		return false;
+	}
+	
+	/**
+	 * gets the system partition as an image from remote
+	 * 
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+/*
+	public boolean getSystemPartitionAsImage(String imageFileName) {
+		PartitionInfo systemPartition = selectedDevice.getSystemPartition();
+		if (systemPartition != null && systemPartition.deviceName != null && !"".equals(systemPartition.deviceName)) {
+			return getFileSystemAsImage(systemPartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+*/
+	/**
+	 * gets the data partition as an image from remote
+	 * 
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+/*
+	public boolean getDataPartitionAsImage(String imageFileName) {
+		PartitionInfo dataPartition = selectedDevice.getDataPartition();
+		if (dataPartition != null && dataPartition.deviceName != null && !"".equals(dataPartition.deviceName)) {
+			return getFileSystemAsImage(dataPartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+*/
+	/**
+	 * gets the cache partition as an image from remote
+	 * 
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+/*
+	public boolean getCachePartitionAsImage(String imageFileName) {
+		PartitionInfo cachePartition = selectedDevice.getCachePartition();
+		if (cachePartition != null && cachePartition.deviceName != null && !"".equals(cachePartition.deviceName)) {
+			return getFileSystemAsImage(cachePartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+*/
+	/**
+	 * gets the boot partition as an image from remote
+	 * 
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+/*
+	public boolean getBootPartitionAsImage(String imageFileName) {
+		PartitionInfo bootPartition = selectedDevice.getBootPartition();
+		if (bootPartition != null && bootPartition.deviceName != null && !"".equals(bootPartition.deviceName)) {
+			return getFileSystemAsImage(bootPartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+*/
+	/**
+	 * gets the recovery partition as an image from remote
+	 * 
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+/*
+	public boolean getRecoveryPartitionAsImage(String imageFileName) {
+		PartitionInfo recoveryPartition = selectedDevice.getRecoveryPartition();
+		if (recoveryPartition != null && recoveryPartition.deviceName != null && !"".equals(recoveryPartition.deviceName)) {
+			return getFileSystemAsImage(recoveryPartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+*/
+	/**
+	 * gets the misc partition as an image from remote
+	 * 
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+/*
+	public boolean getMiscPartitionAsImage(String imageFileName) {
+		PartitionInfo miscPartition = selectedDevice.getMiscPartition();
+		if (miscPartition != null && miscPartition.deviceName != null && !"".equals(miscPartition.deviceName)) {
+			return getFileSystemAsImage(miscPartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+*/
+	/**
+	 * gets the partition with the given name as an image from remote
+	 * 
+	 * @param partitionName {@link String} name of the partition to be read
+	 * @param imageFileName {@link String} filename the partition should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+	public boolean getPartitionAsImage(String partitionName, String imageFileName) {
+		PartitionInfo selectedPartition = selectedDevice.getPartition(partitionName);
+		if (selectedPartition != null && selectedPartition.deviceName != null && !"".equals(selectedPartition.deviceName)) {
+			return getFileSystemAsImage(selectedPartition.deviceName, imageFileName);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * gets the md5sum of a partition
+	 * 
+	 * @param partitionName {@link String} partitionName to get the md5sum for
+	 * @param md5FileName {@link String} filename the md5sum should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+	public boolean getPartitionMD5(String partitionName, String md5FileName) {
+		PartitionInfo selectedPartition = selectedDevice.getPartition(partitionName);
+		if (selectedPartition != null && selectedPartition.deviceName != null && !"".equals(selectedPartition.deviceName)) {
+			return getFileSystemImageMD5(selectedPartition.deviceName, md5FileName);
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * gets the content of a file system as an image
+	 * 
+	 * @param partitionDefinition {@link String}
+	 * @param iamgeFileName {@link String} name of the image file
+	 * 
+	 * @return {@link Boolean} true if the transfer succeeded, false otherwise
+	 * 
+	 */
+	private boolean getFileSystemAsImage(String partitionDefinition, String imageFileName) {
+		boolean result = true;
+
+		final String createFifoString = "busybox rm -f /cache/myfifo; busybox mkfifo /cache/myfifo";
+		final String dumpString = "busybox stty raw; dd if=" + partitionDefinition + " of=/cache/myfifo bs=4096";
+		final String catString = "busybox stty raw; busybox cat /cache/myfifo";
+
+		try {
+			executeRootCommand(createFifoString);
+		} catch (DeviceNotAvailableException e) {
+			result = false;
+		}
+
+		Runnable dumpCommand = new Runnable() {		
+			@Override
+			public void run() {
+				try {
+					selectedDevice.executeShellCommand(getRootExecutableCommand(dumpString), NullOutputReceiver.getReceiver(), 0, 1);					
+				} catch (DeviceNotAvailableException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		
+		final FileReceiver imageFileReceiver = new FileReceiver(imageFileName);
+		
+		Runnable catCommand = new Runnable() {		
+			@Override
+			public void run() {
+				try {
+					selectedDevice.executeShellCommand(getRootExecutableCommand(catString), imageFileReceiver, 0, 1);
+				} catch (DeviceNotAvailableException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		Thread catCommandExecutor = new Thread(catCommand);
+		catCommandExecutor.start();
+
+		Thread dumpCommandExecutor = new Thread(dumpCommand);
+		dumpCommandExecutor.start();
+
+		try {
+			dumpCommandExecutor.join();
+		} catch (InterruptedException e) {
+			result = false;
+		}
+		try {
+			catCommandExecutor.join();
+		} catch (InterruptedException e) {
+			result = false;
+		}
+		return result;
+	}
+
+	/**
+	 * gets the md5sum of a partition
+	 * 
+	 * @param partitionDefinition {@link String} partitionDefinition to get the md5sum for
+	 * @param md5FileName {@link String} filename the md5sum should be stored in
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 */
+	private boolean getFileSystemImageMD5(String partitionDefinition, String md5FileName) {
+		boolean result = true;
+
+		final String md5sumString = "busybox md5sum " + partitionDefinition;
+
+		try {
+			selectedDevice.executeShellCommand(getRootExecutableCommand(md5sumString), new FileReceiver(md5FileName));
+		} catch (DeviceNotAvailableException e) {
+			result = false;
+		}
+		return result;
+	}
+
+	// -----------------------------------------------------------------------------
+	// methods related to app backups
+	// -----------------------------------------------------------------------------
+	/**
+	 * backs up applications, each into its own archive &lt;package&gt;.tar of
+	 * /data/data/&lt;package&gt;; the apks are kept in the apk store and listed in
+	 * &lt;package&gt;.apks, apks already stored are not transferred again. Apps are
+	 * backed up concurrently, each running transfer uses its own fifo.
+	 * 
+	 * @param packages {@link Collection} of package names, all installed packages if empty
+	 * @param directory {@link File} backup directory
+	 * @param apkStore {@link ApkStore}
+	 * @param concurrency {@link Integer} number of apps backed up at the same time
+	 * 
+	 * @return {@link Map} package name to the duration of its backup in milliseconds,
+	 * -1 if the backup failed
+	 * 
+	 * @throws IOException
+	 */
+	public Map<String, Long> backupApps(Collection<String> packages, final File directory, final ApkStore apkStore, int concurrency) throws IOException {
+		Collection<String> selected = packages;
+		if (selected.isEmpty()) {
+			try {
+				selected = new TreeSet<String>(selectedDevice.getInstalledPackageNames());
+			} catch (DeviceNotAvailableException e) {
+				throw new IOException("cannot list packages: " + e.getMessage());
+			}
+		}
+		File storeDirectory = apkStore.getDirectory();
+		if (!storeDirectory.isDirectory() && !storeDirectory.mkdirs()) {
+			throw new IOException("cannot create directory " + storeDirectory);
+		}
+		
+		final BlockingQueue<Integer> fifos = new ArrayBlockingQueue<Integer>(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			fifos.add(i);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		Map<String, Future<Long>> results = new LinkedHashMap<String, Future<Long>>();
+		for (final String packageName : selected) {
+			results.put(packageName, executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					Integer fifo = fifos.take();
+					long start = System.currentTimeMillis();
+					try {
+						boolean result = backupApp(packageName, directory, apkStore, TAR_FIFO + ".app" + fifo);
+						return result ? System.currentTimeMillis() - start : -1L;
+					} finally {
+						fifos.put(fifo);
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+		
+		Map<String, Long> durations = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Future<Long>> result : results.entrySet()) {
+			try {
+				durations.put(result.getKey(), result.getValue().get());
+			} catch (InterruptedException e) {
+				durations.put(result.getKey(), -1L);
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				durations.put(result.getKey(), -1L);
+			}
+		}
+		return durations;
+	}
+	
+	/**
+	 * backs up apks and data of a single application
+	 * 
+	 * @param packageName {@link String}
+	 * @param directory {@link File} backup directory
+	 * @param apkStore {@link ApkStore}
+	 * @param fifo {@link String} device fifo used for the transfer
+	 * 
+	 * @return {@link Boolean} true if the backup succeeded, false otherwise
+	 * 
+	 * @throws Exception
+	 */
+	private boolean backupApp(String packageName, File directory, ApkStore apkStore, String fifo) throws Exception {
+		System.err.println("backing up " + packageName);
+		Map<String, String> apks = new LinkedHashMap<String, String>();
+		for (String apkPath : ApkStore.parsePackagePaths(selectedDevice.executeShellCommand("pm path " + packageName))) {
+			String md5sum = selectedDevice.executeShellCommand(getRootExecutableCommand("busybox md5sum " + FindFilter.quote(apkPath))).trim();
+			if (md5sum.length() < 32) {
+				System.err.println("cannot get md5 sum of " + apkPath);
+				return false;
+			}
+			String md5 = md5sum.substring(0, 32);
+			if (!apkStore.contains(md5)) {
+				File partFile = apkStore.getPartFile(md5);
+				if (!selectedDevice.pullFile(apkPath, partFile) || !apkStore.add(partFile, md5)) {
+					System.err.println("transfer of " + apkPath + " failed");
+					return false;
+				}
+			}
+			apks.put(apkPath, md5);
+		}
+		if (apks.isEmpty()) {
+			System.err.println("package not found: " + packageName);
+			return false;
+		}
+		ApkStore.saveApkList(ApkStore.getApkListFile(directory, packageName), apks);
+		
+		String dataDirectory = "/data/data/" + packageName;
+		return getTar(fifo, getTarCommand(dataDirectory, null), getFindExpression(dataDirectory), new File(directory, packageName + ".tar").getPath(), null);
+	}
+	
+	/**
+	 * restores a single application from an app backup: the apk is (re)installed,
+	 * the data directory is restored and handed over to the uid the app got
+	 * by the installation
+	 * 
+	 * @param packageName {@link String}
+	 * @param directory {@link File} backup directory
+	 * @param apkStore {@link ApkStore}
+	 * 
+	 * @return {@link Boolean} true if the restore succeeded, false otherwise
+	 * 
+	 * @throws IOException
+	 */
+	public boolean restoreApp(String packageName, File directory, ApkStore apkStore) throws IOException {
+		File apkListFile = ApkStore.getApkListFile(directory, packageName);
+		if (!apkListFile.isFile()) {
+			System.err.println("no backup of " + packageName + " in " + directory);
+			return false;
+		}
+		Map<String, String> apks = ApkStore.loadApkList(apkListFile);
+		List<File> apkFiles = new ArrayList<File>();
+		for (String md5 : apks.values()) {
+			File apk = apkStore.getFile(md5);
+			if (!apk.isFile()) {
+				System.err.println("apk missing in store: " + apk);
+				return false;
+			}
+			apkFiles.add(apk);
+		}
+		if (apkFiles.isEmpty()) {
+			System.err.println("no apk in backup of " + packageName);
+			return false;
+		}
+		
+		String dataDirectory = "/data/data/" + packageName;
+		try {
+			String error = installPackage(apkFiles);
+			if (error != null) {
+				System.err.println("installing " + packageName + " failed: " + error);
+				return false;
+			}
+			selectedDevice.executeShellCommand("am force-stop " + packageName);
+			// the installation decides on uid and native library directory
+			List<String> attributes = executeRootCommands(Arrays.asList("busybox stat -c %u:%g " + dataDirectory, "busybox readlink " + dataDirectory + "/lib"));
+			String owner = attributes.get(0).trim();
+			String libLink = attributes.get(1).trim();
+			if (!restoreTar(new File(directory, packageName + ".tar"), "/")) {
+				return false;
+			}
+			String fixString = "busybox find " + dataDirectory + " -path " + dataDirectory + "/lib -prune -o -print0 | busybox xargs -0 busybox chown -h " + owner;
+			if (libLink.length() > 0) {
+				fixString += "; busybox rm -f " + dataDirectory + "/lib; busybox ln -s " + libLink + " " + dataDirectory + "/lib";
+			}
+			fixString += "; restorecon -R " + dataDirectory + " 2>/dev/null";
+			executeRootCommand(fixString);
+		} catch (DeviceNotAvailableException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * installs an app, split apks are installed together with adb install-multiple
+	 * 
+	 * @param apkFiles {@link List} of the apks of the app, base apk first
+	 * @return {@link String} error message, null if the installation succeeded
+	 * @throws DeviceNotAvailableException
+	 */
+	private String installPackage(List<File> apkFiles) throws DeviceNotAvailableException {
+		if (apkFiles.size() == 1) {
+			return selectedDevice.installPackage(apkFiles.get(0), true);
+		}
+		List<String> command = new ArrayList<String>(Arrays.asList(adbLocation, "-s", selectedDevice.getSerialNumber(), "install-multiple", "-r"));
+		for (File apk : apkFiles) {
+			command.add(apk.getAbsolutePath());
+		}
+		CommandResult commandResult = RunUtil.getDefault().runTimedCmd(INSTALL_TIMEOUT, command.toArray(new String[command.size()]));
+		String output = (commandResult.getStdout() != null ? commandResult.getStdout() : "") + (commandResult.getStderr() != null ? commandResult.getStderr() : "");
+		if (commandResult.getStatus() != CommandStatus.SUCCESS || !output.contains("Success")) {
+			return output.trim().length() > 0 ? output.trim() : commandResult.getStatus().toString();
+		}
+		return null;
+	}
+
+	// -----------------------------------------------------------------------------
+	// methods related to watch
+	// -----------------------------------------------------------------------------
+	/**
+	 * replicates device directories into a local mirror until the process is
+	 * stopped: after an initial copy, changes reported by busybox inotifyd are
+	 * collected for a window and the changed files are transferred as one tar
+	 * stream. If inotifyd is not available or there are too many directories to
+	 * watch, the directories are compared every poll interval instead.
+	 * 
+	 * @param paths {@link List} of device directories
+	 * @param mirror {@link File} local mirror directory
+	 * @param writers {@link Integer} number of threads writing the mirrored files
+	 * @param windowMillis {@link Long} time events are collected after the first one
+	 * @param pollMillis {@link Long} interval of the polling fallback
+	 * 
+	 * @throws IOException
+	 */
+	public void watch(List<String> paths, File mirror, int writers, long windowMillis, final long pollMillis) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		List<String> roots = new ArrayList<String>();
+		for (String path : paths) {
+			String root = (path.startsWith("/") ? "" : "/") + path;
+			roots.add(root);
+			sb.append(' ').append(FindFilter.quote(root));
+		}
+		final String quotedRoots = sb.toString().trim();
+		
+		System.err.println("initial copy of " + roots + " to " + mirror);
+		FileManifest known = getFileManifest(quotedRoots);
+		if (known == null || !transferToMirror(roots, mirror, writers, true)) {
+			throw new IOException("initial copy failed");
+		}
+		
+		final ChangeCollector collector = new ChangeCollector();
+		InotifydReceiver inotifydReceiver = null;
+		if (isInotifydUsable(quotedRoots)) {
+			inotifydReceiver = startInotifyd(quotedRoots, collector);
+		} else {
+			System.err.println("inotifyd not usable, polling every " + pollMillis + " ms");
+			Thread poller = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(pollMillis);
+							collector.requestRescan();
+						}
+					} catch (InterruptedException e) {
+						// stopped
+					}
+				}
+			}, "watch poller");
+			poller.setDaemon(true);
+			poller.start();
+		}
+		
+		while (true) {
+			ChangeCollector.Batch batch;
+			try {
+				batch = collector.awaitBatch(inotifydReceiver != null ? windowMillis : 0);
+			} catch (InterruptedException e) {
+				break;
+			}
+			Set<String> changed = new LinkedHashSet<String>(batch.changed);
+			Set<String> deleted = new LinkedHashSet<String>(batch.deleted);
+			boolean newDirectories = false;
+			if (batch.rescan) {
+				FileManifest current = getFileManifest(quotedRoots);
+				if (current == null) {
+					throw new IOException("device not available");
+				}
+				for (FileManifest.Entry entry : current.getChanged(known)) {
+					changed.add("/" + entry.path);
+				}
+				// new directories have to be watched as well
+				newDirectories = !current.getNewDirectories(known).isEmpty();
+				for (String path : current.getDeleted(known)) {
+					deleted.add("/" + path);
+				}
+			}
+			for (String path : deleted) {
+				File file = IndexedTarReader.getTargetFile(mirror, path);
+				if (file.isDirectory()) {
+					FileUtil.recursiveDelete(file);
+				} else {
+					FileUtil.deleteFile(file);
+				}
+				known.removeTree(path);
+			}
+			boolean result = changed.isEmpty() || transferToMirror(changed, mirror, writers, false);
+			System.err.println(new Date() + ": " + changed.size() + " changed, " + deleted.size() + " deleted" + (result ? "" : ", transfer failed"));
+			
+			//
+			// the listing follows the mirror, so the next rescan only transfers what the events missed
+			//
+			for (String path : changed) {
+				known.remove(path);
+			}
+			if (result && !changed.isEmpty()) {
+				FileManifest transferred = getListedFileManifest(TAR_FIFO_LIST);
+				if (transferred != null) {
+					for (FileManifest.Entry entry : transferred.getEntries().values()) {
+						known.add(entry);
+					}
+				}
+			}
+			
+			if (inotifydReceiver != null) {
+				// new directories have to be watched as well
+				for (String path : batch.changed) {
+					newDirectories |= IndexedTarReader.getTargetFile(mirror, path).isDirectory();
+				}
+				if (newDirectories) {
+					stopInotifyd(inotifydReceiver);
+					inotifydReceiver = startInotifyd(quotedRoots, collector);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * transfers files and directories into the mirror
+	 * 
+	 * @param paths {@link Collection} of device paths
+	 * @param mirror {@link File} local mirror directory
+	 * @param writers {@link Integer} number of threads writing the files
+	 * @param recursive {@link Boolean} true to transfer the content of the directories as well
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @throws IOException
+	 */
+	private boolean transferToMirror(Collection<String> paths, File mirror, int writers, boolean recursive) throws IOException {
+		if (!pushFileList(paths, TAR_FIFO_LIST)) {
+			return false;
+		}
+		ParallelTarExtractor extractor = new ParallelTarExtractor(mirror, writers);
+		TarStreamParser tarStreamParser = new TarStreamParser();
+		tarStreamParser.addListener(extractor);
+		TarStreamReceiver receiver = new TarStreamReceiver(tarStreamParser);
+		boolean result = getFileSystemAsTar(TAR_FIFO, "busybox tar cf - " + (recursive ? "" : "--no-recursion ") + "-T " + TAR_FIFO_LIST, receiver);
+		extractor.shutdown();
+		if (extractor.getFailure() != null) {
+			System.err.println("updating the mirror failed: " + extractor.getFailure().getMessage());
+			return false;
+		}
+		return result && !receiver.isCancelled();
+	}
+	
+	/**
+	 * checks whether inotifyd exists and the number of directories to watch is reasonable
+	 * 
+	 * @param quotedRoots {@link String} directories to watch
+	 * @return {@link Boolean}
+	 */
+	private boolean isInotifydUsable(String quotedRoots) {
+		try {
+			if (!selectedDevice.executeShellCommand("busybox --list").contains("inotifyd")) {
+				return false;
+			}
+			String count = executeRootCommand("busybox find " + quotedRoots + " -type d | busybox wc -l");
+			return Integer.parseInt(count.trim()) <= MAX_WATCHED_DIRECTORIES;
+		} catch (DeviceNotAvailableException e) {
+			return false;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * starts inotifyd for all directories below the roots; once it runs a
+	 * rescan is requested, so changes made while no inotifyd was watching
+	 * are not lost
+	 * 
+	 * @param quotedRoots {@link String} directories to watch
+	 * @param collector {@link ChangeCollector} receiving the events
+	 * @return {@link InotifydReceiver} to stop inotifyd, see {@link #stopInotifyd(InotifydReceiver)}
+	 */
+	private InotifydReceiver startInotifyd(String quotedRoots, final ChangeCollector collector) {
+		final String inotifydString = "busybox find " + quotedRoots + " -type d | busybox sed 's/$/:" + InotifydReceiver.EVENT_MASK
+				+ "/' | busybox tr '\\n' '\\0' | busybox xargs -0 busybox sh -c 'echo $$ > " + INOTIFYD_PID
+				+ "; exec busybox inotifyd - \"$@\"' inotifyd";
+		try {
+			executeRootCommand("busybox rm -f " + INOTIFYD_PID);
+		} catch (DeviceNotAvailableException e) {
+			// the command below fails as well
+		}
+		final InotifydReceiver receiver = new InotifydReceiver(collector);
+		Runnable inotifydCommand = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					selectedDevice.executeShellCommand(getRootExecutableCommand(inotifydString), receiver, 0, 1);
+				} catch (DeviceNotAvailableException e) {
+					e.printStackTrace();
+				}
+				if (!receiver.isCancelled()) {
+					// inotifyd died, events may have been lost
+					collector.requestRescan();
+				}
+			}
+		};
+		Thread inotifydExecutor = new Thread(inotifydCommand, "inotifyd");
+		inotifydExecutor.setDaemon(true);
+		inotifydExecutor.start();
+		for (int i = 0; i < 50 && inotifydExecutor.isAlive(); i++) {
+			try {
+				if (executeRootCommand("busybox cat " + INOTIFYD_PID + " 2>/dev/null").trim().length() > 0) {
+					break;
+				}
+				Thread.sleep(200);
+			} catch (DeviceNotAvailableException e) {
+				break;
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		collector.requestRescan();
+		return receiver;
+	}
+
+	/**
+	 * stops an inotifyd started by {@link #startInotifyd(String, ChangeCollector)}
+	 * on the device, closing the adb shell would leave it running
+	 * 
+	 * @param receiver {@link InotifydReceiver}
+	 */
+	private void stopInotifyd(InotifydReceiver receiver) {
+		receiver.cancel();
+		try {
+			executeRootCommand("busybox kill $(busybox cat " + INOTIFYD_PID + ") 2>/dev/null; busybox rm -f " + INOTIFYD_PID);
+		} catch (DeviceNotAvailableException e) {
+			// inotifyd ends with the device connection
+		}
+	}
+
+	// -----------------------------------------------------------------------------
+	// methods related to restore
+	// -----------------------------------------------------------------------------
+	/**
+	 * restores a tar backup (a tar file or the chain file of parallel / incremental
+	 * volumes) on the device; the entries are streamed into busybox tar running as
+	 * root, so permissions and ownership are kept. If more than one tar stream is
+	 * configured, independent subtrees are restored concurrently.
+	 * 
+	 * @param tarFile {@link File} tar file or chain file
+	 * @param targetDirectory {@link String} device directory to extract to, e.g. /
+	 * @param patterns {@link String} glob patterns of the entries to restore, all if none are passed
+	 * 
+	 * @return {@link Boolean} true if the restore succeeded, false otherwise
+	 * 
+	 * @throws IOException
+	 */
+	public boolean restoreTar(File tarFile, final String targetDirectory, String... patterns) throws IOException {
+		List<TarStreamWriter.Item> items = TarStreamWriter.select(tarFile, patterns);
+		if (items.isEmpty()) {
+			System.err.println("nothing to restore");
+			return true;
+		}
+		final List<List<TarStreamWriter.Item>> groups = TarStreamWriter.partition(items, tarStreams);
+		final boolean[] results = new boolean[groups.size()];
+		List<Thread> executors = new ArrayList<Thread>();
+		for (int i = 0; i < groups.size(); i++) {
+			final int group = i;
+			Runnable restoreCommand = new Runnable() {
+				@Override
+				public void run() {
+					results[group] = restoreTarStream(groups.get(group), targetDirectory, RESTORE_PORT + group);
+				}
+			};
+			Thread restoreCommandExecutor = new Thread(restoreCommand);
+			restoreCommandExecutor.start();
+			executors.add(restoreCommandExecutor);
+		}
+		boolean result = true;
+		for (int i = 0; i < executors.size(); i++) {
+			try {
+				executors.get(i).join();
+			} catch (InterruptedException e) {
+				result = false;
+			}
+			result &= results[i];
+		}
+		return result;
+	}
+
+	/**
+	 * restores a partition image: md5 sums of the image chunks are compared
+	 * with md5 sums computed on the device, only changed chunks are streamed
+	 * into dd on the device. Each written range is read back and compared
+	 * while the next ranges are sent.
+	 * 
+	 * @param partitionName {@link String} name of the partition to be written
+	 * @param image {@link File} image file
+	 * 
+	 * @return {@link Boolean} true if the restore succeeded, false otherwise
+	 * 
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public boolean restoreImage(String partitionName, final File image) throws IOException, NoSuchAlgorithmException {
+		PartitionInfo selectedPartition = selectedDevice.getPartition(partitionName);
+		if (selectedPartition == null || selectedPartition.deviceName == null || "".equals(selectedPartition.deviceName)) {
+			System.err.println("unknown partition: " + partitionName);
+			return false;
+		}
+		final String deviceName = selectedPartition.deviceName;
+		final ChunkManifest manifest = ChunkManifest.loadOrCompute(image, ChunkManifest.DEFAULT_CHUNK_SIZE);
+		
+		try {
+			String realName = selectedDevice.executeShellCommand("busybox readlink -f " + deviceName).trim();
+			String mounts = selectedDevice.executeShellCommand("busybox cat /proc/mounts");
+			for (String mount : mounts.split("\r?\n")) {
+				if (mount.startsWith(deviceName + " ") || (realName.length() > 0 && mount.startsWith(realName + " "))) {
+					System.err.println(partitionName + " is mounted, unmount it first (e.g. boot into recovery)");
+					return false;
+				}
+			}
+			String size = executeRootCommand("busybox blockdev --getsize64 " + deviceName).trim();
+			if (size.matches("[0-9]+") && Long.parseLong(size) < image.length()) {
+				System.err.println(image + " does not fit into " + partitionName + " (" + size + " bytes)");
+				return false;
+			}
+		} catch (DeviceNotAvailableException e) {
+			return false;
+		}
+		if (!pushChunkScript()) {
+			return false;
+		}
+		
+		//
+		// the device reads the partition once to find the chunks to be written
+		//
+		List<String> deviceDigests = getDeviceChunkDigests(deviceName, new ChunkManifest.Range(0, manifest.getChunkCount()), manifest.getLength(), false);
+		if (deviceDigests == null) {
+			return false;
+		}
+		List<ChunkManifest.Range> ranges = manifest.getChangedRanges(deviceDigests, IMAGE_MAX_GAP);
+		long toWrite = 0;
+		for (ChunkManifest.Range range : ranges) {
+			toWrite += manifest.getLength(range);
+		}
+		System.err.println(partitionName + ": " + ranges.size() + " ranges, " + toWrite + " of " + manifest.getLength() + " bytes to be written");
+		
+		ExecutorService verifier = Executors.newFixedThreadPool(IMAGE_VERIFY_THREADS);
+		List<Future<Boolean>> verified = new ArrayList<Future<Boolean>>();
+		boolean result = true;
+		for (final ChunkManifest.Range range : ranges) {
+			final long offset = (long) range.first * manifest.getChunkSize();
+			final long length = manifest.getLength(range);
+			final String ddString = "busybox nc -l -p " + RESTORE_PORT + " | busybox dd of=" + deviceName + " bs=" + manifest.getChunkSize()
+					+ " seek=" + range.first + " conv=notrunc 2>/dev/null";
+			result &= streamToDevice(ddString, RESTORE_PORT, new IStreamSource() {
+				@Override
+				public long write(OutputStream os) throws IOException {
+					RandomAccessFile raf = new RandomAccessFile(image, "r");
+					try {
+						raf.seek(offset);
+						byte[] buffer = new byte[64 * 1024];
+						long remaining = length;
+						while (remaining > 0) {
+							int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+							if (read < 0) {
+								throw new IOException("unexpected end of image " + image);
+							}
+							os.write(buffer, 0, read);
+							remaining -= read;
+						}
+					} finally {
+						raf.close();
+					}
+					return length;
+				}
+			});
+			if (!result) {
+				break;
+			}
+			
+			//
+			// read back the range while the next one is written
+			//
+			verified.add(verifier.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					List<String> written = getDeviceChunkDigests(deviceName, range, length, true);
+					List<Integer> failed = written != null ? manifest.verify(range, written) : null;
+					if (failed == null || !failed.isEmpty()) {
+						System.err.println("verification of chunks " + range + " failed" + (failed != null ? ": " + failed : ""));
+						return false;
+					}
+					return true;
+				}
+			}));
+		}
+		verifier.shutdown();
+		for (Future<Boolean> future : verified) {
+			try {
+				result &= future.get();
+			} catch (InterruptedException e) {
+				result = false;
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				result = false;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * compares a partition with an image backup without transferring data: the
+	 * md5 sums of the chunks are computed on the device by several shells in
+	 * parallel, each reading a part of the partition, and compared with the
+	 * chunk sums of the image
+	 * 
+	 * @param partitionName {@link String} name of the partition
+	 * @param image {@link File} image file
+	 * @param parallel {@link Integer} number of device shells computing chunk sums
+	 * 
+	 * @return {@link List} of differing chunk ranges, empty if the partition matches the
+	 * image, null if the device is not available
+	 * 
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public List<ChunkManifest.Range> verifyImage(String partitionName, File image, int parallel) throws IOException, NoSuchAlgorithmException {
+		PartitionInfo selectedPartition = selectedDevice.getPartition(partitionName);
+		if (selectedPartition == null || selectedPartition.deviceName == null || "".equals(selectedPartition.deviceName)) {
+			System.err.println("unknown partition: " + partitionName);
+			return null;
+		}
+		final String deviceName = selectedPartition.deviceName;
+		final ChunkManifest manifest = ChunkManifest.loadOrCompute(image, ChunkManifest.DEFAULT_CHUNK_SIZE);
+		if (!pushChunkScript()) {
+			return null;
+		}
+		int count = manifest.getChunkCount();
+		int parts = Math.max(1, Math.min(parallel, count));
+		ExecutorService executor = Executors.newFixedThreadPool(parts);
+		List<ChunkManifest.Range> ranges = new ArrayList<ChunkManifest.Range>();
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+		for (int i = 0; i < parts; i++) {
+			int first = (int) ((long) count * i / parts);
+			int last = (int) ((long) count * (i + 1) / parts);
+			final ChunkManifest.Range range = new ChunkManifest.Range(first, last - first);
+			ranges.add(range);
+			futures.add(executor.submit(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					return getDeviceChunkDigests(deviceName, range, manifest.getLength(range), false);
+				}
+			}));
+		}
+		List<String> deviceDigests = new ArrayList<String>(count);
+		try {
+			for (int i = 0; i < parts; i++) {
+				List<String> digests = futures.get(i).get();
+				if (digests == null) {
+					return null;
+				}
+				// a part ending early (e.g. a smaller partition) must not shift the following ones
+				for (int j = 0; j < ranges.get(i).count; j++) {
+					deviceDigests.add(j < digests.size() ? digests.get(j) : "");
+				}
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			throw new IOException("cannot compute chunk sums: " + e.getCause().getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+		return manifest.getChangedRanges(deviceDigests, 0);
+	}
+	
+	/**
+	 * compares the files of a mount point with a tar backup without
+	 * transferring data: the md5 sums of the files selected by the find
+	 * filter are computed on the device and compared with the digest
+	 * manifest of the backup
+	 * 
+	 * @param mountPoint {@link String} mount point, e.g. /data
+	 * @param expected {@link TarDigestManifest} md5 sums of the files of the backup
+	 * 
+	 * @return {@link List} of differences, one line per file, empty if the files match
+	 * the backup, null if the device is not available
+	 * 
+	 * @throws IOException
+	 */
+	public List<String> verifyMountPoint(String mountPoint, TarDigestManifest expected) throws IOException {
+		final String startDirectory = (mountPoint.startsWith("/") ? "" : "/") + mountPoint;
+		final String md5sumString = "busybox find " + getFindExpression(startDirectory) + " -type f -exec busybox md5sum {} \\;";
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		try {
+			selectedDevice.executeShellCommand(getRootExecutableCommand(md5sumString), receiver, 0, 1);
+		} catch (DeviceNotAvailableException e) {
+			return null;
+		}
+		return expected.diff(TarDigestManifest.parse(receiver.getOutput()));
+	}
+	
+	/**
+	 * flashes partition images with fastboot: each image is converted into sparse
+	 * files fitting into the download buffer of the bootloader. The images are
+	 * prepared (decompressed, checked against their md5 sum and converted) by
+	 * background threads while the previous partition is flashed.
+	 * 
+	 * @param images {@link Map} fastboot partition name to image file (raw, gzip
+	 * compressed if the name ends with .gz, or already sparse), flashed in map order
+	 * 
+	 * @return {@link Boolean} true if all partitions were flashed, false otherwise
+	 * 
+	 * @throws IOException
+	 */
+	public boolean flashImages(Map<String, File> images) throws IOException {
+		if (selectedDevice.getDeviceState() != TestDeviceState.FASTBOOT) {
+			System.err.println("device is not in fastboot mode (use -r bootloader)");
+			return false;
+		}
+		final long maxDownloadSize = getMaxDownloadSize();
+		System.err.println("max-download-size: " + maxDownloadSize);
+		final File workDirectory = FileUtil.createTempDir("art-flash");
+		
+		ExecutorService preparer = Executors.newFixedThreadPool(FLASH_PREPARE_THREADS);
+		Map<String, Future<List<File>>> prepared = new LinkedHashMap<String, Future<List<File>>>();
+		for (final Map.Entry<String, File> image : images.entrySet()) {
+			prepared.put(image.getKey(), preparer.submit(new Callable<List<File>>() {
+				@Override
+				public List<File> call() throws Exception {
+					return prepareImage(image.getKey(), image.getValue(), workDirectory, maxDownloadSize);
+				}
+			}));
+		}
+		preparer.shutdown();
+		
+		boolean result = true;
+		try {
+			for (Map.Entry<String, Future<List<File>>> partition : prepared.entrySet()) {
+				List<File> files;
+				try {
+					files = partition.getValue().get();
+				} catch (ExecutionException e) {
+					System.err.println("preparing " + partition.getKey() + " failed: " + e.getCause().getMessage());
+					result = false;
+					break;
+				}
+				for (int i = 0; i < files.size() && result; i++) {
+					System.err.println("flashing " + partition.getKey() + " (" + (i + 1) + "/" + files.size() + ")");
+					CommandResult commandResult = selectedDevice.executeLongFastbootCommand("flash", partition.getKey(), files.get(i).getAbsolutePath());
+					if (commandResult.getStatus() != CommandStatus.SUCCESS) {
+						System.err.println("flashing " + partition.getKey() + " failed: " + commandResult.getStderr());
+						result = false;
+					}
+				}
+				if (files.get(0).getParentFile().equals(workDirectory)) {
+					for (File file : files) {
+						FileUtil.deleteFile(file);
+					}
+				}
+				if (!result) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			result = false;
+		} catch (DeviceNotAvailableException e) {
+			result = false;
+		} finally {
+			preparer.shutdownNow();
+			try {
+				preparer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				// the work directory is deleted anyway
+			}
+			FileUtil.recursiveDelete(workDirectory);
+		}
+		return result;
+	}
+	
+	/**
+	 * converts an image into sparse files
+	 * 
+	 * @param partition {@link String} fastboot partition name
+	 * @param image {@link File} image file
+	 * @param workDirectory {@link File} directory the sparse files are written to
+	 * @param maxDownloadSize {@link Long} maximum size of a sparse file
+	 * @return {@link List} of files to be flashed
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private List<File> prepareImage(String partition, File image, File workDirectory, long maxDownloadSize) throws IOException, NoSuchAlgorithmException {
+		boolean compressed = image.getName().endsWith(".gz");
+		InputStream is = new BufferedInputStream(new FileInputStream(image), 256 * 1024);
+		try {
+			if (compressed) {
+				is = new GZIPInputStream(is, 256 * 1024);
+			}
+			is.mark(4);
+			byte[] magic = new byte[4];
+			int read = is.read(magic);
+			is.reset();
+			if (!compressed && read == 4 && (magic[0] & 0xff) == 0x3a && (magic[1] & 0xff) == 0xff && (magic[2] & 0xff) == 0x26 && (magic[3] & 0xff) == 0xed) {
+				// already sparse, fastboot splits it if needed
+				return Arrays.asList(image);
+			}
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			List<File> files = SparseImageWriter.write(new DigestInputStream(is, md), workDirectory, partition, maxDownloadSize);
+			String rawPath = compressed ? image.getPath().substring(0, image.getPath().length() - 3) : image.getPath();
+			File md5File = new File(rawPath + ".md5");
+			if (md5File.isFile()) {
+				String md5sum = MD5Utils.toHex(md.digest());
+				if (!md5sum.equals(MD5Utils.readMD5(md5File.getPath()))) {
+					throw new IOException(image + "(" + md5sum + ") <-> " + md5File);
+				}
+			}
+			System.err.println(partition + " prepared: " + files.size() + " sparse file(s)");
+			return files;
+		} finally {
+			is.close();
+		}
+	}
+	
+	/**
+	 * gets the size of the download buffer of the bootloader
+	 * 
+	 * @return {@link Long} size in bytes, a default if the bootloader does not report it
+	 */
+	private long getMaxDownloadSize() {
+		try {
+			CommandResult commandResult = selectedDevice.executeFastbootCommand("getvar", "max-download-size");
+			// fastboot prints the variable to stderr
+			String output = commandResult.getStdout() + "\n" + commandResult.getStderr();
+			Matcher matcher = Pattern.compile("max-download-size:\\s*(0x[0-9a-fA-F]+|[0-9]+)").matcher(output);
+			if (matcher.find()) {
+				long size = Long.decode(matcher.group(1));
+				if (size > 0) {
+					return size;
+				}
+			}
+		} catch (DeviceNotAvailableException e) {
+			// use the default
+		}
+		return DEFAULT_MAX_DOWNLOAD_SIZE;
+	}
+	
+	/**
+	 * pushes the script computing chunk md5 sums to the device
+	 * 
+	 * @return {@link Boolean} true if succeeded, false otherwise
+	 * @throws IOException
+	 */
+	private boolean pushChunkScript() throws IOException {
+		File scriptFile = FileUtil.createTempFile("art", ".sh");
+		try {
+			FileUtil.writeToFile(ChunkManifest.DEVICE_SCRIPT, scriptFile);
+			return selectedDevice.pushFile(scriptFile, CHUNK_SCRIPT);
+		} catch (DeviceNotAvailableException e) {
+			return false;
+		} finally {
+			FileUtil.deleteFile(scriptFile);
+		}
+	}
+	
+	/**
+	 * computes the md5 sums of chunks of a block device on the device
+	 * 
+	 * @param deviceName {@link String} block device
+	 * @param range {@link ChunkManifest.Range} chunks
+	 * @param length {@link Long} number of bytes of the chunks, the last chunk is hashed with the rest
+	 * @param dropCaches {@link Boolean} true to read from the device instead of the page cache
+	 * @return {@link List} of md5 sums or null if the device is not available
+	 */
+	private List<String> getDeviceChunkDigests(String deviceName, ChunkManifest.Range range, long length, boolean dropCaches) {
+		final String chunkString = "sh " + CHUNK_SCRIPT + " " + deviceName + " " + ChunkManifest.DEFAULT_CHUNK_SIZE + " " + range.first + " " + range.count
+				+ " " + length + (dropCaches ? " drop" : "");
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		try {
+			selectedDevice.executeShellCommand(getRootExecutableCommand(chunkString), receiver, 0, 1);
+		} catch (DeviceNotAvailableException e) {
+			return null;
+		}
+		return ChunkManifest.parseDigests(receiver.getOutput());
+	}
+
+	/**
+	 * streams tar entries through a forwarded port into busybox tar on the device
+	 * 
+	 * @param items {@link List} of entries to be restored
+	 * @param targetDirectory {@link String} device directory to extract to
+	 * @param remotePort {@link Integer} device port busybox nc listens on
+	 * 
+	 * @return {@link Boolean} true if the restore succeeded, false otherwise
+	 */
+	private boolean restoreTarStream(final List<TarStreamWriter.Item> items, String targetDirectory, int remotePort) {
+		final String untarString = "busybox nc -l -p " + remotePort + " | busybox tar xf - -C " + targetDirectory;
+		return streamToDevice(untarString, remotePort, new IStreamSource() {
+			@Override
+			public long write(OutputStream os) throws IOException {
+				long written = TarStreamWriter.write(items, os);
+				System.err.println("restored " + items.size() + " entries, " + written + " bytes");
+				return written;
+			}
+		});
+	}
+
+	/**
+	 * streams data through a forwarded port into a device command reading it
+	 * with busybox nc
+	 * 
+	 * @param deviceCommand {@link String} command run as root, listening on the remote port
+	 * @param remotePort {@link Integer} device port busybox nc listens on
+	 * @param source {@link IStreamSource} writing the data
+	 * 
+	 * @return {@link Boolean} true if the transfer succeeded and the device command
+	 * exited with 0, false otherwise
+	 */
+	private boolean streamToDevice(final String deviceCommand, final int remotePort, IStreamSource source) {
+		final boolean[] commandResult = new boolean[] { true };
+		final CollectingOutputReceiver commandReceiver = new CollectingOutputReceiver();
+		
+		int localPort;
+		try {
+			ServerSocket serverSocket = new ServerSocket(0);
+			localPort = serverSocket.getLocalPort();
+			serverSocket.close();
+			selectedDevice.getIDevice().createForward(localPort, remotePort);
+		} catch (Exception e) {
+			System.err.println("cannot forward port " + remotePort + ": " + e.getMessage());
+			return false;
+		}
+		
+		//
+		// run the device command, it ends when the stream is closed
+		//
+		Runnable command = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// adb shell does not pass the exit status of the command
+					selectedDevice.executeShellCommand(getRootExecutableCommand(deviceCommand + "; echo rc=$?"), commandReceiver, 0, 1);
+				} catch (DeviceNotAvailableException e) {
+					commandResult[0] = false;
+					e.printStackTrace();
+				}
+			}
+		};
+		Thread commandExecutor = new Thread(command);
+		commandExecutor.start();
+		
+		boolean result = true;
+		try {
+			// adb accepts the connection even if nobody listens on the device
+			if (!waitForDevicePort(remotePort)) {
+				throw new IOException("busybox nc does not listen on port " + remotePort);
+			}
+			Socket socket = new Socket("127.0.0.1", localPort);
+			try {
+				OutputStream os = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+				source.write(os);
+				os.flush();
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			System.err.println("transfer failed: " + e.getMessage());
+			result = false;
+		}
+		try {
+			commandExecutor.join();
+		} catch (InterruptedException e) {
+			result = false;
+		}
+		try {
+			selectedDevice.getIDevice().removeForward(localPort, remotePort);
+		} catch (Exception e) {
+			// the forward is removed when adb restarts
+		}
+		if (commandResult[0]) {
+			String output = commandReceiver.getOutput().trim();
+			if (!output.equals("rc=0") && !output.endsWith("\nrc=0")) {
+				System.err.println("device command failed: " + output);
+				commandResult[0] = false;
+			}
+		}
+		return result && commandResult[0];
+	}
+
+	/**
+	 * waits until a device side process listens on a port
+	 * 
+	 * @param remotePort {@link Integer}
+	 * @return {@link Boolean} true if the port is open, false after a timeout
+	 */
+	private boolean waitForDevicePort(int remotePort) {
+		final String netstatString = "busybox netstat -ltn";
+		final String port = ":" + remotePort + " ";
+		for (int i = 0; i < 50; i++) {
+			try {
+				if (selectedDevice.executeShellCommand(netstatString).contains(port)) {
+					return true;
+				}
+				Thread.sleep(200);
+			} catch (DeviceNotAvailableException e) {
+				return false;
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
 
 	// -----------------------------------------------------------------------------
 	// standard adb functions
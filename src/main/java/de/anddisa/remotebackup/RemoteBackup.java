@@ -14,14 +14,22 @@
  */
 package de.anddisa.remotebackup;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -38,10 +46,37 @@ import de.anddisa.adb.device.PartitionInfo;
 import de.anddisa.adb.device.TestDeviceState;
 import de.anddisa.adb.device.ITestDevice.MountPointInfo;
 import de.anddisa.adb.util.CommandResult;
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.apps.ApkStore;
+import de.anddisa.remotebackup.catalog.BackupCatalog;
+import de.anddisa.remotebackup.catalog.CatalogEntry;
+import de.anddisa.remotebackup.catalog.PathIndex;
+import de.anddisa.remotebackup.ext4.Ext4Diff;
+import de.anddisa.remotebackup.ext4.Ext4Exporter;
+import de.anddisa.remotebackup.ext4.Ext4FileSystem;
+import de.anddisa.remotebackup.image.ChunkManifest;
+import de.anddisa.remotebackup.image.ImageDiff;
+import de.anddisa.remotebackup.retention.BackupPruner;
+import de.anddisa.remotebackup.retention.RetentionPolicy;
+import de.anddisa.remotebackup.retention.StoreCollector;
+import de.anddisa.remotebackup.scrub.BackupScrubber;
+import de.anddisa.remotebackup.scrub.RateLimiter;
+import de.anddisa.remotebackup.tar.FindFilter;
+import de.anddisa.remotebackup.tar.IndexedTarReader;
+import de.anddisa.remotebackup.tar.ParallelTarExtractor;
+import de.anddisa.remotebackup.tar.TarConsolidator;
+import de.anddisa.remotebackup.tar.TarDigestManifest;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarIndex;
+import de.anddisa.remotebackup.tar.TarSnapshot;
 import de.anddisa.remotebackup.utils.MD5Utils;
+import de.anddisa.remotebackup.yaffs2.Yaffs2Image;
 
 public class RemoteBackup {
 
+	/** directory within the base directory holding the apks of app backups */
+	private static final String APK_STORE = "apks";
+
 	/**
 	 * recognised options
 	 * 
@@ -57,12 +92,58 @@ public class RemoteBackup {
 		commands.addOption(OptionBuilder
 				.withDescription("restore partition(s)")
 				.create("restore"));
+		commands.addOption(OptionBuilder
+				.withDescription("compare partition(s) / mount point(s) with their latest backup, only md5 sums are transferred")
+				.create("verify"));
 		commands.addOption(OptionBuilder
 				.withDescription("list available devices")
 				.create("devices"));
 		commands.addOption(OptionBuilder
 				.withDescription("dump device info")
 				.create("info"));
+		commands.addOption(OptionBuilder
+				.withDescription("extract files matching the given patterns from a tar backup, or the latest version of a device path")
+				.hasArg()
+				.create("extract"));
+		commands.addOption(OptionBuilder
+				.withDescription("list the versions of a file in the tar backups: -locate <device path>")
+				.hasArg()
+				.create("locate"));
+		commands.addOption(OptionBuilder
+				.withDescription("merge the volumes of an incremental tar backup into a synthetic full backup: -consolidate <chain file> ...")
+				.hasArg()
+				.create("consolidate"));
+		commands.addOption(OptionBuilder
+				.withDescription("compare two images of a partition: -diff <old image> <new image>")
+				.hasArg()
+				.create("diff"));
+		commands.addOption(OptionBuilder
+				.withDescription("read an ext4 image without mounting it: ls [path], extract <patterns> or tar <file> [path]")
+				.hasArg()
+				.create("ext4"));
+		commands.addOption(OptionBuilder
+				.withDescription("read a yaffs2 image without a device: ls [patterns], extract [patterns] or tar <file> [patterns]")
+				.hasArg()
+				.create("yaffs2"));
+		commands.addOption(OptionBuilder
+				.withDescription("query the backup catalog of the base directory: list (default) or latest")
+				.hasOptionalArg()
+				.create("catalog"));
+		commands.addOption(OptionBuilder
+				.withDescription("verify the stored backups of the base directory again (optional: minutes to run)")
+				.hasOptionalArg()
+				.create("scrub"));
+		commands.addOption(OptionBuilder
+				.withDescription("remove the backups of the base directory not kept by the retention policy (e.g. 7d,4w,12m)")
+				.hasArg()
+				.create("prune"));
+		commands.addOption(OptionBuilder
+				.withDescription("delete apks no backup of the base directory refers to (optional: minutes to run)")
+				.hasOptionalArg()
+				.create("gc"));
+		commands.addOption(OptionBuilder
+				.withDescription("mirror the given device directories into the base directory until stopped")
+				.create("watch"));
 		commands.addOption(OptionBuilder
 				.withLongOpt("help")
 				.withDescription("print help")
@@ -82,6 +163,14 @@ public class RemoteBackup {
 				.withLongOpt("tar")
 				.withDescription("use tar mode")
 				.create("t"));
+		mode.addOption(OptionBuilder
+				.withLongOpt("apps")
+				.withDescription("use app mode (apk and data of the given packages, all if none)")
+				.create("a"));
+		mode.addOption(OptionBuilder
+				.withLongOpt("fastboot")
+				.withDescription("use fastboot mode (restore only)")
+				.create("fb"));
         options.addOptionGroup(mode);
         OptionGroup location = new OptionGroup();
         location.addOption(OptionBuilder
@@ -113,6 +202,95 @@ public class RemoteBackup {
         		.isRequired(false)
         		.hasArg()
         		.create("td"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("incremental")
+        		.withDescription("tar mode: backup files changed since the previous backup (optional: its directory, default: latest backup in baseDir)")
+        		.isRequired(false)
+        		.hasOptionalArg()
+        		.create("inc"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("parallel")
+        		.withDescription("tar mode: number of tar streams used in parallel for a mount point (default: 1)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("par"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("merge")
+        		.withDescription("tar mode: merge the volumes of parallel tar streams into one archive")
+        		.isRequired(false)
+        		.create("merge"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("syncSize")
+        		.withDescription("tar mode: pull files from the size on (bytes, k, M or G) through sync while the other files are tared")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("sync"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("extractDir")
+        		.withDescription("tar mode: extract the backup into the directory while it is received; -extract, -ext4 extract, -yaffs2 extract: directory to extract to")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("xd"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("writers")
+        		.withDescription("number of threads writing extracted files (default: 4)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("wr"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("include")
+        		.withDescription("tar mode: backup only paths matching the comma separated patterns (e.g. '/data/data/*')")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("include"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("exclude")
+        		.withDescription("tar mode: skip paths matching the comma separated patterns (e.g. '/data/dalvik-cache,*/cache')")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("exclude"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("minSize")
+        		.withDescription("tar mode: skip files smaller than the size (bytes, k, M or G)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("minSize"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("maxSize")
+        		.withDescription("tar mode: skip files larger than the size (bytes, k, M or G)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("maxSize"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("maxAge")
+        		.withDescription("tar mode: backup only files modified within the last days")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("maxAge"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("restoreTo")
+        		.withDescription("tar mode: device directory a tar backup is restored to (default: /)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("rt"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("window")
+        		.withDescription("watch mode: milliseconds changes are collected before they are transferred (default: 2000)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("win"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("pollInterval")
+        		.withDescription("watch mode: seconds between scans if inotifyd cannot be used (default: 60)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("poll"));
+        options.addOption(OptionBuilder
+        		.withLongOpt("rate")
+        		.withDescription("scrub mode: maximum read rate in MB/s (default: 20, 0 for no limit)")
+        		.isRequired(false)
+        		.hasArg()
+        		.create("rate"));
         options.addOption(OptionBuilder
         		.withLongOpt("partitionInfoFile")
         		.withDescription("partitionInfoFile to be used for initialization")
@@ -147,6 +325,46 @@ public class RemoteBackup {
      * @throws ApplicationException
      */
     private static String processCommandline(final CommandLine cl, final Options options) throws IllegalArgumentException, ParseException, ApplicationException {
+        if ((null != cl) && cl.hasOption("extract")) {
+        	// works on local backups only, no device needed
+        	return doExtract(cl);
+        }
+        if ((null != cl) && cl.hasOption("consolidate")) {
+        	// works on local backups only, no device needed
+        	return doConsolidate(cl);
+        }
+        if ((null != cl) && cl.hasOption("diff")) {
+        	// works on local images only, no device needed
+        	return doDiff(cl);
+        }
+        if ((null != cl) && cl.hasOption("ext4")) {
+        	// works on local images only, no device needed
+        	return doExt4(cl);
+        }
+        if ((null != cl) && cl.hasOption("yaffs2")) {
+        	// works on local images only, no device needed
+        	return doYaffs2(cl);
+        }
+        if ((null != cl) && cl.hasOption("scrub")) {
+        	// works on local backups only, no device needed
+        	return doScrub(cl);
+        }
+        if ((null != cl) && cl.hasOption("prune")) {
+        	// works on local backups only, no device needed
+        	return doPrune(cl);
+        }
+        if ((null != cl) && cl.hasOption("gc")) {
+        	// works on local backups only, no device needed
+        	return doGc(cl);
+        }
+        if ((null != cl) && cl.hasOption("catalog")) {
+        	// works on local backups only, no device needed
+        	return doCatalog(cl);
+        }
+        if ((null != cl) && cl.hasOption("locate")) {
+        	// works on local backups only, no device needed
+        	return doLocate(cl);
+        }
     	String adb = cl.getOptionValue("td", null);
 		AdbWrapper adbWrapper = new AdbWrapper(adb);
         if ((null != cl) && cl.hasOption("devices")) {
@@ -171,6 +389,12 @@ public class RemoteBackup {
 	        if ((null != cl) && cl.hasOption("restore")) {
 	        	return doRestore(adbWrapper, cl);
 	        }
+	        if ((null != cl) && cl.hasOption("verify")) {
+	        	return doVerify(adbWrapper, cl);
+	        }
+	        if ((null != cl) && cl.hasOption("watch")) {
+	        	return doWatch(adbWrapper, cl);
+	        }
 	        if ((null != cl) && cl.hasOption("info")) {
 	            // do something with devices
 	        	return doInfo(adbWrapper, cl);
@@ -236,6 +460,7 @@ public class RemoteBackup {
 					System.out.println("result.status:" + commandResult.getStatus());
 					System.out.println("result.stderr:" +commandResult.getStderr());
 					System.out.println("result.stdout:" +commandResult.getStdout());
+					System.out.println(currentDevice.getPropertyCache());
 				} else {
 					System.out.println("Product type:" + currentDevice.getProductType());
 					System.out.println("Product variant:" + currentDevice.getProductVariant());
@@ -244,6 +469,8 @@ public class RemoteBackup {
 					for (MountPointInfo mpi : mountPointInfo) {
 						System.out.println(mpi.mountpoint + " " + mpi.type + " " + mpi.filesystem + " " + mpi.options);
 					}
+					System.out.println(currentDevice.getSyncServicePool());
+					System.out.println(currentDevice.getPropertyCache());
 				}
 			} else {
 				sb.append("error: device not available ...");
@@ -266,121 +493,1258 @@ public class RemoteBackup {
 	 * @throws ApplicationException
 	 */
 	private static String doRestore(AdbWrapper adbWrapper, CommandLine cl)  throws ApplicationException {
-		throw new ApplicationException("not implemented yet");
+		if (cl.hasOption("a")) {
+			return doRestoreApps(adbWrapper, cl);
+		}
+		if (cl.hasOption("i")) {
+			return doRestoreImages(adbWrapper, cl);
+		}
+		if (cl.hasOption("fb")) {
+			return doFlashImages(adbWrapper, cl);
+		}
+		if (!cl.hasOption("t")) {
+			throw new ApplicationException("either -i, -t, -a or -fb must be set");
+		}
+		if (!cl.hasOption("f")) {
+			throw new ApplicationException("-f <tar file> must be set");
+		}
+		File tarFile = new File(cl.getOptionValue("f"));
+		if (!tarFile.isFile()) {
+			throw new ApplicationException("tar file not found: " + tarFile);
+		}
+		setTarStreams(adbWrapper, cl);
+		boolean result;
+		try {
+			result = adbWrapper.restoreTar(tarFile, cl.getOptionValue("rt", "/"), cl.getArgs());
+		} catch (IOException e) {
+			throw new ApplicationException("restore failed: " + e.getMessage());
+		}
+		return result ? "" : "error!";
 	}
 
-    /**
-     * reboot command
-     * 
-     * @param adbWrapper
-     * @param cl
-     * @return
-     */
-	private static String doReboot(AdbWrapper adbWrapper, CommandLine cl) {
-		String arg = cl.getOptionValue("reboot");
-		
-		if ("recovery".equals(arg)) {
-			adbWrapper.rebootIntoRecovery();
-		} else if ("bootloader".equals(arg)) {
-			adbWrapper.rebootIntoBootloader();
-		} else {
-			adbWrapper.reboot();
+	/**
+	 * restores partition images, the image files are named like in image backups
+	 * 
+	 * @param adbWrapper
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doRestoreImages(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		String[] partitions = cl.getArgs();
+		if (partitions.length == 0) {
+			throw new ApplicationException("at least one partition must be given");
 		}
-		return "";
+		String directory = cl.getOptionValue("bd", System.getProperty("user.dir"));
+		boolean result = true;
+		for (String partition : partitions) {
+			PartitionInfo partitionInfo = adbWrapper.getCurrentDevice().getPartition(partition);
+			if (partitionInfo == null) {
+				throw new ApplicationException("unknown partition name for device: " + partition);
+			}
+			String flashFileName = partitionInfo.flashFileName;
+			if (flashFileName == null || "".equals(flashFileName)) {
+				flashFileName = partitionInfo.partitionName + ".img";
+			}
+			File image = new File(directory, flashFileName);
+			if (!image.isFile()) {
+				throw new ApplicationException("image file not found: " + image);
+			}
+			try {
+				File md5File = new File(image.getPath() + ".md5");
+				if (md5File.isFile() && !MD5Utils.compareMD5(image.getPath(), md5File.getPath())) {
+					throw new ApplicationException("image file is corrupt: " + image);
+				}
+				result &= adbWrapper.restoreImage(partition, image);
+			} catch (NoSuchAlgorithmException e) {
+				throw new ApplicationException("restore failed: " + e.getMessage());
+			} catch (IOException e) {
+				throw new ApplicationException("restore failed: " + e.getMessage());
+			}
+		}
+		return result ? "" : "error!";
 	}
 
 	/**
-	 * backup command
+	 * verify command: compares partitions (-i) or mount points (-t) with the
+	 * latest verified backup of the device in the catalog, or with the backup
+	 * in the base directory if there is none
 	 * 
 	 * @param adbWrapper
 	 * @param cl
 	 * @return
 	 * @throws ApplicationException
 	 */
-	private static String doBackup(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
-		String resultString = "";
-		String backupMode = null;
-		if (!cl.hasOption("i")) {
-			if (cl.hasOption("t")) {
-				backupMode = "tar";
-			}
-		} else {
-			backupMode = "img";
+	private static String doVerify(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		String[] names = cl.getArgs();
+		if (names.length == 0) {
+			throw new ApplicationException("at least one partition or mount point must be given");
 		}
-		if (backupMode == null) {
+		if (!cl.hasOption("i") && !cl.hasOption("t")) {
 			throw new ApplicationException("either -i or -t must be set");
 		}
-		String subDir = "";
-		if (cl.hasOption("tsf")) {
-			DateFormat df = new SimpleDateFormat(cl.getOptionValue("tsf"));
-			subDir = df.format(new Date());
+		int parallel;
+		try {
+			parallel = Integer.parseInt(cl.getOptionValue("par", "4"));
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid number of parallel device shells: " + cl.getOptionValue("par"));
 		}
+		adbWrapper.setFindFilter(getFindFilter(cl));
 		String directory = cl.getOptionValue("bd", System.getProperty("user.dir"));
-		if ("img".equals(backupMode)) {
-			String[] partitions = cl.getArgs();
-			boolean result = true;
-			for (String partition : partitions) {
-				PartitionInfo partitionInfo = adbWrapper.getCurrentDevice().getPartition(partition);
-				if (partitionInfo != null) {
-					String flashFileName = partitionInfo.flashFileName;
-					if (flashFileName == null || "".equals(flashFileName)) {
-						flashFileName = partitionInfo.partitionName + ".img";
-					}
-					String flashDir = directory + ("".equals(subDir) ? "" : "/" + subDir );
-					File f = new File(flashDir);
-					if (!f.exists()) {
-						if (!f.mkdirs()) {
-							throw new ApplicationException("cannot create directory: " + flashDir);							
+		BackupCatalog catalog = openCatalog(directory);
+		String serial = adbWrapper.getCurrentDevice().getSerialNumber();
+		StringBuffer sb = new StringBuffer();
+		boolean result = true;
+		for (String name : names) {
+			try {
+				if (cl.hasOption("i")) {
+					File image = getLatestBackup(catalog, serial, name);
+					if (image == null) {
+						PartitionInfo partitionInfo = adbWrapper.getCurrentDevice().getPartition(name);
+						if (partitionInfo == null) {
+							throw new ApplicationException("unknown partition name for device: " + name);
 						}
-					}
-					flashFileName = flashDir + "/" + flashFileName;
-					result |= adbWrapper.getPartitionAsImage(partition, flashFileName);
-					result |= adbWrapper.getPartitionMD5(partition, flashFileName + ".md5");
-					try {
-						boolean compareMD5 = MD5Utils.compareMD5(flashFileName, flashFileName + ".md5");
-						if (!compareMD5) {
-							resultString += flashFileName + "verification failed\n";
+						String flashFileName = partitionInfo.flashFileName;
+						if (flashFileName == null || "".equals(flashFileName)) {
+							flashFileName = partitionInfo.partitionName + ".img";
 						}
-					} catch (NoSuchAlgorithmException e) {
-						result = false;
-						break;
-					} catch (IOException e) {
+						image = new File(directory, flashFileName);
+					}
+					if (!image.isFile()) {
+						throw new ApplicationException("image file not found: " + image);
+					}
+					List<ChunkManifest.Range> ranges = adbWrapper.verifyImage(name, image, Math.max(1, parallel));
+					if (ranges == null) {
+						sb.append(name).append(": cannot be read\n");
 						result = false;
-						break;
+						continue;
+					}
+					for (ChunkManifest.Range range : ranges) {
+						long offset = (long) range.first * ChunkManifest.DEFAULT_CHUNK_SIZE;
+						long length = Math.min((long) range.count * ChunkManifest.DEFAULT_CHUNK_SIZE, image.length() - offset);
+						sb.append(String.format("%12d %12d", offset, Math.max(0, length))).append('\n');
 					}
+					sb.append(name).append(ranges.isEmpty() ? ": matches " : ": differs from ").append(image).append('\n');
+					result &= ranges.isEmpty();
 				} else {
-					throw new ApplicationException("unknown partition name for device: " + partition);
+					String mountPoint = name.startsWith("/") ? name : "/" + name;
+					File tarFile = getLatestBackup(catalog, serial, mountPoint.substring(1));
+					if (tarFile == null) {
+						File chainFile = TarSnapshot.getChainFile(new File(directory), mountPoint.substring(1));
+						tarFile = chainFile.isFile() ? chainFile : new File(directory, mountPoint.substring(1) + ".tar");
+					}
+					TarDigestManifest expected;
+					if (tarFile.getName().endsWith(TarSnapshot.CHAIN_SUFFIX)) {
+						expected = TarSnapshot.load(tarFile).getDigests();
+					} else {
+						File manifestFile = TarDigestManifest.getManifestFile(tarFile);
+						if (!manifestFile.isFile()) {
+							throw new ApplicationException("md5 sums not found: " + manifestFile);
+						}
+						expected = TarDigestManifest.load(manifestFile);
+					}
+					List<String> differences = adbWrapper.verifyMountPoint(mountPoint, expected);
+					if (differences == null) {
+						sb.append(mountPoint).append(": cannot be read\n");
+						result = false;
+						continue;
+					}
+					for (String difference : differences) {
+						sb.append(difference).append('\n');
+					}
+					sb.append(mountPoint).append(differences.isEmpty() ? ": matches " : ": differs from ").append(tarFile).append('\n');
+					result &= differences.isEmpty();
 				}
+			} catch (IOException e) {
+				throw new ApplicationException("verification failed: " + e.getMessage());
+			} catch (NoSuchAlgorithmException e) {
+				throw new ApplicationException("verification failed: " + e.getMessage());
 			}
-			if (!result) {
-				resultString += "error!";
+		}
+		if (!result) {
+			sb.append("error!");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * gets the file of the latest verified backup of a device in the catalog
+	 * 
+	 * @param catalog {@link BackupCatalog}
+	 * @param serial {@link String} device serial
+	 * @param name {@link String} partition, mount point or package
+	 * @return {@link File} or null if the catalog has no such backup
+	 */
+	private static File getLatestBackup(BackupCatalog catalog, String serial, String name) {
+		CatalogEntry entry = catalog.getLatest(serial, name, true);
+		return entry != null ? catalog.getFile(entry) : null;
+	}
+
+	/**
+	 * flashes partition images with fastboot, the image of a partition is
+	 * &lt;partition&gt;.img or &lt;partition&gt;.img.gz in the base directory
+	 * 
+	 * @param adbWrapper
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doFlashImages(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		String[] partitions = cl.getArgs();
+		if (partitions.length == 0) {
+			throw new ApplicationException("at least one partition must be given");
+		}
+		String directory = cl.getOptionValue("bd", System.getProperty("user.dir"));
+		Map<String, File> images = new LinkedHashMap<String, File>();
+		for (String partition : partitions) {
+			File image = new File(directory, partition + ".img");
+			if (!image.isFile()) {
+				image = new File(directory, partition + ".img.gz");
 			}
+			if (!image.isFile()) {
+				throw new ApplicationException("image file not found: " + new File(directory, partition + ".img"));
+			}
+			images.put(partition, image);
+		}
+		try {
+			return adbWrapper.flashImages(images) ? "" : "error!";
+		} catch (IOException e) {
+			throw new ApplicationException("flashing failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * restores single apps of an app backup
+	 * 
+	 * @param adbWrapper
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doRestoreApps(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		String[] packages = cl.getArgs();
+		if (packages.length == 0) {
+			throw new ApplicationException("at least one package must be given");
+		}
+		File directory = new File(cl.getOptionValue("bd", System.getProperty("user.dir"))).getAbsoluteFile();
+		// the store is located in the base directory, usually the parent of a timestamped backup
+		File storeDirectory = new File(directory, APK_STORE);
+		if (!storeDirectory.isDirectory() && directory.getParentFile() != null) {
+			storeDirectory = new File(directory.getParentFile(), APK_STORE);
+		}
+		ApkStore apkStore = new ApkStore(storeDirectory);
+		boolean result = true;
+		try {
+			for (String packageName : packages) {
+				result &= adbWrapper.restoreApp(packageName, directory, apkStore);
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("restore failed: " + e.getMessage());
+		}
+		return result ? "" : "error!";
+	}
+
+	/**
+	 * catalog command: lists the backups or the latest verified backup of each
+	 * partition, mount point and package, optionally of one device (-s) and
+	 * of the names passed as arguments
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doCatalog(CommandLine cl) throws ApplicationException {
+		String query = cl.getOptionValue("catalog", "list");
+		String serial = cl.getOptionValue("s", null);
+		List<String> names = Arrays.asList(cl.getArgs());
+		BackupCatalog catalog = openCatalog(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		List<CatalogEntry> entries;
+		if ("list".equals(query)) {
+			entries = catalog.list(serial, names.size() == 1 ? names.get(0) : null);
+		} else if ("latest".equals(query)) {
+			entries = catalog.getLatest(serial, true);
 		} else {
-			String[] mountPoints = cl.getArgs();
-			boolean result = true;
-			for (String mountPoint : mountPoints) {
-				String flashDir = directory + ("".equals(subDir) ? "" : "/" + subDir );
-				File f = new File(flashDir);
-				if (!f.exists()) {
-					if (!f.mkdirs()) {
-						throw new ApplicationException("cannot create directory: " + flashDir);							
-					}
-				}
-				try {
-					result = adbWrapper.getMountPointAsTar(mountPoint, flashDir);
-				} catch (NoSuchAlgorithmException e) {
-					result = false;
-					break;
-				} catch (IOException e) {
-					result = false;
-					break;
-				}
+			throw new ApplicationException("unknown catalog query: " + query);
+		}
+		StringBuffer sb = new StringBuffer();
+		for (CatalogEntry entry : entries) {
+			if (names.isEmpty() || names.contains(entry.name)) {
+				sb.append(entry.toString());
+				sb.append('\n');
 			}
-			if (!result) {
-				resultString += "error!";
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * locate command, lists the versions of a file stored in the tar backups
+	 * of the base directory
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doLocate(CommandLine cl) throws ApplicationException {
+		String serial = cl.getOptionValue("s", null);
+		BackupCatalog catalog = openCatalog(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		StringBuffer sb = new StringBuffer();
+		try {
+			for (PathIndex.Version version : openPathIndex(catalog).find(cl.getOptionValue("locate"))) {
+				if (serial == null || serial.equals(version.serial)) {
+					sb.append(version.toString());
+					sb.append('\n');
+				}
 			}
+		} catch (IOException e) {
+			throw new ApplicationException("cannot read path index: " + e.getMessage());
 		}
-		return resultString;
+		if (sb.length() == 0) {
+			return "no backup contains " + cl.getOptionValue("locate");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * opens the path index of a base directory, it is built if there is none
+	 * 
+	 * @param catalog {@link BackupCatalog} of the base directory
+	 * @return {@link PathIndex}
+	 * @throws IOException
+	 */
+	private static PathIndex openPathIndex(BackupCatalog catalog) throws IOException {
+		PathIndex pathIndex = PathIndex.open(catalog.getBaseDir());
+		if (pathIndex.isEmpty()) {
+			pathIndex.update(catalog);
+		}
+		return pathIndex;
+	}
+
+	/**
+	 * scrub command, verifies stored backups until the pass is complete or
+	 * the given number of minutes is over
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doScrub(CommandLine cl) throws ApplicationException {
+		long deadline = Long.MAX_VALUE;
+		long rate;
+		int threads;
+		try {
+			if (cl.getOptionValue("scrub") != null) {
+				deadline = System.currentTimeMillis() + Long.parseLong(cl.getOptionValue("scrub")) * 60 * 1000;
+			}
+			rate = Long.parseLong(cl.getOptionValue("rate", "20")) * 1024 * 1024;
+			threads = Integer.parseInt(cl.getOptionValue("par", "2"));
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid scrub parameter: " + e.getMessage());
+		}
+		File baseDir = new File(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		BackupScrubber scrubber = new BackupScrubber(baseDir, threads, new RateLimiter(rate));
+		try {
+			BackupScrubber.Result result = scrubber.run(deadline);
+			StringBuffer sb = new StringBuffer();
+			for (String failed : result.failed) {
+				sb.append("corrupt: ").append(failed).append('\n');
+			}
+			sb.append(result.toString());
+			if (!result.failed.isEmpty()) {
+				sb.append("\nerror!");
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			throw new ApplicationException("scrub failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * gets the directory files are extracted to, given by -xd or the current
+	 * directory; the backup store (-bd) itself is refused as target, later
+	 * scrub, gc and prune runs would find the files there
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static File getExtractDirectory(CommandLine cl) throws ApplicationException {
+		File baseDir = new File(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		File destDir = new File(cl.getOptionValue("xd", System.getProperty("user.dir")));
+		try {
+			String base = baseDir.getCanonicalPath();
+			String dest = destDir.getCanonicalPath();
+			if (dest.equals(base) || dest.startsWith(base + File.separator)) {
+				throw new ApplicationException(destDir + " is within the backup store " + base + ", choose another directory with -xd");
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("invalid directory: " + e.getMessage());
+		}
+		return destDir;
+	}
+
+	/**
+	 * extracts the latest stored version of a file into the directory given
+	 * by -xd or the current directory (see {@link #getExtractDirectory(CommandLine)}),
+	 * reading its data directly from the volume the path index points to
+	 * 
+	 * @param cl
+	 * @param path device path
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doExtractVersion(CommandLine cl, String path) throws ApplicationException {
+		String serial = cl.getOptionValue("s", null);
+		BackupCatalog catalog = openCatalog(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		File destDir = getExtractDirectory(cl);
+		StringBuffer sb = new StringBuffer();
+		try {
+			PathIndex pathIndex = openPathIndex(catalog);
+			for (PathIndex.Version version : pathIndex.find(path)) {
+				if (serial != null && !serial.equals(version.serial)) {
+					continue;
+				}
+				if (version.isDeleted()) {
+					sb.append("deleted: " + version + "\n");
+					continue;
+				}
+				File volumeFile = pathIndex.getVolumeFile(catalog, version);
+				if (volumeFile == null) {
+					sb.append("removed: " + version + "\n");
+					continue;
+				}
+				TarEntry entry = version.toTarEntry();
+				new IndexedTarReader(volumeFile, new TarIndex()).extract(Collections.singletonList(entry), destDir);
+				File target = IndexedTarReader.getTargetFile(destDir, entry.getPath());
+				if (version.md5 != null && !version.md5.equals(MD5Utils.md5sum(target.getPath()))) {
+					throw new ApplicationException("md5 mismatch: " + target);
+				}
+				sb.append(version + "\n");
+				sb.append(entry.name + " extracted to " + destDir);
+				return sb.toString();
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("extract failed: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			throw new ApplicationException("extract failed: " + e.getMessage());
+		}
+		throw new ApplicationException(sb + "no backup contains " + path);
+	}
+
+	/**
+	 * consolidate command, replaces the chains of incremental tar backups by
+	 * a single synthetic full volume each
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doConsolidate(CommandLine cl) throws ApplicationException {
+		List<String> chainFiles = new ArrayList<String>();
+		chainFiles.add(cl.getOptionValue("consolidate"));
+		chainFiles.addAll(Arrays.asList(cl.getArgs()));
+		StringBuffer sb = new StringBuffer();
+		for (String chainFile : chainFiles) {
+			File file = new File(chainFile);
+			if (!file.isFile()) {
+				throw new ApplicationException("chain file not found: " + chainFile);
+			}
+			try {
+				int volumes = TarSnapshot.load(file).getVolumes().size();
+				TarSnapshot snapshot = TarConsolidator.consolidate(file);
+				sb.append(chainFile).append(": ").append(volumes).append(" volumes -> ").append(snapshot.getVolumeFile(0).getName()).append('\n');
+			} catch (IOException e) {
+				throw new ApplicationException("consolidation of " + chainFile + " failed: " + e.getMessage());
+			} catch (NoSuchAlgorithmException e) {
+				throw new ApplicationException("consolidation of " + chainFile + " failed: " + e.getMessage());
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * prune command: removes the backups the retention policy does not keep,
+	 * optionally of one device (-s) and of the names passed as arguments, and
+	 * deletes the apks no remaining backup refers to
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doPrune(CommandLine cl) throws ApplicationException {
+		RetentionPolicy policy;
+		try {
+			policy = RetentionPolicy.parse(cl.getOptionValue("prune"));
+		} catch (IllegalArgumentException e) {
+			throw new ApplicationException(e.getMessage());
+		}
+		String directory = cl.getOptionValue("bd", System.getProperty("user.dir"));
+		BackupCatalog catalog = openCatalog(directory);
+		try {
+			BackupPruner.Result result = new BackupPruner(catalog).prune(policy, cl.getOptionValue("s", null), Arrays.asList(cl.getArgs()));
+			StringBuffer sb = new StringBuffer();
+			for (CatalogEntry entry : result.removed) {
+				sb.append("removed: ").append(entry.toString()).append('\n');
+			}
+			sb.append(result.toString()).append('\n');
+			File baseDir = new File(directory);
+			sb.append(new StoreCollector(baseDir, new ApkStore(new File(baseDir, APK_STORE))).run(Long.MAX_VALUE).toString());
+			return sb.toString();
+		} catch (IOException e) {
+			throw new ApplicationException("prune failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * gc command, marks the apk lists of the backups until the pass is
+	 * complete or the given number of minutes is over, then deletes the
+	 * unreferenced apks of the store
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doGc(CommandLine cl) throws ApplicationException {
+		long deadline = Long.MAX_VALUE;
+		try {
+			if (cl.getOptionValue("gc") != null) {
+				deadline = System.currentTimeMillis() + Long.parseLong(cl.getOptionValue("gc")) * 60 * 1000;
+			}
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid gc parameter: " + e.getMessage());
+		}
+		File baseDir = new File(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		try {
+			return new StoreCollector(baseDir, new ApkStore(new File(baseDir, APK_STORE))).run(deadline).toString();
+		} catch (IOException e) {
+			throw new ApplicationException("gc failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * watch command, runs until the process is stopped
+	 * 
+	 * @param adbWrapper
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doWatch(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		String[] paths = cl.getArgs();
+		if (paths.length == 0) {
+			throw new ApplicationException("at least one device directory must be given");
+		}
+		File mirror = new File(cl.getOptionValue("bd", System.getProperty("user.dir")));
+		long window;
+		long pollInterval;
+		try {
+			window = Long.parseLong(cl.getOptionValue("win", "2000"));
+			pollInterval = Long.parseLong(cl.getOptionValue("poll", "60")) * 1000;
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid watch interval: " + e.getMessage());
+		}
+		adbWrapper.setFindFilter(getFindFilter(cl));
+		try {
+			adbWrapper.watch(Arrays.asList(paths), mirror, getWriters(cl), window, pollInterval);
+		} catch (IOException e) {
+			throw new ApplicationException("watch failed: " + e.getMessage());
+		}
+		return "";
+	}
+
+	/**
+	 * extract command, lists the archive if no patterns are passed
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doExtract(CommandLine cl) throws ApplicationException {
+		File tarFile = new File(cl.getOptionValue("extract"));
+		if (!tarFile.isFile() && cl.getOptionValue("extract").startsWith("/")) {
+			// a device path, its latest version is looked up in the path index
+			return doExtractVersion(cl, cl.getOptionValue("extract"));
+		}
+		if (!tarFile.isFile()) {
+			throw new ApplicationException("tar file not found: " + tarFile);
+		}
+		String[] patterns = cl.getArgs();
+		StringBuffer sb = new StringBuffer();
+		try {
+			if (tarFile.getName().endsWith(TarSnapshot.CHAIN_SUFFIX)) {
+				// incremental backup, the latest version of each file is used
+				TarSnapshot snapshot = TarSnapshot.load(tarFile);
+				if (patterns.length == 0) {
+					for (TarSnapshot.Member member : snapshot.resolve().values()) {
+						sb.append(member.entry.toString());
+						sb.append(' ');
+						sb.append(snapshot.getVolumes().get(member.volume));
+						sb.append('\n');
+					}
+					return sb.toString();
+				}
+				File destDir = getExtractDirectory(cl);
+				List<TarEntry> extracted = snapshot.extract(destDir, patterns);
+				for (TarEntry entry : extracted) {
+					sb.append(entry.name);
+					sb.append('\n');
+				}
+				sb.append(extracted.size() + " entries extracted to " + destDir);
+				return sb.toString();
+			}
+			IndexedTarReader reader = IndexedTarReader.open(tarFile);
+			if (patterns.length == 0) {
+				for (TarEntry entry : reader.getIndex().getEntries()) {
+					sb.append(entry.toString());
+					sb.append('\n');
+				}
+				return sb.toString();
+			}
+			File destDir = getExtractDirectory(cl);
+			if (cl.hasOption("wr")) {
+				// reads the whole archive once instead of seeking to the selected entries,
+				// the files are written in parallel
+				int count = ParallelTarExtractor.extract(tarFile, destDir, getWriters(cl), patterns);
+				return count + " entries extracted to " + destDir;
+			}
+			List<TarEntry> extracted = reader.extract(destDir, patterns);
+			for (TarEntry entry : extracted) {
+				sb.append(entry.name);
+				sb.append('\n');
+			}
+			sb.append(extracted.size() + " entries extracted to " + destDir);
+		} catch (IOException e) {
+			throw new ApplicationException("extract failed: " + e.getMessage());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * diff command, prints the changed block ranges of two images and, for
+	 * ext4 images, the changed files
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doDiff(CommandLine cl) throws ApplicationException {
+		File oldImage = new File(cl.getOptionValue("diff"));
+		if (cl.getArgs().length != 1) {
+			throw new ApplicationException("usage: -diff <old image> <new image>");
+		}
+		File newImage = new File(cl.getArgs()[0]);
+		for (File image : new File[] { oldImage, newImage }) {
+			if (!image.isFile()) {
+				throw new ApplicationException("image file not found: " + image);
+			}
+		}
+		int threads;
+		try {
+			threads = Integer.parseInt(cl.getOptionValue("par", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid number of threads: " + cl.getOptionValue("par"));
+		}
+		StringBuffer sb = new StringBuffer();
+		try {
+			ImageDiff diff = ImageDiff.compare(oldImage, newImage, threads);
+			for (ChunkManifest.Range range : diff.getChangedBlocks()) {
+				sb.append(String.format("%12d %12d", (long) range.first * ImageDiff.BLOCK_SIZE, (long) range.count * ImageDiff.BLOCK_SIZE));
+				sb.append('\n');
+			}
+			sb.append(diff.getChangedBytes() + " bytes in " + diff.getChangedBlocks().size() + " ranges changed");
+			if (diff.getOldLength() != diff.getNewLength()) {
+				sb.append(" (length " + diff.getOldLength() + " -> " + diff.getNewLength() + ")");
+			}
+			sb.append(diff.isCached() ? ", compared by cached chunk sums\n" : "\n");
+			Ext4FileSystem oldFs;
+			try {
+				oldFs = Ext4FileSystem.open(oldImage);
+			} catch (IOException e) {
+				// not an ext4 image, only the blocks are compared
+				return sb.toString();
+			}
+			try {
+				Ext4FileSystem newFs = Ext4FileSystem.open(newImage);
+				try {
+					for (Ext4Diff.Change change : Ext4Diff.compare(oldFs, newFs, diff)) {
+						sb.append(change.toString());
+						sb.append('\n');
+					}
+				} finally {
+					newFs.close();
+				}
+			} finally {
+				oldFs.close();
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("diff failed: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			throw new ApplicationException("diff failed: " + e.getMessage());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * ext4 command, lists, extracts or converts to tar the content of an
+	 * image backup
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doExt4(CommandLine cl) throws ApplicationException {
+		File imageFile = new File(cl.getOptionValue("ext4"));
+		if (!imageFile.isFile()) {
+			throw new ApplicationException("image file not found: " + imageFile);
+		}
+		String[] args = cl.getArgs();
+		String command = args.length > 0 ? args[0] : "ls";
+		StringBuffer sb = new StringBuffer();
+		try {
+			Ext4FileSystem fs = Ext4FileSystem.open(imageFile);
+			try {
+				if ("ls".equals(command)) {
+					for (TarEntry entry : Ext4Exporter.list(fs, args.length > 1 ? args[1] : "")) {
+						sb.append(entry.toString());
+						if (entry.linkName != null) {
+							sb.append(" -> ");
+							sb.append(entry.linkName);
+						}
+						sb.append('\n');
+					}
+				} else if ("extract".equals(command)) {
+					File destDir = getExtractDirectory(cl);
+					List<TarEntry> extracted = Ext4Exporter.extract(fs, destDir, Arrays.copyOfRange(args, 1, args.length));
+					for (TarEntry entry : extracted) {
+						sb.append(entry.name);
+						sb.append('\n');
+					}
+					sb.append(extracted.size() + " entries extracted to " + destDir);
+				} else if ("tar".equals(command) && args.length > 1) {
+					File tarFile = new File(args[1]);
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(tarFile), 256 * 1024);
+					int count;
+					try {
+						count = Ext4Exporter.writeTar(fs, args.length > 2 ? args[2] : "", os);
+					} finally {
+						os.close();
+					}
+					sb.append(count + " entries written to " + tarFile);
+				} else {
+					throw new ApplicationException("unknown ext4 command: " + command);
+				}
+			} finally {
+				fs.close();
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("ext4 failed: " + e.getMessage());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * yaffs2 command, lists, extracts or converts to tar the content of an
+	 * image backup of an MTD partition
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doYaffs2(CommandLine cl) throws ApplicationException {
+		File imageFile = new File(cl.getOptionValue("yaffs2"));
+		if (!imageFile.isFile()) {
+			throw new ApplicationException("image file not found: " + imageFile);
+		}
+		String[] args = cl.getArgs();
+		String command = args.length > 0 ? args[0] : "ls";
+		StringBuffer sb = new StringBuffer();
+		try {
+			Yaffs2Image image = Yaffs2Image.open(imageFile);
+			try {
+				if ("ls".equals(command)) {
+					String[] patterns = Arrays.copyOfRange(args, Math.min(1, args.length), args.length);
+					TarIndex index = image.getIndex();
+					for (TarEntry entry : patterns.length == 0 ? index.getEntries() : index.find(patterns)) {
+						sb.append(entry.toString());
+						if (entry.linkName != null) {
+							sb.append(" -> ");
+							sb.append(entry.linkName);
+						}
+						sb.append('\n');
+					}
+				} else if ("extract".equals(command)) {
+					File destDir = getExtractDirectory(cl);
+					List<TarEntry> extracted = image.extract(destDir, Arrays.copyOfRange(args, 1, args.length));
+					for (TarEntry entry : extracted) {
+						sb.append(entry.name);
+						sb.append('\n');
+					}
+					sb.append(extracted.size() + " entries extracted to " + destDir);
+				} else if ("tar".equals(command) && args.length > 1) {
+					File tarFile = new File(args[1]);
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(tarFile), 256 * 1024);
+					int count;
+					try {
+						count = image.writeTar(os, Arrays.copyOfRange(args, 2, args.length));
+					} finally {
+						os.close();
+					}
+					sb.append(count + " entries written to " + tarFile);
+				} else {
+					throw new ApplicationException("unknown yaffs2 command: " + command);
+				}
+			} finally {
+				image.close();
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("yaffs2 failed: " + e.getMessage());
+		}
+		return sb.toString();
+	}
+
+    /**
+     * reboot command
+     * 
+     * @param adbWrapper
+     * @param cl
+     * @return
+     */
+	private static String doReboot(AdbWrapper adbWrapper, CommandLine cl) {
+		String arg = cl.getOptionValue("reboot");
+		
+		if ("recovery".equals(arg)) {
+			adbWrapper.rebootIntoRecovery();
+		} else if ("bootloader".equals(arg)) {
+			adbWrapper.rebootIntoBootloader();
+		} else {
+			adbWrapper.reboot();
+		}
+		return "";
+	}
+
+	/**
+	 * backup command
+	 * 
+	 * @param adbWrapper
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static String doBackup(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		String resultString = "";
+		String backupMode = null;
+		if (!cl.hasOption("i")) {
+			if (cl.hasOption("t")) {
+				backupMode = "tar";
+			} else if (cl.hasOption("a")) {
+				backupMode = "apps";
+			}
+		} else {
+			backupMode = "img";
+		}
+		if (backupMode == null) {
+			throw new ApplicationException("either -i, -t or -a must be set");
+		}
+		String subDir = "";
+		if (cl.hasOption("tsf")) {
+			DateFormat df = new SimpleDateFormat(cl.getOptionValue("tsf"));
+			subDir = df.format(new Date());
+		}
+		String directory = cl.getOptionValue("bd", System.getProperty("user.dir"));
+		boolean incremental = cl.hasOption("inc");
+		if (incremental && (!"tar".equals(backupMode) || "".equals(subDir))) {
+			throw new ApplicationException("incremental backups need -t and -tsf");
+		}
+		setTarStreams(adbWrapper, cl);
+		adbWrapper.setMergeTarVolumes(cl.hasOption("merge"));
+		if (cl.hasOption("sync")) {
+			if (!"tar".equals(backupMode)) {
+				throw new ApplicationException("-sync needs -t");
+			}
+			if (cl.hasOption("merge") || cl.hasOption("xd")) {
+				throw new ApplicationException("-sync cannot be combined with -merge or -xd");
+			}
+			adbWrapper.setSyncThreshold(parseSize(cl.getOptionValue("sync")));
+		}
+		FindFilter findFilter = getFindFilter(cl);
+		if (!findFilter.isEmpty() && "img".equals(backupMode)) {
+			throw new ApplicationException("file filters need -t or -a");
+		}
+		adbWrapper.setFindFilter(findFilter);
+		if (cl.hasOption("xd")) {
+			if ("img".equals(backupMode)) {
+				throw new ApplicationException("-xd needs -t or -a");
+			}
+			adbWrapper.setExtractDirectory(new File(cl.getOptionValue("xd")), getWriters(cl));
+		}
+		BackupCatalog catalog = openCatalog(directory);
+		if ("apps".equals(backupMode)) {
+			String flashDir = directory + ("".equals(subDir) ? "" : "/" + subDir );
+			File f = new File(flashDir);
+			if (!f.exists()) {
+				if (!f.mkdirs()) {
+					throw new ApplicationException("cannot create directory: " + flashDir);							
+				}
+			}
+			int concurrency;
+			try {
+				concurrency = Integer.parseInt(cl.getOptionValue("par", "4"));
+			} catch (NumberFormatException e) {
+				throw new ApplicationException("invalid number of parallel app backups: " + cl.getOptionValue("par"));
+			}
+			// the apk store is shared by all backups within the base directory
+			ApkStore apkStore = new ApkStore(new File(directory, APK_STORE));
+			try {
+				Map<String, Long> durations = adbWrapper.backupApps(Arrays.asList(cl.getArgs()), f, apkStore, Math.max(1, concurrency));
+				List<String> failed = new ArrayList<String>();
+				for (Map.Entry<String, Long> duration : durations.entrySet()) {
+					if (duration.getValue() < 0) {
+						failed.add(duration.getKey());
+					} else {
+						addToCatalog(catalog, adbWrapper, CatalogEntry.TYPE_APP, duration.getKey(), new File(f, duration.getKey() + ".tar"),
+								duration.getValue(), true);
+					}
+				}
+				if (!failed.isEmpty()) {
+					resultString += "backup failed for " + failed + "\nerror!";
+				}
+			} catch (IOException e) {
+				throw new ApplicationException("app backup failed: " + e.getMessage());
+			}
+		} else if ("img".equals(backupMode)) {
+			String[] partitions = cl.getArgs();
+			boolean result = true;
+			for (String partition : partitions) {
+				PartitionInfo partitionInfo = adbWrapper.getCurrentDevice().getPartition(partition);
+				if (partitionInfo != null) {
+					String flashFileName = partitionInfo.flashFileName;
+					if (flashFileName == null || "".equals(flashFileName)) {
+						flashFileName = partitionInfo.partitionName + ".img";
+					}
+					String flashDir = directory + ("".equals(subDir) ? "" : "/" + subDir );
+					File f = new File(flashDir);
+					if (!f.exists()) {
+						if (!f.mkdirs()) {
+							throw new ApplicationException("cannot create directory: " + flashDir);							
+						}
+					}
+					flashFileName = flashDir + "/" + flashFileName;
+					long start = System.currentTimeMillis();
+					// the device reads the partition much faster than it is transferred: an
+					// image with the same md5 sum already backed up is linked instead
+					result |= adbWrapper.getPartitionMD5(partition, flashFileName + ".md5");
+					CatalogEntry identical = linkIdenticalImage(catalog, new File(flashFileName));
+					boolean transferred;
+					if (identical != null) {
+						System.err.println(partition + " is identical to " + identical.file + " (" + identical.serial + "), not transferred");
+						transferred = true;
+					} else {
+						transferred = adbWrapper.getPartitionAsImage(partition, flashFileName);
+					}
+					result |= transferred;
+					try {
+						boolean compareMD5 = identical != null || MD5Utils.compareMD5(flashFileName, flashFileName + ".md5");
+						if (!compareMD5) {
+							resultString += flashFileName + "verification failed\n";
+						}
+						addToCatalog(catalog, adbWrapper, CatalogEntry.TYPE_IMAGE, partition, new File(flashFileName),
+								System.currentTimeMillis() - start, transferred && compareMD5);
+					} catch (NoSuchAlgorithmException e) {
+						result = false;
+						break;
+					} catch (IOException e) {
+						result = false;
+						break;
+					}
+				} else {
+					throw new ApplicationException("unknown partition name for device: " + partition);
+				}
+			}
+			if (!result) {
+				resultString += "error!";
+			}
+		} else {
+			String[] mountPoints = cl.getArgs();
+			boolean result = true;
+			for (String mountPoint : mountPoints) {
+				String flashDir = directory + ("".equals(subDir) ? "" : "/" + subDir );
+				File f = new File(flashDir);
+				if (!f.exists()) {
+					if (!f.mkdirs()) {
+						throw new ApplicationException("cannot create directory: " + flashDir);							
+					}
+				}
+				long start = System.currentTimeMillis();
+				try {
+					if (incremental) {
+						String previousDir = cl.getOptionValue("inc");
+						if (previousDir == null) {
+							previousDir = findPreviousBackup(new File(directory), f, mountPoint);
+						}
+						result = adbWrapper.getMountPointAsIncrementalTar(mountPoint, flashDir, previousDir);
+					} else {
+						result = adbWrapper.getMountPointAsTar(mountPoint, flashDir);
+					}
+					String name = mountPoint.startsWith("/") ? mountPoint.substring(1) : mountPoint;
+					File chainFile = TarSnapshot.getChainFile(f, name);
+					addToCatalog(catalog, adbWrapper, CatalogEntry.TYPE_TAR, name, chainFile.isFile() ? chainFile : new File(f, name + ".tar"),
+							System.currentTimeMillis() - start, result);
+				} catch (NoSuchAlgorithmException e) {
+					result = false;
+					break;
+				} catch (IOException e) {
+					result = false;
+					break;
+				}
+			}
+			if (!result) {
+				resultString += "error!";
+			}
+		}
+		if (!"img".equals(backupMode)) {
+			// the files of the new backups can be located right away
+			try {
+				PathIndex.open(catalog.getBaseDir()).update(catalog);
+			} catch (IOException e) {
+				System.err.println("cannot update path index: " + e.getMessage());
+			}
+		}
+		return resultString;
+	}
+
+	/**
+	 * reads the backup catalog of a base directory
+	 * 
+	 * @param directory {@link String} base directory
+	 * @return {@link BackupCatalog}
+	 * @throws ApplicationException
+	 */
+	private static BackupCatalog openCatalog(String directory) throws ApplicationException {
+		try {
+			return BackupCatalog.open(new File(directory));
+		} catch (IOException e) {
+			throw new ApplicationException("cannot read catalog: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * looks up the md5 sum of a partition computed on the device in the
+	 * catalog; the image of a verified backup having the same md5 sum, of
+	 * any device, is hard linked to the image file along with its chunk sums
+	 * 
+	 * @param catalog {@link BackupCatalog}
+	 * @param image {@link File} image file, its md5 sum (&lt;image&gt;.md5) written by the device
+	 * @return {@link CatalogEntry} of the linked image, null if the partition has to be transferred
+	 */
+	private static CatalogEntry linkIdenticalImage(BackupCatalog catalog, File image) {
+		String md5;
+		try {
+			md5 = MD5Utils.readMD5(image.getPath() + ".md5");
+		} catch (IOException e) {
+			return null;
+		}
+		if (!md5.matches("[0-9a-f]{32}")) {
+			return null;
+		}
+		for (CatalogEntry entry : catalog.findByMD5(CatalogEntry.TYPE_IMAGE, md5)) {
+			File existing = catalog.getFile(entry).getAbsoluteFile();
+			if (!existing.isFile() || existing.length() != entry.size) {
+				// removed or damaged since
+				continue;
+			}
+			if (existing.equals(image.getAbsoluteFile())) {
+				return entry;
+			}
+			try {
+				FileUtil.deleteFile(image);
+				FileUtil.hardlinkFile(existing, image);
+				File chunksFile = ChunkManifest.getChunksFile(existing);
+				if (chunksFile.isFile()) {
+					FileUtil.deleteFile(ChunkManifest.getChunksFile(image));
+					FileUtil.hardlinkFile(chunksFile, ChunkManifest.getChunksFile(image));
+				}
+				return entry;
+			} catch (IOException e) {
+				System.err.println("cannot link " + existing + ": " + e.getMessage());
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * records a finished transfer in the catalog; a failure is reported but
+	 * does not fail the backup
+	 * 
+	 * @param catalog {@link BackupCatalog}
+	 * @param adbWrapper
+	 * @param type {@link String} see {@link CatalogEntry}
+	 * @param name {@link String} partition, mount point or package
+	 * @param file {@link File} image, tar or chain file
+	 * @param duration {@link Long} duration of the transfer in milliseconds
+	 * @param verified {@link Boolean} true if the backup was verified
+	 */
+	private static void addToCatalog(BackupCatalog catalog, AdbWrapper adbWrapper, String type, String name, File file, long duration, boolean verified) {
+		try {
+			ITestDevice device = adbWrapper.getCurrentDevice();
+			String hardware;
+			try {
+				hardware = device.getProductType();
+			} catch (DeviceNotAvailableException e) {
+				hardware = "";
+			}
+			long size = 0;
+			String md5 = "";
+			String chunks = "";
+			if (file.getName().endsWith(TarSnapshot.CHAIN_SUFFIX)) {
+				TarSnapshot snapshot = TarSnapshot.load(file);
+				for (int i = 0; i < snapshot.getVolumes().size(); i++) {
+					size += snapshot.getVolumeFile(i).length();
+				}
+			} else {
+				size = file.length();
+				File md5File = new File(file.getPath() + ".md5");
+				if (md5File.isFile()) {
+					md5 = MD5Utils.readMD5(md5File.getPath());
+				}
+			}
+			if (CatalogEntry.TYPE_IMAGE.equals(type) && verified) {
+				// chunk sums allow restoring only changed chunks later on
+				ChunkManifest.loadOrCompute(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+				chunks = getRelativePath(catalog.getBaseDir(), ChunkManifest.getChunksFile(file));
+			}
+			catalog.add(new CatalogEntry(System.currentTimeMillis(), device.getSerialNumber(), hardware, type, name,
+					getRelativePath(catalog.getBaseDir(), file), size, md5, chunks, duration, verified));
+		} catch (IOException e) {
+			System.err.println("cannot add " + file + " to catalog: " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println("cannot add " + file + " to catalog: " + e.getMessage());
+		}
+	}
+
+	private static String getRelativePath(File baseDir, File file) {
+		return baseDir.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+	}
+
+	/**
+	 * passes the number of parallel tar streams to the wrapper
+	 * 
+	 * @param adbWrapper
+	 * @param cl
+	 * @throws ApplicationException
+	 */
+	private static void setTarStreams(AdbWrapper adbWrapper, CommandLine cl) throws ApplicationException {
+		if (cl.hasOption("par")) {
+			try {
+				adbWrapper.setTarStreams(Integer.parseInt(cl.getOptionValue("par")));
+			} catch (NumberFormatException e) {
+				throw new ApplicationException("invalid number of parallel tar streams: " + cl.getOptionValue("par"));
+			}
+		}
+	}
+
+	/**
+	 * gets the filter selecting the files of tar backups
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static FindFilter getFindFilter(CommandLine cl) throws ApplicationException {
+		FindFilter findFilter = new FindFilter();
+		if (cl.hasOption("include")) {
+			for (String value : cl.getOptionValues("include")) {
+				for (String pattern : value.split(",")) {
+					if (pattern.trim().length() > 0) {
+						findFilter.addInclude(pattern.trim());
+					}
+				}
+			}
+		}
+		if (cl.hasOption("exclude")) {
+			for (String value : cl.getOptionValues("exclude")) {
+				for (String pattern : value.split(",")) {
+					if (pattern.trim().length() > 0) {
+						findFilter.addExclude(pattern.trim());
+					}
+				}
+			}
+		}
+		if (cl.hasOption("minSize")) {
+			findFilter.setMinSize(parseSize(cl.getOptionValue("minSize")));
+		}
+		if (cl.hasOption("maxSize")) {
+			findFilter.setMaxSize(parseSize(cl.getOptionValue("maxSize")));
+		}
+		if (cl.hasOption("maxAge")) {
+			try {
+				findFilter.setMaxAge(Integer.parseInt(cl.getOptionValue("maxAge")));
+			} catch (NumberFormatException e) {
+				throw new ApplicationException("invalid number of days: " + cl.getOptionValue("maxAge"));
+			}
+		}
+		return findFilter;
+	}
+
+	/**
+	 * parses a size like 512, 100k, 20M or 1G
+	 * 
+	 * @param value
+	 * @return size in bytes
+	 * @throws ApplicationException
+	 */
+	private static long parseSize(String value) throws ApplicationException {
+		String number = value.trim();
+		long factor = 1;
+		char unit = Character.toUpperCase(number.charAt(number.length() - 1));
+		if (unit == 'K' || unit == 'M' || unit == 'G') {
+			factor = unit == 'K' ? 1024L : unit == 'M' ? 1024L * 1024 : 1024L * 1024 * 1024;
+			number = number.substring(0, number.length() - 1);
+		}
+		try {
+			return Long.parseLong(number) * factor;
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid size: " + value);
+		}
+	}
+
+	/**
+	 * gets the number of threads writing extracted files
+	 * 
+	 * @param cl
+	 * @return
+	 * @throws ApplicationException
+	 */
+	private static int getWriters(CommandLine cl) throws ApplicationException {
+		try {
+			return Integer.parseInt(cl.getOptionValue("wr", "4"));
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("invalid number of writers: " + cl.getOptionValue("wr"));
+		}
+	}
+
+	/**
+	 * finds the latest incremental tar backup of a mount point within the base directory
+	 * 
+	 * @param baseDir {@link File} base directory containing the timestamped backups
+	 * @param currentDir {@link File} directory of the current backup
+	 * @param mountPoint {@link String}
+	 * @return {@link String} directory of the previous backup or null if there is none
+	 */
+	private static String findPreviousBackup(File baseDir, File currentDir, String mountPoint) {
+		String name = mountPoint.startsWith("/") ? mountPoint.substring(1) : mountPoint;
+		File[] candidates = baseDir.listFiles();
+		File previous = null;
+		if (candidates != null) {
+			for (File candidate : candidates) {
+				File chainFile = TarSnapshot.getChainFile(candidate, name);
+				if (candidate.isDirectory() && !candidate.equals(currentDir) && chainFile.exists()) {
+					if (previous == null || chainFile.lastModified() > TarSnapshot.getChainFile(previous, name).lastModified()) {
+						previous = candidate;
+					}
+				}
+			}
+		}
+		return previous != null ? previous.getPath() : null;
 	}
 
 	/**
@@ -0,0 +1,190 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.apps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * content addressed store of application packages: each apk is stored once
+ * as &lt;md5&gt;.apk, shared by all app backups within a base directory, so
+ * unchanged packages are not transferred again. The apks of an app backup
+ * are listed in &lt;package&gt;.apks as "md5 device path" lines.
+ *
+ */
+public class ApkStore {
+
+	public static final String APK_LIST_SUFFIX = ".apks";
+
+	private final File directory;
+
+	/**
+	 * constructor
+	 *
+	 * @param directory {@link File} store directory, created if needed
+	 */
+	public ApkStore(File directory) {
+		super();
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param md5 {@link String} md5 sum of the apk
+	 * @return {@link File} location of the apk within the store
+	 */
+	public File getFile(String md5) {
+		return new File(directory, md5 + ".apk");
+	}
+
+	/**
+	 * checks whether an apk is stored; a stored apk is touched, so a sweep of
+	 * the store running concurrently keeps it for the backup reusing it
+	 *
+	 * @param md5 {@link String} md5 sum of the apk
+	 * @return {@link Boolean} true if the apk is already stored
+	 */
+	public boolean contains(String md5) {
+		File file = getFile(md5);
+		if (!file.isFile()) {
+			return false;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * @param md5 {@link String} md5 sum of the apk
+	 * @return {@link File} file an apk is transferred to before it is added
+	 */
+	public File getPartFile(String md5) {
+		return new File(directory, md5 + ".apk.part");
+	}
+
+	/**
+	 * adds a transferred apk after checking its md5 sum
+	 *
+	 * @param file {@link File} transferred apk, moved into the store
+	 * @param md5 {@link String} expected md5 sum
+	 * @return {@link Boolean} true if the apk was added, false if the md5 sum does not match
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public synchronized boolean add(File file, String md5) throws IOException, NoSuchAlgorithmException {
+		String actual = MD5Utils.md5sum(file.getPath());
+		if (!actual.equals(md5)) {
+			System.err.println(file + "(" + actual + ") <-> " + md5);
+			FileUtil.deleteFile(file);
+			return false;
+		}
+		File target = getFile(md5);
+		if (target.isFile()) {
+			// added by a concurrent backup of another app
+			FileUtil.deleteFile(file);
+			return true;
+		}
+		if (!file.renameTo(target)) {
+			throw new IOException("cannot move " + file + " to " + target);
+		}
+		return true;
+	}
+
+	/**
+	 * parses the output of pm path, one "package:&lt;path&gt;" line per apk
+	 *
+	 * @param output {@link String}
+	 * @return {@link List} of device paths, base apk first
+	 */
+	public static List<String> parsePackagePaths(String output) {
+		List<String> result = new ArrayList<String>();
+		for (String line : output.split("\r?\n")) {
+			line = line.trim();
+			if (line.startsWith("package:")) {
+				result.add(line.substring("package:".length()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param directory {@link File} backup directory
+	 * @param packageName {@link String}
+	 * @return {@link File} apk list of an app backup
+	 */
+	public static File getApkListFile(File directory, String packageName) {
+		return new File(directory, packageName + APK_LIST_SUFFIX);
+	}
+
+	/**
+	 * writes the apk list of an app backup
+	 *
+	 * @param file {@link File}
+	 * @param apks {@link Map} device path to md5 sum
+	 * @throws IOException
+	 */
+	public static void saveApkList(File file, Map<String, String> apks) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (Map.Entry<String, String> apk : apks.entrySet()) {
+				w.write(apk.getValue() + " " + apk.getKey() + "\n");
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * reads the apk list of an app backup
+	 *
+	 * @param file {@link File}
+	 * @return {@link Map} device path to md5 sum, in the order written
+	 * @throws IOException
+	 */
+	public static Map<String, String> loadApkList(File file) throws IOException {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space > 0) {
+					result.put(line.substring(space + 1), line.substring(0, space));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.catalog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * append only catalog of the backups within a base directory
+ * (&lt;baseDir&gt;/catalog.tsv). Each finished transfer appends one line, so
+ * the file is never rewritten and an interrupted write loses at most the
+ * last entry; removed backups are recorded by an appended deletion record.
+ * The catalog is read once, entries are indexed by device, by device and
+ * name and by md5 sum in memory.
+ *
+ */
+public class BackupCatalog {
+
+	public static final String CATALOG_FILE = "catalog.tsv";
+
+	private final File baseDir;
+	private final File catalogFile;
+	private final List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+	private final Map<String, List<CatalogEntry>> bySerial = new HashMap<String, List<CatalogEntry>>();
+	private final Map<String, List<CatalogEntry>> bySerialAndName = new HashMap<String, List<CatalogEntry>>();
+	private final Map<String, List<CatalogEntry>> byMD5 = new HashMap<String, List<CatalogEntry>>();
+
+	private BackupCatalog(File baseDir) {
+		super();
+		this.baseDir = baseDir;
+		this.catalogFile = new File(baseDir, CATALOG_FILE);
+	}
+
+	/**
+	 * reads the catalog of a base directory, an empty catalog if there is none
+	 *
+	 * @param baseDir {@link File}
+	 * @return {@link BackupCatalog}
+	 * @throws IOException
+	 */
+	public static BackupCatalog open(File baseDir) throws IOException {
+		BackupCatalog catalog = new BackupCatalog(baseDir);
+		if (catalog.catalogFile.isFile()) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(catalog.catalogFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					CatalogEntry entry = CatalogEntry.parse(line);
+					if (entry != null) {
+						catalog.index(entry);
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+		return catalog;
+	}
+
+	public File getBaseDir() {
+		return baseDir;
+	}
+
+	/**
+	 * appends an entry to the catalog file
+	 *
+	 * @param entry {@link CatalogEntry}
+	 * @throws IOException
+	 */
+	public synchronized void add(CatalogEntry entry) throws IOException {
+		// the last line is incomplete if a previous write was interrupted
+		boolean incomplete = false;
+		if (catalogFile.length() > 0) {
+			RandomAccessFile raf = new RandomAccessFile(catalogFile, "r");
+			try {
+				raf.seek(raf.length() - 1);
+				incomplete = raf.read() != '\n';
+			} finally {
+				raf.close();
+			}
+		}
+		OutputStream os = new FileOutputStream(catalogFile, true);
+		try {
+			// one write per line, a concurrent writer cannot interleave it
+			os.write(((incomplete ? "\n" : "") + entry.toLine() + "\n").getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+		index(entry);
+	}
+
+	/**
+	 * removes an entry by appending a deletion record, the files of the backup
+	 * are not touched
+	 *
+	 * @param entry {@link CatalogEntry}
+	 * @throws IOException
+	 */
+	public void remove(CatalogEntry entry) throws IOException {
+		add(new CatalogEntry(entry.time, entry.serial, entry.hardware, CatalogEntry.TYPE_DELETED, entry.name, entry.file, 0, null, null, 0,
+				false));
+	}
+
+	/**
+	 * gets the file of an entry
+	 *
+	 * @param entry {@link CatalogEntry}
+	 * @return {@link File}
+	 */
+	public File getFile(CatalogEntry entry) {
+		return new File(baseDir, entry.file);
+	}
+
+	/**
+	 * lists entries
+	 *
+	 * @param serial {@link String} device serial, null for all devices
+	 * @param name {@link String} partition, mount point or package, null for all
+	 * @return {@link List} of entries, oldest first
+	 */
+	public synchronized List<CatalogEntry> list(String serial, String name) {
+		List<CatalogEntry> candidates;
+		if (serial != null && name != null) {
+			candidates = bySerialAndName.get(key(serial, name));
+		} else if (serial != null) {
+			candidates = bySerial.get(serial);
+		} else {
+			candidates = entries;
+		}
+		if (candidates == null) {
+			return Collections.emptyList();
+		}
+		List<CatalogEntry> result = new ArrayList<CatalogEntry>();
+		for (CatalogEntry entry : candidates) {
+			if (name == null || name.equals(entry.name)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * lists the entries of each partition, mount point and package
+	 *
+	 * @param serial {@link String} device serial, null for all devices
+	 * @return {@link List} of entry lists, each of one device and name, oldest first
+	 */
+	public synchronized List<List<CatalogEntry>> listByName(String serial) {
+		List<List<CatalogEntry>> result = new ArrayList<List<CatalogEntry>>();
+		for (List<CatalogEntry> candidates : bySerialAndName.values()) {
+			if (serial == null || serial.equals(candidates.get(0).serial)) {
+				result.add(new ArrayList<CatalogEntry>(candidates));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * finds verified backups by the md5 sum of their file, e.g. an image of
+	 * an identical partition of another device of the same model
+	 *
+	 * @param type {@link String} see {@link CatalogEntry}
+	 * @param md5 {@link String} md5 sum
+	 * @return {@link List} of verified entries, latest first
+	 */
+	public synchronized List<CatalogEntry> findByMD5(String type, String md5) {
+		List<CatalogEntry> result = new ArrayList<CatalogEntry>();
+		List<CatalogEntry> candidates = byMD5.get(md5);
+		if (candidates != null) {
+			for (int i = candidates.size() - 1; i >= 0; i--) {
+				CatalogEntry entry = candidates.get(i);
+				if (entry.verified && entry.type.equals(type)) {
+					result.add(entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * gets the latest backup of a partition, mount point or package
+	 *
+	 * @param serial {@link String} device serial
+	 * @param name {@link String} partition, mount point or package
+	 * @param verifiedOnly {@link Boolean} true to skip backups which were not verified
+	 * @return {@link CatalogEntry} or null if there is none
+	 */
+	public synchronized CatalogEntry getLatest(String serial, String name, boolean verifiedOnly) {
+		List<CatalogEntry> candidates = bySerialAndName.get(key(serial, name));
+		if (candidates == null) {
+			return null;
+		}
+		for (int i = candidates.size() - 1; i >= 0; i--) {
+			CatalogEntry entry = candidates.get(i);
+			if (!verifiedOnly || entry.verified) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * gets the latest backups of all partitions, mount points and packages
+	 *
+	 * @param serial {@link String} device serial, null for all devices
+	 * @param verifiedOnly {@link Boolean} true to skip backups which were not verified
+	 * @return {@link List} of entries
+	 */
+	public synchronized List<CatalogEntry> getLatest(String serial, boolean verifiedOnly) {
+		List<CatalogEntry> result = new ArrayList<CatalogEntry>();
+		for (List<CatalogEntry> candidates : bySerialAndName.values()) {
+			CatalogEntry first = candidates.get(0);
+			if (serial == null || serial.equals(first.serial)) {
+				CatalogEntry latest = getLatest(first.serial, first.name, verifiedOnly);
+				if (latest != null) {
+					result.add(latest);
+				}
+			}
+		}
+		Collections.sort(result, new Comparator<CatalogEntry>() {
+			@Override
+			public int compare(CatalogEntry e1, CatalogEntry e2) {
+				int result = e1.serial.compareTo(e2.serial);
+				return result != 0 ? result : e1.name.compareTo(e2.name);
+			}
+		});
+		return result;
+	}
+
+	private void index(CatalogEntry entry) {
+		if (CatalogEntry.TYPE_DELETED.equals(entry.type)) {
+			CatalogEntry removed = find(entries, entry);
+			if (removed != null) {
+				entries.remove(removed);
+				bySerial.get(removed.serial).remove(removed);
+				List<CatalogEntry> list = bySerialAndName.get(key(removed.serial, removed.name));
+				list.remove(removed);
+				if (list.isEmpty()) {
+					bySerialAndName.remove(key(removed.serial, removed.name));
+				}
+				if (removed.md5.length() > 0) {
+					byMD5.get(removed.md5).remove(removed);
+				}
+			}
+			return;
+		}
+		entries.add(entry);
+		add(bySerial, entry.serial, entry);
+		add(bySerialAndName, key(entry.serial, entry.name), entry);
+		if (entry.md5.length() > 0) {
+			add(byMD5, entry.md5, entry);
+		}
+	}
+
+	private static void add(Map<String, List<CatalogEntry>> index, String key, CatalogEntry entry) {
+		List<CatalogEntry> list = index.get(key);
+		if (list == null) {
+			list = new ArrayList<CatalogEntry>();
+			index.put(key, list);
+		}
+		// entries are appended in time order, except for clock changes
+		int i = list.size();
+		while (i > 0 && list.get(i - 1).time > entry.time) {
+			i--;
+		}
+		list.add(i, entry);
+	}
+
+	/**
+	 * finds the entry a deletion record refers to
+	 */
+	private static CatalogEntry find(List<CatalogEntry> entries, CatalogEntry deleted) {
+		for (CatalogEntry entry : entries) {
+			if (entry.time == deleted.time && entry.serial.equals(deleted.serial) && entry.name.equals(deleted.name)
+					&& entry.file.equals(deleted.file)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private static String key(String serial, String name) {
+		return serial + '\0' + name;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.catalog;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ *
+ * a finished transfer recorded in the {@link BackupCatalog}, stored as one tab
+ * separated line
+ *
+ */
+public class CatalogEntry {
+
+	public static final String TYPE_IMAGE = "img";
+	public static final String TYPE_TAR = "tar";
+	public static final String TYPE_APP = "app";
+	/** record of a removed backup, repeating time, device, name and file of its entry */
+	public static final String TYPE_DELETED = "del";
+
+	private static final int FIELD_COUNT = 11;
+
+	/** end of the transfer in milliseconds since the epoch */
+	public final long time;
+	public final String serial;
+	/** hardware of the device (ro.hardware) */
+	public final String hardware;
+	public final String type;
+	/** partition, mount point or package */
+	public final String name;
+	/** backup file relative to the base directory */
+	public final String file;
+	public final long size;
+	/** md5 sum of the backup file, empty if unknown */
+	public final String md5;
+	/** chunk sums of an image relative to the base directory, empty if there are none */
+	public final String chunks;
+	/** duration of the transfer in milliseconds */
+	public final long duration;
+	public final boolean verified;
+
+	public CatalogEntry(long time, String serial, String hardware, String type, String name, String file, long size, String md5,
+			String chunks, long duration, boolean verified) {
+		super();
+		this.time = time;
+		this.serial = serial;
+		this.hardware = hardware;
+		this.type = type;
+		this.name = name;
+		this.file = file;
+		this.size = size;
+		this.md5 = md5 != null ? md5 : "";
+		this.chunks = chunks != null ? chunks : "";
+		this.duration = duration;
+		this.verified = verified;
+	}
+
+	/**
+	 * @return {@link String} the entry as line of the catalog file, without line feed
+	 */
+	public String toLine() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(time).append('\t');
+		sb.append(escape(serial)).append('\t');
+		sb.append(escape(hardware)).append('\t');
+		sb.append(escape(type)).append('\t');
+		sb.append(escape(name)).append('\t');
+		sb.append(escape(file)).append('\t');
+		sb.append(size).append('\t');
+		sb.append(escape(md5)).append('\t');
+		sb.append(escape(chunks)).append('\t');
+		sb.append(duration).append('\t');
+		sb.append(verified ? '1' : '0');
+		return sb.toString();
+	}
+
+	/**
+	 * parses a line of the catalog file
+	 *
+	 * @param line {@link String}
+	 * @return {@link CatalogEntry} or null if the line is incomplete, e.g. after a crash
+	 */
+	public static CatalogEntry parse(String line) {
+		String[] split = line.split("\t", -1);
+		if (split.length != FIELD_COUNT || !("0".equals(split[10]) || "1".equals(split[10]))) {
+			return null;
+		}
+		try {
+			return new CatalogEntry(Long.parseLong(split[0]), unescape(split[1]), unescape(split[2]), unescape(split[3]), unescape(split[4]),
+					unescape(split[5]), Long.parseLong(split[6]), unescape(split[7]), unescape(split[8]), Long.parseLong(split[9]),
+					"1".equals(split[10]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time)) + " " + serial + " " + hardware + " " + type + " "
+				+ name + " " + file + " " + size + " " + (md5.length() > 0 ? md5 : "-") + " " + duration + "ms"
+				+ (verified ? " verified" : " NOT verified");
+	}
+
+	private static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				char next = s.charAt(++i);
+				sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,574 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.catalog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.tar.TarDigestManifest;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarIndex;
+import de.anddisa.remotebackup.tar.TarSnapshot;
+
+/**
+ *
+ * inverted index from file path to the versions of the file stored in the
+ * tar backups of a base directory. Each tar volume is indexed once, when
+ * the backup writing it is cataloged; volumes hard linked into later
+ * snapshots are not indexed again. A version records the volume, the data
+ * offset, size, mtime, mode and md5 sum of the file, deletions recorded by
+ * incremental backups are versions without data. The index consists of
+ * <ul>
+ * <li>&lt;baseDir&gt;/paths.vol: the indexed volumes, a record is written
+ * before and committed after the versions of the volume</li>
+ * <li>&lt;baseDir&gt;/paths.log: versions appended since the last compaction</li>
+ * <li>&lt;baseDir&gt;/paths.idx: versions sorted by path, searched binary
+ * on disk</li>
+ * </ul>
+ * so a lookup reads a few blocks of the sorted file and the (bounded) log.
+ *
+ */
+public class PathIndex {
+
+	public static final String VOLUMES_FILE = "paths.vol";
+	public static final String LOG_FILE = "paths.log";
+	public static final String INDEX_FILE = "paths.idx";
+
+	/** size of the log from which on it is merged into the sorted file */
+	private static final long LOG_LIMIT = 1024L * 1024;
+
+	private static final String VOLUME = "V";
+	private static final String COMMIT = "C";
+
+	/**
+	 * a version of a file
+	 */
+	public static class Version {
+		public final String path;
+		/** time of the backup which stored the version */
+		public final long time;
+		public final String serial;
+		/** mount point or package of the backup */
+		public final String name;
+		/** volume relative to the base directory */
+		public final String volume;
+		/** offset of the file data within the volume, -1 if the file was deleted */
+		public final long dataOffset;
+		public final long size;
+		public final long mtime;
+		public final int mode;
+		/** md5 sum or null if unknown */
+		public final String md5;
+
+		Version(String path, Volume volume, long dataOffset, long size, long mtime, int mode, String md5) {
+			super();
+			this.path = path;
+			this.time = volume.time;
+			this.serial = volume.serial;
+			this.name = volume.name;
+			this.volume = volume.file;
+			this.dataOffset = dataOffset;
+			this.size = size;
+			this.mtime = mtime;
+			this.mode = mode;
+			this.md5 = md5;
+		}
+
+		public boolean isDeleted() {
+			return dataOffset < 0;
+		}
+
+		/**
+		 * @return {@link TarEntry} describing the file within its volume
+		 */
+		public TarEntry toTarEntry() {
+			TarEntry entry = new TarEntry();
+			entry.name = path;
+			entry.type = TarEntry.TYPE_FILE;
+			entry.mode = mode;
+			entry.size = size;
+			entry.mtime = mtime;
+			entry.dataOffset = dataOffset;
+			return entry;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%tF %<tT %s %s %s", time, serial, isDeleted() ? "deleted" : String.format("%06o %12d %d %s", mode, size, mtime,
+					md5 != null ? md5 : "-"), volume);
+		}
+	}
+
+	/**
+	 * an indexed volume
+	 */
+	private static class Volume {
+		final int id;
+		final long time;
+		final String serial;
+		final String name;
+		final String file;
+
+		Volume(int id, long time, String serial, String name, String file) {
+			this.id = id;
+			this.time = time;
+			this.serial = serial;
+			this.name = name;
+			this.file = file;
+		}
+	}
+
+	private final File baseDir;
+	private final File volumesFile;
+	private final File logFile;
+	private final File indexFile;
+	/** committed volumes by id */
+	private final Map<Integer, Volume> volumes = new HashMap<Integer, Volume>();
+	private final Set<String> volumeFiles = new HashSet<String>();
+	private int nextId = 1;
+
+	private PathIndex(File baseDir) {
+		super();
+		this.baseDir = baseDir;
+		this.volumesFile = new File(baseDir, VOLUMES_FILE);
+		this.logFile = new File(baseDir, LOG_FILE);
+		this.indexFile = new File(baseDir, INDEX_FILE);
+	}
+
+	/**
+	 * reads the volumes of the index of a base directory, an empty index if
+	 * there is none
+	 *
+	 * @param baseDir {@link File}
+	 * @return {@link PathIndex}
+	 * @throws IOException
+	 */
+	public static PathIndex open(File baseDir) throws IOException {
+		PathIndex pathIndex = new PathIndex(baseDir);
+		File tmpFile = new File(pathIndex.indexFile.getPath() + ".tmp");
+		if (!pathIndex.indexFile.exists() && tmpFile.exists()) {
+			// a compaction was interrupted after the old file was deleted
+			if (!tmpFile.renameTo(pathIndex.indexFile)) {
+				throw new IOException("cannot rename " + tmpFile);
+			}
+		}
+		if (pathIndex.volumesFile.isFile()) {
+			Map<Integer, Volume> pending = new HashMap<Integer, Volume>();
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(pathIndex.volumesFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					String[] split = line.split("\t");
+					try {
+						int id = Integer.parseInt(split[1]);
+						pathIndex.nextId = Math.max(pathIndex.nextId, id + 1);
+						if (VOLUME.equals(split[0]) && split.length == 6) {
+							pending.put(id, new Volume(id, Long.parseLong(split[2]), split[3], split[4], split[5]));
+						} else if (COMMIT.equals(split[0]) && pending.containsKey(id)) {
+							Volume volume = pending.remove(id);
+							pathIndex.volumes.put(id, volume);
+							pathIndex.volumeFiles.add(volume.file);
+						}
+					} catch (RuntimeException e) {
+						// an incomplete line of an interrupted write
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+		return pathIndex;
+	}
+
+	public boolean isEmpty() {
+		return volumes.isEmpty();
+	}
+
+	/**
+	 * indexes the volumes of the verified tar and app backups of the catalog
+	 * which are not yet indexed; the log is compacted if it got too large
+	 *
+	 * @param catalog {@link BackupCatalog} of the base directory
+	 * @return {@link Integer} number of volumes indexed
+	 * @throws IOException
+	 */
+	public int update(BackupCatalog catalog) throws IOException {
+		int count = 0;
+		for (List<CatalogEntry> entries : catalog.listByName(null)) {
+			// names of the indexed volumes of the previous backup, the next one links them
+			Set<String> previous = new HashSet<String>();
+			for (CatalogEntry entry : entries) {
+				if (!CatalogEntry.TYPE_TAR.equals(entry.type) && !CatalogEntry.TYPE_APP.equals(entry.type)) {
+					continue;
+				}
+				Set<String> indexed = new HashSet<String>();
+				for (File volumeFile : getVolumeFiles(catalog, entry)) {
+					String file = getRelativePath(volumeFile);
+					if (volumeFiles.contains(file) || previous.contains(volumeFile.getName())) {
+						indexed.add(volumeFile.getName());
+					} else if (entry.verified && volumeFile.isFile()) {
+						add(entry, volumeFile, file);
+						indexed.add(volumeFile.getName());
+						count++;
+					}
+				}
+				previous = indexed;
+			}
+		}
+		if (logFile.length() > LOG_LIMIT) {
+			compact();
+		}
+		return count;
+	}
+
+	/**
+	 * gets the versions of a file
+	 *
+	 * @param path {@link String} device path
+	 * @return {@link List} of versions, latest first
+	 * @throws IOException
+	 */
+	public List<Version> find(String path) throws IOException {
+		String key = TarIndex.normalize(path);
+		Set<String> lines = new LinkedHashSet<String>();
+		if (indexFile.isFile()) {
+			RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+			try {
+				long position = search(raf, key);
+				String line;
+				while ((line = readLine(raf, position)) != null && key.equals(getPath(line))) {
+					lines.add(line);
+					position = raf.getFilePointer();
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		if (logFile.isFile()) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (key.equals(getPath(line))) {
+						lines.add(line);
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+		List<Version> result = new ArrayList<Version>();
+		for (String line : lines) {
+			Version version = parseVersion(line);
+			if (version != null) {
+				result.add(version);
+			}
+		}
+		Collections.sort(result, new Comparator<Version>() {
+			@Override
+			public int compare(Version v1, Version v2) {
+				return v1.time > v2.time ? -1 : (v1.time == v2.time ? v1.volume.compareTo(v2.volume) : 1);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * gets the volume file of a version; if the backup which wrote it was
+	 * removed, the hard link of a later snapshot of the same device and name
+	 * is used
+	 *
+	 * @param catalog {@link BackupCatalog} of the base directory
+	 * @param version {@link Version}
+	 * @return {@link File} or null if no backup contains the volume anymore
+	 */
+	public File getVolumeFile(BackupCatalog catalog, Version version) {
+		File file = new File(baseDir, version.volume);
+		if (file.isFile()) {
+			return file;
+		}
+		for (CatalogEntry entry : catalog.list(version.serial, version.name)) {
+			if (entry.time >= version.time) {
+				File link = new File(catalog.getFile(entry).getParentFile(), file.getName());
+				if (link.isFile()) {
+					return link;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * merges the log into the sorted file
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		List<String> logLines = new ArrayList<String>();
+		if (logFile.isFile()) {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (parseVersion(line) != null) {
+						logLines.add(line);
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+		Collections.sort(logLines, LINE_ORDER);
+
+		File tmpFile = new File(indexFile.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+		try {
+			BufferedReader br = indexFile.isFile() ? new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8")) : null;
+			try {
+				String indexLine = br != null ? br.readLine() : null;
+				String last = null;
+				int i = 0;
+				while (indexLine != null || i < logLines.size()) {
+					String line;
+					if (indexLine != null && (i >= logLines.size() || LINE_ORDER.compare(indexLine, logLines.get(i)) <= 0)) {
+						line = indexLine;
+						indexLine = br.readLine();
+					} else {
+						line = logLines.get(i++);
+					}
+					// a log merged before an interrupted deletion is merged again
+					if (!line.equals(last)) {
+						writer.write(line);
+						writer.write('\n');
+						last = line;
+					}
+				}
+			} finally {
+				if (br != null) {
+					br.close();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		FileUtil.deleteFile(indexFile);
+		if (!tmpFile.renameTo(indexFile)) {
+			throw new IOException("cannot rename " + tmpFile);
+		}
+		FileUtil.deleteFile(logFile);
+	}
+
+	/**
+	 * appends the versions of a volume to the log
+	 */
+	private void add(CatalogEntry entry, File volumeFile, String file) throws IOException {
+		int id = nextId++;
+		Volume volume = new Volume(id, entry.time, entry.serial, entry.name, file);
+		append(volumesFile, VOLUME + "\t" + id + "\t" + volume.time + "\t" + volume.serial + "\t" + volume.name + "\t" + volume.file + "\n");
+
+		TarIndex index = TarIndex.loadOrBuild(volumeFile);
+		File manifestFile = TarDigestManifest.getManifestFile(volumeFile);
+		Map<String, String> digests = manifestFile.isFile() ? TarDigestManifest.load(manifestFile).getDigests() : new HashMap<String, String>();
+		StringBuilder sb = new StringBuilder();
+		for (TarEntry tarEntry : index.getEntries()) {
+			TarEntry data = tarEntry;
+			if (tarEntry.type == TarEntry.TYPE_HARDLINK) {
+				data = index.get(tarEntry.linkName);
+			}
+			if (data == null || !data.isFile() || !isValid(tarEntry.getPath())) {
+				continue;
+			}
+			String md5 = digests.get(data.getPath());
+			appendVersion(sb, tarEntry.getPath(), id, data.dataOffset, data.size, tarEntry.mtime, tarEntry.mode, md5);
+		}
+		for (String deleted : TarSnapshot.loadDeleted(volumeFile)) {
+			if (isValid(deleted)) {
+				appendVersion(sb, TarIndex.normalize(deleted), id, -1, 0, 0, 0, null);
+			}
+		}
+		append(logFile, sb.toString());
+
+		append(volumesFile, COMMIT + "\t" + id + "\n");
+		volumes.put(id, volume);
+		volumeFiles.add(file);
+	}
+
+	private static void appendVersion(StringBuilder sb, String path, int id, long dataOffset, long size, long mtime, int mode, String md5) {
+		sb.append(path).append('\t').append(id).append('\t').append(dataOffset).append('\t').append(size).append('\t').append(mtime).append('\t')
+				.append(Integer.toOctalString(mode)).append('\t').append(md5 != null ? md5 : "-").append('\n');
+	}
+
+	/**
+	 * @return {@link Version} or null if the line is incomplete or its volume was not committed
+	 */
+	private Version parseVersion(String line) {
+		String[] split = line.split("\t");
+		if (split.length != 7) {
+			return null;
+		}
+		try {
+			Volume volume = volumes.get(Integer.parseInt(split[1]));
+			if (volume == null) {
+				return null;
+			}
+			return new Version(split[0], volume, Long.parseLong(split[2]), Long.parseLong(split[3]), Long.parseLong(split[4]),
+					Integer.parseInt(split[5], 8), "-".equals(split[6]) ? null : split[6]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean isValid(String path) {
+		return path.indexOf('\t') < 0 && path.indexOf('\n') < 0 && path.indexOf('\r') < 0;
+	}
+
+	private static String getPath(String line) {
+		int tab = line.indexOf('\t');
+		return tab < 0 ? line : line.substring(0, tab);
+	}
+
+	/** by path, then by the rest of the line */
+	private static final Comparator<String> LINE_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String l1, String l2) {
+			int result = getPath(l1).compareTo(getPath(l2));
+			return result != 0 ? result : l1.compareTo(l2);
+		}
+	};
+
+	/**
+	 * @return {@link Long} start of the first line of the sorted file whose path is not less than the key
+	 */
+	private static long search(RandomAccessFile raf, String key) throws IOException {
+		long low = 0;
+		long high = raf.length();
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			String line = readLine(raf, getLineStart(raf, middle));
+			if (line == null || getPath(line).compareTo(key) >= 0) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return getLineStart(raf, low);
+	}
+
+	/**
+	 * @return {@link Long} start of the first line starting at or after the position
+	 */
+	private static long getLineStart(RandomAccessFile raf, long position) throws IOException {
+		if (position == 0) {
+			return 0;
+		}
+		raf.seek(position - 1);
+		byte[] buffer = new byte[512];
+		int read;
+		while ((read = raf.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n') {
+					return raf.getFilePointer() - read + i + 1;
+				}
+			}
+		}
+		return raf.length();
+	}
+
+	/**
+	 * reads a line, the file pointer is left at the start of the next line
+	 *
+	 * @return {@link String} or null at the end of the file
+	 */
+	private static String readLine(RandomAccessFile raf, long position) throws IOException {
+		if (position >= raf.length()) {
+			return null;
+		}
+		raf.seek(position);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[512];
+		int read;
+		while ((read = raf.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n') {
+					bos.write(buffer, 0, i);
+					raf.seek(raf.getFilePointer() - read + i + 1);
+					return bos.toString("UTF-8");
+				}
+			}
+			bos.write(buffer, 0, read);
+		}
+		return bos.toString("UTF-8");
+	}
+
+	private static List<File> getVolumeFiles(BackupCatalog catalog, CatalogEntry entry) throws IOException {
+		File file = catalog.getFile(entry);
+		List<File> result = new ArrayList<File>();
+		if (file.getName().endsWith(TarSnapshot.CHAIN_SUFFIX)) {
+			if (file.isFile()) {
+				TarSnapshot snapshot = TarSnapshot.load(file);
+				for (int i = 0; i < snapshot.getVolumes().size(); i++) {
+					result.add(snapshot.getVolumeFile(i));
+				}
+			}
+		} else {
+			result.add(file);
+		}
+		return result;
+	}
+
+	private String getRelativePath(File file) {
+		return baseDir.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+	}
+
+	private static void append(File file, String lines) throws IOException {
+		// the last line is incomplete if a previous write was interrupted
+		boolean incomplete = false;
+		if (file.length() > 0) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				raf.seek(raf.length() - 1);
+				incomplete = raf.read() != '\n';
+			} finally {
+				raf.close();
+			}
+		}
+		OutputStream os = new FileOutputStream(file, true);
+		try {
+			os.write(((incomplete ? "\n" : "") + lines).getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+}
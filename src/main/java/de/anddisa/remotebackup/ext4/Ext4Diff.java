@@ -0,0 +1,196 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.ext4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.anddisa.remotebackup.image.ImageDiff;
+
+/**
+ *
+ * the files which differ between two ext4 images of the same partition.
+ * Both trees are walked side by side comparing the inodes; a file which
+ * still occupies the same blocks is only read if one of them is among the
+ * changed blocks of the images. Those and files which were moved to other
+ * blocks are compared by their md5 sums.
+ *
+ */
+public class Ext4Diff {
+
+	public static final char ADDED = 'A';
+	public static final char DELETED = 'D';
+	public static final char MODIFIED = 'M';
+
+	/**
+	 * a changed path
+	 */
+	public static class Change {
+		public final char type;
+		public final String path;
+
+		public Change(char type, String path) {
+			super();
+			this.type = type;
+			this.path = path;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + path;
+		}
+	}
+
+	private final Ext4FileSystem oldFs;
+	private final Ext4FileSystem newFs;
+	private final ImageDiff blocks;
+	private final List<Change> changes = new ArrayList<Change>();
+
+	private Ext4Diff(Ext4FileSystem oldFs, Ext4FileSystem newFs, ImageDiff blocks) {
+		super();
+		this.oldFs = oldFs;
+		this.newFs = newFs;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * compares the file systems of two images
+	 *
+	 * @param oldFs {@link Ext4FileSystem}
+	 * @param newFs {@link Ext4FileSystem}
+	 * @param blocks {@link ImageDiff} of the two images
+	 * @return {@link List} of changes, directories before their content
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static List<Change> compare(Ext4FileSystem oldFs, Ext4FileSystem newFs, ImageDiff blocks) throws IOException, NoSuchAlgorithmException {
+		Ext4Diff diff = new Ext4Diff(oldFs, newFs, blocks);
+		diff.compareDirectories("", oldFs.getRoot(), newFs.getRoot());
+		return diff.changes;
+	}
+
+	private void compareDirectories(String path, Ext4Inode oldDir, Ext4Inode newDir) throws IOException, NoSuchAlgorithmException {
+		Map<String, Integer> oldEntries = new LinkedHashMap<String, Integer>();
+		for (Ext4FileSystem.Entry entry : oldFs.list(oldDir)) {
+			oldEntries.put(entry.name, entry.inode);
+		}
+		for (Ext4FileSystem.Entry entry : newFs.list(newDir)) {
+			String entryPath = path.length() == 0 ? entry.name : path + "/" + entry.name;
+			Ext4Inode newInode = newFs.getInode(entry.inode);
+			Integer oldNumber = oldEntries.remove(entry.name);
+			if (oldNumber == null) {
+				addSubtree(ADDED, newFs, entryPath, newInode);
+				continue;
+			}
+			Ext4Inode oldInode = oldFs.getInode(oldNumber);
+			if ((oldInode.mode & Ext4Inode.S_IFMT) != (newInode.mode & Ext4Inode.S_IFMT)) {
+				addSubtree(DELETED, oldFs, entryPath, oldInode);
+				addSubtree(ADDED, newFs, entryPath, newInode);
+			} else if (newInode.isDirectory()) {
+				// the time of a directory changes with every entry, only its attributes count
+				if (oldInode.mode != newInode.mode || oldInode.uid != newInode.uid || oldInode.gid != newInode.gid) {
+					changes.add(new Change(MODIFIED, entryPath + "/"));
+				}
+				compareDirectories(entryPath, oldInode, newInode);
+			} else if (isModified(oldInode, newInode)) {
+				changes.add(new Change(MODIFIED, entryPath));
+			}
+		}
+		for (Map.Entry<String, Integer> entry : oldEntries.entrySet()) {
+			String entryPath = path.length() == 0 ? entry.getKey() : path + "/" + entry.getKey();
+			addSubtree(DELETED, oldFs, entryPath, oldFs.getInode(entry.getValue()));
+		}
+	}
+
+	private boolean isModified(Ext4Inode oldInode, Ext4Inode newInode) throws IOException, NoSuchAlgorithmException {
+		if (oldInode.mode != newInode.mode || oldInode.uid != newInode.uid || oldInode.gid != newInode.gid
+				|| oldInode.size != newInode.size || oldInode.mtime != newInode.mtime) {
+			return true;
+		}
+		if (newInode.isSymlink()) {
+			return !oldFs.readLink(oldInode).equals(newFs.readLink(newInode));
+		}
+		if (!newInode.isFile()) {
+			return false;
+		}
+		List<Ext4FileSystem.Extent> oldExtents = oldFs.getExtents(oldInode);
+		List<Ext4FileSystem.Extent> newExtents = newFs.getExtents(newInode);
+		if (isSameMapping(oldExtents, newExtents) && !isChanged(newExtents)) {
+			return false;
+		}
+		// a changed block of the image may be larger than the blocks of the file system
+		return !Arrays.equals(digest(oldFs, oldInode), digest(newFs, newInode));
+	}
+
+	private boolean isChanged(List<Ext4FileSystem.Extent> extents) {
+		long blockSize = newFs.getBlockSize();
+		for (Ext4FileSystem.Extent extent : extents) {
+			if (extent.initialized && blocks.isChanged(extent.physical * blockSize, extent.length * blockSize)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isSameMapping(List<Ext4FileSystem.Extent> oldExtents, List<Ext4FileSystem.Extent> newExtents) {
+		if (oldFs.getBlockSize() != newFs.getBlockSize() || oldExtents.size() != newExtents.size()) {
+			return false;
+		}
+		for (int i = 0; i < oldExtents.size(); i++) {
+			Ext4FileSystem.Extent o = oldExtents.get(i);
+			Ext4FileSystem.Extent n = newExtents.get(i);
+			if (o.logical != n.logical || o.physical != n.physical || o.length != n.length || o.initialized != n.initialized) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] digest(Ext4FileSystem fs, Ext4Inode inode) throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		OutputStream os = new DigestOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// only the digest is needed
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// only the digest is needed
+			}
+		}, md);
+		fs.copy(inode, os);
+		return md.digest();
+	}
+
+	private void addSubtree(char type, Ext4FileSystem fs, String path, Ext4Inode inode) throws IOException {
+		if (!inode.isDirectory()) {
+			changes.add(new Change(type, path));
+			return;
+		}
+		changes.add(new Change(type, path + "/"));
+		for (Ext4FileSystem.Entry entry : fs.list(inode)) {
+			addSubtree(type, fs, path + "/" + entry.name, fs.getInode(entry.inode));
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.ext4;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import de.anddisa.remotebackup.tar.IndexedTarReader;
+import de.anddisa.remotebackup.tar.TarArchiveWriter;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarIndex;
+import de.anddisa.remotebackup.utils.GlobUtils;
+
+/**
+ *
+ * lists, extracts or converts to tar the content of an ext4 image. Paths
+ * are relative to the root of the file system like the paths of a tar
+ * backup, and the same glob patterns are used to select them; directories
+ * which cannot contain a match are not read.
+ *
+ */
+public class Ext4Exporter {
+
+	private Ext4Exporter() {
+	}
+
+	/**
+	 * describes an inode as tar entry, e.g. for listing it
+	 *
+	 * @param fs {@link Ext4FileSystem}
+	 * @param path {@link String}
+	 * @param inode {@link Ext4Inode}
+	 * @return {@link TarEntry}, null for special files which are not supported
+	 * @throws IOException
+	 */
+	public static TarEntry toTarEntry(Ext4FileSystem fs, String path, Ext4Inode inode) throws IOException {
+		TarEntry entry = new TarEntry();
+		entry.mode = inode.getPermissions();
+		entry.uid = inode.uid;
+		entry.gid = inode.gid;
+		entry.mtime = inode.mtime;
+		if (inode.isDirectory()) {
+			entry.type = TarEntry.TYPE_DIRECTORY;
+			entry.name = path + "/";
+		} else if (inode.isFile()) {
+			entry.type = TarEntry.TYPE_FILE;
+			entry.name = path;
+			entry.size = inode.size;
+		} else if (inode.isSymlink()) {
+			entry.type = TarEntry.TYPE_SYMLINK;
+			entry.name = path;
+			entry.linkName = fs.readLink(inode);
+		} else {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * lists the entries below a path
+	 *
+	 * @param fs {@link Ext4FileSystem}
+	 * @param path {@link String} directory or file, "" for the whole file system
+	 * @return {@link List} of entries, directories before their content
+	 * @throws IOException
+	 */
+	public static List<TarEntry> list(final Ext4FileSystem fs, String path) throws IOException {
+		final List<TarEntry> result = new ArrayList<TarEntry>();
+		fs.walk(path, new Ext4FileSystem.IVisitor() {
+			@Override
+			public boolean visit(String entryPath, Ext4Inode inode) throws IOException {
+				if (entryPath.length() > 0) {
+					TarEntry entry = toTarEntry(fs, entryPath, inode);
+					if (entry != null) {
+						result.add(entry);
+					}
+				}
+				return true;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * extracts the files matching the glob patterns; the content of a
+	 * matching directory is extracted as well
+	 *
+	 * @param fs {@link Ext4FileSystem}
+	 * @param destDir {@link File} directory to extract to
+	 * @param patterns {@link String} glob patterns, all entries if none are passed
+	 * @return {@link List} of extracted entries
+	 * @throws IOException
+	 */
+	public static List<TarEntry> extract(final Ext4FileSystem fs, final File destDir, String... patterns) throws IOException {
+		final Selection selection = new Selection(patterns);
+		final List<TarEntry> extracted = new ArrayList<TarEntry>();
+		final List<TarEntry> directories = new ArrayList<TarEntry>();
+		fs.walk("", new Ext4FileSystem.IVisitor() {
+			@Override
+			public boolean visit(String path, Ext4Inode inode) throws IOException {
+				if (path.length() == 0) {
+					return true;
+				}
+				if (!selection.isSelected(path)) {
+					return inode.isDirectory() && selection.mayContain(path);
+				}
+				if (inode.isDirectory()) {
+					selection.addDirectory(path);
+				}
+				TarEntry entry = toTarEntry(fs, path, inode);
+				if (entry == null || entry.type == TarEntry.TYPE_SYMLINK) {
+					// symbolic links, devices and fifos cannot be created portably
+					System.err.println("skipping special file: " + path);
+					return false;
+				}
+				File target = IndexedTarReader.getTargetFile(destDir, path);
+				if (entry.isDirectory()) {
+					if (!target.isDirectory() && !target.mkdirs()) {
+						throw new IOException("cannot create directory " + target);
+					}
+					directories.add(entry);
+				} else {
+					File parent = target.getParentFile();
+					if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+						throw new IOException("cannot create directory " + parent);
+					}
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(target), 256 * 1024);
+					try {
+						fs.copy(inode, os);
+					} finally {
+						os.close();
+					}
+					IndexedTarReader.applyAttributes(target, entry);
+				}
+				extracted.add(entry);
+				return true;
+			}
+		});
+		// directory times are set last, creating files changes them
+		for (int i = directories.size() - 1; i >= 0; i--) {
+			TarEntry entry = directories.get(i);
+			IndexedTarReader.applyAttributes(IndexedTarReader.getTargetFile(destDir, entry.getPath()), entry);
+		}
+		return extracted;
+	}
+
+	/**
+	 * writes a subtree of the file system as tar stream
+	 *
+	 * @param fs {@link Ext4FileSystem}
+	 * @param path {@link String} directory or file, "" for the whole file system
+	 * @param os {@link OutputStream}
+	 * @return {@link Integer} number of entries written
+	 * @throws IOException
+	 */
+	public static int writeTar(final Ext4FileSystem fs, String path, OutputStream os) throws IOException {
+		final TarArchiveWriter writer = new TarArchiveWriter(os);
+		final OutputStream data = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writer.write(b, off, len);
+			}
+		};
+		final int[] count = new int[1];
+		fs.walk(path, new Ext4FileSystem.IVisitor() {
+			@Override
+			public boolean visit(String entryPath, Ext4Inode inode) throws IOException {
+				if (entryPath.length() == 0) {
+					return true;
+				}
+				TarEntry entry = toTarEntry(fs, entryPath, inode);
+				if (entry == null) {
+					System.err.println("skipping special file: " + entryPath);
+					return false;
+				}
+				writer.putEntry(entry);
+				if (entry.isFile()) {
+					fs.copy(inode, data);
+				}
+				writer.closeEntry();
+				count[0]++;
+				return true;
+			}
+		});
+		writer.finish();
+		return count[0];
+	}
+
+	/**
+	 * the paths selected by glob patterns
+	 */
+	private static class Selection {
+		private final List<Pattern> patterns = new ArrayList<Pattern>();
+		/** literal part of each pattern before the first wildcard */
+		private final List<String> prefixes = new ArrayList<String>();
+		private final List<String> selectedDirectories = new ArrayList<String>();
+
+		Selection(String... globs) {
+			for (String glob : globs) {
+				String normalized = TarIndex.normalize(glob);
+				patterns.add(GlobUtils.compile(normalized));
+				int wildcard = 0;
+				while (wildcard < normalized.length() && "*?[".indexOf(normalized.charAt(wildcard)) < 0) {
+					wildcard++;
+				}
+				prefixes.add(normalized.substring(0, wildcard));
+			}
+		}
+
+		void addDirectory(String path) {
+			selectedDirectories.add(path + "/");
+		}
+
+		boolean isSelected(String path) {
+			if (patterns.isEmpty()) {
+				return true;
+			}
+			for (String directory : selectedDirectories) {
+				if (path.startsWith(directory)) {
+					return true;
+				}
+			}
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(path).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return {@link Boolean} false if no path below the directory can match
+		 */
+		boolean mayContain(String directory) {
+			String dir = directory + "/";
+			for (String prefix : prefixes) {
+				if (prefix.startsWith(dir) || dir.startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
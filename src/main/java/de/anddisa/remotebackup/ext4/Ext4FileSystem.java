@@ -0,0 +1,487 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.ext4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.anddisa.remotebackup.image.ImageSource;
+
+/**
+ *
+ * read only access to an ext4 (or ext2 / ext3) file system within a
+ * partition image, without mounting it. Only the superblock and the group
+ * descriptors are read when the file system is opened; inodes, extent trees
+ * and directories are read when they are accessed, so listing or extracting
+ * a part of the file system reads only the blocks belonging to it.
+ * Directories are read linearly, which also covers hashed directories.
+ *
+ */
+public class Ext4FileSystem {
+
+	public static final int ROOT_INODE = 2;
+
+	private static final int SUPERBLOCK_OFFSET = 1024;
+	private static final int SUPERBLOCK_SIZE = 1024;
+	private static final int EXT4_MAGIC = 0xef53;
+	private static final int EXTENT_MAGIC = 0xf30a;
+	private static final int INCOMPAT_FILETYPE = 0x2;
+	private static final int INCOMPAT_META_BG = 0x10;
+	private static final int INCOMPAT_64BIT = 0x80;
+	/** number of block pointers within an inode using a block map */
+	private static final int DIRECT_BLOCKS = 12;
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * an entry of a directory
+	 */
+	public static class Entry {
+		public final String name;
+		public final int inode;
+
+		Entry(String name, int inode) {
+			this.name = name;
+			this.inode = inode;
+		}
+	}
+
+	/**
+	 * a range of contiguous blocks of a file
+	 */
+	static class Extent {
+		final long logical;
+		final long physical;
+		final long length;
+		/** false for preallocated blocks, which read as zeroes */
+		final boolean initialized;
+
+		Extent(long logical, long physical, long length, boolean initialized) {
+			this.logical = logical;
+			this.physical = physical;
+			this.length = length;
+			this.initialized = initialized;
+		}
+	}
+
+	/**
+	 * receives the entries of a subtree, see {@link Ext4FileSystem#walk(String, IVisitor)}
+	 */
+	public interface IVisitor {
+		/**
+		 * @param path {@link String} path relative to the root of the file system
+		 * @param inode {@link Ext4Inode}
+		 * @return {@link Boolean} false to skip the content of a directory
+		 * @throws IOException
+		 */
+		boolean visit(String path, Ext4Inode inode) throws IOException;
+	}
+
+	private final ImageSource source;
+	private final int blockSize;
+	private final long inodeCount;
+	private final int inodesPerGroup;
+	private final int inodeSize;
+	private final boolean fileTypes;
+	private final String volumeName;
+	private final long[] inodeTables;
+
+	/**
+	 * constructor, reads the superblock and the group descriptors
+	 *
+	 * @param source {@link ImageSource}
+	 * @throws IOException if the image does not contain a supported file system
+	 */
+	public Ext4FileSystem(ImageSource source) throws IOException {
+		super();
+		this.source = source;
+		if (source.length() < SUPERBLOCK_OFFSET + SUPERBLOCK_SIZE) {
+			throw new IOException("image too small for an ext4 file system");
+		}
+		byte[] sb = read(SUPERBLOCK_OFFSET, SUPERBLOCK_SIZE);
+		if (getShort(sb, 0x38) != EXT4_MAGIC) {
+			throw new IOException("no ext4 file system found");
+		}
+		int incompat = getInt(sb, 0x60);
+		if ((incompat & INCOMPAT_META_BG) != 0) {
+			throw new IOException("ext4 feature meta_bg is not supported");
+		}
+		boolean is64Bit = (incompat & INCOMPAT_64BIT) != 0;
+		this.blockSize = 1024 << getInt(sb, 0x18);
+		this.inodeCount = getInt(sb, 0x0) & 0xffffffffL;
+		this.inodesPerGroup = getInt(sb, 0x28);
+		this.inodeSize = getInt(sb, 0x4c) == 0 ? 128 : getShort(sb, 0x58);
+		this.fileTypes = (incompat & INCOMPAT_FILETYPE) != 0;
+		this.volumeName = getString(sb, 0x78, 16);
+		long blockCount = getInt(sb, 0x4) & 0xffffffffL;
+		if (is64Bit) {
+			blockCount |= (getInt(sb, 0x150) & 0xffffffffL) << 32;
+		}
+		long firstDataBlock = getInt(sb, 0x14) & 0xffffffffL;
+		long blocksPerGroup = getInt(sb, 0x20) & 0xffffffffL;
+		if (blocksPerGroup == 0 || inodesPerGroup == 0 || inodeSize < 128) {
+			throw new IOException("invalid ext4 superblock");
+		}
+		int groupCount = (int) ((blockCount - firstDataBlock + blocksPerGroup - 1) / blocksPerGroup);
+		int descriptorSize = is64Bit ? Math.max(32, getShort(sb, 0xfe)) : 32;
+		byte[] descriptors = read((firstDataBlock + 1) * blockSize, groupCount * descriptorSize);
+		this.inodeTables = new long[groupCount];
+		for (int i = 0; i < groupCount; i++) {
+			int offset = i * descriptorSize;
+			inodeTables[i] = getInt(descriptors, offset + 0x8) & 0xffffffffL;
+			if (descriptorSize >= 64) {
+				inodeTables[i] |= (getInt(descriptors, offset + 0x28) & 0xffffffffL) << 32;
+			}
+		}
+	}
+
+	/**
+	 * opens the file system of an image file (raw or sparse)
+	 *
+	 * @param imageFile {@link File}
+	 * @return {@link Ext4FileSystem}
+	 * @throws IOException
+	 */
+	public static Ext4FileSystem open(File imageFile) throws IOException {
+		ImageSource source = ImageSource.open(imageFile);
+		try {
+			return new Ext4FileSystem(source);
+		} catch (IOException e) {
+			source.close();
+			throw new IOException(imageFile + ": " + e.getMessage());
+		}
+	}
+
+	public void close() throws IOException {
+		source.close();
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return {@link String} volume name, empty if none is set
+	 */
+	public String getVolumeName() {
+		return volumeName;
+	}
+
+	public Ext4Inode getRoot() throws IOException {
+		return getInode(ROOT_INODE);
+	}
+
+	/**
+	 * reads an inode
+	 *
+	 * @param number {@link Integer} inode number, starting with 1
+	 * @return {@link Ext4Inode}
+	 * @throws IOException
+	 */
+	public Ext4Inode getInode(int number) throws IOException {
+		if (number < 1 || number > inodeCount) {
+			throw new IOException("invalid inode number " + number);
+		}
+		int group = (number - 1) / inodesPerGroup;
+		int index = (number - 1) % inodesPerGroup;
+		byte[] b = read(inodeTables[group] * blockSize + (long) index * inodeSize, 128);
+		int mode = getShort(b, 0x0);
+		int uid = getShort(b, 0x2) | getShort(b, 0x78) << 16;
+		int gid = getShort(b, 0x18) | getShort(b, 0x7a) << 16;
+		long size = (getInt(b, 0x4) & 0xffffffffL) | (getInt(b, 0x6c) & 0xffffffffL) << 32;
+		long mtime = getInt(b, 0x10) & 0xffffffffL;
+		int flags = getInt(b, 0x20);
+		byte[] blocks = new byte[60];
+		System.arraycopy(b, 0x28, blocks, 0, blocks.length);
+		return new Ext4Inode(number, mode, uid, gid, size, mtime, flags, blocks);
+	}
+
+	/**
+	 * looks up a path; symbolic links are not followed
+	 *
+	 * @param path {@link String} path relative to the root of the file system, a leading '/' is ignored
+	 * @return {@link Ext4Inode}, null if the path does not exist
+	 * @throws IOException
+	 */
+	public Ext4Inode lookup(String path) throws IOException {
+		Ext4Inode inode = getRoot();
+		for (String segment : path.split("/")) {
+			if (segment.length() == 0 || ".".equals(segment)) {
+				continue;
+			}
+			if (!inode.isDirectory()) {
+				return null;
+			}
+			Ext4Inode next = null;
+			for (Entry entry : list(inode)) {
+				if (entry.name.equals(segment)) {
+					next = getInode(entry.inode);
+					break;
+				}
+			}
+			if (next == null) {
+				return null;
+			}
+			inode = next;
+		}
+		return inode;
+	}
+
+	/**
+	 * lists a directory
+	 *
+	 * @param directory {@link Ext4Inode}
+	 * @return {@link List} of entries without "." and ".."
+	 * @throws IOException
+	 */
+	public List<Entry> list(Ext4Inode directory) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException("not a directory: inode " + directory.number);
+		}
+		byte[] data = readContent(directory);
+		List<Entry> result = new ArrayList<Entry>();
+		int pos = 0;
+		while (pos + 8 <= data.length) {
+			int inode = getInt(data, pos);
+			int recordLength = getShort(data, pos + 4);
+			int nameLength = fileTypes ? data[pos + 6] & 0xff : getShort(data, pos + 6);
+			if (recordLength < 8 || pos + recordLength > data.length || 8 + nameLength > recordLength) {
+				throw new IOException("corrupt directory entry in inode " + directory.number + " at offset " + pos);
+			}
+			// unused entries, hash tree nodes and checksum tails have inode 0
+			if (inode != 0) {
+				String name = new String(data, pos + 8, nameLength, "UTF-8");
+				if (!".".equals(name) && !"..".equals(name)) {
+					result.add(new Entry(name, inode));
+				}
+			}
+			pos += recordLength;
+		}
+		return result;
+	}
+
+	/**
+	 * visits an inode and, if it is a directory, its content depth first;
+	 * directories are visited before their content
+	 *
+	 * @param path {@link String} path of the subtree, "" or "/" for the whole file system
+	 * @param visitor {@link IVisitor}
+	 * @throws IOException if the path does not exist
+	 */
+	public void walk(String path, IVisitor visitor) throws IOException {
+		String normalized = path;
+		while (normalized.startsWith("/")) {
+			normalized = normalized.substring(1);
+		}
+		while (normalized.endsWith("/")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		Ext4Inode inode = lookup(normalized);
+		if (inode == null) {
+			throw new IOException("not found: " + path);
+		}
+		walk(normalized, inode, visitor);
+	}
+
+	private void walk(String path, Ext4Inode inode, IVisitor visitor) throws IOException {
+		if (!visitor.visit(path, inode) || !inode.isDirectory()) {
+			return;
+		}
+		for (Entry entry : list(inode)) {
+			walk(path.length() == 0 ? entry.name : path + "/" + entry.name, getInode(entry.inode), visitor);
+		}
+	}
+
+	/**
+	 * reads the target of a symbolic link
+	 *
+	 * @param link {@link Ext4Inode}
+	 * @return {@link String}
+	 * @throws IOException
+	 */
+	public String readLink(Ext4Inode link) throws IOException {
+		if (!link.isSymlink()) {
+			throw new IOException("not a symbolic link: inode " + link.number);
+		}
+		if (link.isFastSymlink()) {
+			return new String(link.blocks, 0, (int) link.size, "UTF-8");
+		}
+		return new String(readContent(link), "UTF-8");
+	}
+
+	/**
+	 * writes the content of a file; holes and preallocated blocks are
+	 * written as zeroes without reading the image
+	 *
+	 * @param inode {@link Ext4Inode}
+	 * @param os {@link OutputStream}
+	 * @return {@link Long} number of bytes written
+	 * @throws IOException
+	 */
+	public long copy(Ext4Inode inode, OutputStream os) throws IOException {
+		if ((inode.flags & Ext4Inode.FLAG_INLINE_DATA) != 0) {
+			throw new IOException("inline data is not supported: inode " + inode.number);
+		}
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		long written = 0;
+		for (Extent extent : getExtents(inode)) {
+			long start = extent.logical * blockSize;
+			if (start >= inode.size) {
+				break;
+			}
+			writeZeroes(os, buffer, start - written);
+			long remaining = Math.min(extent.length * blockSize, inode.size - start);
+			if (!extent.initialized) {
+				writeZeroes(os, buffer, remaining);
+			} else {
+				long pos = extent.physical * blockSize;
+				while (remaining > 0) {
+					int n = (int) Math.min(buffer.length, remaining);
+					source.read(pos, buffer, 0, n);
+					os.write(buffer, 0, n);
+					pos += n;
+					remaining -= n;
+				}
+			}
+			written = start + Math.min(extent.length * blockSize, inode.size - start);
+		}
+		writeZeroes(os, buffer, inode.size - written);
+		return inode.size;
+	}
+
+	/**
+	 * maps the logical blocks of an inode to blocks of the image
+	 *
+	 * @param inode {@link Ext4Inode}
+	 * @return {@link List} of extents ordered by their logical block
+	 * @throws IOException
+	 */
+	List<Extent> getExtents(Ext4Inode inode) throws IOException {
+		List<Extent> result = new ArrayList<Extent>();
+		if ((inode.flags & Ext4Inode.FLAG_EXTENTS) != 0) {
+			addExtents(inode.blocks, result, inode.number, 0);
+		} else {
+			long blockCount = (inode.size + blockSize - 1) / blockSize;
+			long[] logical = new long[] { 0 };
+			for (int i = 0; i < DIRECT_BLOCKS + 3 && logical[0] < blockCount; i++) {
+				long block = getInt(inode.blocks, 4 * i) & 0xffffffffL;
+				addMappedBlocks(block, i < DIRECT_BLOCKS ? 0 : i - DIRECT_BLOCKS + 1, logical, blockCount, result);
+			}
+		}
+		return result;
+	}
+
+	private void addExtents(byte[] node, List<Extent> result, int inode, int level) throws IOException {
+		if (getShort(node, 0) != EXTENT_MAGIC || level > 5) {
+			throw new IOException("corrupt extent tree in inode " + inode);
+		}
+		int entries = getShort(node, 2);
+		int depth = getShort(node, 6);
+		for (int i = 0; i < entries; i++) {
+			int offset = 12 + 12 * i;
+			if (depth == 0) {
+				long logical = getInt(node, offset) & 0xffffffffL;
+				int length = getShort(node, offset + 4);
+				long physical = (long) getShort(node, offset + 6) << 32 | (getInt(node, offset + 8) & 0xffffffffL);
+				// lengths above 32768 mark uninitialized extents
+				boolean initialized = length <= 32768;
+				result.add(new Extent(logical, physical, initialized ? length : length - 32768, initialized));
+			} else {
+				long child = (getInt(node, offset + 4) & 0xffffffffL) | (long) getShort(node, offset + 8) << 32;
+				addExtents(read(child * blockSize, blockSize), result, inode, level + 1);
+			}
+		}
+	}
+
+	/**
+	 * adds the blocks referenced by a block map pointer
+	 *
+	 * @param block {@link Long} block number, 0 for a hole
+	 * @param indirection {@link Integer} 0 for a data block, 1 for an indirect block, ...
+	 * @param logical next logical block, updated
+	 */
+	private void addMappedBlocks(long block, int indirection, long[] logical, long blockCount, List<Extent> result) throws IOException {
+		long covered = 1;
+		for (int i = 0; i < indirection; i++) {
+			covered *= blockSize / 4;
+		}
+		if (block == 0) {
+			logical[0] += covered;
+			return;
+		}
+		if (indirection == 0) {
+			Extent last = result.isEmpty() ? null : result.get(result.size() - 1);
+			if (last != null && last.logical + last.length == logical[0] && last.physical + last.length == block) {
+				result.set(result.size() - 1, new Extent(last.logical, last.physical, last.length + 1, true));
+			} else {
+				result.add(new Extent(logical[0], block, 1, true));
+			}
+			logical[0]++;
+			return;
+		}
+		byte[] pointers = read(block * blockSize, blockSize);
+		for (int i = 0; i < blockSize / 4 && logical[0] < blockCount; i++) {
+			addMappedBlocks(getInt(pointers, 4 * i) & 0xffffffffL, indirection - 1, logical, blockCount, result);
+		}
+	}
+
+	private byte[] readContent(Ext4Inode inode) throws IOException {
+		if (inode.size > Integer.MAX_VALUE) {
+			throw new IOException("inode " + inode.number + " too large");
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int) inode.size);
+		copy(inode, bos);
+		return bos.toByteArray();
+	}
+
+	private byte[] read(long position, int length) throws IOException {
+		byte[] b = new byte[length];
+		source.read(position, b, 0, length);
+		return b;
+	}
+
+	private static void writeZeroes(OutputStream os, byte[] buffer, long count) throws IOException {
+		if (count <= 0) {
+			return;
+		}
+		Arrays.fill(buffer, (byte) 0);
+		long remaining = count;
+		while (remaining > 0) {
+			int n = (int) Math.min(buffer.length, remaining);
+			os.write(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+
+	private static int getShort(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return getShort(b, offset) | getShort(b, offset + 2) << 16;
+	}
+
+	private static String getString(byte[] b, int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && b[end] != 0) {
+			end++;
+		}
+		return new String(b, offset, end - offset, "UTF-8");
+	}
+}
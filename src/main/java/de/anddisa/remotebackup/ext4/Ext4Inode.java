@@ -0,0 +1,92 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.ext4;
+
+/**
+ *
+ * the attributes of an inode of an ext4 file system which are needed to
+ * list and read it
+ *
+ */
+public class Ext4Inode {
+
+	public static final int S_IFMT = 0170000;
+	public static final int S_IFSOCK = 0140000;
+	public static final int S_IFLNK = 0120000;
+	public static final int S_IFREG = 0100000;
+	public static final int S_IFBLK = 0060000;
+	public static final int S_IFDIR = 0040000;
+	public static final int S_IFCHR = 0020000;
+	public static final int S_IFIFO = 0010000;
+
+	static final int FLAG_INDEX = 0x1000;
+	static final int FLAG_EXTENTS = 0x80000;
+	static final int FLAG_INLINE_DATA = 0x10000000;
+
+	public final int number;
+	/** type and permission bits */
+	public final int mode;
+	public final int uid;
+	public final int gid;
+	public final long size;
+	/** modification time in seconds */
+	public final long mtime;
+	public final int flags;
+	/** block map, extent tree or inline content (60 bytes) */
+	final byte[] blocks;
+
+	Ext4Inode(int number, int mode, int uid, int gid, long size, long mtime, int flags, byte[] blocks) {
+		super();
+		this.number = number;
+		this.mode = mode;
+		this.uid = uid;
+		this.gid = gid;
+		this.size = size;
+		this.mtime = mtime;
+		this.flags = flags;
+		this.blocks = blocks;
+	}
+
+	public boolean isDirectory() {
+		return (mode & S_IFMT) == S_IFDIR;
+	}
+
+	public boolean isFile() {
+		return (mode & S_IFMT) == S_IFREG;
+	}
+
+	public boolean isSymlink() {
+		return (mode & S_IFMT) == S_IFLNK;
+	}
+
+	/**
+	 * @return {@link Integer} permission bits including setuid, setgid and sticky bit
+	 */
+	public int getPermissions() {
+		return mode & 07777;
+	}
+
+	/**
+	 * @return {@link Boolean} true if the target of a symbolic link is stored within the inode
+	 */
+	boolean isFastSymlink() {
+		return isSymlink() && (flags & (FLAG_EXTENTS | FLAG_INLINE_DATA)) == 0 && size < blocks.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d %06o %d/%d %d", number, mode, uid, gid, size);
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * md5 sums of the fixed size chunks of a partition image, used to compare an
+ * image with the partition on the device chunk by chunk. The sums are cached
+ * in &lt;image&gt;.chunks.
+ *
+ */
+public class ChunkManifest {
+
+	public static final String CHUNKS_SUFFIX = ".chunks";
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	/** number of consecutive chunks hashed by one task of a parallel computation */
+	private static final int CHUNKS_PER_TASK = 16;
+
+	/**
+	 * device side script printing the md5 sums of chunks of a block device, one
+	 * md5sum line per chunk; arguments: device, chunk size, first chunk, number
+	 * of chunks, number of bytes of the chunks (the last chunk of an image may
+	 * be shorter) and optionally "drop" to read from the device instead of the
+	 * page cache. The device is opened once and read sequentially.
+	 */
+	public static final String DEVICE_SCRIPT = "dev=$1; bs=$2; skip=$3; n=$4; len=$5\n"
+			+ "if [ \"$6\" = drop ]; then busybox sync; echo 1 > /proc/sys/vm/drop_caches; fi\n"
+			+ "while [ $n -gt 0 ]; do\n"
+			+ "  if [ $len -lt $bs ]; then\n"
+			+ "    busybox dd bs=$bs skip=$skip count=1 2>/dev/null | busybox head -c $len | busybox md5sum\n"
+			+ "  else\n"
+			+ "    busybox dd bs=$bs skip=$skip count=1 2>/dev/null | busybox md5sum\n"
+			+ "  fi\n"
+			+ "  skip=0; n=$(($n - 1)); len=$(($len - $bs))\n"
+			+ "done < $dev\n";
+
+	/**
+	 * a run of consecutive chunks
+	 */
+	public static class Range {
+		public final int first;
+		public final int count;
+
+		public Range(int first, int count) {
+			super();
+			this.first = first;
+			this.count = count;
+		}
+
+		@Override
+		public String toString() {
+			return first + "+" + count;
+		}
+	}
+
+	private final int chunkSize;
+	private final long length;
+	private final List<String> digests;
+
+	public ChunkManifest(int chunkSize, long length, List<String> digests) {
+		super();
+		this.chunkSize = chunkSize;
+		this.length = length;
+		this.digests = Collections.unmodifiableList(new ArrayList<String>(digests));
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return {@link Long} length of the image in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public int getChunkCount() {
+		return digests.size();
+	}
+
+	public List<String> getDigests() {
+		return digests;
+	}
+
+	/**
+	 * @param range {@link Range}
+	 * @return {@link Long} number of image bytes within the range
+	 */
+	public long getLength(Range range) {
+		long start = (long) range.first * chunkSize;
+		return Math.min(length, start + (long) range.count * chunkSize) - start;
+	}
+
+	/**
+	 * returns the chunk file of an image
+	 *
+	 * @param image {@link File}
+	 * @return {@link File}
+	 */
+	public static File getChunksFile(File image) {
+		return new File(image.getPath() + CHUNKS_SUFFIX);
+	}
+
+	/**
+	 * gets the chunk sums of an image, computes and caches them if the cached
+	 * ones are missing or outdated
+	 *
+	 * @param image {@link File}
+	 * @param chunkSize {@link Integer}
+	 * @return {@link ChunkManifest}
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static ChunkManifest loadOrCompute(File image, int chunkSize) throws IOException, NoSuchAlgorithmException {
+		return loadOrCompute(image, chunkSize, 1);
+	}
+
+	/**
+	 * gets the chunk sums of an image, computes them by the given number of
+	 * threads and caches them if the cached ones are missing or outdated
+	 *
+	 * @param image {@link File}
+	 * @param chunkSize {@link Integer}
+	 * @param threads {@link Integer} number of threads hashing the image
+	 * @return {@link ChunkManifest}
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static ChunkManifest loadOrCompute(File image, int chunkSize, int threads) throws IOException, NoSuchAlgorithmException {
+		ChunkManifest manifest = loadCached(image);
+		if (manifest != null && manifest.chunkSize == chunkSize) {
+			return manifest;
+		}
+		if (threads > 1) {
+			ImageSource source = new RawImageSource(image);
+			try {
+				manifest = compute(source, chunkSize, threads);
+			} finally {
+				source.close();
+			}
+		} else {
+			manifest = compute(image, chunkSize);
+		}
+		manifest.save(getChunksFile(image));
+		return manifest;
+	}
+
+	/**
+	 * reads the cached chunk sums of an image
+	 *
+	 * @param image {@link File}
+	 * @return {@link ChunkManifest}, null if there are none or they are outdated
+	 * @throws IOException
+	 */
+	public static ChunkManifest loadCached(File image) throws IOException {
+		File chunksFile = getChunksFile(image);
+		if (!chunksFile.isFile() || chunksFile.lastModified() < image.lastModified()) {
+			return null;
+		}
+		ChunkManifest manifest = load(chunksFile);
+		return manifest.length == image.length() ? manifest : null;
+	}
+
+	/**
+	 * computes the chunk sums of an image
+	 *
+	 * @param image {@link File}
+	 * @param chunkSize {@link Integer}
+	 * @return {@link ChunkManifest}
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static ChunkManifest compute(File image, int chunkSize) throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		List<String> digests = new ArrayList<String>();
+		byte[] buffer = new byte[chunkSize];
+		InputStream is = new FileInputStream(image);
+		try {
+			while (true) {
+				int filled = 0;
+				int read;
+				while (filled < chunkSize && (read = is.read(buffer, filled, chunkSize - filled)) > 0) {
+					filled += read;
+				}
+				if (filled == 0) {
+					break;
+				}
+				md.update(buffer, 0, filled);
+				digests.add(MD5Utils.toHex(md.digest()));
+				if (filled < chunkSize) {
+					break;
+				}
+			}
+		} finally {
+			is.close();
+		}
+		return new ChunkManifest(chunkSize, image.length(), digests);
+	}
+
+	/**
+	 * computes the chunk sums of an image in parallel; each thread hashes runs
+	 * of consecutive chunks, the image is read memory mapped
+	 *
+	 * @param source {@link ImageSource}
+	 * @param chunkSize {@link Integer}
+	 * @param threads {@link Integer} number of threads
+	 * @return {@link ChunkManifest}
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static ChunkManifest compute(final ImageSource source, final int chunkSize, int threads) throws IOException, NoSuchAlgorithmException {
+		// fails before any thread is started if md5 is not available
+		MessageDigest.getInstance("MD5");
+		final long length = source.length();
+		int count = (int) ((length + chunkSize - 1) / chunkSize);
+		final String[] digests = new String[count];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int first = 0; first < count; first += CHUNKS_PER_TASK) {
+				final int from = first;
+				final int to = Math.min(count, first + CHUNKS_PER_TASK);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						MessageDigest md = MessageDigest.getInstance("MD5");
+						byte[] buffer = new byte[chunkSize];
+						for (int i = from; i < to; i++) {
+							long offset = (long) i * chunkSize;
+							int n = (int) Math.min(chunkSize, length - offset);
+							source.read(offset, buffer, 0, n);
+							md.update(buffer, 0, n);
+							digests[i] = MD5Utils.toHex(md.digest());
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("hashing interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("hashing failed: " + e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return new ChunkManifest(chunkSize, length, Arrays.asList(digests));
+	}
+
+	/**
+	 * parses the output of md5sum, one sum per line
+	 *
+	 * @param output {@link String}
+	 * @return {@link List} of md5 sums
+	 */
+	public static List<String> parseDigests(String output) {
+		List<String> result = new ArrayList<String>();
+		for (String line : output.split("\r?\n")) {
+			line = line.trim();
+			if (line.length() >= 32 && line.substring(0, 32).matches("[0-9a-f]{32}")) {
+				result.add(line.substring(0, 32));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * compares the chunks with the chunks read from the device
+	 *
+	 * @param deviceDigests {@link List} of md5 sums of the device chunks
+	 * @param maxGap {@link Integer} runs of changed chunks separated by no more than
+	 * this number of unchanged chunks are joined, which saves transfers
+	 * @return {@link List} of the chunk ranges to be written
+	 */
+	public List<Range> getChangedRanges(List<String> deviceDigests, int maxGap) {
+		List<Range> result = new ArrayList<Range>();
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i < digests.size(); i++) {
+			if (i < deviceDigests.size() && digests.get(i).equals(deviceDigests.get(i))) {
+				continue;
+			}
+			if (first >= 0 && i - last - 1 > maxGap) {
+				result.add(new Range(first, last - first + 1));
+				first = -1;
+			}
+			if (first < 0) {
+				first = i;
+			}
+			last = i;
+		}
+		if (first >= 0) {
+			result.add(new Range(first, last - first + 1));
+		}
+		return result;
+	}
+
+	/**
+	 * compares the md5 sums read back from the device after a range was written
+	 *
+	 * @param range {@link Range}
+	 * @param deviceDigests {@link List} md5 sums of the chunks of the range, the
+	 * last chunk of the image hashed with its length within the image
+	 * @return {@link List} of the indexes of the chunks which differ
+	 */
+	public List<Integer> verify(Range range, List<String> deviceDigests) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int i = 0; i < range.count; i++) {
+			int chunk = range.first + i;
+			if (i >= deviceDigests.size() || !digests.get(chunk).equals(deviceDigests.get(i))) {
+				result.add(chunk);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * writes the chunk sums
+	 *
+	 * @param file {@link File}
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			w.write(chunkSize + " " + length + "\n");
+			for (String digest : digests) {
+				w.write(digest);
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * reads chunk sums
+	 *
+	 * @param file {@link File}
+	 * @return {@link ChunkManifest}
+	 * @throws IOException
+	 */
+	public static ChunkManifest load(File file) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String header = br.readLine();
+			String[] split = header != null ? header.split(" ") : new String[0];
+			if (split.length != 2) {
+				throw new IOException("not a chunk file: " + file);
+			}
+			List<String> digests = new ArrayList<String>();
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() > 0) {
+					digests.add(line);
+				}
+			}
+			try {
+				return new ChunkManifest(Integer.parseInt(split[0]), Long.parseLong(split[1]), digests);
+			} catch (NumberFormatException e) {
+				throw new IOException("not a chunk file: " + file);
+			}
+		} finally {
+			br.close();
+		}
+	}
+}
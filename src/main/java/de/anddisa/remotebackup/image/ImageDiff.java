@@ -0,0 +1,224 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.anddisa.remotebackup.image.ChunkManifest.Range;
+
+/**
+ *
+ * the blocks which differ between two images of the same partition. The
+ * chunk sums of both images are compared first: cached ones
+ * (&lt;image&gt;.chunks) are used as they are, missing ones are computed by
+ * several threads and cached. Only the chunks whose sums differ are read
+ * and compared block by block.
+ *
+ */
+public class ImageDiff {
+
+	public static final int BLOCK_SIZE = 4096;
+
+	private final long oldLength;
+	private final long newLength;
+	private final boolean cached;
+	/** changed blocks, ordered and not adjacent */
+	private final List<Range> changedBlocks;
+	private final long[] rangeStarts;
+
+	private ImageDiff(long oldLength, long newLength, boolean cached, List<Range> changedBlocks) {
+		super();
+		this.oldLength = oldLength;
+		this.newLength = newLength;
+		this.cached = cached;
+		this.changedBlocks = Collections.unmodifiableList(changedBlocks);
+		this.rangeStarts = new long[changedBlocks.size()];
+		for (int i = 0; i < rangeStarts.length; i++) {
+			rangeStarts[i] = (long) changedBlocks.get(i).first * BLOCK_SIZE;
+		}
+	}
+
+	/**
+	 * compares two images (raw or sparse)
+	 *
+	 * @param oldImage {@link File}
+	 * @param newImage {@link File}
+	 * @param threads {@link Integer} number of threads computing missing chunk sums
+	 * @return {@link ImageDiff}
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static ImageDiff compare(File oldImage, File newImage, int threads) throws IOException, NoSuchAlgorithmException {
+		ImageSource oldSource = ImageSource.open(oldImage);
+		try {
+			ImageSource newSource = ImageSource.open(newImage);
+			try {
+				ChunkManifest oldManifest;
+				ChunkManifest newManifest;
+				boolean cached = false;
+				if (oldSource instanceof RawImageSource && newSource instanceof RawImageSource) {
+					oldManifest = ChunkManifest.loadCached(oldImage);
+					newManifest = ChunkManifest.loadCached(newImage);
+					cached = oldManifest != null && newManifest != null && oldManifest.getChunkSize() == newManifest.getChunkSize();
+					int chunkSize = oldManifest != null ? oldManifest.getChunkSize()
+							: (newManifest != null ? newManifest.getChunkSize() : ChunkManifest.DEFAULT_CHUNK_SIZE);
+					oldManifest = ChunkManifest.loadOrCompute(oldImage, chunkSize, threads);
+					newManifest = ChunkManifest.loadOrCompute(newImage, chunkSize, threads);
+				} else {
+					// the sums of the sparse files do not describe the partition
+					oldManifest = ChunkManifest.compute(oldSource, ChunkManifest.DEFAULT_CHUNK_SIZE, threads);
+					newManifest = ChunkManifest.compute(newSource, ChunkManifest.DEFAULT_CHUNK_SIZE, threads);
+				}
+				return compare(oldSource, oldManifest, newSource, newManifest, cached);
+			} finally {
+				newSource.close();
+			}
+		} finally {
+			oldSource.close();
+		}
+	}
+
+	/**
+	 * compares two images by their chunk sums, the changed chunks block by block
+	 *
+	 * @param oldSource {@link ImageSource}
+	 * @param oldManifest {@link ChunkManifest} of the old image
+	 * @param newSource {@link ImageSource}
+	 * @param newManifest {@link ChunkManifest} of the new image, same chunk size
+	 * @param cached {@link Boolean} true if both chunk sums were cached
+	 * @return {@link ImageDiff}
+	 * @throws IOException
+	 */
+	public static ImageDiff compare(ImageSource oldSource, ChunkManifest oldManifest, ImageSource newSource, ChunkManifest newManifest,
+			boolean cached) throws IOException {
+		if (oldManifest.getChunkSize() != newManifest.getChunkSize()) {
+			throw new IOException("chunk sizes differ");
+		}
+		long chunkSize = oldManifest.getChunkSize();
+		long oldLength = oldSource.length();
+		long newLength = newSource.length();
+		long commonLength = Math.min(oldLength, newLength);
+		List<String> oldDigests = oldManifest.getDigests();
+		List<String> newDigests = newManifest.getDigests();
+		List<Range> result = new ArrayList<Range>();
+		byte[] oldBlock = new byte[BLOCK_SIZE];
+		byte[] newBlock = new byte[BLOCK_SIZE];
+		int chunks = Math.max(oldDigests.size(), newDigests.size());
+		for (int i = 0; i < chunks; i++) {
+			if (i < oldDigests.size() && i < newDigests.size() && oldDigests.get(i).equals(newDigests.get(i))) {
+				continue;
+			}
+			long start = i * chunkSize;
+			long end = Math.min(Math.max(oldLength, newLength), start + chunkSize);
+			for (long block = start / BLOCK_SIZE; block * BLOCK_SIZE < end; block++) {
+				long offset = block * BLOCK_SIZE;
+				boolean changed = true;
+				if (offset + BLOCK_SIZE <= commonLength) {
+					oldSource.read(offset, oldBlock, 0, BLOCK_SIZE);
+					newSource.read(offset, newBlock, 0, BLOCK_SIZE);
+					changed = !Arrays.equals(oldBlock, newBlock);
+				} else if (offset < commonLength && oldLength == newLength) {
+					// the last block of images which are no multiple of the block size
+					int n = (int) (commonLength - offset);
+					Arrays.fill(oldBlock, (byte) 0);
+					Arrays.fill(newBlock, (byte) 0);
+					oldSource.read(offset, oldBlock, 0, n);
+					newSource.read(offset, newBlock, 0, n);
+					changed = !Arrays.equals(oldBlock, newBlock);
+				}
+				if (changed) {
+					addBlock(result, (int) block);
+				}
+			}
+		}
+		return new ImageDiff(oldLength, newLength, cached, result);
+	}
+
+	private static void addBlock(List<Range> ranges, int block) {
+		Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+		if (last != null && last.first + last.count == block) {
+			ranges.set(ranges.size() - 1, new Range(last.first, last.count + 1));
+		} else if (last == null || last.first + last.count < block) {
+			ranges.add(new Range(block, 1));
+		}
+	}
+
+	public long getOldLength() {
+		return oldLength;
+	}
+
+	public long getNewLength() {
+		return newLength;
+	}
+
+	/**
+	 * @return {@link Boolean} true if both images had cached chunk sums, so
+	 * only changed chunks were read
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * @return {@link List} of ranges of changed blocks of {@link #BLOCK_SIZE} bytes
+	 */
+	public List<Range> getChangedBlocks() {
+		return changedBlocks;
+	}
+
+	/**
+	 * @return {@link Long} number of bytes within changed blocks
+	 */
+	public long getChangedBytes() {
+		long result = 0;
+		for (Range range : changedBlocks) {
+			result += (long) range.count * BLOCK_SIZE;
+		}
+		return result;
+	}
+
+	/**
+	 * checks whether a byte range of the images overlaps a changed block
+	 *
+	 * @param offset {@link Long}
+	 * @param length {@link Long}
+	 * @return {@link Boolean}
+	 */
+	public boolean isChanged(long offset, long length) {
+		if (length <= 0) {
+			return false;
+		}
+		int index = Arrays.binarySearch(rangeStarts, offset);
+		if (index >= 0) {
+			return true;
+		}
+		// the range starting before the offset, then the one starting after it
+		int before = -index - 2;
+		if (before >= 0) {
+			Range range = changedBlocks.get(before);
+			if (rangeStarts[before] + (long) range.count * BLOCK_SIZE > offset) {
+				return true;
+			}
+		}
+		int after = before + 1;
+		return after < rangeStarts.length && rangeStarts[after] < offset + length;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * random read access to the content of a partition image, either a raw
+ * image or an android sparse image (possibly split into several files)
+ *
+ */
+public abstract class ImageSource {
+
+	private static final Pattern SPLIT_SPARSE_NAME = Pattern.compile("(.*\\.sparse)\\d\\d(\\.img)");
+
+	/**
+	 * opens an image; a file of a split sparse image (name.sparseNN.img)
+	 * opens all files belonging to it
+	 *
+	 * @param imageFile {@link File}
+	 * @return {@link ImageSource}
+	 * @throws IOException
+	 */
+	public static ImageSource open(File imageFile) throws IOException {
+		if (imageFile.getName().endsWith(".gz")) {
+			throw new IOException("compressed images cannot be read directly, unpack " + imageFile + " first");
+		}
+		if (!SparseImageSource.isSparse(imageFile)) {
+			return new RawImageSource(imageFile);
+		}
+		List<File> files = new ArrayList<File>();
+		Matcher m = SPLIT_SPARSE_NAME.matcher(imageFile.getName());
+		if (m.matches()) {
+			for (int i = 0; i < 100; i++) {
+				File part = new File(imageFile.getParentFile(), m.group(1) + String.format("%02d", i) + m.group(2));
+				if (!part.isFile()) {
+					break;
+				}
+				files.add(part);
+			}
+		}
+		if (!files.contains(imageFile)) {
+			files.clear();
+			files.add(imageFile);
+		}
+		return new SparseImageSource(files);
+	}
+
+	/**
+	 * @return {@link Long} size of the partition in bytes
+	 */
+	public abstract long length();
+
+	/**
+	 * reads bytes of the partition; the method may be called by several
+	 * threads
+	 *
+	 * @param position {@link Long} offset within the partition
+	 * @param buffer byte array
+	 * @param offset {@link Integer} offset within the buffer
+	 * @param length {@link Integer} number of bytes to read
+	 * @throws IOException if the range exceeds the partition
+	 */
+	public abstract void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * releases the files
+	 *
+	 * @throws IOException
+	 */
+	public abstract void close() throws IOException;
+
+	static int readMagic(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] b = new byte[4];
+			int read = 0;
+			while (read < b.length) {
+				int n = is.read(b, read, b.length - read);
+				if (n < 0) {
+					return 0;
+				}
+				read += n;
+			}
+			return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+		} finally {
+			is.close();
+		}
+	}
+}
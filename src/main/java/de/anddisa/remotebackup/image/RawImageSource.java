@@ -0,0 +1,96 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * a raw image read through memory mapped windows; a window is mapped when
+ * it is accessed first, so only the parts of the image which are read
+ * occupy address space
+ *
+ */
+public class RawImageSource extends ImageSource {
+
+	private static final int WINDOW_SHIFT = 26;
+	/** 64 MB */
+	private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long length;
+	private final MappedByteBuffer[] windows;
+
+	/**
+	 * constructor
+	 *
+	 * @param file {@link File}
+	 * @throws IOException
+	 */
+	public RawImageSource(File file) throws IOException {
+		super();
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.length = channel.size();
+		this.windows = new MappedByteBuffer[(int) ((length + WINDOW_SIZE - 1) >> WINDOW_SHIFT)];
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+		if (position < 0 || position + length > this.length) {
+			throw new IOException("read beyond end of image at offset " + position);
+		}
+		long pos = position;
+		int off = offset;
+		int remaining = length;
+		while (remaining > 0) {
+			int index = (int) (pos >> WINDOW_SHIFT);
+			int windowOffset = (int) (pos & (WINDOW_SIZE - 1));
+			// the shared window must not be positioned, each read uses its own view
+			ByteBuffer view = getWindow(index).duplicate();
+			int n = Math.min(remaining, view.limit() - windowOffset);
+			view.position(windowOffset);
+			view.get(buffer, off, n);
+			pos += n;
+			off += n;
+			remaining -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the mapped windows are released by the garbage collector
+		raf.close();
+	}
+
+	private synchronized MappedByteBuffer getWindow(int index) throws IOException {
+		if (windows[index] == null) {
+			long start = (long) index << WINDOW_SHIFT;
+			windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, length - start));
+		}
+		return windows[index];
+	}
+}
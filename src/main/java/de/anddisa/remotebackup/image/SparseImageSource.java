@@ -0,0 +1,217 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *
+ * an android sparse image read without expanding it: only the chunk headers
+ * are read when the image is opened, the data of raw chunks is read from
+ * the mapped sparse files. Blocks which are not covered by a chunk (don't
+ * care) read as zeroes. The files of a split sparse image each cover a part
+ * of the partition and are combined.
+ *
+ */
+public class SparseImageSource extends ImageSource {
+
+	private static final int SPARSE_HEADER_MAGIC = 0xed26ff3a;
+	private static final int CHUNK_TYPE_RAW = 0xcac1;
+	private static final int CHUNK_TYPE_FILL = 0xcac2;
+	private static final int CHUNK_TYPE_DONT_CARE = 0xcac3;
+	private static final int CHUNK_TYPE_CRC32 = 0xcac4;
+
+	/**
+	 * a chunk holding data
+	 */
+	private static class Chunk {
+		final long firstBlock;
+		final long blockCount;
+		/** index of the file holding the data, -1 for a fill chunk */
+		final int file;
+		final long dataOffset;
+		final byte[] fill;
+
+		Chunk(long firstBlock, long blockCount, int file, long dataOffset, byte[] fill) {
+			this.firstBlock = firstBlock;
+			this.blockCount = blockCount;
+			this.file = file;
+			this.dataOffset = dataOffset;
+			this.fill = fill;
+		}
+	}
+
+	private final RawImageSource[] files;
+	private final Chunk[] chunks;
+	private final long[] firstBlocks;
+	private final int blockSize;
+	private final long length;
+
+	/**
+	 * constructor
+	 *
+	 * @param sparseFiles {@link List} of the sparse files of the image
+	 * @throws IOException
+	 */
+	public SparseImageSource(List<File> sparseFiles) throws IOException {
+		super();
+		List<Chunk> chunkList = new ArrayList<Chunk>();
+		int blockSize = 0;
+		long blocks = 0;
+		this.files = new RawImageSource[sparseFiles.size()];
+		for (int i = 0; i < sparseFiles.size(); i++) {
+			RandomAccessFile raf = new RandomAccessFile(sparseFiles.get(i), "r");
+			try {
+				byte[] header = new byte[28];
+				raf.readFully(header);
+				if (getInt(header, 0) != SPARSE_HEADER_MAGIC || getShort(header, 4) != 1) {
+					throw new IOException("not a supported sparse image: " + sparseFiles.get(i));
+				}
+				int fileHeaderSize = getShort(header, 8);
+				int chunkHeaderSize = getShort(header, 10);
+				int fileBlockSize = getInt(header, 12);
+				if (blockSize != 0 && blockSize != fileBlockSize) {
+					throw new IOException("block size of " + sparseFiles.get(i) + " differs");
+				}
+				blockSize = fileBlockSize;
+				blocks = Math.max(blocks, getInt(header, 16) & 0xffffffffL);
+				int chunkCount = getInt(header, 20);
+				long pos = fileHeaderSize;
+				long block = 0;
+				byte[] chunkHeader = new byte[chunkHeaderSize];
+				for (int c = 0; c < chunkCount; c++) {
+					raf.seek(pos);
+					raf.readFully(chunkHeader);
+					int type = getShort(chunkHeader, 0);
+					long chunkBlocks = getInt(chunkHeader, 4) & 0xffffffffL;
+					long totalSize = getInt(chunkHeader, 8) & 0xffffffffL;
+					long dataOffset = pos + chunkHeaderSize;
+					switch (type) {
+					case CHUNK_TYPE_RAW:
+						if (totalSize - chunkHeaderSize != chunkBlocks * blockSize) {
+							throw new IOException("invalid raw chunk at offset " + pos + " of " + sparseFiles.get(i));
+						}
+						chunkList.add(new Chunk(block, chunkBlocks, i, dataOffset, null));
+						break;
+					case CHUNK_TYPE_FILL:
+						byte[] fill = new byte[4];
+						raf.seek(dataOffset);
+						raf.readFully(fill);
+						chunkList.add(new Chunk(block, chunkBlocks, -1, 0, fill));
+						break;
+					case CHUNK_TYPE_DONT_CARE:
+					case CHUNK_TYPE_CRC32:
+						break;
+					default:
+						throw new IOException("unknown chunk type " + Integer.toHexString(type) + " at offset " + pos + " of " + sparseFiles.get(i));
+					}
+					block += chunkBlocks;
+					pos += totalSize;
+				}
+			} finally {
+				raf.close();
+			}
+			files[i] = new RawImageSource(sparseFiles.get(i));
+		}
+		Collections.sort(chunkList, new Comparator<Chunk>() {
+			@Override
+			public int compare(Chunk c1, Chunk c2) {
+				return c1.firstBlock < c2.firstBlock ? -1 : (c1.firstBlock == c2.firstBlock ? 0 : 1);
+			}
+		});
+		this.chunks = chunkList.toArray(new Chunk[chunkList.size()]);
+		this.firstBlocks = new long[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			firstBlocks[i] = chunks[i].firstBlock;
+		}
+		this.blockSize = blockSize;
+		this.length = blocks * blockSize;
+	}
+
+	/**
+	 * @param file {@link File}
+	 * @return {@link Boolean} true if the file starts with the sparse image magic
+	 * @throws IOException
+	 */
+	public static boolean isSparse(File file) throws IOException {
+		return readMagic(file) == SPARSE_HEADER_MAGIC;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+		if (position < 0 || position + length > this.length) {
+			throw new IOException("read beyond end of image at offset " + position);
+		}
+		long pos = position;
+		int off = offset;
+		int remaining = length;
+		while (remaining > 0) {
+			long block = pos / blockSize;
+			int index = Arrays.binarySearch(firstBlocks, block);
+			if (index < 0) {
+				// the chunk starting before the block, if any
+				index = -index - 2;
+			}
+			Chunk chunk = index >= 0 ? chunks[index] : null;
+			int n;
+			if (chunk == null || block >= chunk.firstBlock + chunk.blockCount) {
+				// not covered by a chunk up to the next one
+				long next = index + 1 < chunks.length ? chunks[index + 1].firstBlock * blockSize : this.length;
+				n = (int) Math.min(remaining, next - pos);
+				Arrays.fill(buffer, off, off + n, (byte) 0);
+			} else {
+				long chunkStart = chunk.firstBlock * blockSize;
+				n = (int) Math.min(remaining, chunkStart + chunk.blockCount * blockSize - pos);
+				if (chunk.fill != null) {
+					for (int i = 0; i < n; i++) {
+						buffer[off + i] = chunk.fill[(int) ((pos + i - chunkStart) & 3)];
+					}
+				} else {
+					files[chunk.file].read(chunk.dataOffset + pos - chunkStart, buffer, off, n);
+				}
+			}
+			pos += n;
+			off += n;
+			remaining -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (RawImageSource file : files) {
+			file.close();
+		}
+	}
+
+	private static int getShort(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return getShort(b, offset) | getShort(b, offset + 2) << 16;
+	}
+}
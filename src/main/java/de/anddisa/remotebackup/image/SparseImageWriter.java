@@ -0,0 +1,284 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * converts a raw partition image into android sparse images which fit into
+ * the download buffer of the bootloader. Blocks consisting of a repeated 32
+ * bit value (e.g. zeroes) are stored as fill chunks. If the image has to be
+ * split, each file covers the whole partition: the blocks stored in other
+ * files are skipped by "don't care" chunks, so the files are flashed one
+ * after another to the same partition. The image is read once as a stream.
+ *
+ */
+public class SparseImageWriter {
+
+	public static final int BLOCK_SIZE = 4096;
+
+	private static final int SPARSE_HEADER_MAGIC = 0xed26ff3a;
+	private static final int FILE_HEADER_SIZE = 28;
+	private static final int CHUNK_HEADER_SIZE = 12;
+	private static final int CHUNK_TYPE_RAW = 0xcac1;
+	private static final int CHUNK_TYPE_FILL = 0xcac2;
+	private static final int CHUNK_TYPE_DONT_CARE = 0xcac3;
+
+	private final File directory;
+	private final String name;
+	private final long maxFileSize;
+	private final List<File> files = new ArrayList<File>();
+	private final List<Integer> chunkCounts = new ArrayList<Integer>();
+	private final List<Long> lastBlocks = new ArrayList<Long>();
+
+	private RandomAccessFile current = null;
+	private long currentSize;
+	private int currentChunks;
+	/** file position of the header of the open chunk, -1 if there is none */
+	private long chunkHeader = -1;
+	private int chunkType;
+	private int chunkFill;
+	private int chunkBlocks;
+	/** number of blocks written so far */
+	private long blocks = 0;
+
+	/**
+	 * constructor
+	 *
+	 * @param directory {@link File} directory the sparse files are written to
+	 * @param name {@link String} name of the sparse files without extension
+	 * @param maxFileSize {@link Long} maximum size of a sparse file
+	 */
+	public SparseImageWriter(File directory, String name, long maxFileSize) {
+		super();
+		if (maxFileSize < FILE_HEADER_SIZE + 3 * CHUNK_HEADER_SIZE + BLOCK_SIZE) {
+			throw new IllegalArgumentException("maximum file size too small: " + maxFileSize);
+		}
+		this.directory = directory;
+		this.name = name;
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * converts a raw image
+	 *
+	 * @param is {@link InputStream} raw image, padded with zeroes to a multiple of the block size
+	 * @param directory {@link File} directory the sparse files are written to
+	 * @param name {@link String} name of the sparse files without extension
+	 * @param maxFileSize {@link Long} maximum size of a sparse file
+	 * @return {@link List} of the sparse files to be flashed in order
+	 * @throws IOException
+	 */
+	public static List<File> write(InputStream is, File directory, String name, long maxFileSize) throws IOException {
+		SparseImageWriter writer = new SparseImageWriter(directory, name, maxFileSize);
+		byte[] block = new byte[BLOCK_SIZE];
+		try {
+			while (true) {
+				int filled = 0;
+				int read;
+				while (filled < BLOCK_SIZE && (read = is.read(block, filled, BLOCK_SIZE - filled)) > 0) {
+					filled += read;
+				}
+				if (filled == 0) {
+					break;
+				}
+				for (int i = filled; i < BLOCK_SIZE; i++) {
+					block[i] = 0;
+				}
+				writer.addBlock(block);
+				if (filled < BLOCK_SIZE) {
+					break;
+				}
+			}
+			return writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * adds the next block of the image
+	 *
+	 * @param block byte array of {@link #BLOCK_SIZE} bytes
+	 * @throws IOException
+	 */
+	public void addBlock(byte[] block) throws IOException {
+		int fill = getInt(block, 0);
+		boolean isFill = true;
+		for (int i = 4; i < BLOCK_SIZE && isFill; i += 4) {
+			isFill = getInt(block, i) == fill;
+		}
+		if (isFill) {
+			if (chunkHeader < 0 || chunkType != CHUNK_TYPE_FILL || chunkFill != fill) {
+				startChunk(CHUNK_TYPE_FILL, 4);
+				chunkFill = fill;
+				writeInt(fill);
+				currentSize += 4;
+			}
+		} else {
+			if (chunkHeader < 0 || chunkType != CHUNK_TYPE_RAW || currentSize + BLOCK_SIZE + CHUNK_HEADER_SIZE > maxFileSize) {
+				startChunk(CHUNK_TYPE_RAW, BLOCK_SIZE);
+			}
+			current.write(block);
+			currentSize += BLOCK_SIZE;
+		}
+		chunkBlocks++;
+		blocks++;
+	}
+
+	/**
+	 * finishes the sparse files, the trailing blocks of each file are skipped
+	 * by a "don't care" chunk
+	 *
+	 * @return {@link List} of the sparse files to be flashed in order
+	 * @throws IOException
+	 */
+	public List<File> finish() throws IOException {
+		closeFile();
+		for (int i = 0; i < files.size(); i++) {
+			RandomAccessFile raf = new RandomAccessFile(files.get(i), "rw");
+			try {
+				int chunks = chunkCounts.get(i);
+				long remaining = blocks - lastBlocks.get(i);
+				if (remaining > 0) {
+					raf.seek(raf.length());
+					writeChunkHeader(raf, CHUNK_TYPE_DONT_CARE, (int) remaining, CHUNK_HEADER_SIZE);
+					chunks++;
+				}
+				raf.seek(0);
+				writeFileHeader(raf, blocks, chunks);
+			} finally {
+				raf.close();
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * closes the open file, e.g. after a failure
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+
+	private void startChunk(int type, int dataSize) throws IOException {
+		finishChunk();
+		// room for this chunk and the trailing "don't care" chunk
+		if (current == null || currentSize + CHUNK_HEADER_SIZE + dataSize + CHUNK_HEADER_SIZE > maxFileSize) {
+			closeFile();
+			openFile();
+		}
+		chunkHeader = current.getFilePointer();
+		chunkType = type;
+		chunkBlocks = 0;
+		writeChunkHeader(current, type, 0, 0);
+		currentSize += CHUNK_HEADER_SIZE;
+		currentChunks++;
+	}
+
+	private void finishChunk() throws IOException {
+		if (chunkHeader < 0) {
+			return;
+		}
+		long end = current.getFilePointer();
+		current.seek(chunkHeader);
+		writeChunkHeader(current, chunkType, chunkBlocks, (int) (end - chunkHeader));
+		current.seek(end);
+		chunkHeader = -1;
+	}
+
+	private void openFile() throws IOException {
+		File file = new File(directory, String.format("%s.sparse%02d.img", name, files.size()));
+		files.add(file);
+		current = new RandomAccessFile(file, "rw");
+		current.setLength(0);
+		// the header is written once the number of blocks is known
+		current.write(new byte[FILE_HEADER_SIZE]);
+		currentSize = FILE_HEADER_SIZE;
+		currentChunks = 0;
+		if (blocks > 0) {
+			writeChunkHeader(current, CHUNK_TYPE_DONT_CARE, (int) blocks, CHUNK_HEADER_SIZE);
+			currentSize += CHUNK_HEADER_SIZE;
+			currentChunks++;
+		}
+	}
+
+	private void closeFile() throws IOException {
+		if (current == null) {
+			return;
+		}
+		finishChunk();
+		current.close();
+		current = null;
+		chunkCounts.add(currentChunks);
+		lastBlocks.add(blocks);
+	}
+
+	private static void writeFileHeader(RandomAccessFile raf, long totalBlocks, int totalChunks) throws IOException {
+		byte[] header = new byte[FILE_HEADER_SIZE];
+		putInt(header, 0, SPARSE_HEADER_MAGIC);
+		putShort(header, 4, 1);
+		putShort(header, 6, 0);
+		putShort(header, 8, FILE_HEADER_SIZE);
+		putShort(header, 10, CHUNK_HEADER_SIZE);
+		putInt(header, 12, BLOCK_SIZE);
+		putInt(header, 16, (int) totalBlocks);
+		putInt(header, 20, totalChunks);
+		putInt(header, 24, 0);
+		raf.write(header);
+	}
+
+	private static void writeChunkHeader(RandomAccessFile raf, int type, int chunkBlocks, int totalSize) throws IOException {
+		byte[] header = new byte[CHUNK_HEADER_SIZE];
+		putShort(header, 0, type);
+		putShort(header, 2, 0);
+		putInt(header, 4, chunkBlocks);
+		putInt(header, 8, totalSize);
+		raf.write(header);
+	}
+
+	private void writeInt(int value) throws IOException {
+		byte[] b = new byte[4];
+		putInt(b, 0, value);
+		current.write(b);
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+		b[offset + 2] = (byte) (value >>> 16);
+		b[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static void putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.retention;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.apps.ApkStore;
+import de.anddisa.remotebackup.catalog.BackupCatalog;
+import de.anddisa.remotebackup.catalog.CatalogEntry;
+import de.anddisa.remotebackup.image.ChunkManifest;
+import de.anddisa.remotebackup.tar.TarDigestManifest;
+import de.anddisa.remotebackup.tar.TarIndex;
+import de.anddisa.remotebackup.tar.TarSnapshot;
+
+/**
+ *
+ * removes the backups a {@link RetentionPolicy} does not keep: the entries
+ * are removed from the catalog, their files are deleted unless a kept backup
+ * still uses them. The volumes of incremental tar backups are hard linked
+ * into every snapshot directory, so deleting the links of an expired
+ * snapshot keeps later snapshots complete. Apks of the shared store are
+ * left to the {@link StoreCollector}.
+ *
+ */
+public class BackupPruner {
+
+	/** files accompanying a backup file */
+	private static final String[] SUFFIXES = { ".md5", TarIndex.INDEX_SUFFIX, TarDigestManifest.MANIFEST_SUFFIX };
+
+	/**
+	 * result of a prune run
+	 */
+	public static class Result {
+		public final List<CatalogEntry> removed = new ArrayList<CatalogEntry>();
+		public int files = 0;
+
+		@Override
+		public String toString() {
+			return removed.size() + " backups removed, " + files + " files deleted";
+		}
+	}
+
+	private final BackupCatalog catalog;
+
+	/**
+	 * constructor
+	 *
+	 * @param catalog {@link BackupCatalog} of the base directory
+	 */
+	public BackupPruner(BackupCatalog catalog) {
+		super();
+		this.catalog = catalog;
+	}
+
+	/**
+	 * removes the backups not kept by the policy
+	 *
+	 * @param policy {@link RetentionPolicy}
+	 * @param serial {@link String} device serial, null for all devices
+	 * @param names {@link Collection} of partitions, mount points and packages, all if empty
+	 * @return {@link Result}
+	 * @throws IOException
+	 */
+	public Result prune(RetentionPolicy policy, String serial, Collection<String> names) throws IOException {
+		List<CatalogEntry> expired = new ArrayList<CatalogEntry>();
+		for (List<CatalogEntry> entries : catalog.listByName(serial)) {
+			if (names.isEmpty() || names.contains(entries.get(0).name)) {
+				expired.addAll(policy.getExpired(entries));
+			}
+		}
+		Result result = new Result();
+		if (expired.isEmpty()) {
+			return result;
+		}
+		// files of all remaining backups, of any device and name
+		Set<CatalogEntry> expiredSet = new HashSet<CatalogEntry>(expired);
+		Set<File> used = new HashSet<File>();
+		for (CatalogEntry entry : catalog.list(null, null)) {
+			if (!expiredSet.contains(entry)) {
+				used.addAll(getFiles(entry));
+			}
+		}
+		for (CatalogEntry entry : expired) {
+			List<File> files = getFiles(entry);
+			// the entry is removed first, an interrupted run leaves unreferenced files only
+			catalog.remove(entry);
+			result.removed.add(entry);
+			for (File file : files) {
+				if (!used.contains(file) && file.isFile()) {
+					FileUtil.deleteFile(file);
+					result.files++;
+				}
+			}
+			File directory = catalog.getFile(entry).getAbsoluteFile().getParentFile();
+			String[] left = directory.list();
+			if (left != null && left.length == 0 && !directory.equals(catalog.getBaseDir().getAbsoluteFile())) {
+				FileUtil.deleteFile(directory);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * gets the files of a backup: the backup file and its md5 sum, index,
+	 * digests and chunk sums, the volumes of a chain and the apk list of an
+	 * app backup
+	 *
+	 * @param entry {@link CatalogEntry}
+	 * @return {@link List} of absolute files
+	 * @throws IOException
+	 */
+	public List<File> getFiles(CatalogEntry entry) throws IOException {
+		File file = catalog.getFile(entry).getAbsoluteFile();
+		List<File> result = new ArrayList<File>();
+		if (file.getName().endsWith(TarSnapshot.CHAIN_SUFFIX)) {
+			if (file.isFile()) {
+				result.addAll(TarSnapshot.load(file).getFiles());
+			}
+			return result;
+		}
+		result.add(file);
+		for (String suffix : SUFFIXES) {
+			result.add(new File(file.getPath() + suffix));
+		}
+		result.add(ChunkManifest.getChunksFile(file));
+		if (CatalogEntry.TYPE_APP.equals(entry.type)) {
+			result.add(ApkStore.getApkListFile(file.getParentFile(), entry.name));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.retention;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.anddisa.remotebackup.catalog.CatalogEntry;
+
+/**
+ *
+ * decides which backups of a partition, mount point or package are kept:
+ * the latest backup of each of the last n days, weeks and months which have
+ * a backup, preferring verified backups. The latest backup and the latest
+ * verified backup are always kept.
+ *
+ */
+public class RetentionPolicy {
+
+	private final int daily;
+	private final int weekly;
+	private final int monthly;
+
+	/**
+	 * constructor
+	 *
+	 * @param daily {@link Integer} number of days to keep a backup of
+	 * @param weekly {@link Integer} number of weeks to keep a backup of
+	 * @param monthly {@link Integer} number of months to keep a backup of
+	 */
+	public RetentionPolicy(int daily, int weekly, int monthly) {
+		super();
+		this.daily = daily;
+		this.weekly = weekly;
+		this.monthly = monthly;
+	}
+
+	/**
+	 * parses a policy like "7d,4w,12m"; missing periods keep nothing
+	 *
+	 * @param spec {@link String} comma separated counts with unit d, w or m
+	 * @return {@link RetentionPolicy}
+	 * @throws IllegalArgumentException if the policy is invalid
+	 */
+	public static RetentionPolicy parse(String spec) {
+		int daily = 0;
+		int weekly = 0;
+		int monthly = 0;
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.length() < 2) {
+				throw new IllegalArgumentException("invalid retention policy: " + spec);
+			}
+			int count;
+			try {
+				count = Integer.parseInt(part.substring(0, part.length() - 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid retention policy: " + spec);
+			}
+			if (count < 0) {
+				throw new IllegalArgumentException("invalid retention policy: " + spec);
+			}
+			switch (part.charAt(part.length() - 1)) {
+			case 'd':
+				daily = count;
+				break;
+			case 'w':
+				weekly = count;
+				break;
+			case 'm':
+				monthly = count;
+				break;
+			default:
+				throw new IllegalArgumentException("invalid retention policy: " + spec);
+			}
+		}
+		return new RetentionPolicy(daily, weekly, monthly);
+	}
+
+	/**
+	 * gets the backups which are not kept
+	 *
+	 * @param entries {@link List} of the backups of one device and name, oldest first
+	 * @return {@link List} of expired entries, oldest first
+	 */
+	public List<CatalogEntry> getExpired(List<CatalogEntry> entries) {
+		if (entries.isEmpty()) {
+			return new ArrayList<CatalogEntry>();
+		}
+		Set<CatalogEntry> kept = new HashSet<CatalogEntry>();
+		kept.add(entries.get(entries.size() - 1));
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (entries.get(i).verified) {
+				kept.add(entries.get(i));
+				break;
+			}
+		}
+		keep(entries, Calendar.DAY_OF_MONTH, daily, kept);
+		keep(entries, Calendar.WEEK_OF_YEAR, weekly, kept);
+		keep(entries, Calendar.MONTH, monthly, kept);
+		List<CatalogEntry> result = new ArrayList<CatalogEntry>();
+		for (CatalogEntry entry : entries) {
+			if (!kept.contains(entry)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * keeps one backup of each of the latest periods having backups, the
+	 * latest verified one or the latest one if none is verified
+	 */
+	private static void keep(List<CatalogEntry> entries, int field, int count, Set<CatalogEntry> kept) {
+		int i = entries.size() - 1;
+		for (int periods = 0; periods < count && i >= 0; periods++) {
+			long period = getPeriod(entries.get(i).time, field);
+			CatalogEntry selected = null;
+			for (; i >= 0 && getPeriod(entries.get(i).time, field) == period; i--) {
+				CatalogEntry entry = entries.get(i);
+				if (selected == null || (entry.verified && !selected.verified)) {
+					selected = entry;
+				}
+			}
+			kept.add(selected);
+		}
+	}
+
+	/**
+	 * @return {@link Long} start of the day, week or month containing the time
+	 */
+	static long getPeriod(long time, int field) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		if (field == Calendar.WEEK_OF_YEAR) {
+			int days = (calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7;
+			calendar.add(Calendar.DAY_OF_MONTH, -days);
+		} else if (field == Calendar.MONTH) {
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		}
+		return calendar.getTimeInMillis();
+	}
+
+	@Override
+	public String toString() {
+		return daily + "d," + weekly + "w," + monthly + "m";
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.retention;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.apps.ApkStore;
+
+/**
+ *
+ * incremental mark and sweep of the shared {@link ApkStore}: the apk lists
+ * of the backup directories are marked one directory at a time, the marked
+ * directories and apks are appended to &lt;baseDir&gt;/gc.state, so a pass
+ * may be spread over several runs. Once all directories are marked, apks
+ * which are neither referenced nor touched since the pass started are
+ * deleted. Backups running meanwhile are not blocked: apks they add or
+ * reuse are newer than the start of the pass.
+ *
+ */
+public class StoreCollector {
+
+	public static final String STATE_FILE = "gc.state";
+
+	private static final String START = "start";
+	private static final String DIRECTORY = "dir";
+	private static final String APK = "apk";
+	private static final String APK_SUFFIX = ".apk";
+	private static final String PART_SUFFIX = ".apk.part";
+
+	/**
+	 * result of a collector run
+	 */
+	public static class Result {
+		public int marked = 0;
+		public int deleted = 0;
+		public long bytes = 0;
+		/** true if the pass completed, false if there are directories left */
+		public boolean complete = false;
+
+		@Override
+		public String toString() {
+			return marked + " directories marked, " + deleted + " apks deleted (" + bytes + " bytes)"
+					+ (complete ? ", pass complete" : ", to be continued");
+		}
+	}
+
+	private final File baseDir;
+	private final ApkStore store;
+
+	/**
+	 * constructor
+	 *
+	 * @param baseDir {@link File} base directory of the backups
+	 * @param store {@link ApkStore} shared by the backups
+	 */
+	public StoreCollector(File baseDir, ApkStore store) {
+		super();
+		this.baseDir = baseDir;
+		this.store = store;
+	}
+
+	/**
+	 * marks directories not yet marked in the current pass until the
+	 * deadline, sweeps the store if all are marked
+	 *
+	 * @param deadline {@link Long} time in milliseconds no further directory is marked after
+	 * @return {@link Result}
+	 * @throws IOException
+	 */
+	public Result run(long deadline) throws IOException {
+		Result result = new Result();
+		File stateFile = new File(baseDir, STATE_FILE);
+		long start = 0;
+		Set<String> marked = new HashSet<String>();
+		Set<String> referenced = new HashSet<String>();
+		if (stateFile.isFile()) {
+			start = loadState(stateFile, marked, referenced);
+		}
+		if (start == 0) {
+			start = System.currentTimeMillis();
+			FileUtil.deleteFile(stateFile);
+			appendState(stateFile, START + "\t" + start + "\n");
+		}
+
+		for (File directory : findDirectories()) {
+			String path = getRelativePath(directory);
+			if (marked.contains(path)) {
+				continue;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				return result;
+			}
+			StringBuilder sb = new StringBuilder();
+			File[] lists = directory.listFiles();
+			if (lists != null) {
+				for (File list : lists) {
+					if (list.isFile() && list.getName().endsWith(ApkStore.APK_LIST_SUFFIX)) {
+						for (String md5 : ApkStore.loadApkList(list).values()) {
+							if (referenced.add(md5)) {
+								sb.append(APK).append('\t').append(md5).append('\n');
+							}
+						}
+					}
+				}
+			}
+			// the directory is recorded along with its apks, a line is never lost alone
+			sb.append(DIRECTORY).append('\t').append(path).append('\n');
+			appendState(stateFile, sb.toString());
+			result.marked++;
+		}
+
+		sweep(start, referenced, result);
+		FileUtil.deleteFile(stateFile);
+		result.complete = true;
+		return result;
+	}
+
+	private void sweep(long start, Set<String> referenced, Result result) {
+		File[] files = store.getDirectory().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			boolean garbage;
+			if (name.endsWith(PART_SUFFIX)) {
+				// left by an interrupted transfer
+				garbage = true;
+			} else if (name.endsWith(APK_SUFFIX)) {
+				garbage = !referenced.contains(name.substring(0, name.length() - APK_SUFFIX.length()));
+			} else {
+				garbage = false;
+			}
+			if (garbage && file.isFile() && file.lastModified() < start) {
+				long length = file.length();
+				if (file.delete()) {
+					result.deleted++;
+					result.bytes += length;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {@link List} of the directories below the base directory
+	 * (including it) except the store, sorted by path
+	 */
+	List<File> findDirectories() {
+		List<File> result = new ArrayList<File>();
+		findDirectories(baseDir, result);
+		return result;
+	}
+
+	private void findDirectories(File directory, List<File> result) {
+		if (directory.getAbsoluteFile().equals(store.getDirectory().getAbsoluteFile())) {
+			return;
+		}
+		result.add(directory);
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				findDirectories(file, result);
+			}
+		}
+	}
+
+	private String getRelativePath(File file) {
+		return baseDir.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+	}
+
+	/**
+	 * @return {@link Long} start of the pass, 0 if the state is unusable
+	 */
+	private static long loadState(File stateFile, Set<String> marked, Set<String> referenced) throws IOException {
+		long start = 0;
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+		try {
+			String line;
+			List<String> apks = new ArrayList<String>();
+			while ((line = br.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab <= 0) {
+					continue;
+				}
+				String type = line.substring(0, tab);
+				String value = line.substring(tab + 1);
+				if (START.equals(type)) {
+					try {
+						start = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				} else if (APK.equals(type)) {
+					apks.add(value);
+				} else if (DIRECTORY.equals(type)) {
+					// apks count once the directory they were found in is complete
+					referenced.addAll(apks);
+					apks.clear();
+					marked.add(value);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return start;
+	}
+
+	private static void appendState(File stateFile, String lines) throws IOException {
+		OutputStream os = new FileOutputStream(stateFile, true);
+		try {
+			os.write(lines.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.scrub;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.image.ChunkManifest;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * verifies the stored backups of a base directory again: every file with an
+ * md5 sum (&lt;file&gt;.md5) is hashed and compared, images with chunk sums
+ * (&lt;image&gt;.chunks) are verified chunk by chunk in parallel. Files are
+ * read memory mapped at a limited rate. The verified files are appended to
+ * &lt;baseDir&gt;/scrub.state, so a scrub pass may be spread over several
+ * runs; a completed pass is moved to scrub.last.
+ *
+ */
+public class BackupScrubber {
+
+	public static final String STATE_FILE = "scrub.state";
+	public static final String LAST_STATE_FILE = "scrub.last";
+
+	private static final String OK = "ok";
+	private static final String FAILED = "FAILED";
+	/** size of the memory mapped window */
+	private static final long MAP_SIZE = 64L * 1024 * 1024;
+	/** bytes hashed per rate limiter request */
+	private static final int SLICE_SIZE = 1024 * 1024;
+
+	/**
+	 * result of a scrub run
+	 */
+	public static class Result {
+		public int verified = 0;
+		public final List<String> failed = new ArrayList<String>();
+		public long bytes = 0;
+		/** true if the pass completed, false if there are files left */
+		public boolean complete = false;
+
+		@Override
+		public String toString() {
+			return verified + " files verified (" + bytes + " bytes), " + failed.size() + " failed" + (complete ? ", pass complete" : ", to be continued");
+		}
+	}
+
+	private final File baseDir;
+	private final int threads;
+	private final RateLimiter rateLimiter;
+
+	/**
+	 * constructor
+	 *
+	 * @param baseDir {@link File} base directory of the backups
+	 * @param threads {@link Integer} number of files / chunks hashed in parallel
+	 * @param rateLimiter {@link RateLimiter} limiting the read rate of all threads
+	 */
+	public BackupScrubber(File baseDir, int threads, RateLimiter rateLimiter) {
+		super();
+		this.baseDir = baseDir;
+		this.threads = Math.max(1, threads);
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * verifies files not yet verified in the current pass until the deadline
+	 *
+	 * @param deadline {@link Long} time in milliseconds no further file is started after
+	 * @return {@link Result}
+	 * @throws IOException
+	 */
+	public Result run(long deadline) throws IOException {
+		Result result = new Result();
+		File stateFile = new File(baseDir, STATE_FILE);
+		Set<String> done = loadState(stateFile);
+		List<File> targets = findTargets(baseDir);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// files in flight, in the order they were started
+		Map<File, List<Future<Boolean>>> running = new LinkedHashMap<File, List<Future<Boolean>>>();
+		boolean interrupted = false;
+		try {
+			for (File target : targets) {
+				if (done.contains(getRelativePath(target))) {
+					continue;
+				}
+				if (System.currentTimeMillis() > deadline) {
+					break;
+				}
+				running.put(target, submit(executor, target));
+				while (running.size() > threads) {
+					finish(running, result, stateFile);
+				}
+			}
+			while (!running.isEmpty()) {
+				finish(running, result, stateFile);
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} finally {
+			executor.shutdownNow();
+		}
+		if (interrupted) {
+			throw new IOException("scrub interrupted");
+		}
+
+		done = loadState(stateFile);
+		result.complete = true;
+		for (File target : targets) {
+			result.complete &= done.contains(getRelativePath(target));
+		}
+		if (result.complete && stateFile.isFile()) {
+			File lastStateFile = new File(baseDir, LAST_STATE_FILE);
+			FileUtil.deleteFile(lastStateFile);
+			if (!stateFile.renameTo(lastStateFile)) {
+				throw new IOException("cannot rename " + stateFile);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * finds the files having an md5 sum; hard linked copies (e.g. the volumes of
+	 * incremental backups) are verified once
+	 *
+	 * @param baseDir {@link File}
+	 * @return {@link List} of files, sorted by path
+	 */
+	public static List<File> findTargets(File baseDir) {
+		List<File> result = new ArrayList<File>();
+		Set<String> seen = new HashSet<String>();
+		findTargets(baseDir, result, seen);
+		return result;
+	}
+
+	private static void findTargets(File directory, List<File> result, Set<String> seen) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				findTargets(file, result, seen);
+			} else if (file.getName().endsWith(".md5")) {
+				File target = new File(file.getPath().substring(0, file.getPath().length() - 4));
+				// hard links share name, size and modification time
+				if (target.isFile() && seen.add(target.getName() + "/" + target.length() + "/" + target.lastModified())) {
+					result.add(target);
+				}
+			}
+		}
+	}
+
+	/**
+	 * submits the hashing of a file, split into parts if it has chunk sums
+	 */
+	private List<Future<Boolean>> submit(ExecutorService executor, final File target) throws IOException {
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		File chunksFile = ChunkManifest.getChunksFile(target);
+		if (chunksFile.isFile()) {
+			final ChunkManifest manifest = ChunkManifest.load(chunksFile);
+			if (manifest.getLength() == target.length()) {
+				int count = manifest.getChunkCount();
+				int parts = Math.min(threads, Math.max(1, count));
+				for (int i = 0; i < parts; i++) {
+					final int first = (int) ((long) count * i / parts);
+					final int last = (int) ((long) count * (i + 1) / parts);
+					futures.add(executor.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							return verifyChunks(target, manifest, first, last);
+						}
+					}));
+				}
+				return futures;
+			}
+		}
+		final String expected = MD5Utils.readMD5(target.getPath() + ".md5");
+		futures.add(executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				String md5 = MD5Utils.toHex(digest(target, 0, target.length()));
+				if (!md5.equals(expected)) {
+					System.err.println(target + "(" + md5 + ") <-> " + expected);
+					return false;
+				}
+				return true;
+			}
+		}));
+		return futures;
+	}
+
+	/**
+	 * waits for the oldest file in flight and records its result
+	 */
+	private void finish(Map<File, List<Future<Boolean>>> running, Result result, File stateFile) throws InterruptedException, IOException {
+		File target = running.keySet().iterator().next();
+		boolean ok = true;
+		for (Future<Boolean> future : running.remove(target)) {
+			try {
+				ok &= future.get();
+			} catch (ExecutionException e) {
+				System.err.println(target + ": " + e.getCause().getMessage());
+				ok = false;
+			}
+		}
+		String path = getRelativePath(target);
+		appendState(stateFile, (ok ? OK : FAILED) + "\t" + path);
+		result.verified++;
+		result.bytes += target.length();
+		if (!ok) {
+			result.failed.add(path);
+		}
+	}
+
+	private boolean verifyChunks(File image, ChunkManifest manifest, int first, int last) throws IOException, NoSuchAlgorithmException,
+			InterruptedException {
+		boolean result = true;
+		for (int i = first; i < last; i++) {
+			long offset = (long) i * manifest.getChunkSize();
+			long length = Math.min(manifest.getChunkSize(), manifest.getLength() - offset);
+			String md5 = MD5Utils.toHex(digest(image, offset, length));
+			if (!md5.equals(manifest.getDigests().get(i))) {
+				System.err.println(image + ": chunk " + i + " is corrupt");
+				result = false;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * hashes a part of a file, reading it memory mapped
+	 */
+	private byte[] digest(File file, long offset, long length) throws IOException, NoSuchAlgorithmException, InterruptedException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				long size = Math.min(MAP_SIZE, end - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+				while (buffer.hasRemaining()) {
+					int slice = Math.min(SLICE_SIZE, buffer.remaining());
+					rateLimiter.acquire(slice);
+					ByteBuffer part = buffer.slice();
+					part.limit(slice);
+					md.update(part);
+					buffer.position(buffer.position() + slice);
+				}
+				position += size;
+			}
+		} finally {
+			raf.close();
+		}
+		return md.digest();
+	}
+
+	private String getRelativePath(File file) {
+		return baseDir.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+	}
+
+	private static Set<String> loadState(File stateFile) throws IOException {
+		Set<String> result = new HashSet<String>();
+		if (!stateFile.isFile()) {
+			return result;
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					result.add(line.substring(tab + 1));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return result;
+	}
+
+	private static synchronized void appendState(File stateFile, String line) throws IOException {
+		OutputStream os = new FileOutputStream(stateFile, true);
+		try {
+			os.write((line + "\n").getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.scrub;
+
+/**
+ *
+ * limits the rate of bytes read by several threads together; a thread
+ * reading more than its share sleeps before it reads again
+ *
+ */
+public class RateLimiter {
+
+	private final long bytesPerSecond;
+	/** time the next read may start, in nanoseconds */
+	private long next = System.nanoTime();
+
+	/**
+	 * constructor
+	 *
+	 * @param bytesPerSecond {@link Long} maximum rate, 0 for no limit
+	 */
+	public RateLimiter(long bytesPerSecond) {
+		super();
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * waits until the bytes may be read
+	 *
+	 * @param bytes {@link Long} number of bytes to be read
+	 * @throws InterruptedException
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		if (bytesPerSecond <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			// idle time does not allow a burst later on
+			if (next < now) {
+				next = now;
+			}
+			wait = next - now;
+			next += bytes * 1000000000L / bytesPerSecond;
+		}
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.shell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import de.anddisa.adb.util.RunUtil;
+
+/**
+ *
+ * long lived (root) shell of a device: commands are written to the stdin
+ * of one <code>adb shell</code> and run one after another, so su and the adb
+ * session are set up once instead of per command. The output of each
+ * command is framed by a start and an end line carrying its exit code;
+ * the lines start with a control character and a random nonce, so neither
+ * the echo of the input nor ordinary output can be taken for them. A batch
+ * of commands is sent with a single write. Commands must not read stdin
+ * and are not meant for binary or large output, which still goes through
+ * separate shells. Each command runs in a subshell, so a syntax error or
+ * a change of directory does not affect the session. Once the session died
+ * it stays closed, callers fall back to separate shells.
+ *
+ */
+public class RootShell {
+
+	private static final String MARKER = "\u0001ART";
+
+	/**
+	 * output and exit code of a command
+	 */
+	public static class Result {
+		public final String output;
+		public final int exitCode;
+
+		public Result(String output, int exitCode) {
+			super();
+			this.output = output;
+			this.exitCode = exitCode;
+		}
+	}
+
+	private final Process process;
+	private final OutputStream stdin;
+	private final BufferedReader stdout;
+	private final String nonce = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+	private long nextId = 0;
+	private boolean alive = true;
+
+	/**
+	 * constructor
+	 *
+	 * @param process {@link Process} running a shell reading commands from stdin
+	 * @param setup {@link String} commands run first, e.g. to switch to root
+	 * @throws IOException
+	 */
+	RootShell(Process process, String setup) throws IOException {
+		super();
+		this.process = process;
+		this.stdin = process.getOutputStream();
+		this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		drain(process.getErrorStream());
+		// no echo, no prompts, no line discipline of the pty adb may allocate
+		write(setup + "busybox stty raw -echo 2>/dev/null; PS1=; PS2=\n");
+	}
+
+	/**
+	 * opens a root shell
+	 *
+	 * @param adbLocation {@link String} adb binary
+	 * @param serial {@link String} device serial
+	 * @param suNeeded {@link Boolean} true if adb does not run as root
+	 * @return {@link RootShell}
+	 * @throws IOException if no root shell could be opened
+	 */
+	public static RootShell open(String adbLocation, String serial, boolean suNeeded) throws IOException {
+		Process process = RunUtil.getDefault().runCmdInBackground(adbLocation, "-s", serial, "shell");
+		RootShell shell = new RootShell(process, suNeeded ? "exec su\n" : "");
+		Result id = shell.execute("id");
+		if (!id.output.contains("uid=0")) {
+			shell.close();
+			throw new IOException("no root shell: " + id.output.trim());
+		}
+		return shell;
+	}
+
+	public synchronized boolean isAlive() {
+		return alive;
+	}
+
+	/**
+	 * runs a command
+	 *
+	 * @param command {@link String} shell command
+	 * @return {@link Result}
+	 * @throws IOException if the session died, it is closed then
+	 */
+	public Result execute(String command) throws IOException {
+		List<Result> results = executeBatch(Collections.singletonList(command));
+		if (results.isEmpty()) {
+			throw new IOException("root shell closed");
+		}
+		return results.get(0);
+	}
+
+	/**
+	 * runs commands one after another, they are sent with one write
+	 *
+	 * @param commands {@link List} of shell commands
+	 * @return {@link List} of the results in the order of the commands; shorter
+	 * than the list of commands if the session died meanwhile, the first
+	 * missing command may have been started
+	 */
+	public synchronized List<Result> executeBatch(List<String> commands) {
+		final List<Result> results = new ArrayList<Result>();
+		if (!alive) {
+			return results;
+		}
+		long firstId = nextId;
+		final StringBuilder sb = new StringBuilder();
+		for (String command : commands) {
+			long id = nextId++;
+			sb.append("printf '\\001ART").append(nonce).append("+ ").append(id).append("\\n'; ( eval ").append(quote(command))
+					.append(" ) </dev/null 2>&1; printf '\\n\\001ART").append(nonce).append("- ").append(id).append(" %d\\n' $?\n");
+		}
+		// the shell may block on its output while reading the input, so it is written by another thread
+		final boolean[] written = { false };
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(sb.toString());
+					written[0] = true;
+				} catch (IOException e) {
+					// the reader sees the end of the output
+				}
+			}
+		});
+		writer.start();
+		try {
+			for (int i = 0; i < commands.size(); i++) {
+				results.add(read(firstId + i));
+			}
+		} catch (IOException e) {
+			close();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			close();
+		}
+		if (!written[0]) {
+			close();
+		}
+		return results;
+	}
+
+	/**
+	 * ends the session
+	 */
+	public synchronized void close() {
+		alive = false;
+		try {
+			stdin.close();
+		} catch (IOException e) {
+			// closed anyway
+		}
+		process.destroy();
+	}
+
+	private Result read(long id) throws IOException {
+		String start = MARKER + nonce + "+ " + id;
+		String end = MARKER + nonce + "- " + id + " ";
+		String line;
+		// anything before the start line is echo or output of the setup
+		do {
+			line = readLine();
+		} while (!line.endsWith(start));
+		StringBuilder output = new StringBuilder();
+		while (!(line = readLine()).startsWith(end)) {
+			output.append(line).append('\n');
+		}
+		// the end line is preceded by a line feed of its own
+		output.setLength(output.length() - 1);
+		try {
+			return new Result(output.toString(), Integer.parseInt(line.substring(end.length()).trim()));
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid end of output: " + line);
+		}
+	}
+
+	private String readLine() throws IOException {
+		String line = stdout.readLine();
+		if (line == null) {
+			throw new IOException("root shell closed");
+		}
+		return line;
+	}
+
+	private void write(String text) throws IOException {
+		stdin.write(text.getBytes("UTF-8"));
+		stdin.flush();
+	}
+
+	/**
+	 * @return {@link String} the text as single quoted shell word
+	 */
+	static String quote(String text) {
+		return "'" + text.replace("'", "'\\''") + "'";
+	}
+
+	private static void drain(final InputStream is) {
+		Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[1024];
+				try {
+					while (is.read(buffer) >= 0) {
+						// messages of adb itself
+					}
+				} catch (IOException e) {
+					// process ended
+				}
+			}
+		});
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * cheap listing of a file system (inode, size, mtime, mode and path of
+ * each entry) as produced by a single find / stat pass on the device,
+ * used to decide which files an incremental backup has to transfer
+ *
+ */
+public class FileManifest {
+
+	public static final String MANIFEST_SUFFIX = ".manifest";
+
+	/**
+	 * stat format understood by {@link #parse(String)}, the path is last
+	 * so that it may contain blanks
+	 */
+	public static final String STAT_FORMAT = "%i %s %Y %f %n";
+
+	private static final int S_IFMT = 0170000;
+	private static final int S_IFDIR = 0040000;
+	private static final int S_IFREG = 0100000;
+
+	/**
+	 * a single file system entry
+	 */
+	public static class Entry {
+		public final String path;
+		public final long inode;
+		public final long size;
+		public final long mtime;
+		public final int mode;
+
+		public Entry(String path, long inode, long size, long mtime, int mode) {
+			super();
+			this.path = path;
+			this.inode = inode;
+			this.size = size;
+			this.mtime = mtime;
+			this.mode = mode;
+		}
+
+		public boolean isDirectory() {
+			return (mode & S_IFMT) == S_IFDIR;
+		}
+
+		public boolean isFile() {
+			return (mode & S_IFMT) == S_IFREG;
+		}
+
+		/**
+		 * @param other {@link Entry} of an earlier backup
+		 * @return {@link Boolean} true if the file has to be transferred again
+		 */
+		public boolean isModified(Entry other) {
+			return inode != other.inode || size != other.size || mtime != other.mtime || mode != other.mode;
+		}
+
+		@Override
+		public String toString() {
+			return inode + " " + size + " " + mtime + " " + Integer.toHexString(mode) + " " + path;
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	public FileManifest() {
+		super();
+	}
+
+	/**
+	 * returns the manifest file belonging to a mount point backup
+	 *
+	 * @param directory {@link File} backup directory
+	 * @param name {@link String} name of the mount point
+	 * @return {@link File}
+	 */
+	public static File getManifestFile(File directory, String name) {
+		return new File(directory, name + MANIFEST_SUFFIX);
+	}
+
+	public void add(Entry entry) {
+		entries.put(entry.path, entry);
+	}
+
+	/**
+	 * removes an entry, the entries below a directory are kept
+	 *
+	 * @param path {@link String}
+	 */
+	public void remove(String path) {
+		entries.remove(TarIndex.normalize(path));
+	}
+
+	/**
+	 * removes an entry and, if it is a directory, all entries below it
+	 *
+	 * @param path {@link String}
+	 */
+	public void removeTree(String path) {
+		String normalized = TarIndex.normalize(path);
+		entries.remove(normalized);
+		String prefix = normalized + "/";
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * gets the directories which did not exist in an earlier manifest
+	 *
+	 * @param previous {@link FileManifest} of the earlier listing
+	 * @return {@link List} of new directory entries
+	 */
+	public List<Entry> getNewDirectories(FileManifest previous) {
+		List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.isDirectory() && !previous.entries.containsKey(entry.path)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param path {@link String}
+	 * @return {@link Entry} or null if unknown
+	 */
+	public Entry get(String path) {
+		return entries.get(TarIndex.normalize(path));
+	}
+
+	public Map<String, Entry> getEntries() {
+		return Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * gets the entries which are new or modified compared to an earlier
+	 * manifest; directories are returned as well, so that their mode and
+	 * owner are restored, they have to be tared with --no-recursion
+	 *
+	 * @param previous {@link FileManifest} of the earlier backup
+	 * @return {@link List} of changed entries, parents before their content
+	 */
+	public List<Entry> getChanged(FileManifest previous) {
+		List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			Entry old = previous.entries.get(entry.path);
+			if (old == null || entry.isModified(old)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * gets the paths which existed in an earlier manifest but do not exist anymore
+	 *
+	 * @param previous {@link FileManifest} of the earlier backup
+	 * @return {@link List} of deleted paths
+	 */
+	public List<String> getDeleted(FileManifest previous) {
+		List<String> result = new ArrayList<String>();
+		for (String path : previous.entries.keySet()) {
+			if (!entries.containsKey(path)) {
+				result.add(path);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * parses the output of <code>find ... | xargs stat -c {@link #STAT_FORMAT}</code>,
+	 * paths are normalized to tar archive paths
+	 *
+	 * @param statOutput {@link String}
+	 * @return {@link FileManifest}
+	 * @throws IOException
+	 */
+	public static FileManifest parse(String statOutput) throws IOException {
+		return parse(new BufferedReader(new StringReader(statOutput)));
+	}
+
+	private static FileManifest parse(BufferedReader br) throws IOException {
+		FileManifest manifest = new FileManifest();
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+			String[] split = line.split(" ", 5);
+			if (split.length != 5) {
+				continue;
+			}
+			try {
+				manifest.add(new Entry(TarIndex.normalize(split[4]), Long.parseLong(split[0]),
+						Long.parseLong(split[1]), Long.parseLong(split[2]), Integer.parseInt(split[3], 16)));
+			} catch (NumberFormatException e) {
+				// error messages of stat, e.g. for files deleted meanwhile
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * writes the manifest
+	 *
+	 * @param file {@link File}
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (Entry entry : entries.values()) {
+				w.write(entry.toString());
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * reads a manifest
+	 *
+	 * @param file {@link File}
+	 * @return {@link FileManifest}
+	 * @throws IOException
+	 */
+	public static FileManifest load(File file) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			return parse(br);
+		} finally {
+			br.close();
+		}
+	}
+}
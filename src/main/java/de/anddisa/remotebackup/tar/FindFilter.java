@@ -0,0 +1,172 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * include / exclude patterns and size / age predicates of a tar backup,
+ * translated into arguments of the device side find command, so files
+ * which are not wanted are neither read nor transferred. Patterns are
+ * find -path patterns, i.e. '*' also matches '/'; excluded directories
+ * are pruned.
+ *
+ */
+public class FindFilter {
+
+	private final List<String> includes = new ArrayList<String>();
+	private final List<String> excludes = new ArrayList<String>();
+	private long minSize = -1;
+	private long maxSize = -1;
+	private int maxAge = -1;
+
+	public FindFilter() {
+		super();
+	}
+
+	public void addInclude(String pattern) {
+		includes.add(toFindPattern(pattern));
+	}
+
+	public void addExclude(String pattern) {
+		excludes.add(toFindPattern(pattern));
+	}
+
+	/**
+	 * @param minSize {@link Long} minimum file size in bytes, -1 for none
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @param maxSize {@link Long} maximum file size in bytes, -1 for none
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param maxAge {@link Integer} only files modified within the last days, -1 for all
+	 */
+	public void setMaxAge(int maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @return {@link Boolean} true if no file is filtered
+	 */
+	public boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty() && minSize < 0 && maxSize < 0 && maxAge < 0;
+	}
+
+	/**
+	 * gets the find expression selecting the files, to be followed by an action
+	 * like -print
+	 *
+	 * @param filesOnly {@link Boolean} true to skip directories
+	 * @return {@link String} find expression, empty if nothing is filtered
+	 */
+	public String toExpression(boolean filesOnly) {
+		StringBuilder sb = new StringBuilder();
+		appendPrune(sb);
+		if (filesOnly) {
+			sb.append(" ! -type d");
+		}
+		appendPredicates(sb);
+		return sb.toString().trim();
+	}
+
+	/**
+	 * gets a command listing the entries of a tar stream below the roots, NUL
+	 * separated for tar --null --no-recursion -T -: the selected files and all
+	 * directories which are not excluded, so directories keep their attributes
+	 * and empty directories are restored
+	 *
+	 * @param roots {@link String} quoted directories to search
+	 * @return {@link String}
+	 */
+	public String toFindCommand(String roots) {
+		StringBuilder sb = new StringBuilder("busybox find ").append(roots);
+		appendPrune(sb);
+		StringBuilder predicates = new StringBuilder();
+		appendPredicates(predicates);
+		if (predicates.length() > 0) {
+			sb.append(" \\( -type d -o").append(predicates).append(" \\)");
+		}
+		return sb.append(" -print0").toString();
+	}
+
+	private void appendPrune(StringBuilder sb) {
+		if (!excludes.isEmpty()) {
+			appendAlternatives(sb, excludes, false);
+			sb.append(" -prune -o");
+		}
+	}
+
+	private void appendPredicates(StringBuilder sb) {
+		if (!includes.isEmpty()) {
+			appendAlternatives(sb, includes, true);
+		}
+		if (minSize > 0) {
+			// +N means more than N
+			sb.append(" -size +").append(minSize - 1).append('c');
+		}
+		if (maxSize >= 0) {
+			sb.append(" -size -").append(maxSize + 1).append('c');
+		}
+		if (maxAge >= 0) {
+			sb.append(" -mtime -").append(maxAge);
+		}
+	}
+
+	/**
+	 * quotes a path for the device shell
+	 *
+	 * @param path {@link String}
+	 * @return {@link String}
+	 */
+	public static String quote(String path) {
+		return "'" + path.replace("'", "'\\''") + "'";
+	}
+
+	private static void appendAlternatives(StringBuilder sb, List<String> patterns, boolean withContent) {
+		sb.append(" \\(");
+		for (int i = 0; i < patterns.size(); i++) {
+			if (i > 0) {
+				sb.append(" -o");
+			}
+			sb.append(" -path ").append(quote(patterns.get(i)));
+			if (withContent) {
+				// an included directory includes its content
+				sb.append(" -o -path ").append(quote(patterns.get(i) + "/*"));
+			}
+		}
+		sb.append(" \\)");
+	}
+
+	/**
+	 * patterns are given as archive paths, find works on absolute paths
+	 */
+	private static String toFindPattern(String pattern) {
+		String result = pattern.replace("**", "*");
+		while (result.endsWith("/") && result.length() > 1) {
+			result = result.substring(0, result.length() - 1);
+		}
+		return result.startsWith("/") || result.startsWith("*") ? result : "/" + result;
+	}
+}
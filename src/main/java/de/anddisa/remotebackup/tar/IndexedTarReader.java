@@ -0,0 +1,195 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * random access to the entries of a tar archive using its {@link TarIndex},
+ * i.e. single entries are read without scanning the archive
+ *
+ */
+public class IndexedTarReader {
+
+	private final File tarFile;
+	private final TarIndex index;
+
+	/**
+	 * constructor
+	 *
+	 * @param tarFile {@link File} the archive
+	 * @param index {@link TarIndex} of the archive
+	 */
+	public IndexedTarReader(File tarFile, TarIndex index) {
+		super();
+		this.tarFile = tarFile;
+		this.index = index;
+	}
+
+	/**
+	 * opens an archive, building its index if necessary
+	 *
+	 * @param tarFile {@link File}
+	 * @return {@link IndexedTarReader}
+	 * @throws IOException
+	 */
+	public static IndexedTarReader open(File tarFile) throws IOException {
+		return new IndexedTarReader(tarFile, TarIndex.loadOrBuild(tarFile));
+	}
+
+	public TarIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * copies the data of an entry to a stream
+	 *
+	 * @param entry {@link TarEntry}
+	 * @param os {@link OutputStream}
+	 * @throws IOException
+	 */
+	public void copyEntry(TarEntry entry, OutputStream os) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(tarFile, "r");
+		try {
+			copyEntry(raf, entry, os);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * extracts the entries matching the glob patterns
+	 *
+	 * @param destDir {@link File} directory to extract to
+	 * @param patterns {@link String} glob patterns
+	 * @return {@link List} of extracted entries
+	 * @throws IOException
+	 */
+	public List<TarEntry> extract(File destDir, String... patterns) throws IOException {
+		List<TarEntry> entries = index.find(patterns);
+		extract(entries, destDir);
+		return entries;
+	}
+
+	/**
+	 * extracts the given entries
+	 *
+	 * @param entries {@link List} of entries of this archive
+	 * @param destDir {@link File} directory to extract to
+	 * @throws IOException
+	 */
+	public void extract(List<TarEntry> entries, File destDir) throws IOException {
+		List<TarEntry> directories = new ArrayList<TarEntry>();
+		RandomAccessFile raf = new RandomAccessFile(tarFile, "r");
+		try {
+			for (TarEntry entry : entries) {
+				File target = getTargetFile(destDir, entry.getPath());
+				if (entry.isDirectory()) {
+					if (!target.isDirectory() && !target.mkdirs()) {
+						throw new IOException("cannot create directory " + target);
+					}
+					directories.add(entry);
+				} else if (entry.isFile()) {
+					writeEntry(raf, entry, target);
+				} else if (entry.type == TarEntry.TYPE_HARDLINK) {
+					TarEntry linked = index.get(entry.linkName);
+					if (linked == null || !linked.isFile()) {
+						System.err.println("skipping hard link to unknown entry: " + entry.name + " -> " + entry.linkName);
+						continue;
+					}
+					writeEntry(raf, linked, target);
+					applyAttributes(target, entry);
+				} else {
+					// symbolic links, devices and fifos cannot be created portably
+					System.err.println("skipping special file: " + entry);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		// directory times are set last, creating files changes them
+		for (int i = directories.size() - 1; i >= 0; i--) {
+			TarEntry entry = directories.get(i);
+			applyAttributes(getTargetFile(destDir, entry.getPath()), entry);
+		}
+	}
+
+	/**
+	 * resolves the local file for an archive path and refuses paths
+	 * leaving the destination directory
+	 *
+	 * @param destDir {@link File}
+	 * @param path {@link String}
+	 * @return {@link File}
+	 * @throws IOException
+	 */
+	public static File getTargetFile(File destDir, String path) throws IOException {
+		String normalized = TarIndex.normalize(path);
+		for (String segment : normalized.split("/")) {
+			if ("..".equals(segment)) {
+				throw new IOException("refusing to extract " + path);
+			}
+		}
+		return new File(destDir, normalized);
+	}
+
+	/**
+	 * sets permissions and modification time of an extracted file
+	 *
+	 * @param target {@link File}
+	 * @param entry {@link TarEntry}
+	 */
+	public static void applyAttributes(File target, TarEntry entry) {
+		target.setReadable((entry.mode & 0444) != 0, (entry.mode & 0044) == 0);
+		target.setWritable((entry.mode & 0222) != 0, (entry.mode & 0022) == 0);
+		target.setExecutable((entry.mode & 0111) != 0, (entry.mode & 0011) == 0);
+		target.setLastModified(entry.mtime * 1000);
+	}
+
+	private void writeEntry(RandomAccessFile raf, TarEntry entry, File target) throws IOException {
+		File parent = target.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("cannot create directory " + parent);
+		}
+		OutputStream os = new FileOutputStream(target);
+		try {
+			copyEntry(raf, entry, os);
+		} finally {
+			os.close();
+		}
+		applyAttributes(target, entry);
+	}
+
+	private static void copyEntry(RandomAccessFile raf, TarEntry entry, OutputStream os) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		raf.seek(entry.dataOffset);
+		long remaining = entry.size;
+		while (remaining > 0) {
+			int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0) {
+				throw new IOException("unexpected end of archive reading " + entry.name);
+			}
+			os.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+}
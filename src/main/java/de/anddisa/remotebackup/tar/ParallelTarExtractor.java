@@ -0,0 +1,334 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.tar.TarStreamParser.ITarEntryListener;
+import de.anddisa.remotebackup.utils.GlobUtils;
+
+/**
+ *
+ * extracts a tar stream while it is parsed: file bodies are handed to a pool
+ * of writers, each writer owns the files of a subset of the target directories,
+ * so the files of one directory are written by one thread in archive order.
+ * Directories are created in batches by the writers, their attributes are set
+ * once the archive is finished. As a listener of a {@link TarStreamParser} it
+ * extracts a backup while it is still being received; a failing extraction
+ * never throws from the listener methods, so it does not cancel the parser
+ * and the other listeners, the failure is reported by {@link #getFailure()}.
+ *
+ */
+public class ParallelTarExtractor implements ITarEntryListener {
+
+	/** maximum number of received bytes waiting to be written */
+	private static final int MAX_PENDING_BYTES = 32 * 1024 * 1024;
+	/** number of directory entries collected before they are created */
+	private static final int DIRECTORY_BATCH_SIZE = 256;
+
+	private final File destDir;
+	private final List<Pattern> patterns = new ArrayList<Pattern>();
+	private final ExecutorService[] writers;
+	private final Semaphore pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+	private final List<TarEntry> directories = new ArrayList<TarEntry>();
+	private final List<File> directoryBatch = new ArrayList<File>();
+	private final List<TarEntry> hardLinks = new ArrayList<TarEntry>();
+	private final Set<String> selectedDirectories = new HashSet<String>();
+	private volatile IOException failure = null;
+	private FileJob current = null;
+	private int extracted = 0;
+
+	/**
+	 * a file written by one of the writers
+	 */
+	private class FileJob {
+		final TarEntry entry;
+		final File target;
+		OutputStream os;
+
+		FileJob(TarEntry entry, File target) {
+			this.entry = entry;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param destDir {@link File} directory to extract to
+	 * @param writerCount {@link Integer} number of writer threads
+	 * @param patterns {@link String} glob patterns of the entries to extract, all if none are passed
+	 */
+	public ParallelTarExtractor(File destDir, int writerCount, String... patterns) {
+		super();
+		this.destDir = destDir;
+		for (String pattern : patterns) {
+			this.patterns.add(GlobUtils.compile(TarIndex.normalize(pattern)));
+		}
+		this.writers = new ExecutorService[Math.max(1, writerCount)];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = Executors.newSingleThreadExecutor();
+		}
+	}
+
+	/**
+	 * extracts a tar file reading it once
+	 *
+	 * @param tarFile {@link File}
+	 * @param destDir {@link File} directory to extract to
+	 * @param writerCount {@link Integer} number of writer threads
+	 * @param patterns {@link String} glob patterns of the entries to extract, all if none are passed
+	 * @return {@link Integer} number of extracted entries
+	 * @throws IOException
+	 */
+	public static int extract(File tarFile, File destDir, int writerCount, String... patterns) throws IOException {
+		ParallelTarExtractor extractor = new ParallelTarExtractor(destDir, writerCount, patterns);
+		TarStreamParser parser = new TarStreamParser();
+		parser.addListener(extractor);
+		InputStream is = new BufferedInputStream(new FileInputStream(tarFile), 256 * 1024);
+		try {
+			parser.parse(is);
+		} finally {
+			is.close();
+			extractor.shutdown();
+		}
+		if (extractor.getFailure() != null) {
+			throw extractor.getFailure();
+		}
+		return extractor.getExtractedCount();
+	}
+
+	/**
+	 * @return {@link Integer} number of extracted entries
+	 */
+	public int getExtractedCount() {
+		return extracted;
+	}
+
+	/**
+	 * @return {@link IOException} the first failure of the extraction, null if
+	 * there was none; call it after {@link #shutdown()}
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	public void entryStarted(TarEntry entry) throws IOException {
+		if (failure != null) {
+			return;
+		}
+		String path = entry.getPath();
+		if (!isSelected(path)) {
+			return;
+		}
+		if (entry.isDirectory()) {
+			selectedDirectories.add(path);
+		}
+		final File target = IndexedTarReader.getTargetFile(destDir, path);
+		if (entry.isDirectory()) {
+			directories.add(entry);
+			directoryBatch.add(target);
+			if (directoryBatch.size() >= DIRECTORY_BATCH_SIZE) {
+				flushDirectories();
+			}
+		} else if (entry.isFile()) {
+			current = new FileJob(entry, target);
+			final FileJob job = current;
+			getWriter(target).execute(new Runnable() {
+				@Override
+				public void run() {
+					if (failure != null) {
+						return;
+					}
+					try {
+						File parent = job.target.getParentFile();
+						if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+							throw new IOException("cannot create directory " + parent);
+						}
+						job.os = new FileOutputStream(job.target);
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+			});
+		} else if (entry.type == TarEntry.TYPE_HARDLINK) {
+			// the linked file may still be written by another writer
+			hardLinks.add(entry);
+		} else {
+			System.err.println("skipping special file: " + entry);
+			return;
+		}
+		extracted++;
+	}
+
+	public void entryData(TarEntry entry, byte[] data, int offset, int length) throws IOException {
+		if (current == null || current.entry != entry) {
+			return;
+		}
+		final FileJob job = current;
+		final byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+		pendingBytes.acquireUninterruptibly(chunk.length);
+		getWriter(job.target).execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (failure == null && job.os != null) {
+						job.os.write(chunk);
+					}
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					pendingBytes.release(chunk.length);
+				}
+			}
+		});
+	}
+
+	public void entryFinished(TarEntry entry) throws IOException {
+		if (current == null || current.entry != entry) {
+			return;
+		}
+		final FileJob job = current;
+		current = null;
+		getWriter(job.target).execute(new Runnable() {
+			@Override
+			public void run() {
+				if (job.os == null) {
+					return;
+				}
+				try {
+					job.os.close();
+					IndexedTarReader.applyAttributes(job.target, job.entry);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		});
+	}
+
+	public void archiveFinished(long length) throws IOException {
+		flushDirectories();
+		try {
+			shutdown();
+			if (failure != null) {
+				return;
+			}
+			finish();
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	private void finish() throws IOException {
+		for (TarEntry entry : hardLinks) {
+			File linked = IndexedTarReader.getTargetFile(destDir, entry.linkName);
+			File target = IndexedTarReader.getTargetFile(destDir, entry.getPath());
+			if (!linked.isFile()) {
+				System.err.println("skipping hard link to unknown entry: " + entry.name + " -> " + entry.linkName);
+				continue;
+			}
+			FileUtil.copyFile(linked, target);
+			IndexedTarReader.applyAttributes(target, entry);
+		}
+		// directory times are set last, creating files changes them
+		for (int i = directories.size() - 1; i >= 0; i--) {
+			TarEntry entry = directories.get(i);
+			IndexedTarReader.applyAttributes(IndexedTarReader.getTargetFile(destDir, entry.getPath()), entry);
+		}
+	}
+
+	/**
+	 * waits for all writers to finish, may be called more than once
+	 *
+	 * @throws IOException
+	 */
+	public void shutdown() throws IOException {
+		for (ExecutorService writer : writers) {
+			writer.shutdown();
+		}
+		try {
+			for (ExecutorService writer : writers) {
+				while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+					// files are still written
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("extraction interrupted");
+		}
+	}
+
+	private void flushDirectories() throws IOException {
+		if (directoryBatch.isEmpty()) {
+			return;
+		}
+		final List<File> batch = new ArrayList<File>(directoryBatch);
+		directoryBatch.clear();
+		// created by the first writer before any of its later files
+		writers[0].execute(new Runnable() {
+			@Override
+			public void run() {
+				for (File directory : batch) {
+					if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+						failure = new IOException("cannot create directory " + directory);
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	private ExecutorService getWriter(File target) {
+		String parent = target.getParent();
+		int hash = parent != null ? parent.hashCode() : 0;
+		return writers[(hash & 0x7fffffff) % writers.length];
+	}
+
+	private boolean isSelected(String path) {
+		if (patterns.isEmpty()) {
+			return true;
+		}
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		// content of a selected directory
+		int slash = path.lastIndexOf('/');
+		while (slash > 0) {
+			if (selectedDirectories.contains(path.substring(0, slash))) {
+				return true;
+			}
+			slash = path.lastIndexOf('/', slash - 1);
+		}
+		return false;
+	}
+}
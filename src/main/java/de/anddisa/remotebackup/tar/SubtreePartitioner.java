@@ -0,0 +1,111 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * splits the top level entries of a directory into groups of about the same
+ * size, so that each group can be tared by its own stream
+ *
+ */
+public class SubtreePartitioner {
+
+	private SubtreePartitioner() {
+	}
+
+	/**
+	 * parses the output of <code>du -k -a -d 1 &lt;root&gt;</code>
+	 *
+	 * @param duOutput {@link String}
+	 * @param root {@link String} directory passed to du, its own line is skipped
+	 * @return {@link Map} path to size in KB of the top level entries
+	 * @throws IOException
+	 */
+	public static Map<String, Long> parseDu(String duOutput, String root) throws IOException {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		String normalizedRoot = TarIndex.normalize(root);
+		BufferedReader br = new BufferedReader(new StringReader(duOutput));
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+			int tab = line.indexOf('\t');
+			if (tab < 0) {
+				continue;
+			}
+			String path = line.substring(tab + 1);
+			if (TarIndex.normalize(path).equals(normalizedRoot)) {
+				continue;
+			}
+			try {
+				result.put(path, Long.parseLong(line.substring(0, tab).trim()));
+			} catch (NumberFormatException e) {
+				// error messages of du
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * distributes the entries to groups, the largest entry is always added
+	 * to the currently smallest group
+	 *
+	 * @param sizes {@link Map} path to size
+	 * @param groupCount {@link Integer} maximum number of groups
+	 * @return {@link List} of non empty groups
+	 */
+	public static List<List<String>> partition(final Map<String, Long> sizes, int groupCount) {
+		List<String> paths = new ArrayList<String>(sizes.keySet());
+		Collections.sort(paths, new Comparator<String>() {
+			@Override
+			public int compare(String p1, String p2) {
+				return sizes.get(p2).compareTo(sizes.get(p1));
+			}
+		});
+		int count = Math.max(1, Math.min(groupCount, paths.size()));
+		List<List<String>> groups = new ArrayList<List<String>>(count);
+		long[] groupSizes = new long[count];
+		for (int i = 0; i < count; i++) {
+			groups.add(new ArrayList<String>());
+		}
+		for (String path : paths) {
+			int smallest = 0;
+			for (int i = 1; i < count; i++) {
+				if (groupSizes[i] < groupSizes[smallest]) {
+					smallest = i;
+				}
+			}
+			groups.get(smallest).add(path);
+			groupSizes[smallest] += sizes.get(path);
+		}
+		for (int i = groups.size() - 1; i >= 0; i--) {
+			if (groups.get(i).isEmpty()) {
+				groups.remove(i);
+			}
+		}
+		return groups;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ *
+ * writes a new tar stream entry by entry (ustar headers, gnu long name
+ * entries for names and link names exceeding 100 bytes, gnu base-256
+ * numbers for sizes exceeding the octal field), as read by
+ * {@link TarStreamParser}
+ *
+ */
+public class TarArchiveWriter {
+
+	private final OutputStream os;
+	private TarEntry current = null;
+	private long remaining = 0;
+	private long length = 0;
+
+	public TarArchiveWriter(OutputStream os) {
+		super();
+		this.os = os;
+	}
+
+	/**
+	 * writes the header of an entry; the data of a file is written by
+	 * {@link #write(byte[], int, int)} followed by {@link #closeEntry()}
+	 *
+	 * @param entry {@link TarEntry} name, type, mode, uid, gid, size, mtime and link name
+	 * @throws IOException
+	 */
+	public void putEntry(TarEntry entry) throws IOException {
+		if (current != null) {
+			throw new IOException("entry " + current.name + " not closed");
+		}
+		byte[] name = entry.name.getBytes("UTF-8");
+		if (name.length > 100) {
+			writeLongName('L', name);
+		}
+		byte[] linkName = entry.linkName != null ? entry.linkName.getBytes("UTF-8") : new byte[0];
+		if (linkName.length > 100) {
+			writeLongName('K', linkName);
+		}
+		long size = entry.getDataSize();
+		writeHeader(name, linkName, entry.type, entry.mode, entry.uid, entry.gid, size, entry.mtime);
+		current = entry;
+		remaining = size;
+	}
+
+	/**
+	 * writes data of the current entry
+	 *
+	 * @param b byte array
+	 * @param offset {@link Integer}
+	 * @param count {@link Integer}
+	 * @throws IOException if more data than the size of the entry is written
+	 */
+	public void write(byte[] b, int offset, int count) throws IOException {
+		if (current == null || count > remaining) {
+			throw new IOException("data exceeds the size of the entry");
+		}
+		os.write(b, offset, count);
+		remaining -= count;
+		length += count;
+	}
+
+	/**
+	 * finishes the current entry by padding its data to a full block
+	 *
+	 * @throws IOException if less data than the size of the entry was written
+	 */
+	public void closeEntry() throws IOException {
+		if (current == null) {
+			return;
+		}
+		if (remaining > 0) {
+			throw new IOException("entry " + current.name + " is " + remaining + " bytes short");
+		}
+		int padding = (int) TarStreamParser.getPadding(current.getDataSize());
+		os.write(new byte[padding]);
+		length += padding;
+		current = null;
+	}
+
+	/**
+	 * writes the end of archive marker, the stream is not closed
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		closeEntry();
+		os.write(new byte[2 * TarStreamParser.BLOCK_SIZE]);
+		length += 2 * TarStreamParser.BLOCK_SIZE;
+		os.flush();
+	}
+
+	/**
+	 * @return {@link Long} number of bytes written so far
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	private void writeLongName(char type, byte[] name) throws IOException {
+		writeHeader("././@LongLink".getBytes("UTF-8"), new byte[0], type, 0, 0, 0, name.length + 1, 0);
+		byte[] data = new byte[name.length + 1];
+		System.arraycopy(name, 0, data, 0, name.length);
+		os.write(data);
+		int padding = (int) TarStreamParser.getPadding(data.length);
+		os.write(new byte[padding]);
+		length += data.length + padding;
+	}
+
+	private void writeHeader(byte[] name, byte[] linkName, char type, int mode, int uid, int gid, long size, long mtime) throws IOException {
+		byte[] header = new byte[TarStreamParser.BLOCK_SIZE];
+		System.arraycopy(name, 0, header, 0, Math.min(100, name.length));
+		putNumber(header, 100, 8, mode);
+		putNumber(header, 108, 8, uid);
+		putNumber(header, 116, 8, gid);
+		putNumber(header, 124, 12, size);
+		putNumber(header, 136, 12, mtime);
+		header[156] = (byte) type;
+		System.arraycopy(linkName, 0, header, 157, Math.min(100, linkName.length));
+		System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+		long checksum = 0;
+		for (int i = 0; i < header.length; i++) {
+			checksum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+		}
+		byte[] digits = String.format("%06o", checksum).getBytes("US-ASCII");
+		System.arraycopy(digits, 0, header, 148, 6);
+		header[154] = 0;
+		header[155] = ' ';
+		os.write(header);
+		length += header.length;
+	}
+
+	/**
+	 * writes an octal number terminated by NUL, or a gnu base-256 number if
+	 * it does not fit
+	 */
+	private static void putNumber(byte[] header, int offset, int length, long value) throws IOException {
+		String octal = Long.toOctalString(value);
+		if (value >= 0 && octal.length() < length) {
+			byte[] digits = octal.getBytes("US-ASCII");
+			int pad = length - 1 - digits.length;
+			for (int i = 0; i < pad; i++) {
+				header[offset + i] = '0';
+			}
+			System.arraycopy(digits, 0, header, offset + pad, digits.length);
+			header[offset + length - 1] = 0;
+			return;
+		}
+		long v = value;
+		for (int i = offset + length - 1; i > offset; i--) {
+			header[i] = (byte) v;
+			v >>>= 8;
+		}
+		header[offset] = (byte) 0x80;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * consolidates the chain of an incremental tar backup into a synthetic full
+ * backup: the latest version of every path not deleted is copied from the
+ * volumes, header and data blocks as they are, into a single volume. The
+ * volumes are read in chain order, each one sequentially. Index, digest
+ * manifest and md5 sum are created in the same pass; the file digests are
+ * checked against the digest manifests of the volumes before the chain is
+ * replaced.
+ *
+ */
+public class TarConsolidator {
+
+	public static final String FULL_SUFFIX = ".full.tar";
+
+	private TarConsolidator() {
+	}
+
+	/**
+	 * consolidates a chain; the volumes of the chain are removed from its
+	 * directory, the hard links in other snapshot directories are kept
+	 *
+	 * @param chainFile {@link File} &lt;name&gt;.chain
+	 * @return {@link TarSnapshot} consolidated snapshot, the loaded one if it has a single volume
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static TarSnapshot consolidate(File chainFile) throws IOException, NoSuchAlgorithmException {
+		TarSnapshot snapshot = TarSnapshot.load(chainFile);
+		if (snapshot.getVolumes().size() <= 1) {
+			return snapshot;
+		}
+		File directory = snapshot.getDirectory();
+		String volume = snapshot.getName() + "." + directory.getName() + FULL_SUFFIX;
+		File target = new File(directory, volume);
+
+		List<List<TarEntry>> byVolume = new ArrayList<List<TarEntry>>();
+		for (int i = 0; i < snapshot.getVolumes().size(); i++) {
+			byVolume.add(new ArrayList<TarEntry>());
+		}
+		Map<String, TarSnapshot.Member> members = snapshot.resolve();
+		for (TarSnapshot.Member member : members.values()) {
+			byVolume.get(member.volume).add(member.entry);
+		}
+
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		TarStreamParser parser = new TarStreamParser();
+		TarDigestManifest digests = new TarDigestManifest(TarDigestManifest.getManifestFile(target));
+		parser.addListener(new TarIndexer(TarIndex.getIndexFile(target)));
+		parser.addListener(digests);
+		byte[] buffer = new byte[64 * 1024];
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(target));
+		try {
+			for (int i = 0; i < byVolume.size(); i++) {
+				List<TarEntry> entries = byVolume.get(i);
+				Collections.sort(entries, new Comparator<TarEntry>() {
+					@Override
+					public int compare(TarEntry e1, TarEntry e2) {
+						return e1.headerOffset < e2.headerOffset ? -1 : (e1.headerOffset == e2.headerOffset ? 0 : 1);
+					}
+				});
+				RandomAccessFile raf = new RandomAccessFile(snapshot.getVolumeFile(i), "r");
+				try {
+					for (TarEntry entry : entries) {
+						long dataSize = entry.getDataSize();
+						long remaining = entry.dataOffset + dataSize + TarStreamParser.getPadding(dataSize) - entry.headerOffset;
+						raf.seek(entry.headerOffset);
+						while (remaining > 0) {
+							int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+							if (read < 0) {
+								throw new IOException("unexpected end of archive " + snapshot.getVolumeFile(i));
+							}
+							TarMerger.write(os, md, parser, buffer, read);
+							remaining -= read;
+						}
+					}
+				} finally {
+					raf.close();
+				}
+			}
+			byte[] end = new byte[2 * TarStreamParser.BLOCK_SIZE];
+			TarMerger.write(os, md, parser, end, end.length);
+		} finally {
+			os.close();
+		}
+		parser.close();
+		FileUtil.writeToFile(MD5Utils.toHex(md.digest()) + "  " + target.getName() + "\n", new File(target.getPath() + ".md5"));
+
+		List<String> differences = verify(snapshot, byVolume, digests);
+		if (!differences.isEmpty()) {
+			for (String difference : differences) {
+				System.err.println(difference);
+			}
+			throw new IOException("consolidated archive " + target + " does not match the volumes");
+		}
+
+		// the chain file is replaced last, until then the old chain is complete
+		List<File> oldFiles = snapshot.getFiles();
+		TarSnapshot result = new TarSnapshot(directory, snapshot.getName());
+		result.addVolume(volume);
+		result.save();
+		Set<File> newFiles = new HashSet<File>(result.getFiles());
+		for (File file : oldFiles) {
+			if (!newFiles.contains(file)) {
+				FileUtil.deleteFile(file);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * compares the digests of the copied files with the digest manifests of
+	 * the volumes they were copied from, if there are any
+	 */
+	private static List<String> verify(TarSnapshot snapshot, List<List<TarEntry>> byVolume, TarDigestManifest digests) throws IOException {
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < byVolume.size(); i++) {
+			File manifestFile = TarDigestManifest.getManifestFile(snapshot.getVolumeFile(i));
+			if (!manifestFile.isFile()) {
+				continue;
+			}
+			Map<String, String> expected = TarDigestManifest.load(manifestFile).getDigests();
+			for (TarEntry entry : byVolume.get(i)) {
+				String digest = expected.get(entry.getPath());
+				if (digest != null && !digest.equals(digests.getDigests().get(entry.getPath()))) {
+					result.add("changed: " + entry.getPath());
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.anddisa.remotebackup.tar.TarStreamParser.ITarEntryListener;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * md5 digests of all files of a tar archive, calculated while the tar stream
+ * is parsed and stored in md5sum format next to the archive as &lt;archive&gt;.md5s
+ *
+ */
+public class TarDigestManifest implements ITarEntryListener {
+
+	public static final String MANIFEST_SUFFIX = ".md5s";
+
+	private final Map<String, String> digests = new LinkedHashMap<String, String>();
+	private final File manifestFile;
+	private MessageDigest md;
+
+	/**
+	 * constructor, the manifest is kept in memory only
+	 *
+	 * @throws NoSuchAlgorithmException
+	 */
+	public TarDigestManifest() throws NoSuchAlgorithmException {
+		this((File) null);
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param manifestFile {@link File} the manifest is written to at the end of the archive
+	 * @throws NoSuchAlgorithmException
+	 */
+	public TarDigestManifest(File manifestFile) throws NoSuchAlgorithmException {
+		super();
+		this.manifestFile = manifestFile;
+		this.md = MessageDigest.getInstance("MD5");
+	}
+
+	TarDigestManifest(Map<String, String> digests) {
+		super();
+		this.manifestFile = null;
+		this.digests.putAll(digests);
+	}
+
+	/**
+	 * returns the manifest file belonging to a tar file
+	 *
+	 * @param tarFile {@link File}
+	 * @return {@link File}
+	 */
+	public static File getManifestFile(File tarFile) {
+		return new File(tarFile.getPath() + MANIFEST_SUFFIX);
+	}
+
+	/**
+	 * @return {@link Map} path to md5 sum of all files
+	 */
+	public Map<String, String> getDigests() {
+		return Collections.unmodifiableMap(digests);
+	}
+
+	public void entryStarted(TarEntry entry) {
+		if (entry.isFile()) {
+			md.reset();
+		}
+	}
+
+	public void entryData(TarEntry entry, byte[] data, int offset, int length) {
+		md.update(data, offset, length);
+	}
+
+	public void entryFinished(TarEntry entry) {
+		if (entry.isFile()) {
+			digests.put(entry.getPath(), MD5Utils.toHex(md.digest()));
+		}
+	}
+
+	public void archiveFinished(long length) throws IOException {
+		if (manifestFile != null) {
+			save(manifestFile);
+		}
+	}
+
+	/**
+	 * gets a manifest containing the given paths only
+	 *
+	 * @param paths {@link Collection} of paths to keep
+	 * @return {@link TarDigestManifest}
+	 */
+	public TarDigestManifest retain(Collection<String> paths) {
+		Map<String, String> retained = new LinkedHashMap<String, String>();
+		for (String path : paths) {
+			String digest = digests.get(TarIndex.normalize(path));
+			if (digest != null) {
+				retained.put(TarIndex.normalize(path), digest);
+			}
+		}
+		return new TarDigestManifest(retained);
+	}
+
+	/**
+	 * compares this manifest to another one
+	 *
+	 * @param other {@link TarDigestManifest} e.g. computed on the device
+	 * @return {@link List} of differences, one line per file, empty if both are equal
+	 */
+	public List<String> diff(TarDigestManifest other) {
+		List<String> result = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : digests.entrySet()) {
+			String otherDigest = other.digests.get(entry.getKey());
+			if (otherDigest == null) {
+				result.add("missing: " + entry.getKey());
+			} else if (!otherDigest.equals(entry.getValue())) {
+				result.add("changed: " + entry.getKey());
+			}
+		}
+		for (String path : other.digests.keySet()) {
+			if (!digests.containsKey(path)) {
+				result.add("new: " + path);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * writes the manifest in md5sum format
+	 *
+	 * @param file {@link File}
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (Map.Entry<String, String> entry : digests.entrySet()) {
+				w.write(entry.getValue());
+				w.write("  ");
+				w.write(entry.getKey());
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * reads a manifest in md5sum format
+	 *
+	 * @param file {@link File}
+	 * @return {@link TarDigestManifest}
+	 * @throws IOException
+	 */
+	public static TarDigestManifest load(File file) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			return parse(br);
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * parses md5sum output, e.g. of a device side md5sum run; paths are
+	 * normalized to tar archive paths
+	 *
+	 * @param md5sumOutput {@link String}
+	 * @return {@link TarDigestManifest}
+	 * @throws IOException
+	 */
+	public static TarDigestManifest parse(String md5sumOutput) throws IOException {
+		return parse(new BufferedReader(new StringReader(md5sumOutput)));
+	}
+
+	private static TarDigestManifest parse(BufferedReader br) throws IOException {
+		Map<String, String> digests = new LinkedHashMap<String, String>();
+		String line;
+		while ((line = br.readLine()) != null) {
+			line = line.trim();
+			int split = line.indexOf("  ");
+			if (line.length() < 35 || split != 32) {
+				continue;
+			}
+			digests.put(TarIndex.normalize(line.substring(34)), line.substring(0, 32));
+		}
+		return new TarDigestManifest(digests);
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+/**
+ *
+ * a single entry (file, directory, link, ...) of a tar archive together
+ * with its position within the archive
+ *
+ */
+public class TarEntry {
+
+	public static final char TYPE_FILE = '0';
+	public static final char TYPE_OLD_FILE = '\0';
+	public static final char TYPE_HARDLINK = '1';
+	public static final char TYPE_SYMLINK = '2';
+	public static final char TYPE_CHAR_DEVICE = '3';
+	public static final char TYPE_BLOCK_DEVICE = '4';
+	public static final char TYPE_DIRECTORY = '5';
+	public static final char TYPE_FIFO = '6';
+	public static final char TYPE_CONTIGUOUS = '7';
+
+	public String name;
+	public String linkName;
+	public int mode;
+	public int uid;
+	public int gid;
+	public long size;
+	public long mtime;
+	public char type;
+	/** offset of the (first) header block of the entry within the archive */
+	public long headerOffset;
+	/** offset of the first data byte of the entry within the archive */
+	public long dataOffset;
+
+	public TarEntry() {
+		super();
+	}
+
+	/**
+	 * @return {@link Boolean} true if the entry carries file data
+	 */
+	public boolean isFile() {
+		return type == TYPE_FILE || type == TYPE_OLD_FILE || type == TYPE_CONTIGUOUS;
+	}
+
+	/**
+	 * @return {@link Boolean} true if the entry is a directory
+	 */
+	public boolean isDirectory() {
+		return type == TYPE_DIRECTORY || (type == TYPE_OLD_FILE && name.endsWith("/"));
+	}
+
+	/**
+	 * @return {@link Long} number of data bytes following the header, links,
+	 * directories, devices and fifos carry no data whatever their size field says
+	 */
+	public long getDataSize() {
+		return (type >= TYPE_HARDLINK && type <= TYPE_FIFO) ? 0 : size;
+	}
+
+	/**
+	 * @return {@link String} name of the entry without trailing slash
+	 */
+	public String getPath() {
+		String path = name;
+		while (path.endsWith("/") && path.length() > 1) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%c %06o %12d %d %s", type == TYPE_OLD_FILE ? TYPE_FILE : type, mode, size, mtime, name);
+	}
+}
@@ -0,0 +1,318 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import de.anddisa.remotebackup.utils.GlobUtils;
+
+/**
+ *
+ * side index of a tar archive, i.e. path, offsets, size, mode and mtime of
+ * each entry, stored next to the archive as &lt;archive&gt;.idx
+ *
+ */
+public class TarIndex {
+
+	public static final String INDEX_SUFFIX = ".idx";
+	private static final String HEADER = "# art tar index 1";
+
+	private final List<TarEntry> entries = new ArrayList<TarEntry>();
+	private long archiveLength = -1;
+
+	public TarIndex() {
+		super();
+	}
+
+	public void add(TarEntry entry) {
+		entries.add(entry);
+	}
+
+	public List<TarEntry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	public long getArchiveLength() {
+		return archiveLength;
+	}
+
+	public void setArchiveLength(long archiveLength) {
+		this.archiveLength = archiveLength;
+	}
+
+	/**
+	 * @return {@link Long} offset of the end of the last entry, i.e. the length
+	 * of the archive without the end of archive marker
+	 */
+	public long getContentLength() {
+		if (entries.isEmpty()) {
+			return 0;
+		}
+		TarEntry last = entries.get(entries.size() - 1);
+		long dataSize = last.getDataSize();
+		return last.dataOffset + dataSize + TarStreamParser.getPadding(dataSize);
+	}
+
+	/**
+	 * returns the index file belonging to a tar file
+	 *
+	 * @param tarFile {@link File}
+	 * @return {@link File}
+	 */
+	public static File getIndexFile(File tarFile) {
+		return new File(tarFile.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * looks up the last entry with the given path
+	 *
+	 * @param path {@link String}
+	 * @return {@link TarEntry} or null if not found
+	 */
+	public TarEntry get(String path) {
+		String normalized = normalize(path);
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (entries.get(i).getPath().equals(normalized)) {
+				return entries.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * finds all entries matching one of the glob patterns; if a pattern
+	 * matches a directory, all entries below that directory are included
+	 *
+	 * @param patterns {@link String} glob patterns
+	 * @return {@link List} of matching entries in archive order
+	 */
+	public List<TarEntry> find(String... patterns) {
+		List<Pattern> compiled = new ArrayList<Pattern>();
+		for (String pattern : patterns) {
+			compiled.add(GlobUtils.compile(normalize(pattern)));
+		}
+		List<String> directories = new ArrayList<String>();
+		Map<String, TarEntry> result = new LinkedHashMap<String, TarEntry>();
+		for (TarEntry entry : entries) {
+			String path = entry.getPath();
+			boolean matches = false;
+			for (Pattern pattern : compiled) {
+				if (pattern.matcher(path).matches()) {
+					matches = true;
+					break;
+				}
+			}
+			if (!matches) {
+				for (String directory : directories) {
+					if (path.startsWith(directory + "/")) {
+						matches = true;
+						break;
+					}
+				}
+			}
+			if (matches) {
+				// later entries of the same path replace former ones
+				result.remove(path);
+				result.put(path, entry);
+				if (entry.isDirectory()) {
+					directories.add(path);
+				}
+			}
+		}
+		return new ArrayList<TarEntry>(result.values());
+	}
+
+	/**
+	 * paths in tar archives are stored without leading slash
+	 *
+	 * @param path {@link String}
+	 * @return {@link String}
+	 */
+	public static String normalize(String path) {
+		String result = path;
+		while (result.startsWith("/")) {
+			result = result.substring(1);
+		}
+		while (result.startsWith("./")) {
+			result = result.substring(2);
+		}
+		while (result.endsWith("/") && result.length() > 1) {
+			result = result.substring(0, result.length() - 1);
+		}
+		return result;
+	}
+
+	// -----------------------------------------------------------------------------
+	// persistence
+	// -----------------------------------------------------------------------------
+
+	/**
+	 * writes the index
+	 *
+	 * @param indexFile {@link File}
+	 * @throws IOException
+	 */
+	public void save(File indexFile) throws IOException {
+		File tmpFile = new File(indexFile.getPath() + ".tmp");
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+		try {
+			w.write(HEADER);
+			w.write('\n');
+			w.write("length\t" + archiveLength + "\n");
+			for (TarEntry entry : entries) {
+				w.write(Long.toString(entry.headerOffset));
+				w.write('\t');
+				w.write(Long.toString(entry.dataOffset));
+				w.write('\t');
+				w.write(Long.toString(entry.size));
+				w.write('\t');
+				w.write(Integer.toOctalString(entry.mode));
+				w.write('\t');
+				w.write(Long.toString(entry.mtime));
+				w.write('\t');
+				w.write(entry.type == TarEntry.TYPE_OLD_FILE ? TarEntry.TYPE_FILE : entry.type);
+				w.write('\t');
+				w.write(escape(entry.linkName));
+				w.write('\t');
+				w.write(escape(entry.name));
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+		if (indexFile.exists() && !indexFile.delete()) {
+			throw new IOException("cannot replace " + indexFile);
+		}
+		if (!tmpFile.renameTo(indexFile)) {
+			throw new IOException("cannot write " + indexFile);
+		}
+	}
+
+	/**
+	 * reads an index
+	 *
+	 * @param indexFile {@link File}
+	 * @return {@link TarIndex}
+	 * @throws IOException
+	 */
+	public static TarIndex load(File indexFile) throws IOException {
+		TarIndex index = new TarIndex();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+		try {
+			String line = br.readLine();
+			if (!HEADER.equals(line)) {
+				throw new IOException("not a tar index: " + indexFile);
+			}
+			while ((line = br.readLine()) != null) {
+				String[] split = line.split("\t", -1);
+				if (split.length == 2 && "length".equals(split[0])) {
+					index.archiveLength = Long.parseLong(split[1]);
+					continue;
+				}
+				if (split.length != 8) {
+					throw new IOException("corrupt tar index: " + indexFile);
+				}
+				TarEntry entry = new TarEntry();
+				entry.headerOffset = Long.parseLong(split[0]);
+				entry.dataOffset = Long.parseLong(split[1]);
+				entry.size = Long.parseLong(split[2]);
+				entry.mode = Integer.parseInt(split[3], 8);
+				entry.mtime = Long.parseLong(split[4]);
+				entry.type = split[5].charAt(0);
+				entry.linkName = unescape(split[6]);
+				entry.name = unescape(split[7]);
+				index.entries.add(entry);
+			}
+		} finally {
+			br.close();
+		}
+		return index;
+	}
+
+	/**
+	 * builds the index of an existing archive by scanning it once
+	 *
+	 * @param tarFile {@link File}
+	 * @return {@link TarIndex}
+	 * @throws IOException
+	 */
+	public static TarIndex build(File tarFile) throws IOException {
+		TarIndexer indexer = new TarIndexer();
+		TarStreamParser parser = new TarStreamParser();
+		parser.addListener(indexer);
+		InputStream is = new BufferedInputStream(new FileInputStream(tarFile));
+		try {
+			parser.parse(is);
+		} finally {
+			is.close();
+		}
+		return indexer.getIndex();
+	}
+
+	/**
+	 * loads the index of an archive, builds and stores it if it does not exist
+	 * or is older than the archive
+	 *
+	 * @param tarFile {@link File}
+	 * @return {@link TarIndex}
+	 * @throws IOException
+	 */
+	public static TarIndex loadOrBuild(File tarFile) throws IOException {
+		File indexFile = getIndexFile(tarFile);
+		if (indexFile.exists() && indexFile.lastModified() >= tarFile.lastModified()) {
+			return load(indexFile);
+		}
+		TarIndex index = build(tarFile);
+		index.save(indexFile);
+		return index;
+	}
+
+	private static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				char n = s.charAt(++i);
+				sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.anddisa.remotebackup.tar.TarStreamParser.ITarEntryListener;
+
+/**
+ *
+ * collects the entries of a tar stream into a {@link TarIndex} and
+ * optionally writes the index once the end of the archive is reached
+ *
+ */
+public class TarIndexer implements ITarEntryListener {
+
+	private final TarIndex index = new TarIndex();
+	private final File indexFile;
+
+	/**
+	 * constructor, the index is kept in memory only
+	 */
+	public TarIndexer() {
+		this(null);
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param indexFile {@link File} the index is written to at the end of the archive
+	 */
+	public TarIndexer(File indexFile) {
+		super();
+		this.indexFile = indexFile;
+	}
+
+	public TarIndex getIndex() {
+		return index;
+	}
+
+	public void entryStarted(TarEntry entry) {
+		index.add(entry);
+	}
+
+	public void entryData(TarEntry entry, byte[] data, int offset, int length) {
+		// only the headers are of interest
+	}
+
+	public void entryFinished(TarEntry entry) {
+	}
+
+	public void archiveFinished(long length) throws IOException {
+		index.setArchiveLength(length);
+		if (indexFile != null) {
+			index.save(indexFile);
+		}
+	}
+}
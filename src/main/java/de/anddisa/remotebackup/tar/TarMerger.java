@@ -0,0 +1,91 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * merges tar volumes into a single archive by concatenating their entries;
+ * index, digest manifest and md5 sum of the merged archive are created in
+ * the same pass
+ *
+ */
+public class TarMerger {
+
+	private TarMerger() {
+	}
+
+	/**
+	 * merges the volumes
+	 *
+	 * @param volumes {@link List} of tar files
+	 * @param target {@link File} merged archive
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static void merge(List<File> volumes, File target) throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		TarStreamParser parser = new TarStreamParser();
+		parser.addListener(new TarIndexer(TarIndex.getIndexFile(target)));
+		parser.addListener(new TarDigestManifest(TarDigestManifest.getManifestFile(target)));
+
+		byte[] buffer = new byte[64 * 1024];
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(target));
+		try {
+			for (File volume : volumes) {
+				// the end of archive marker of the volume is skipped
+				long remaining = TarIndex.loadOrBuild(volume).getContentLength();
+				InputStream is = new FileInputStream(volume);
+				try {
+					while (remaining > 0) {
+						int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if (read < 0) {
+							throw new IOException("unexpected end of archive " + volume);
+						}
+						write(os, md, parser, buffer, read);
+						remaining -= read;
+					}
+				} finally {
+					is.close();
+				}
+			}
+			byte[] end = new byte[2 * TarStreamParser.BLOCK_SIZE];
+			write(os, md, parser, end, end.length);
+		} finally {
+			os.close();
+		}
+		parser.close();
+		FileUtil.writeToFile(MD5Utils.toHex(md.digest()) + "  " + target.getName() + "\n", new File(target.getPath() + ".md5"));
+	}
+
+	static void write(OutputStream os, MessageDigest md, TarStreamParser parser, byte[] buffer, int length) throws IOException {
+		os.write(buffer, 0, length);
+		md.update(buffer, 0, length);
+		parser.write(buffer, 0, length);
+	}
+}
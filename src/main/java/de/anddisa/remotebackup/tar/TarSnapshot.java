@@ -0,0 +1,351 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.anddisa.adb.util.FileUtil;
+
+/**
+ *
+ * a tar backup of a mount point consisting of a chain of volumes: a full
+ * archive followed by incremental archives, each with an optional list of
+ * deleted paths (&lt;volume&gt;.deleted). The chain is stored in
+ * &lt;name&gt;.chain; the volumes of earlier snapshots are hard linked into the
+ * directory of each snapshot, so every snapshot directory is complete.
+ *
+ */
+public class TarSnapshot {
+
+	public static final String CHAIN_SUFFIX = ".chain";
+	public static final String DELETED_SUFFIX = ".deleted";
+
+	/** files belonging to a volume which are linked along with it */
+	private static final String[] VOLUME_SUFFIXES = { "", TarIndex.INDEX_SUFFIX, TarDigestManifest.MANIFEST_SUFFIX, DELETED_SUFFIX, ".md5" };
+
+	/**
+	 * an entry of the snapshot together with the volume containing it
+	 */
+	public static class Member {
+		public final int volume;
+		public final TarEntry entry;
+
+		public Member(int volume, TarEntry entry) {
+			super();
+			this.volume = volume;
+			this.entry = entry;
+		}
+	}
+
+	private final File directory;
+	private final String name;
+	private final List<String> volumes = new ArrayList<String>();
+
+	/**
+	 * constructor for an empty chain
+	 *
+	 * @param directory {@link File} snapshot directory
+	 * @param name {@link String} name of the mount point, e.g. data
+	 */
+	public TarSnapshot(File directory, String name) {
+		super();
+		this.directory = directory;
+		this.name = name;
+	}
+
+	/**
+	 * returns the chain file of a mount point backup
+	 *
+	 * @param directory {@link File} snapshot directory
+	 * @param name {@link String} name of the mount point
+	 * @return {@link File}
+	 */
+	public static File getChainFile(File directory, String name) {
+		return new File(directory, name + CHAIN_SUFFIX);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return {@link List} of volume file names, oldest first
+	 */
+	public List<String> getVolumes() {
+		return Collections.unmodifiableList(volumes);
+	}
+
+	public void addVolume(String volume) {
+		volumes.add(volume);
+	}
+
+	public File getVolumeFile(int volume) {
+		return new File(directory, volumes.get(volume));
+	}
+
+	/**
+	 * @return {@link List} of the existing files of this snapshot: the chain
+	 * file, the file manifest and the volumes with their index, digests,
+	 * deleted paths and md5 sum
+	 */
+	public List<File> getFiles() {
+		List<File> result = new ArrayList<File>();
+		result.add(getChainFile(directory, name));
+		File manifestFile = FileManifest.getManifestFile(directory, name);
+		if (manifestFile.exists()) {
+			result.add(manifestFile);
+		}
+		for (String volume : volumes) {
+			for (String suffix : VOLUME_SUFFIXES) {
+				File file = new File(directory, volume + suffix);
+				if (file.exists()) {
+					result.add(file);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * hard links all volumes of this snapshot into another directory
+	 *
+	 * @param newDirectory {@link File}
+	 * @return {@link TarSnapshot} with the same volumes located in the new directory
+	 * @throws IOException
+	 */
+	public TarSnapshot linkTo(File newDirectory) throws IOException {
+		TarSnapshot result = new TarSnapshot(newDirectory, name);
+		for (String volume : volumes) {
+			for (String suffix : VOLUME_SUFFIXES) {
+				File source = new File(directory, volume + suffix);
+				File dest = new File(newDirectory, volume + suffix);
+				if (source.exists() && !dest.exists()) {
+					FileUtil.hardlinkFile(source, dest);
+				}
+			}
+			result.addVolume(volume);
+		}
+		return result;
+	}
+
+	/**
+	 * writes the chain file
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		writeLines(getChainFile(directory, name), volumes);
+	}
+
+	/**
+	 * reads a chain file
+	 *
+	 * @param chainFile {@link File}
+	 * @return {@link TarSnapshot}
+	 * @throws IOException
+	 */
+	public static TarSnapshot load(File chainFile) throws IOException {
+		String fileName = chainFile.getName();
+		if (!fileName.endsWith(CHAIN_SUFFIX)) {
+			throw new IOException("not a chain file: " + chainFile);
+		}
+		File directory = chainFile.getAbsoluteFile().getParentFile();
+		TarSnapshot snapshot = new TarSnapshot(directory, fileName.substring(0, fileName.length() - CHAIN_SUFFIX.length()));
+		for (String volume : readLines(chainFile)) {
+			snapshot.addVolume(volume);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * writes the paths deleted since the previous volume
+	 *
+	 * @param volumeFile {@link File}
+	 * @param deleted {@link Collection} of paths
+	 * @throws IOException
+	 */
+	public static void saveDeleted(File volumeFile, Collection<String> deleted) throws IOException {
+		writeLines(new File(volumeFile.getPath() + DELETED_SUFFIX), deleted);
+	}
+
+	/**
+	 * reads the paths deleted since the previous volume
+	 *
+	 * @param volumeFile {@link File}
+	 * @return {@link List} of paths, empty if nothing was deleted
+	 * @throws IOException
+	 */
+	public static List<String> loadDeleted(File volumeFile) throws IOException {
+		File deletedFile = new File(volumeFile.getPath() + DELETED_SUFFIX);
+		if (!deletedFile.exists()) {
+			return new ArrayList<String>();
+		}
+		return readLines(deletedFile);
+	}
+
+	/**
+	 * resolves the content of the snapshot by applying all volumes in order
+	 *
+	 * @return {@link Map} path to the {@link Member} holding its latest version
+	 * @throws IOException
+	 */
+	public Map<String, Member> resolve() throws IOException {
+		Map<String, Member> result = new LinkedHashMap<String, Member>();
+		for (int i = 0; i < volumes.size(); i++) {
+			File volumeFile = getVolumeFile(i);
+			List<String> deleted = loadDeleted(volumeFile);
+			if (!deleted.isEmpty()) {
+				Set<String> deletedPaths = new HashSet<String>(deleted);
+				for (Iterator<String> it = result.keySet().iterator(); it.hasNext();) {
+					if (isDeleted(it.next(), deletedPaths)) {
+						it.remove();
+					}
+				}
+			}
+			for (TarEntry entry : TarIndex.loadOrBuild(volumeFile).getEntries()) {
+				result.remove(entry.getPath());
+				result.put(entry.getPath(), new Member(i, entry));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * gets the md5 sums of the files of the snapshot from the digest
+	 * manifests of the volumes holding their latest version
+	 *
+	 * @return {@link TarDigestManifest}
+	 * @throws IOException if a volume has no digest manifest
+	 */
+	public TarDigestManifest getDigests() throws IOException {
+		Map<String, String> digests = new LinkedHashMap<String, String>();
+		Map<Integer, Map<String, String>> manifests = new HashMap<Integer, Map<String, String>>();
+		for (Member member : resolve().values()) {
+			if (!member.entry.isFile()) {
+				continue;
+			}
+			Map<String, String> volumeDigests = manifests.get(member.volume);
+			if (volumeDigests == null) {
+				File manifestFile = TarDigestManifest.getManifestFile(getVolumeFile(member.volume));
+				if (!manifestFile.isFile()) {
+					throw new IOException("md5 sums not found: " + manifestFile);
+				}
+				volumeDigests = TarDigestManifest.load(manifestFile).getDigests();
+				manifests.put(member.volume, volumeDigests);
+			}
+			String digest = volumeDigests.get(member.entry.getPath());
+			if (digest != null) {
+				digests.put(member.entry.getPath(), digest);
+			}
+		}
+		return new TarDigestManifest(digests);
+	}
+
+	/**
+	 * extracts the entries matching the glob patterns in their latest version
+	 *
+	 * @param destDir {@link File} directory to extract to
+	 * @param patterns {@link String} glob patterns, all entries if none are passed
+	 * @return {@link List} of extracted entries
+	 * @throws IOException
+	 */
+	public List<TarEntry> extract(File destDir, String... patterns) throws IOException {
+		Map<TarEntry, Member> members = new IdentityHashMap<TarEntry, Member>();
+		TarIndex resolved = new TarIndex();
+		for (Member member : resolve().values()) {
+			members.put(member.entry, member);
+			resolved.add(member.entry);
+		}
+		List<TarEntry> entries = patterns.length == 0 ? resolved.getEntries() : resolved.find(patterns);
+		List<List<TarEntry>> byVolume = new ArrayList<List<TarEntry>>();
+		for (int i = 0; i < volumes.size(); i++) {
+			byVolume.add(new ArrayList<TarEntry>());
+		}
+		for (TarEntry entry : entries) {
+			byVolume.get(members.get(entry).volume).add(entry);
+		}
+		for (int i = 0; i < volumes.size(); i++) {
+			if (!byVolume.get(i).isEmpty()) {
+				IndexedTarReader.open(getVolumeFile(i)).extract(byVolume.get(i), destDir);
+			}
+		}
+		return entries;
+	}
+
+	private static boolean isDeleted(String path, Set<String> deletedPaths) {
+		String p = path;
+		while (true) {
+			if (deletedPaths.contains(p)) {
+				return true;
+			}
+			int slash = p.lastIndexOf('/');
+			if (slash <= 0) {
+				return false;
+			}
+			p = p.substring(0, slash);
+		}
+	}
+
+	private static void writeLines(File file, Collection<String> lines) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (String line : lines) {
+				w.write(line);
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> result = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() > 0) {
+					result.add(line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return result;
+	}
+}
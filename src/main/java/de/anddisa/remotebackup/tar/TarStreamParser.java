@@ -0,0 +1,458 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * incremental parser for tar streams (ustar, gnu and pax headers)
+ *
+ * The parser can be fed with chunks of arbitrary size as they arrive, e.g. from
+ * a shell output receiver, and reports the entries found to its listeners without
+ * the need to buffer the archive.
+ *
+ */
+public class TarStreamParser {
+
+	public static final int BLOCK_SIZE = 512;
+
+	/**
+	 *
+	 * callback interface for the entries found in the stream
+	 *
+	 */
+	public interface ITarEntryListener {
+
+		/**
+		 * a new entry has been found, data offset and size are known
+		 *
+		 * @param entry {@link TarEntry}
+		 * @throws IOException
+		 */
+		public void entryStarted(TarEntry entry) throws IOException;
+
+		/**
+		 * a chunk of data of the current entry
+		 *
+		 * @param entry {@link TarEntry}
+		 * @param data
+		 * @param offset
+		 * @param length
+		 * @throws IOException
+		 */
+		public void entryData(TarEntry entry, byte[] data, int offset, int length) throws IOException;
+
+		/**
+		 * all data of the entry has been passed
+		 *
+		 * @param entry {@link TarEntry}
+		 * @throws IOException
+		 */
+		public void entryFinished(TarEntry entry) throws IOException;
+
+		/**
+		 * the end of the archive has been reached
+		 *
+		 * @param length {@link Long} number of bytes of the archive
+		 * @throws IOException
+		 */
+		public void archiveFinished(long length) throws IOException;
+	}
+
+	private static final int STATE_HEADER = 0;
+	private static final int STATE_DATA = 1;
+	private static final int STATE_META = 2;
+	private static final int STATE_PADDING = 3;
+	private static final int STATE_END = 4;
+
+	private final List<ITarEntryListener> listeners = new ArrayList<ITarEntryListener>();
+	private final byte[] header = new byte[BLOCK_SIZE];
+	private int headerFill = 0;
+	private long headerStart = -1;
+	private long metaStart = -1;
+	private int zeroBlocks = 0;
+	private int state = STATE_HEADER;
+	private long position = 0;
+	private long remaining = 0;
+	private long padding = 0;
+	private TarEntry current = null;
+	private char metaType;
+	private ByteArrayOutputStream metaData = null;
+	private String longName = null;
+	private String longLinkName = null;
+	private String paxPath = null;
+	private String paxLinkPath = null;
+	private Long paxSize = null;
+	private Long paxMtime = null;
+
+	public TarStreamParser() {
+		super();
+	}
+
+	public void addListener(ITarEntryListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @return {@link Long} number of bytes parsed so far
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return {@link Boolean} true if the end of archive marker has been seen
+	 */
+	public boolean isFinished() {
+		return state == STATE_END;
+	}
+
+	/**
+	 * feeds the next chunk of the stream into the parser
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws IOException if the stream is not a valid tar stream or a listener failed
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		while (length > 0) {
+			int consumed;
+			switch (state) {
+			case STATE_HEADER:
+				if (headerFill == 0) {
+					headerStart = position;
+				}
+				consumed = Math.min(BLOCK_SIZE - headerFill, length);
+				System.arraycopy(data, offset, header, headerFill, consumed);
+				headerFill += consumed;
+				position += consumed;
+				if (headerFill == BLOCK_SIZE) {
+					headerFill = 0;
+					processHeader();
+				}
+				break;
+			case STATE_DATA:
+				consumed = (int) Math.min(remaining, length);
+				for (ITarEntryListener listener : listeners) {
+					listener.entryData(current, data, offset, consumed);
+				}
+				remaining -= consumed;
+				position += consumed;
+				if (remaining == 0) {
+					finishEntry();
+				}
+				break;
+			case STATE_META:
+				consumed = (int) Math.min(remaining, length);
+				metaData.write(data, offset, consumed);
+				remaining -= consumed;
+				position += consumed;
+				if (remaining == 0) {
+					processMetaData();
+					state = padding > 0 ? STATE_PADDING : STATE_HEADER;
+				}
+				break;
+			case STATE_PADDING:
+				consumed = (int) Math.min(padding, length);
+				padding -= consumed;
+				position += consumed;
+				if (padding == 0) {
+					state = STATE_HEADER;
+				}
+				break;
+			default:
+				// trailing blocks after the end of archive marker
+				consumed = length;
+				position += consumed;
+				break;
+			}
+			offset += consumed;
+			length -= consumed;
+		}
+	}
+
+	/**
+	 * parses a complete input stream
+	 *
+	 * @param is {@link InputStream}
+	 * @throws IOException
+	 */
+	public void parse(InputStream is) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = is.read(buffer)) >= 0) {
+			write(buffer, 0, read);
+		}
+		close();
+	}
+
+	/**
+	 * signals the end of the stream
+	 *
+	 * @throws IOException if the stream ended in the middle of an entry
+	 */
+	public void close() throws IOException {
+		if (state == STATE_DATA || state == STATE_META || headerFill != 0) {
+			throw new IOException("tar stream truncated at offset " + position);
+		}
+		if (state != STATE_END) {
+			// some tar implementations omit the end of archive marker
+			state = STATE_END;
+			for (ITarEntryListener listener : listeners) {
+				listener.archiveFinished(position);
+			}
+		}
+	}
+
+	private void processHeader() throws IOException {
+		if (isZeroBlock(header)) {
+			zeroBlocks++;
+			if (zeroBlocks == 2) {
+				state = STATE_END;
+				for (ITarEntryListener listener : listeners) {
+					listener.archiveFinished(position);
+				}
+			}
+			return;
+		}
+		zeroBlocks = 0;
+		if (!isChecksumValid(header)) {
+			throw new IOException("invalid tar header at offset " + headerStart);
+		}
+		char type = (char) header[156];
+		long size = parseNumber(header, 124, 12);
+		if (type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+			if (metaStart < 0) {
+				metaStart = headerStart;
+			}
+			metaType = type;
+			metaData = new ByteArrayOutputStream((int) size);
+			remaining = size;
+			padding = getPadding(size);
+			state = size > 0 ? STATE_META : STATE_HEADER;
+			if (size == 0) {
+				processMetaData();
+			}
+			return;
+		}
+
+		TarEntry entry = new TarEntry();
+		entry.headerOffset = metaStart >= 0 ? metaStart : headerStart;
+		metaStart = -1;
+		entry.type = type;
+		entry.name = parseName(header);
+		entry.linkName = parseString(header, 157, 100);
+		entry.mode = (int) parseNumber(header, 100, 8);
+		entry.uid = (int) parseNumber(header, 108, 8);
+		entry.gid = (int) parseNumber(header, 116, 8);
+		entry.mtime = parseNumber(header, 136, 12);
+		entry.size = size;
+		if (longName != null) {
+			entry.name = longName;
+		}
+		if (longLinkName != null) {
+			entry.linkName = longLinkName;
+		}
+		if (paxPath != null) {
+			entry.name = paxPath;
+		}
+		if (paxLinkPath != null) {
+			entry.linkName = paxLinkPath;
+		}
+		if (paxSize != null) {
+			entry.size = paxSize.longValue();
+		}
+		if (paxMtime != null) {
+			entry.mtime = paxMtime.longValue();
+		}
+		longName = null;
+		longLinkName = null;
+		paxPath = null;
+		paxLinkPath = null;
+		paxSize = null;
+		paxMtime = null;
+
+		long dataSize = entry.getDataSize();
+		entry.dataOffset = position;
+		current = entry;
+		for (ITarEntryListener listener : listeners) {
+			listener.entryStarted(entry);
+		}
+		remaining = dataSize;
+		padding = getPadding(dataSize);
+		if (dataSize > 0) {
+			state = STATE_DATA;
+		} else {
+			finishEntry();
+		}
+	}
+
+	private void finishEntry() throws IOException {
+		for (ITarEntryListener listener : listeners) {
+			listener.entryFinished(current);
+		}
+		current = null;
+		state = padding > 0 ? STATE_PADDING : STATE_HEADER;
+	}
+
+	private void processMetaData() throws IOException {
+		byte[] bytes = metaData.toByteArray();
+		metaData = null;
+		switch (metaType) {
+		case 'L':
+			longName = trimNul(new String(bytes, "UTF-8"));
+			break;
+		case 'K':
+			longLinkName = trimNul(new String(bytes, "UTF-8"));
+			break;
+		case 'x':
+			parsePaxHeaders(bytes);
+			break;
+		default:
+			// global pax headers are ignored
+			break;
+		}
+	}
+
+	/**
+	 * pax records have the format "<length> <key>=<value>\n"
+	 */
+	private void parsePaxHeaders(byte[] bytes) throws IOException {
+		int pos = 0;
+		while (pos < bytes.length) {
+			int space = pos;
+			while (space < bytes.length && bytes[space] != ' ') {
+				space++;
+			}
+			if (space >= bytes.length) {
+				break;
+			}
+			int recordLength;
+			try {
+				recordLength = Integer.parseInt(new String(bytes, pos, space - pos, "US-ASCII"));
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid pax header at offset " + headerStart);
+			}
+			if (recordLength <= 0 || pos + recordLength > bytes.length) {
+				throw new IOException("invalid pax header at offset " + headerStart);
+			}
+			String record = new String(bytes, space + 1, pos + recordLength - space - 2, "UTF-8");
+			int equals = record.indexOf('=');
+			if (equals > 0) {
+				String key = record.substring(0, equals);
+				String value = record.substring(equals + 1);
+				if ("path".equals(key)) {
+					paxPath = value;
+				} else if ("linkpath".equals(key)) {
+					paxLinkPath = value;
+				} else if ("size".equals(key)) {
+					paxSize = Long.valueOf(value);
+				} else if ("mtime".equals(key)) {
+					int dot = value.indexOf('.');
+					paxMtime = Long.valueOf(dot >= 0 ? value.substring(0, dot) : value);
+				}
+			}
+			pos += recordLength;
+		}
+	}
+
+	// -----------------------------------------------------------------------------
+	// header field helpers
+	// -----------------------------------------------------------------------------
+
+	/**
+	 * @param size {@link Long} size of the data
+	 * @return {@link Long} number of bytes needed to fill up the last block
+	 */
+	public static long getPadding(long size) {
+		long rest = size % BLOCK_SIZE;
+		return rest == 0 ? 0 : BLOCK_SIZE - rest;
+	}
+
+	static boolean isZeroBlock(byte[] block) {
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			if (block[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean isChecksumValid(byte[] block) {
+		long stored = parseNumber(block, 148, 8);
+		long unsigned = 0;
+		long signed = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			byte b = (i >= 148 && i < 156) ? (byte) ' ' : block[i];
+			unsigned += b & 0xff;
+			signed += b;
+		}
+		return stored == unsigned || stored == signed;
+	}
+
+	static String parseName(byte[] block) throws IOException {
+		String name = parseString(block, 0, 100);
+		if (block[257] == 'u' && block[258] == 's' && block[259] == 't' && block[260] == 'a' && block[261] == 'r') {
+			String prefix = parseString(block, 345, 155);
+			if (prefix.length() > 0) {
+				name = prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	static String parseString(byte[] block, int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && block[end] != 0) {
+			end++;
+		}
+		return new String(block, offset, end - offset, "UTF-8");
+	}
+
+	/**
+	 * parses an octal number, or a gnu base-256 number if the high bit is set
+	 */
+	static long parseNumber(byte[] block, int offset, int length) {
+		if ((block[offset] & 0x80) != 0) {
+			long result = block[offset] & 0x7f;
+			for (int i = 1; i < length; i++) {
+				result = (result << 8) | (block[offset + i] & 0xff);
+			}
+			return result;
+		}
+		long result = 0;
+		for (int i = offset; i < offset + length; i++) {
+			byte b = block[i];
+			if (b == 0) {
+				break;
+			}
+			if (b >= '0' && b <= '7') {
+				result = (result << 3) + (b - '0');
+			}
+		}
+		return result;
+	}
+
+	private static String trimNul(String s) {
+		int nul = s.indexOf('\0');
+		return nul >= 0 ? s.substring(0, nul) : s;
+	}
+}
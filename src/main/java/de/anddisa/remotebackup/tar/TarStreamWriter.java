@@ -0,0 +1,263 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * writes selected entries of one or more indexed tar volumes as a new tar
+ * stream, e.g. to restore them on the device. The entries are copied
+ * unchanged including their headers; reading the volumes is done by a
+ * separate thread, so reading and writing overlap.
+ *
+ */
+public class TarStreamWriter {
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final int QUEUE_SIZE = 16;
+	private static final byte[] END_OF_STREAM = new byte[0];
+
+	/**
+	 * an entry together with the volume containing it
+	 */
+	public static class Item {
+		public final File volume;
+		public final TarEntry entry;
+
+		public Item(File volume, TarEntry entry) {
+			super();
+			this.volume = volume;
+			this.entry = entry;
+		}
+
+		/**
+		 * @return {@link Long} number of bytes the entry occupies within the archive
+		 */
+		public long getLength() {
+			long dataSize = entry.getDataSize();
+			return entry.dataOffset + dataSize + TarStreamParser.getPadding(dataSize) - entry.headerOffset;
+		}
+	}
+
+	private TarStreamWriter() {
+	}
+
+	/**
+	 * selects the entries of a tar file or of the latest versions of a
+	 * chain of volumes (see {@link TarSnapshot})
+	 *
+	 * @param tarFile {@link File} tar file or chain file
+	 * @param patterns {@link String} glob patterns, all entries if none are passed
+	 * @return {@link List} of items in archive order
+	 * @throws IOException
+	 */
+	public static List<Item> select(File tarFile, String... patterns) throws IOException {
+		List<Item> result = new ArrayList<Item>();
+		if (tarFile.getName().endsWith(TarSnapshot.CHAIN_SUFFIX)) {
+			TarSnapshot snapshot = TarSnapshot.load(tarFile);
+			Map<TarEntry, File> volumes = new IdentityHashMap<TarEntry, File>();
+			TarIndex resolved = new TarIndex();
+			for (TarSnapshot.Member member : snapshot.resolve().values()) {
+				volumes.put(member.entry, snapshot.getVolumeFile(member.volume));
+				resolved.add(member.entry);
+			}
+			for (TarEntry entry : patterns.length == 0 ? resolved.getEntries() : resolved.find(patterns)) {
+				result.add(new Item(volumes.get(entry), entry));
+			}
+		} else {
+			TarIndex index = TarIndex.loadOrBuild(tarFile);
+			for (TarEntry entry : patterns.length == 0 ? index.getEntries() : index.find(patterns)) {
+				result.add(new Item(tarFile, entry));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * splits the items into independent groups of about the same size; the
+	 * entries are grouped by their first two path segments (e.g. data/app),
+	 * subtrees linked by hard links are kept in the same group, so a link is
+	 * extracted after its target by the same tar
+	 *
+	 * @param items {@link List}
+	 * @param groupCount {@link Integer} maximum number of groups
+	 * @return {@link List} of non empty groups, each in archive order
+	 */
+	public static List<List<Item>> partition(List<Item> items, int groupCount) {
+		Map<String, String> linked = new HashMap<String, String>();
+		for (Item item : items) {
+			if (item.entry.type == TarEntry.TYPE_HARDLINK && item.entry.linkName != null) {
+				String key = getRoot(linked, getSubtree(TarIndex.normalize(item.entry.getPath())));
+				String target = getRoot(linked, getSubtree(TarIndex.normalize(item.entry.linkName)));
+				if (!key.equals(target)) {
+					linked.put(key, target);
+				}
+			}
+		}
+		Map<String, List<Item>> subtrees = new LinkedHashMap<String, List<Item>>();
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (Item item : items) {
+			String key = getRoot(linked, getSubtree(TarIndex.normalize(item.entry.getPath())));
+			List<Item> subtree = subtrees.get(key);
+			if (subtree == null) {
+				subtree = new ArrayList<Item>();
+				subtrees.put(key, subtree);
+				sizes.put(key, 0L);
+			}
+			subtree.add(item);
+			sizes.put(key, sizes.get(key) + item.getLength());
+		}
+		List<List<Item>> result = new ArrayList<List<Item>>();
+		for (List<String> group : SubtreePartitioner.partition(sizes, groupCount)) {
+			List<Item> groupItems = new ArrayList<Item>();
+			// keep the archive order, parents before their content
+			for (Map.Entry<String, List<Item>> subtree : subtrees.entrySet()) {
+				if (group.contains(subtree.getKey())) {
+					groupItems.addAll(subtree.getValue());
+				}
+			}
+			result.add(groupItems);
+		}
+		return result;
+	}
+
+	/**
+	 * writes the items as tar stream followed by the end of archive marker
+	 *
+	 * @param items {@link List}
+	 * @param os {@link OutputStream}
+	 * @return {@link Long} number of bytes written
+	 * @throws IOException
+	 */
+	public static long write(final List<Item> items, OutputStream os) throws IOException {
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		final IOException[] failure = new IOException[1];
+		final boolean[] aborted = new boolean[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Map<File, RandomAccessFile> files = new HashMap<File, RandomAccessFile>();
+				try {
+					for (Item item : items) {
+						RandomAccessFile raf = files.get(item.volume);
+						if (raf == null) {
+							raf = new RandomAccessFile(item.volume, "r");
+							files.put(item.volume, raf);
+						}
+						raf.seek(item.entry.headerOffset);
+						long remaining = item.getLength();
+						while (remaining > 0) {
+							byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, remaining)];
+							raf.readFully(chunk);
+							if (!put(queue, chunk, aborted)) {
+								return;
+							}
+							remaining -= chunk.length;
+						}
+					}
+					put(queue, new byte[2 * TarStreamParser.BLOCK_SIZE], aborted);
+				} catch (IOException e) {
+					failure[0] = e;
+				} finally {
+					for (RandomAccessFile raf : files.values()) {
+						try {
+							raf.close();
+						} catch (IOException e) {
+							// read only
+						}
+					}
+					put(queue, END_OF_STREAM, aborted);
+				}
+			}
+		}, "tar reader");
+		reader.start();
+
+		long written = 0;
+		try {
+			while (true) {
+				byte[] chunk = queue.take();
+				if (chunk == END_OF_STREAM) {
+					break;
+				}
+				os.write(chunk);
+				written += chunk.length;
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("tar stream interrupted");
+		} finally {
+			synchronized (aborted) {
+				aborted[0] = true;
+			}
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				// the reader stops on its own
+			}
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return written;
+	}
+
+	private static boolean put(BlockingQueue<byte[]> queue, byte[] chunk, boolean[] aborted) {
+		try {
+			while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+				synchronized (aborted) {
+					if (aborted[0]) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@link String} the subtree a subtree is merged into because of hard links
+	 */
+	private static String getRoot(Map<String, String> linked, String subtree) {
+		String root = subtree;
+		while (linked.containsKey(root)) {
+			root = linked.get(root);
+		}
+		return root;
+	}
+
+	private static String getSubtree(String path) {
+		int first = path.indexOf('/');
+		if (first < 0) {
+			return path;
+		}
+		int second = path.indexOf('/', first + 1);
+		return second < 0 ? path : path.substring(0, second);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+/**
+ *
+ * splits the listing of a file system into the paths tared in one stream
+ * (directories, small files and links) and the large regular files
+ * pulled one by one through sync. The pulled files are written into a tar
+ * volume of their own, so both parts form a chain (see {@link TarSnapshot})
+ * like the volumes of parallel tar streams.
+ *
+ */
+public class TransferPlan {
+
+	private final List<String> tarPaths = new ArrayList<String>();
+	private final List<FileManifest.Entry> syncFiles = new ArrayList<FileManifest.Entry>();
+	private long tarBytes = 0;
+	private long syncBytes = 0;
+
+	private TransferPlan() {
+	}
+
+	/**
+	 * plans the transfer of a file system
+	 *
+	 * @param manifest {@link FileManifest} listing of the file system
+	 * @param threshold {@link Long} size in bytes from which on regular files are pulled
+	 * @return {@link TransferPlan}
+	 */
+	public static TransferPlan create(FileManifest manifest, long threshold) {
+		TransferPlan plan = new TransferPlan();
+		for (FileManifest.Entry entry : manifest.getEntries().values()) {
+			if (entry.isDirectory()) {
+				// every directory is listed for its mode and owner, the paths are tared with --no-recursion
+				plan.tarPaths.add("/" + entry.path);
+			} else if (entry.isFile() && entry.size >= threshold) {
+				plan.syncFiles.add(entry);
+				plan.syncBytes += entry.size;
+			} else {
+				plan.tarPaths.add("/" + entry.path);
+				plan.tarBytes += entry.size;
+			}
+		}
+		// largest first, so parallel pulls end at about the same time
+		Collections.sort(plan.syncFiles, new Comparator<FileManifest.Entry>() {
+			@Override
+			public int compare(FileManifest.Entry e1, FileManifest.Entry e2) {
+				return e1.size > e2.size ? -1 : (e1.size == e2.size ? e1.path.compareTo(e2.path) : 1);
+			}
+		});
+		return plan;
+	}
+
+	/**
+	 * @return {@link List} of the device paths to be tared, parents before their content
+	 */
+	public List<String> getTarPaths() {
+		return tarPaths;
+	}
+
+	/**
+	 * @return {@link List} of the files to be pulled, largest first
+	 */
+	public List<FileManifest.Entry> getSyncFiles() {
+		return syncFiles;
+	}
+
+	public long getTarBytes() {
+		return tarBytes;
+	}
+
+	public long getSyncBytes() {
+		return syncBytes;
+	}
+
+	@Override
+	public String toString() {
+		return tarPaths.size() + " paths tared (" + tarBytes + " bytes), " + syncFiles.size() + " files pulled (" + syncBytes + " bytes)";
+	}
+
+	/**
+	 * writes pulled files into a tar volume; index, digest manifest and md5
+	 * sum of the volume are created in the same pass
+	 *
+	 * @param entries {@link List} of the listing entries of the files
+	 * @param files {@link List} of the local copies, in the same order
+	 * @param target {@link File} tar volume
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static void writeVolume(List<FileManifest.Entry> entries, List<File> files, File target) throws IOException, NoSuchAlgorithmException {
+		final MessageDigest md = MessageDigest.getInstance("MD5");
+		final TarStreamParser parser = new TarStreamParser();
+		parser.addListener(new TarIndexer(TarIndex.getIndexFile(target)));
+		parser.addListener(new TarDigestManifest(TarDigestManifest.getManifestFile(target)));
+
+		final OutputStream os = new BufferedOutputStream(new FileOutputStream(target));
+		try {
+			TarArchiveWriter writer = new TarArchiveWriter(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					os.write(b, off, len);
+					md.update(b, off, len);
+					parser.write(b, off, len);
+				}
+			});
+			byte[] buffer = new byte[64 * 1024];
+			for (int i = 0; i < entries.size(); i++) {
+				FileManifest.Entry entry = entries.get(i);
+				File file = files.get(i);
+				if (file.length() != entry.size) {
+					throw new IOException(file + " has " + file.length() + " bytes, expected " + entry.size);
+				}
+				TarEntry tarEntry = new TarEntry();
+				tarEntry.name = entry.path;
+				tarEntry.type = TarEntry.TYPE_FILE;
+				tarEntry.mode = entry.mode & 07777;
+				tarEntry.size = entry.size;
+				tarEntry.mtime = entry.mtime;
+				writer.putEntry(tarEntry);
+				InputStream is = new FileInputStream(file);
+				try {
+					int read;
+					while ((read = is.read(buffer)) > 0) {
+						writer.write(buffer, 0, read);
+					}
+				} finally {
+					is.close();
+				}
+				writer.closeEntry();
+			}
+			writer.finish();
+		} finally {
+			os.close();
+		}
+		parser.close();
+		FileUtil.writeToFile(MD5Utils.toHex(md.digest()) + "  " + target.getName() + "\n", new File(target.getPath() + ".md5"));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.utils;
+
+import java.util.regex.Pattern;
+
+/**
+ *
+ * shell like glob patterns for paths
+ *
+ * '*' matches within one path segment, '**' matches across segments,
+ * '?' matches a single character and [...] a character class
+ *
+ */
+public class GlobUtils {
+
+	/**
+	 * converts a glob pattern into a regular expression
+	 *
+	 * @param glob {@link String} pattern
+	 * @return {@link Pattern}
+	 */
+	public static Pattern compile(String glob) {
+		StringBuilder sb = new StringBuilder();
+		int length = glob.length();
+		for (int i = 0; i < length; i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+			case '*':
+				if (i + 1 < length && glob.charAt(i + 1) == '*') {
+					sb.append(".*");
+					i++;
+				} else {
+					sb.append("[^/]*");
+				}
+				break;
+			case '?':
+				sb.append("[^/]");
+				break;
+			case '[':
+				int end = glob.indexOf(']', i + 1);
+				if (end > i) {
+					String set = glob.substring(i + 1, end);
+					if (set.startsWith("!")) {
+						set = "^" + set.substring(1);
+					}
+					sb.append('[').append(set.replace("\\", "\\\\")).append(']');
+					i = end;
+				} else {
+					sb.append("\\[");
+				}
+				break;
+			default:
+				if ("\\.^$+{}()|".indexOf(c) >= 0) {
+					sb.append('\\');
+				}
+				sb.append(c);
+				break;
+			}
+		}
+		return Pattern.compile(sb.toString());
+	}
+
+	/**
+	 * checks whether a path matches a glob pattern
+	 *
+	 * @param glob {@link String} pattern
+	 * @param path {@link String} to check
+	 * @return {@link Boolean} true if the path matches
+	 */
+	public static boolean matches(String glob, String path) {
+		return compile(glob).matcher(path).matches();
+	}
+
+	/**
+	 * @param s {@link String}
+	 * @return {@link Boolean} true if the string contains glob meta characters
+	 */
+	public static boolean isGlob(String s) {
+		return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0;
+	}
+}
@@ -26,6 +26,25 @@ public class MD5Utils {
 	 */
 	public static boolean compareMD5(String srcFileName, String md5FileName) throws IOException, NoSuchAlgorithmException {
 		String md5sum = md5sum(srcFileName);
+	    String s = readMD5(md5FileName);
+	
+	    boolean result = md5sum.equals(s);
+	    if (!result) {
+	    	// print out some error message
+	    	System.err.println(srcFileName + "(" + md5sum + ") <-> " + md5FileName + "(" + s + ")");
+	    }
+	    return result;
+	}
+
+	/**
+	 * reads the md5 sum stored in a file written by md5sum
+	 * 
+	 * @param md5FileName {@link String} path to the file which contains the md5sum
+	 * @return md5sum {@link String}
+	 * 
+	 * @throws IOException
+	 */
+	public static String readMD5(String md5FileName) throws IOException {
 	    File f = new File(md5FileName);
 	
 	    //
@@ -36,13 +55,7 @@ public class MD5Utils {
 	    is.read(buffer);
 	    String s = new String(buffer);
 	    is.close();
-	
-	    boolean result = md5sum.equals(s);
-	    if (!result) {
-	    	// print out some error message
-	    	System.err.println(srcFileName + "(" + md5sum + ") <-> " + md5FileName + "(" + s + ")");
-	    }
-	    return result;
+	    return s;
 	}
 
 	/**
@@ -74,6 +87,17 @@ public class MD5Utils {
 	    return result;
 	}
 	
+	/**
+	 * formats a digest the way md5sum does
+	 * 
+	 * @param digest byte array as returned by {@link MessageDigest#digest()}
+	 * @return {@link String} lower case hex representation
+	 */
+	public static String toHex(byte[] digest) {
+		BigInteger bi = new BigInteger(1, digest);
+		return String.format("%0" + (digest.length * 2) + "x", bi);
+	}
+
 	public static String md5sumFromString(String input) throws IOException, NoSuchAlgorithmException {
 		MessageDigest md = MessageDigest.getInstance("MD5");
 	
@@ -0,0 +1,137 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.watch;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ *
+ * collects change events of device files and hands them out in batches; all
+ * events of a path within a batch are coalesced, e.g. a burst of writes to
+ * one database file results in one transfer
+ *
+ */
+public class ChangeCollector {
+
+	/**
+	 * the changes collected within one window
+	 */
+	public static class Batch {
+		public final Set<String> changed;
+		public final Set<String> deleted;
+		/** true if events were lost, i.e. the whole tree has to be compared */
+		public final boolean rescan;
+
+		public Batch(Set<String> changed, Set<String> deleted, boolean rescan) {
+			super();
+			this.changed = Collections.unmodifiableSet(changed);
+			this.deleted = Collections.unmodifiableSet(deleted);
+			this.rescan = rescan;
+		}
+
+		public boolean isEmpty() {
+			return changed.isEmpty() && deleted.isEmpty() && !rescan;
+		}
+
+		@Override
+		public String toString() {
+			return changed.size() + " changed, " + deleted.size() + " deleted" + (rescan ? ", rescan" : "");
+		}
+	}
+
+	private Set<String> changed = new LinkedHashSet<String>();
+	private Set<String> deleted = new LinkedHashSet<String>();
+	private boolean rescan = false;
+	private long events = 0;
+
+	public ChangeCollector() {
+		super();
+	}
+
+	/**
+	 * a file was created, written or moved in
+	 *
+	 * @param path {@link String} device path
+	 */
+	public synchronized void addChanged(String path) {
+		deleted.remove(path);
+		changed.add(path);
+		events++;
+		notifyAll();
+	}
+
+	/**
+	 * a file was deleted or moved out
+	 *
+	 * @param path {@link String} device path
+	 */
+	public synchronized void addDeleted(String path) {
+		changed.remove(path);
+		deleted.add(path);
+		events++;
+		notifyAll();
+	}
+
+	/**
+	 * events were lost, the next batch requests a complete comparison
+	 */
+	public synchronized void requestRescan() {
+		rescan = true;
+		events++;
+		notifyAll();
+	}
+
+	/**
+	 * @return {@link Long} number of events received so far
+	 */
+	public synchronized long getEventCount() {
+		return events;
+	}
+
+	/**
+	 * waits for the first event, collects further events for the window and
+	 * returns them as batch
+	 *
+	 * @param windowMillis {@link Long} time to collect events after the first one
+	 * @return {@link Batch}
+	 * @throws InterruptedException
+	 */
+	public synchronized Batch awaitBatch(long windowMillis) throws InterruptedException {
+		while (changed.isEmpty() && deleted.isEmpty() && !rescan) {
+			wait();
+		}
+		long end = System.currentTimeMillis() + windowMillis;
+		long remaining;
+		while ((remaining = end - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+		return takeBatch();
+	}
+
+	/**
+	 * returns the events collected so far without waiting
+	 *
+	 * @return {@link Batch}
+	 */
+	public synchronized Batch takeBatch() {
+		Batch batch = new Batch(changed, deleted, rescan);
+		changed = new LinkedHashSet<String>();
+		deleted = new LinkedHashSet<String>();
+		rescan = false;
+		return batch;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.watch;
+
+import com.android.ddmlib.MultiLineReceiver;
+
+/**
+ *
+ * parses the output of <code>busybox inotifyd - dir:{@link #EVENT_MASK} ...</code>,
+ * i.e. lines "event \t directory \t name", and passes the events to a
+ * {@link ChangeCollector}
+ *
+ */
+public class InotifydReceiver extends MultiLineReceiver {
+
+	/**
+	 * events watched: w closed after writing, y moved in, m moved out,
+	 * n created, d deleted
+	 */
+	public static final String EVENT_MASK = "wymnd";
+
+	private final ChangeCollector collector;
+	private volatile boolean cancelled = false;
+
+	public InotifydReceiver(ChangeCollector collector) {
+		super();
+		this.collector = collector;
+	}
+
+	@Override
+	public void processNewLines(String[] lines) {
+		for (String line : lines) {
+			processLine(line);
+		}
+	}
+
+	/**
+	 * processes a single line of inotifyd output
+	 *
+	 * @param line {@link String}
+	 */
+	public void processLine(String line) {
+		String[] split = line.split("\t");
+		if (split.length < 2 || split[0].length() != 1) {
+			return;
+		}
+		String path = split.length > 2 ? split[1] + "/" + split[2] : split[1];
+		switch (split[0].charAt(0)) {
+		case 'w':
+		case 'y':
+		case 'n':
+			collector.addChanged(path);
+			break;
+		case 'm':
+		case 'd':
+			collector.addDeleted(path);
+			break;
+		case 'o':
+		case 'x':
+		case 'D':
+		case 'M':
+			// queue overflow or the watched directory itself is gone
+			collector.requestRescan();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * stops receiving, the shell command of inotifyd ends
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,509 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.yaffs2;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.anddisa.remotebackup.image.ImageSource;
+import de.anddisa.remotebackup.tar.IndexedTarReader;
+import de.anddisa.remotebackup.tar.TarArchiveWriter;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarIndex;
+
+/**
+ *
+ * the file tree of a yaffs2 image (MTD partitions of older devices). The
+ * image is read in one sequential pass over its chunks: the tags in the
+ * spare area of each chunk name the object and the position of the chunk,
+ * the latest version of every header and data chunk is kept in an index by
+ * object id. File content is read from the image when it is needed.
+ *
+ * The tags are stored in the spare area, so the image has to contain it
+ * (e.g. written by mkyaffs2image or dumped with nanddump including oob);
+ * its layout is detected.
+ *
+ */
+public class Yaffs2Image {
+
+	private static final int ROOT_ID = 1;
+	private static final int MAX_OBJECT_ID = 0x3ffff;
+	private static final int UNLINKED_ID = 3;
+	private static final int DELETED_ID = 4;
+	private static final long LOWEST_SEQUENCE = 0x1000L;
+	private static final long HIGHEST_SEQUENCE = 0xefffff00L;
+	private static final int EXTRA_HEADER_INFO_FLAG = 0x80000000;
+	private static final int ALL_EXTRA_FLAGS = 0xf0000000;
+	private static final int EXTRA_OBJECT_TYPE_MASK = 0x0f << 28;
+	/** number of chunks examined to detect the layout */
+	private static final int DETECT_CHUNKS = 256;
+	private static final int HEADER_SIZE = 512;
+
+	/**
+	 * size of the data and spare area of a chunk and the position of the
+	 * tags within the spare area
+	 */
+	public static class Layout {
+		public final int pageSize;
+		public final int spareSize;
+		public final int tagsOffset;
+
+		public Layout(int pageSize, int spareSize, int tagsOffset) {
+			super();
+			this.pageSize = pageSize;
+			this.spareSize = spareSize;
+			this.tagsOffset = tagsOffset;
+		}
+
+		@Override
+		public String toString() {
+			return pageSize + "+" + spareSize + " (tags at " + tagsOffset + ")";
+		}
+	}
+
+	/** mkyaffs2image writes the tags at the start of the spare area, nand drivers behind the bad block marker */
+	private static final Layout[] LAYOUTS = new Layout[] {
+		new Layout(2048, 64, 0),
+		new Layout(2048, 64, 2),
+		new Layout(4096, 128, 0),
+		new Layout(4096, 128, 2),
+		new Layout(4096, 224, 2)
+	};
+
+	private final ImageSource source;
+	private final Layout layout;
+	private final Map<Integer, Yaffs2Object> objects = new HashMap<Integer, Yaffs2Object>();
+	private final TarIndex index = new TarIndex();
+	private final Map<TarEntry, Yaffs2Object> entryObjects = new IdentityHashMap<TarEntry, Yaffs2Object>();
+	private final Map<Integer, String> paths = new HashMap<Integer, String>();
+
+	/**
+	 * constructor, reads the tags of all chunks and the headers
+	 *
+	 * @param source {@link ImageSource}
+	 * @param layout {@link Layout}
+	 * @throws IOException
+	 */
+	public Yaffs2Image(ImageSource source, Layout layout) throws IOException {
+		super();
+		this.source = source;
+		this.layout = layout;
+		parse();
+		buildTree();
+	}
+
+	/**
+	 * opens an image and detects its layout
+	 *
+	 * @param imageFile {@link File}
+	 * @return {@link Yaffs2Image}
+	 * @throws IOException if no yaffs2 chunks are found
+	 */
+	public static Yaffs2Image open(File imageFile) throws IOException {
+		ImageSource source = ImageSource.open(imageFile);
+		try {
+			return new Yaffs2Image(source, detectLayout(source));
+		} catch (IOException e) {
+			source.close();
+			throw new IOException(imageFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * finds the layout for which the most chunks at the start of the image
+	 * carry valid tags
+	 *
+	 * @param source {@link ImageSource}
+	 * @return {@link Layout}
+	 * @throws IOException if no layout fits
+	 */
+	public static Layout detectLayout(ImageSource source) throws IOException {
+		Layout best = null;
+		int bestCount = 0;
+		for (Layout layout : LAYOUTS) {
+			int chunkSize = layout.pageSize + layout.spareSize;
+			if (source.length() == 0 || source.length() % chunkSize != 0) {
+				continue;
+			}
+			long chunks = Math.min(DETECT_CHUNKS, source.length() / chunkSize);
+			int valid = 0;
+			boolean header = false;
+			byte[] tags = new byte[16];
+			byte[] type = new byte[4];
+			for (long i = 0; i < chunks; i++) {
+				source.read(i * chunkSize + layout.pageSize + layout.tagsOffset, tags, 0, tags.length);
+				long sequence = getInt(tags, 0) & 0xffffffffL;
+				int objectId = getInt(tags, 4) & ~EXTRA_OBJECT_TYPE_MASK;
+				if (sequence < LOWEST_SEQUENCE || sequence > HIGHEST_SEQUENCE || objectId <= 0 || objectId > MAX_OBJECT_ID) {
+					continue;
+				}
+				valid++;
+				int chunkId = getInt(tags, 8);
+				if (chunkId == 0 || (chunkId & EXTRA_HEADER_INFO_FLAG) != 0) {
+					source.read(i * chunkSize, type, 0, type.length);
+					int objectType = getInt(type, 0);
+					header |= objectType >= Yaffs2Object.TYPE_FILE && objectType <= Yaffs2Object.TYPE_SPECIAL;
+				}
+			}
+			if (header && valid > bestCount) {
+				best = layout;
+				bestCount = valid;
+			}
+		}
+		if (best == null) {
+			throw new IOException("no yaffs2 chunks found; the image has to include the spare area"
+					+ " (a plain dump of /dev/mtd/mtdXro does not contain the tags)");
+		}
+		return best;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * @return {@link TarIndex} of all reachable objects, directories before their content
+	 */
+	public TarIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @param entry {@link TarEntry} of {@link #getIndex()}
+	 * @return {@link Yaffs2Object}
+	 */
+	public Yaffs2Object getObject(TarEntry entry) {
+		return entryObjects.get(entry);
+	}
+
+	/**
+	 * writes the content of a file, missing chunks are written as zeroes
+	 *
+	 * @param object {@link Yaffs2Object} file or hard link to a file
+	 * @param os {@link OutputStream}
+	 * @return {@link Long} number of bytes written
+	 * @throws IOException
+	 */
+	public long copy(Yaffs2Object object, OutputStream os) throws IOException {
+		Yaffs2Object file = resolve(object);
+		if (file.type != Yaffs2Object.TYPE_FILE) {
+			throw new IOException("not a file: " + getPath(object));
+		}
+		byte[] buffer = new byte[layout.pageSize];
+		long remaining = file.size;
+		for (int i = 0; remaining > 0; i++) {
+			int n = (int) Math.min(layout.pageSize, remaining);
+			int valid = 0;
+			if (i < file.getChunkCount() && file.getChunkOffset(i) >= 0) {
+				valid = Math.min(n, file.getChunkLength(i));
+				source.read(file.getChunkOffset(i), buffer, 0, valid);
+			}
+			for (int j = valid; j < n; j++) {
+				buffer[j] = 0;
+			}
+			os.write(buffer, 0, n);
+			remaining -= n;
+		}
+		return file.size;
+	}
+
+	/**
+	 * extracts the entries matching the glob patterns
+	 *
+	 * @param destDir {@link File} directory to extract to
+	 * @param patterns {@link String} glob patterns, all entries if none are passed
+	 * @return {@link List} of extracted entries
+	 * @throws IOException
+	 */
+	public List<TarEntry> extract(File destDir, String... patterns) throws IOException {
+		List<TarEntry> extracted = new ArrayList<TarEntry>();
+		List<TarEntry> directories = new ArrayList<TarEntry>();
+		for (TarEntry entry : patterns.length == 0 ? index.getEntries() : index.find(patterns)) {
+			File target = IndexedTarReader.getTargetFile(destDir, entry.getPath());
+			if (entry.isDirectory()) {
+				if (!target.isDirectory() && !target.mkdirs()) {
+					throw new IOException("cannot create directory " + target);
+				}
+				directories.add(entry);
+			} else if (entry.isFile() || entry.type == TarEntry.TYPE_HARDLINK) {
+				File parent = target.getParentFile();
+				if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("cannot create directory " + parent);
+				}
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(target), 256 * 1024);
+				try {
+					copy(entryObjects.get(entry), os);
+				} finally {
+					os.close();
+				}
+				IndexedTarReader.applyAttributes(target, entry);
+			} else {
+				// symbolic links cannot be created portably
+				System.err.println("skipping special file: " + entry);
+				continue;
+			}
+			extracted.add(entry);
+		}
+		// directory times are set last, creating files changes them
+		for (int i = directories.size() - 1; i >= 0; i--) {
+			TarEntry entry = directories.get(i);
+			IndexedTarReader.applyAttributes(IndexedTarReader.getTargetFile(destDir, entry.getPath()), entry);
+		}
+		return extracted;
+	}
+
+	/**
+	 * writes the entries matching the glob patterns as tar stream
+	 *
+	 * @param os {@link OutputStream}
+	 * @param patterns {@link String} glob patterns, all entries if none are passed
+	 * @return {@link Integer} number of entries written
+	 * @throws IOException
+	 */
+	public int writeTar(OutputStream os, String... patterns) throws IOException {
+		final TarArchiveWriter writer = new TarArchiveWriter(os);
+		OutputStream data = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writer.write(b, off, len);
+			}
+		};
+		int count = 0;
+		for (TarEntry entry : patterns.length == 0 ? index.getEntries() : index.find(patterns)) {
+			writer.putEntry(entry);
+			if (entry.isFile()) {
+				copy(entryObjects.get(entry), data);
+			}
+			writer.closeEntry();
+			count++;
+		}
+		writer.finish();
+		return count;
+	}
+
+	/**
+	 * reads the tags of every chunk in image order; headers are read when
+	 * they are newer than the known version of their object
+	 */
+	private void parse() throws IOException {
+		int chunkSize = layout.pageSize + layout.spareSize;
+		long chunks = source.length() / chunkSize;
+		byte[] tags = new byte[16];
+		byte[] header = new byte[HEADER_SIZE];
+		for (long i = 0; i < chunks; i++) {
+			long offset = i * chunkSize;
+			source.read(offset + layout.pageSize + layout.tagsOffset, tags, 0, tags.length);
+			long sequence = getInt(tags, 0) & 0xffffffffL;
+			if (sequence < LOWEST_SEQUENCE || sequence > HIGHEST_SEQUENCE) {
+				// erased or not written by yaffs
+				continue;
+			}
+			int objectId = getInt(tags, 4);
+			int chunkId = getInt(tags, 8);
+			int byteCount = getInt(tags, 12);
+			if ((chunkId & EXTRA_HEADER_INFO_FLAG) != 0) {
+				chunkId = 0;
+				objectId &= ~EXTRA_OBJECT_TYPE_MASK;
+			} else {
+				chunkId &= ~ALL_EXTRA_FLAGS;
+			}
+			if (objectId <= 0 || objectId > MAX_OBJECT_ID) {
+				continue;
+			}
+			Yaffs2Object object = objects.get(objectId);
+			if (object == null) {
+				object = new Yaffs2Object(objectId);
+				objects.put(objectId, object);
+			}
+			if (chunkId > 0) {
+				if (byteCount >= 0 && byteCount <= layout.pageSize) {
+					object.addChunk(chunkId, offset, byteCount, sequence);
+				}
+			} else if (sequence >= object.headerSequence) {
+				source.read(offset, header, 0, header.length);
+				readHeader(object, header);
+				object.headerSequence = sequence;
+			}
+		}
+	}
+
+	private static void readHeader(Yaffs2Object object, byte[] header) throws IOException {
+		object.type = getInt(header, 0);
+		object.parentId = getInt(header, 4);
+		object.name = getString(header, 10, 256);
+		object.mode = getInt(header, 268);
+		object.uid = getInt(header, 272);
+		object.gid = getInt(header, 276);
+		object.mtime = getInt(header, 284) & 0xffffffffL;
+		long sizeHigh = getInt(header, 496) & 0xffffffffL;
+		object.size = (getInt(header, 292) & 0xffffffffL) | (sizeHigh != 0xffffffffL ? sizeHigh << 32 : 0);
+		object.equivalentId = getInt(header, 296);
+		object.alias = getString(header, 300, 160);
+	}
+
+	/**
+	 * creates the tar entries of all objects reachable from the root
+	 */
+	private void buildTree() throws IOException {
+		Map<Integer, List<Yaffs2Object>> children = new HashMap<Integer, List<Yaffs2Object>>();
+		for (Yaffs2Object object : objects.values()) {
+			if (object.type == 0 || object.id == ROOT_ID || object.parentId == UNLINKED_ID || object.parentId == DELETED_ID) {
+				continue;
+			}
+			List<Yaffs2Object> list = children.get(object.parentId);
+			if (list == null) {
+				list = new ArrayList<Yaffs2Object>();
+				children.put(object.parentId, list);
+			}
+			list.add(object);
+		}
+		Comparator<Yaffs2Object> byName = new Comparator<Yaffs2Object>() {
+			@Override
+			public int compare(Yaffs2Object o1, Yaffs2Object o2) {
+				return o1.name.compareTo(o2.name);
+			}
+		};
+		// iterative depth first walk, a corrupt image may contain cycles
+		Set<Integer> visited = new HashSet<Integer>();
+		List<Yaffs2Object> stack = new ArrayList<Yaffs2Object>();
+		paths.put(ROOT_ID, "");
+		addChildren(ROOT_ID, children, byName, stack);
+		List<TarEntry> hardLinks = new ArrayList<TarEntry>();
+		while (!stack.isEmpty()) {
+			Yaffs2Object object = stack.remove(stack.size() - 1);
+			if (!visited.add(object.id)) {
+				continue;
+			}
+			String parentPath = paths.get(object.parentId);
+			String path = parentPath.length() == 0 ? object.name : parentPath + "/" + object.name;
+			paths.put(object.id, path);
+			TarEntry entry = toTarEntry(object, path);
+			if (entry == null) {
+				System.err.println("skipping special file: " + path);
+				continue;
+			}
+			if (entry.type == TarEntry.TYPE_HARDLINK) {
+				hardLinks.add(entry);
+			}
+			index.add(entry);
+			entryObjects.put(entry, object);
+			if (object.type == Yaffs2Object.TYPE_DIRECTORY) {
+				addChildren(object.id, children, byName, stack);
+			}
+		}
+		// the target of a hard link may be located later in the tree
+		for (TarEntry entry : hardLinks) {
+			Yaffs2Object target = resolve(entryObjects.get(entry));
+			entry.linkName = paths.get(target.id);
+			entry.size = target.size;
+			if (entry.linkName == null) {
+				throw new IOException("hard link to unknown object " + target.id + ": " + entry.name);
+			}
+		}
+	}
+
+	private static void addChildren(int parentId, Map<Integer, List<Yaffs2Object>> children, Comparator<Yaffs2Object> byName, List<Yaffs2Object> stack) {
+		List<Yaffs2Object> list = children.get(parentId);
+		if (list == null) {
+			return;
+		}
+		Collections.sort(list, byName);
+		// reversed, so the first child is taken from the stack first
+		for (int i = list.size() - 1; i >= 0; i--) {
+			stack.add(list.get(i));
+		}
+	}
+
+	private static TarEntry toTarEntry(Yaffs2Object object, String path) {
+		TarEntry entry = new TarEntry();
+		entry.mode = object.getPermissions();
+		entry.uid = object.uid;
+		entry.gid = object.gid;
+		entry.mtime = object.mtime;
+		entry.name = path;
+		switch (object.type) {
+		case Yaffs2Object.TYPE_FILE:
+			entry.type = TarEntry.TYPE_FILE;
+			entry.size = object.size;
+			break;
+		case Yaffs2Object.TYPE_DIRECTORY:
+			entry.type = TarEntry.TYPE_DIRECTORY;
+			entry.name = path + "/";
+			break;
+		case Yaffs2Object.TYPE_SYMLINK:
+			entry.type = TarEntry.TYPE_SYMLINK;
+			entry.linkName = object.alias;
+			break;
+		case Yaffs2Object.TYPE_HARDLINK:
+			entry.type = TarEntry.TYPE_HARDLINK;
+			break;
+		default:
+			return null;
+		}
+		return entry;
+	}
+
+	private Yaffs2Object resolve(Yaffs2Object object) throws IOException {
+		Yaffs2Object result = object;
+		for (int i = 0; result != null && result.type == Yaffs2Object.TYPE_HARDLINK; i++) {
+			if (i > 8) {
+				throw new IOException("hard link loop at object " + object.id);
+			}
+			result = objects.get(result.equivalentId);
+		}
+		if (result == null) {
+			throw new IOException("hard link to unknown object: " + object.name);
+		}
+		return result;
+	}
+
+	private String getPath(Yaffs2Object object) {
+		String path = paths.get(object.id);
+		return path != null ? path : String.valueOf(object.id);
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+	}
+
+	private static String getString(byte[] b, int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && b[end] != 0 && b[end] != (byte) 0xff) {
+			end++;
+		}
+		return new String(b, offset, end - offset, "UTF-8");
+	}
+}
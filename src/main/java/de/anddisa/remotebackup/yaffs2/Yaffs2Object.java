@@ -0,0 +1,146 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.yaffs2;
+
+import java.util.Arrays;
+
+/**
+ *
+ * an object (file, directory, link) of a yaffs2 image: the latest version of
+ * its header and the latest version of each of its data chunks
+ *
+ */
+public class Yaffs2Object {
+
+	public static final int TYPE_FILE = 1;
+	public static final int TYPE_SYMLINK = 2;
+	public static final int TYPE_DIRECTORY = 3;
+	public static final int TYPE_HARDLINK = 4;
+	public static final int TYPE_SPECIAL = 5;
+
+	public final int id;
+	/** 0 as long as no header was found */
+	int type;
+	int parentId;
+	String name;
+	int mode;
+	int uid;
+	int gid;
+	long mtime;
+	long size;
+	String alias;
+	int equivalentId;
+	/** sequence number of the block holding the header */
+	long headerSequence = -1;
+
+	/** image offsets of the data chunks (chunk id - 1), -1 if missing */
+	private long[] chunkOffsets = new long[0];
+	/** number of valid bytes of the data chunks */
+	private int[] chunkLengths = new int[0];
+	/** sequence numbers of the blocks holding the data chunks */
+	private long[] chunkSequences = new long[0];
+
+	Yaffs2Object(int id) {
+		super();
+		this.id = id;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public int getParentId() {
+		return parentId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return {@link Integer} permission bits including setuid, setgid and sticky bit
+	 */
+	public int getPermissions() {
+		return mode & 07777;
+	}
+
+	public int getUid() {
+		return uid;
+	}
+
+	public int getGid() {
+		return gid;
+	}
+
+	public long getMtime() {
+		return mtime;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return {@link String} target of a symbolic link
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return {@link Integer} id of the object a hard link refers to
+	 */
+	public int getEquivalentId() {
+		return equivalentId;
+	}
+
+	/**
+	 * records a data chunk unless a newer version is already known; of
+	 * chunks with the same sequence number the later one is newer
+	 */
+	void addChunk(int chunkId, long offset, int length, long sequence) {
+		int index = chunkId - 1;
+		if (index >= chunkOffsets.length) {
+			int newLength = Math.max(index + 1, chunkOffsets.length * 2);
+			int oldLength = chunkOffsets.length;
+			chunkOffsets = Arrays.copyOf(chunkOffsets, newLength);
+			chunkLengths = Arrays.copyOf(chunkLengths, newLength);
+			chunkSequences = Arrays.copyOf(chunkSequences, newLength);
+			Arrays.fill(chunkOffsets, oldLength, newLength, -1);
+		}
+		if (chunkOffsets[index] < 0 || sequence >= chunkSequences[index]) {
+			chunkOffsets[index] = offset;
+			chunkLengths[index] = length;
+			chunkSequences[index] = sequence;
+		}
+	}
+
+	int getChunkCount() {
+		return chunkOffsets.length;
+	}
+
+	long getChunkOffset(int index) {
+		return chunkOffsets[index];
+	}
+
+	int getChunkLength(int index) {
+		return chunkLengths[index];
+	}
+
+	@Override
+	public String toString() {
+		return id + " " + type + " " + parentId + " " + name;
+	}
+}
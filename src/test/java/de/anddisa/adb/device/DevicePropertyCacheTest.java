@@ -0,0 +1,57 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.adb.device;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DevicePropertyCacheTest {
+
+    @Test
+    public void testParseGetprop() {
+        Map<String, String> properties = DevicePropertyCache.parseGetprop(
+                "[ro.hardware]: [mako]\r\n"
+                + "[persist.sys.empty]: []\n"
+                + "[ro.build.description]: [first line\n"
+                + "second line]\n"
+                + "garbage\n"
+                + "[ro.product.device]: [mako]\n");
+        Assert.assertEquals(4, properties.size());
+        Assert.assertEquals("mako", properties.get("ro.hardware"));
+        Assert.assertEquals("", properties.get("persist.sys.empty"));
+        Assert.assertEquals("first line\nsecond line", properties.get("ro.build.description"));
+        Assert.assertEquals("mako", properties.get("ro.product.device"));
+    }
+
+    @Test
+    public void testParseGetvar() {
+        Map<String, String> variables = DevicePropertyCache.parseGetvar(
+                "(bootloader) version-bootloader: MAKOZ20i\n"
+                + "(bootloader) product: mako\n"
+                + "(bootloader) partition-size:boot: 0x0000000001600000\n"
+                + "all:\n"
+                + "finished. total time: 0.011s\n");
+        Assert.assertEquals(3, variables.size());
+        Assert.assertEquals("MAKOZ20i", variables.get("version-bootloader"));
+        Assert.assertEquals("mako", variables.get("product"));
+        Assert.assertEquals("0x0000000001600000", variables.get("partition-size:boot"));
+        // fastboot getvar of a single variable
+        variables = DevicePropertyCache.parseGetvar(
+                "product: mako\nfinished. total time: 0.001s\n");
+        Assert.assertEquals("mako", variables.get("product"));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.apps;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+public class ApkStoreTest {
+
+	@Test
+	public void testParsePackagePaths() {
+		Assert.assertEquals(Arrays.asList("/data/app/com.foo-1/base.apk", "/data/app/com.foo-1/split_config.de.apk"),
+				ApkStore.parsePackagePaths("package:/data/app/com.foo-1/base.apk\r\npackage:/data/app/com.foo-1/split_config.de.apk\r\n"));
+		Assert.assertTrue(ApkStore.parsePackagePaths("").isEmpty());
+	}
+
+	@Test
+	public void testStore() throws Exception {
+		File dir = FileUtil.createTempDir("apkstore");
+		try {
+			ApkStore store = new ApkStore(dir);
+			File apk = new File(dir, "transfer");
+			FileUtil.writeToFile("apk content", apk);
+			String md5 = MD5Utils.md5sum(apk.getPath());
+			Assert.assertFalse(store.contains(md5));
+			Assert.assertTrue(store.add(apk, md5));
+			Assert.assertTrue(store.contains(md5));
+			Assert.assertFalse(apk.exists());
+
+			File corrupt = new File(dir, "corrupt");
+			FileUtil.writeToFile("truncated", corrupt);
+			Assert.assertFalse(store.add(corrupt, md5));
+			Assert.assertFalse(corrupt.exists());
+
+			Map<String, String> apks = new LinkedHashMap<String, String>();
+			apks.put("/data/app/com.foo-1.apk", md5);
+			File listFile = ApkStore.getApkListFile(dir, "com.foo");
+			ApkStore.saveApkList(listFile, apks);
+			Assert.assertEquals(apks, ApkStore.loadApkList(listFile));
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+}
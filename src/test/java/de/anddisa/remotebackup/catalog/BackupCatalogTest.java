@@ -0,0 +1,70 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.catalog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class BackupCatalogTest {
+
+	@Test
+	public void testQueries() throws Exception {
+		File dir = FileUtil.createTempDir("catalog");
+		try {
+			BackupCatalog catalog = BackupCatalog.open(dir);
+			catalog.add(new CatalogEntry(1000, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "DATAFS", "2013-01-01/data.img", 10, "aa", "", 5, true));
+			catalog.add(new CatalogEntry(2000, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "DATAFS", "2013-01-02/data.img", 10, "bb", "", 5, false));
+			catalog.add(new CatalogEntry(1500, "Y2", "mako", CatalogEntry.TYPE_TAR, "data", "my\tdir/data.chain", 20, null, null, 7, true));
+			// incomplete line written by an interrupted backup
+			FileOutputStream os = new FileOutputStream(new File(dir, BackupCatalog.CATALOG_FILE), true);
+			os.write("3000\tX1\tsmdk".getBytes("UTF-8"));
+			os.close();
+
+			catalog = BackupCatalog.open(dir);
+			Assert.assertEquals(3, catalog.list(null, null).size());
+			Assert.assertEquals(2, catalog.list("X1", null).size());
+			Assert.assertEquals(2, catalog.list(null, "DATAFS").size());
+			Assert.assertTrue(catalog.list("Y2", "DATAFS").isEmpty());
+			Assert.assertEquals("2013-01-01/data.img", catalog.getLatest("X1", "DATAFS", true).file);
+			Assert.assertEquals("2013-01-02/data.img", catalog.getLatest("X1", "DATAFS", false).file);
+			Assert.assertEquals(2, catalog.getLatest(null, true).size());
+			CatalogEntry tar = catalog.getLatest("Y2", true).get(0);
+			Assert.assertEquals("my\tdir/data.chain", tar.file);
+			Assert.assertEquals("", tar.md5);
+			Assert.assertEquals(new File(dir, "my\tdir/data.chain"), catalog.getFile(tar));
+
+			catalog.add(new CatalogEntry(4000, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "DATAFS", "2013-01-04/data.img", 10, "cc", "", 5, true));
+			Assert.assertEquals("2013-01-04/data.img", BackupCatalog.open(dir).getLatest("X1", "DATAFS", true).file);
+
+			Assert.assertEquals("2013-01-01/data.img", catalog.findByMD5(CatalogEntry.TYPE_IMAGE, "aa").get(0).file);
+			Assert.assertTrue(catalog.findByMD5(CatalogEntry.TYPE_IMAGE, "bb").isEmpty());
+			Assert.assertTrue(catalog.findByMD5(CatalogEntry.TYPE_TAR, "cc").isEmpty());
+
+			catalog.remove(catalog.getLatest("Y2", "data", true));
+			catalog = BackupCatalog.open(dir);
+			Assert.assertTrue(catalog.list("Y2", null).isEmpty());
+			Assert.assertEquals(1, catalog.listByName(null).size());
+			catalog.remove(catalog.findByMD5(CatalogEntry.TYPE_IMAGE, "aa").get(0));
+			Assert.assertTrue(BackupCatalog.open(dir).findByMD5(CatalogEntry.TYPE_IMAGE, "aa").isEmpty());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+}
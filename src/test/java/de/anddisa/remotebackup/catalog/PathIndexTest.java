@@ -0,0 +1,121 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.catalog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.tar.IndexedTarReader;
+import de.anddisa.remotebackup.tar.TarArchiveWriter;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarSnapshot;
+
+public class PathIndexTest {
+
+	@Test
+	public void testFind() throws Exception {
+		File dir = FileUtil.createTempDir("pathindex");
+		try {
+			// a full and an incremental backup of /data, the full volume is linked
+			File full = new File(dir, "d1");
+			full.mkdirs();
+			writeTar(new File(full, "data.tar"), "data/data/com.foo/x.db", "one", "data/system/packages.xml", "<packages/>");
+			TarSnapshot first = new TarSnapshot(full, "data");
+			first.addVolume("data.tar");
+			first.save();
+			File inc = new File(dir, "d2");
+			inc.mkdirs();
+			TarSnapshot second = first.linkTo(inc);
+			writeTar(new File(inc, "data.d2.tar"), "data/data/com.foo/x.db", "two");
+			TarSnapshot.saveDeleted(new File(inc, "data.d2.tar"), Arrays.asList("data/system/packages.xml"));
+			second.addVolume("data.d2.tar");
+			second.save();
+
+			BackupCatalog catalog = BackupCatalog.open(dir);
+			catalog.add(new CatalogEntry(1000, "X1", "mako", CatalogEntry.TYPE_TAR, "data", "d1/data.chain", 0, null, null, 1, true));
+			catalog.add(new CatalogEntry(2000, "X1", "mako", CatalogEntry.TYPE_TAR, "data", "d2/data.chain", 0, null, null, 1, true));
+			Assert.assertEquals(2, PathIndex.open(dir).update(catalog));
+			// nothing left to index, linked volumes are not indexed again
+			Assert.assertEquals(0, PathIndex.open(dir).update(catalog));
+
+			PathIndex pathIndex = PathIndex.open(dir);
+			List<PathIndex.Version> versions = pathIndex.find("/data/data/com.foo/x.db");
+			Assert.assertEquals(2, versions.size());
+			Assert.assertEquals(2000, versions.get(0).time);
+			Assert.assertEquals("d2/data.d2.tar", versions.get(0).volume);
+			Assert.assertEquals(3, versions.get(0).size);
+			Assert.assertEquals("d1/data.tar", versions.get(1).volume);
+			versions = pathIndex.find("data/system/packages.xml");
+			Assert.assertEquals(2, versions.size());
+			Assert.assertTrue(versions.get(0).isDeleted());
+			Assert.assertFalse(versions.get(1).isDeleted());
+			Assert.assertTrue(pathIndex.find("/data/data/com.bar/x.db").isEmpty());
+
+			// same results from the sorted file
+			pathIndex.compact();
+			Assert.assertFalse(new File(dir, PathIndex.LOG_FILE).exists());
+			pathIndex = PathIndex.open(dir);
+			Assert.assertEquals(2, pathIndex.find("/data/data/com.foo/x.db").size());
+			Assert.assertEquals(2, pathIndex.find("/data/system/packages.xml").size());
+			Assert.assertTrue(pathIndex.find("/data/data/com.foo").isEmpty());
+			Assert.assertTrue(pathIndex.find("/zzz").isEmpty());
+
+			// the first snapshot is removed, its volume is still linked into the second one
+			catalog.remove(catalog.list("X1", "data").get(0));
+			FileUtil.recursiveDelete(full);
+			PathIndex.Version old = pathIndex.find("/data/data/com.foo/x.db").get(1);
+			File volume = pathIndex.getVolumeFile(catalog, old);
+			Assert.assertEquals(new File(inc, "data.tar"), volume);
+			File out = new File(dir, "out");
+			new IndexedTarReader(volume, null).extract(Arrays.asList(old.toTarEntry()), out);
+			File expected = new File(dir, "expected");
+			FileUtil.writeToFile("one", expected);
+			Assert.assertTrue(FileUtil.compareFileContents(expected, new File(out, "data/data/com.foo/x.db")));
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	private static void writeTar(File file, String... namesAndContents) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		TarArchiveWriter writer = new TarArchiveWriter(bos);
+		for (int i = 0; i < namesAndContents.length; i += 2) {
+			byte[] data = namesAndContents[i + 1].getBytes("UTF-8");
+			TarEntry entry = new TarEntry();
+			entry.name = namesAndContents[i];
+			entry.type = TarEntry.TYPE_FILE;
+			entry.mode = 0660;
+			entry.size = data.length;
+			entry.mtime = 1380000000;
+			writer.putEntry(entry);
+			writer.write(data, 0, data.length);
+			writer.closeEntry();
+		}
+		writer.finish();
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(bos.toByteArray());
+		} finally {
+			fos.close();
+		}
+	}
+}
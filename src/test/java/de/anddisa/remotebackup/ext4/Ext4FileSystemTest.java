@@ -0,0 +1,228 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.ext4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.image.SparseImageWriter;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarIndex;
+
+public class Ext4FileSystemTest {
+
+	private static final int BS = 1024;
+
+	@Test
+	public void testReadImage() throws Exception {
+		byte[] image = createImage();
+		File dir = FileUtil.createTempDir("ext4");
+		try {
+			File imageFile = new File(dir, "system.img");
+			write(imageFile, image);
+			Ext4FileSystem fs = Ext4FileSystem.open(imageFile);
+			try {
+				checkFileSystem(fs);
+				List<TarEntry> extracted = Ext4Exporter.extract(fs, new File(dir, "x"), "dir/*");
+				Assert.assertEquals(1, extracted.size());
+				Assert.assertEquals("dir/b", extracted.get(0).name);
+				Assert.assertFalse(new File(dir, "x/a.txt").exists());
+				Assert.assertEquals(10, new File(dir, "x/dir/b").length());
+
+				File tarFile = new File(dir, "system.tar");
+				FileOutputStream os = new FileOutputStream(tarFile);
+				try {
+					Assert.assertEquals(4, Ext4Exporter.writeTar(fs, "", os));
+				} finally {
+					os.close();
+				}
+				List<String> names = new ArrayList<String>();
+				for (TarEntry entry : TarIndex.loadOrBuild(tarFile).getEntries()) {
+					names.add(entry.name);
+				}
+				Assert.assertEquals(Arrays.asList("a.txt", "dir/", "dir/b", "link"), names);
+				Assert.assertEquals("a.txt", TarIndex.loadOrBuild(tarFile).getEntries().get(3).linkName);
+			} finally {
+				fs.close();
+			}
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testReadSparseImage() throws Exception {
+		byte[] image = createImage();
+		File dir = FileUtil.createTempDir("ext4");
+		try {
+			List<File> files = SparseImageWriter.write(new ByteArrayInputStream(image), dir, "system", 3 * SparseImageWriter.BLOCK_SIZE);
+			Assert.assertTrue(files.size() > 1);
+			Ext4FileSystem fs = Ext4FileSystem.open(files.get(1));
+			try {
+				checkFileSystem(fs);
+			} finally {
+				fs.close();
+			}
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	private static void checkFileSystem(Ext4FileSystem fs) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (Ext4FileSystem.Entry entry : fs.list(fs.getRoot())) {
+			names.add(entry.name);
+		}
+		Assert.assertEquals(Arrays.asList("a.txt", "dir", "link"), names);
+
+		// extent mapped file with a hole and an uninitialized extent
+		Ext4Inode a = fs.lookup("/a.txt");
+		Assert.assertTrue(a.isFile());
+		Assert.assertEquals(0644, a.getPermissions());
+		Assert.assertEquals(1000, a.uid);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		Assert.assertEquals(3 * BS + 100, fs.copy(a, bos));
+		byte[] expected = new byte[3 * BS + 100];
+		Arrays.fill(expected, 0, BS, (byte) 'a');
+		Arrays.fill(expected, 2 * BS, 3 * BS, (byte) 'c');
+		Assert.assertArrayEquals(expected, bos.toByteArray());
+
+		// block mapped file
+		Ext4Inode b = fs.lookup("dir/b");
+		bos = new ByteArrayOutputStream();
+		fs.copy(b, bos);
+		Assert.assertEquals("0123456789", bos.toString("US-ASCII"));
+
+		Ext4Inode link = fs.lookup("link");
+		Assert.assertTrue(link.isSymlink());
+		Assert.assertEquals("a.txt", fs.readLink(link));
+		Assert.assertNull(fs.lookup("dir/missing"));
+		Assert.assertNull(fs.lookup("a.txt/b"));
+	}
+
+	/**
+	 * a 64 kB file system with 1 kB blocks: a.txt using extents, dir/b using
+	 * a block map and a fast symbolic link
+	 */
+	private static byte[] createImage() {
+		byte[] image = new byte[64 * BS];
+		// superblock
+		int sb = 1024;
+		putInt(image, sb + 0x0, 16);
+		putInt(image, sb + 0x4, 64);
+		putInt(image, sb + 0x14, 1);
+		putInt(image, sb + 0x20, 8192);
+		putInt(image, sb + 0x28, 16);
+		putShort(image, sb + 0x38, 0xef53);
+		putInt(image, sb + 0x4c, 1);
+		putShort(image, sb + 0x58, 128);
+		putInt(image, sb + 0x60, 0x2 | 0x40);
+		// group descriptor, inode table in blocks 4 and 5
+		putInt(image, 2 * BS + 0x8, 4);
+
+		int root = putInode(image, 2, 040755, BS, 0x80000);
+		putExtentHeader(image, root, 1);
+		putExtent(image, root + 12, 0, 1, 10);
+		int pos = 10 * BS;
+		pos = putEntry(image, pos, 2, ".", 2, 12);
+		pos = putEntry(image, pos, 2, "..", 2, 12);
+		pos = putEntry(image, pos, 12, "a.txt", 1, 16);
+		// deleted entry
+		pos = putEntry(image, pos, 0, "old", 1, 12);
+		pos = putEntry(image, pos, 13, "dir", 2, 12);
+		putEntry(image, pos, 14, "link", 7, 10 * BS + BS - pos);
+
+		int a = putInode(image, 12, 0100644, 3 * BS + 100, 0x80000);
+		putShort(image, a + 0x2, 1000);
+		putExtentHeader(image, a, 3);
+		putExtent(image, a + 12, 0, 1, 20);
+		putExtent(image, a + 24, 2, 1, 21);
+		putExtent(image, a + 36, 3, 32768 + 1, 22);
+		Arrays.fill(image, 20 * BS, 23 * BS, (byte) 'a');
+		Arrays.fill(image, 21 * BS, 22 * BS, (byte) 'c');
+
+		int d = putInode(image, 13, 040755, BS, 0);
+		putInt(image, d + 0x28, 11);
+		pos = 11 * BS;
+		pos = putEntry(image, pos, 13, ".", 2, 12);
+		pos = putEntry(image, pos, 2, "..", 2, 12);
+		putEntry(image, pos, 15, "b", 1, 11 * BS + BS - pos);
+
+		int b = putInode(image, 15, 0100600, 10, 0);
+		putInt(image, b + 0x28, 24);
+		System.arraycopy("0123456789".getBytes(), 0, image, 24 * BS, 10);
+
+		int link = putInode(image, 14, 0120777, 5, 0);
+		System.arraycopy("a.txt".getBytes(), 0, image, link + 0x28, 5);
+		return image;
+	}
+
+	private static int putInode(byte[] image, int number, int mode, int size, int flags) {
+		int offset = 4 * BS + (number - 1) * 128;
+		putShort(image, offset, mode);
+		putInt(image, offset + 0x4, size);
+		putInt(image, offset + 0x20, flags);
+		return offset;
+	}
+
+	private static void putExtentHeader(byte[] image, int inode, int entries) {
+		putShort(image, inode + 0x28, 0xf30a);
+		putShort(image, inode + 0x2a, entries);
+		putShort(image, inode + 0x2c, 4);
+	}
+
+	private static void putExtent(byte[] image, int offset, int logical, int length, int physical) {
+		putInt(image, offset + 0x28, logical);
+		putShort(image, offset + 0x2c, length);
+		putInt(image, offset + 0x30, physical);
+	}
+
+	private static int putEntry(byte[] image, int offset, int inode, String name, int type, int length) {
+		putInt(image, offset, inode);
+		putShort(image, offset + 4, length);
+		image[offset + 6] = (byte) name.length();
+		image[offset + 7] = (byte) type;
+		System.arraycopy(name.getBytes(), 0, image, offset + 8, name.length());
+		return offset + length;
+	}
+
+	private static void write(File file, byte[] data) throws Exception {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		putShort(b, offset, value);
+		putShort(b, offset + 2, value >> 16);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class ChunkManifestTest {
+
+	@Test
+	public void testChangedRanges() throws Exception {
+		File image = FileUtil.createTempFile("chunks", ".img");
+		try {
+			byte[] data = new byte[10 * 16 + 5];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) i;
+			}
+			FileOutputStream os = new FileOutputStream(image);
+			os.write(data);
+			os.close();
+
+			ChunkManifest manifest = ChunkManifest.loadOrCompute(image, 16);
+			Assert.assertEquals(11, manifest.getChunkCount());
+			Assert.assertEquals(5, manifest.getLength(new ChunkManifest.Range(10, 1)));
+			Assert.assertTrue(ChunkManifest.getChunksFile(image).isFile());
+			Assert.assertEquals(manifest.getDigests(), ChunkManifest.load(ChunkManifest.getChunksFile(image)).getDigests());
+
+			List<String> device = new ArrayList<String>(manifest.getDigests());
+			device.set(1, "00000000000000000000000000000000");
+			device.set(3, "00000000000000000000000000000000");
+			device.set(8, "00000000000000000000000000000000");
+			device.remove(10);
+			Assert.assertEquals("[1+3, 8+3]", manifest.getChangedRanges(device, 1).toString());
+			Assert.assertEquals("[1+1, 3+1, 8+1, 10+1]", manifest.getChangedRanges(device, 0).toString());
+
+			// the short last chunk is verified as well
+			Assert.assertTrue(manifest.verify(new ChunkManifest.Range(9, 2), manifest.getDigests().subList(9, 11)).isEmpty());
+			Assert.assertEquals(Arrays.asList(10), manifest.verify(new ChunkManifest.Range(9, 2), device.subList(9, 10)));
+			Assert.assertEquals(Arrays.asList(8), manifest.verify(new ChunkManifest.Range(7, 2), device.subList(7, 9)));
+		} finally {
+			FileUtil.deleteFile(ChunkManifest.getChunksFile(image));
+			FileUtil.deleteFile(image);
+		}
+	}
+
+	@Test
+	public void testParseDigests() {
+		Assert.assertEquals(Arrays.asList("d41d8cd98f00b204e9800998ecf8427e"),
+				ChunkManifest.parseDigests("d41d8cd98f00b204e9800998ecf8427e  -\r\nsu: warning\r\n"));
+	}
+}
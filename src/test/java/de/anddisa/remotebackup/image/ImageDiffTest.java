@@ -0,0 +1,76 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class ImageDiffTest {
+
+	private static final int CHUNK_SIZE = 4 * ImageDiff.BLOCK_SIZE;
+
+	@Test
+	public void testChangedBlocks() throws Exception {
+		File dir = FileUtil.createTempDir("imagediff");
+		try {
+			byte[] data = new byte[10 * ImageDiff.BLOCK_SIZE + 100];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) (i * 31);
+			}
+			File oldImage = new File(dir, "old.img");
+			write(oldImage, data);
+			data[ImageDiff.BLOCK_SIZE + 1]++;
+			data[2 * ImageDiff.BLOCK_SIZE]++;
+			data[9 * ImageDiff.BLOCK_SIZE + 5]++;
+			File newImage = new File(dir, "new.img");
+			write(newImage, data);
+
+			ImageSource oldSource = ImageSource.open(oldImage);
+			ImageSource newSource = ImageSource.open(newImage);
+			try {
+				ChunkManifest oldManifest = ChunkManifest.compute(oldSource, CHUNK_SIZE, 3);
+				Assert.assertEquals(ChunkManifest.compute(oldImage, CHUNK_SIZE).getDigests(), oldManifest.getDigests());
+				ChunkManifest newManifest = ChunkManifest.compute(newSource, CHUNK_SIZE, 3);
+				ImageDiff diff = ImageDiff.compare(oldSource, oldManifest, newSource, newManifest, false);
+				Assert.assertEquals("[1+2, 9+1]", diff.getChangedBlocks().toString());
+				Assert.assertEquals(3 * ImageDiff.BLOCK_SIZE, diff.getChangedBytes());
+				Assert.assertTrue(diff.isChanged(0, ImageDiff.BLOCK_SIZE + 1));
+				Assert.assertTrue(diff.isChanged(3 * ImageDiff.BLOCK_SIZE - 1, 1));
+				Assert.assertFalse(diff.isChanged(3 * ImageDiff.BLOCK_SIZE, 6 * ImageDiff.BLOCK_SIZE));
+				Assert.assertTrue(diff.isChanged(3 * ImageDiff.BLOCK_SIZE, 6 * ImageDiff.BLOCK_SIZE + 1));
+				Assert.assertFalse(diff.isChanged(10 * ImageDiff.BLOCK_SIZE, 100));
+			} finally {
+				oldSource.close();
+				newSource.close();
+			}
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	private static void write(File file, byte[] data) throws Exception {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class SparseImageWriterTest {
+
+	private static final int BS = SparseImageWriter.BLOCK_SIZE;
+
+	@Test
+	public void testSplitImage() throws Exception {
+		// 3 random blocks, 5 zero blocks, 2 blocks filled with 0x01020304, 4 random blocks, half a block
+		byte[] image = new byte[14 * BS + BS / 2];
+		Random random = new Random(1);
+		byte[] noise = new byte[4 * BS];
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, image, 0, 3 * BS);
+		for (int i = 8 * BS; i < 10 * BS; i += 4) {
+			image[i] = 4;
+			image[i + 1] = 3;
+			image[i + 2] = 2;
+			image[i + 3] = 1;
+		}
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, image, 10 * BS, 4 * BS);
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, image, 14 * BS, BS / 2);
+
+		File dir = FileUtil.createTempDir("sparse");
+		try {
+			List<File> files = SparseImageWriter.write(new ByteArrayInputStream(image), dir, "system", 3 * BS);
+			Assert.assertTrue(files.size() > 1);
+			byte[] restored = new byte[15 * BS];
+			for (File file : files) {
+				Assert.assertTrue(file.length() <= 3 * BS);
+				apply(file, restored);
+			}
+			byte[] expected = new byte[15 * BS];
+			System.arraycopy(image, 0, expected, 0, image.length);
+			Assert.assertArrayEquals(expected, restored);
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	/**
+	 * writes the blocks of a sparse file the way the bootloader does
+	 */
+	private static void apply(File file, byte[] target) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Assert.assertEquals(0x3aff26ed, raf.readInt());
+			raf.seek(16);
+			Assert.assertEquals(15, Integer.reverseBytes(raf.readInt()));
+			int chunks = Integer.reverseBytes(raf.readInt());
+			raf.seek(28);
+			int block = 0;
+			for (int i = 0; i < chunks; i++) {
+				int type = Short.reverseBytes(raf.readShort()) & 0xffff;
+				raf.readShort();
+				int blocks = Integer.reverseBytes(raf.readInt());
+				int size = Integer.reverseBytes(raf.readInt());
+				if (type == 0xcac1) {
+					Assert.assertEquals(12 + blocks * BS, size);
+					raf.readFully(target, block * BS, blocks * BS);
+				} else if (type == 0xcac2) {
+					Assert.assertEquals(16, size);
+					byte[] fill = new byte[4];
+					raf.readFully(fill);
+					for (int j = block * BS; j < (block + blocks) * BS; j++) {
+						target[j] = fill[j % 4];
+					}
+				} else {
+					Assert.assertEquals(0xcac3, type);
+					Assert.assertEquals(12, size);
+				}
+				block += blocks;
+			}
+			Assert.assertEquals(15, block);
+			Assert.assertEquals(raf.length(), raf.getFilePointer());
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.retention;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.apps.ApkStore;
+import de.anddisa.remotebackup.catalog.BackupCatalog;
+import de.anddisa.remotebackup.catalog.CatalogEntry;
+
+public class BackupPrunerTest {
+
+	private static final long DAY = 24L * 3600 * 1000;
+
+	@Test
+	public void testPruneAndCollect() throws Exception {
+		File dir = FileUtil.createTempDir("prune");
+		try {
+			ApkStore store = new ApkStore(new File(dir, "apks"));
+			store.getDirectory().mkdirs();
+			File oldApk = store.getFile("aaaa");
+			File sharedApk = store.getFile("bbbb");
+			FileUtil.writeToFile("old", oldApk);
+			FileUtil.writeToFile("shared", sharedApk);
+			FileUtil.writeToFile("part", store.getPartFile("cccc"));
+			for (File file : store.getDirectory().listFiles()) {
+				file.setLastModified(System.currentTimeMillis() - DAY);
+			}
+
+			BackupCatalog catalog = BackupCatalog.open(dir);
+			long time = System.currentTimeMillis() - 10 * DAY;
+			for (String snapshot : new String[] { "s1", "s2" }) {
+				File snapshotDir = new File(dir, snapshot);
+				snapshotDir.mkdirs();
+				FileUtil.writeToFile("img", new File(snapshotDir, "boot.img"));
+				FileUtil.writeToFile("d41d8cd98f00b204e9800998ecf8427e  boot.img", new File(snapshotDir, "boot.img.md5"));
+				FileUtil.writeToFile("tar", new File(snapshotDir, "com.foo.tar"));
+				Map<String, String> apks = new LinkedHashMap<String, String>();
+				apks.put("/data/app/com.foo.apk", "s1".equals(snapshot) ? "aaaa" : "bbbb");
+				apks.put("/data/app/com.foo-split.apk", "bbbb");
+				ApkStore.saveApkList(ApkStore.getApkListFile(snapshotDir, "com.foo"), apks);
+				catalog.add(new CatalogEntry(time, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "BOOT", snapshot + "/boot.img", 3, "", "", 5, true));
+				catalog.add(new CatalogEntry(time, "X1", "smdk4210", CatalogEntry.TYPE_APP, "com.foo", snapshot + "/com.foo.tar", 3, "", "", 5, true));
+				time += 5 * DAY;
+			}
+			// written without timestamped directory, the file is shared by both entries
+			FileUtil.writeToFile("img", new File(dir, "recovery.img"));
+			catalog.add(new CatalogEntry(time, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "RECOVERY", "recovery.img", 3, "", "", 5, true));
+			catalog.add(new CatalogEntry(time + DAY, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "RECOVERY", "recovery.img", 3, "", "", 5, true));
+
+			BackupPruner.Result result = new BackupPruner(catalog).prune(new RetentionPolicy(1, 0, 0), "X1",
+					Collections.<String> emptyList());
+			Assert.assertEquals(3, result.removed.size());
+			Assert.assertEquals(4, result.files);
+			Assert.assertFalse(new File(dir, "s1").exists());
+			Assert.assertTrue(new File(dir, "s2/com.foo.apks").isFile());
+			Assert.assertTrue(new File(dir, "recovery.img").isFile());
+			catalog = BackupCatalog.open(dir);
+			Assert.assertEquals(3, catalog.list("X1", null).size());
+			Assert.assertEquals("s2/boot.img", catalog.getLatest("X1", "BOOT", true).file);
+
+			StoreCollector collector = new StoreCollector(dir, store);
+			StoreCollector.Result gc = collector.run(0);
+			Assert.assertFalse(gc.complete);
+			Assert.assertTrue(new File(dir, StoreCollector.STATE_FILE).isFile());
+			gc = collector.run(Long.MAX_VALUE);
+			Assert.assertTrue(gc.complete);
+			Assert.assertEquals(2, gc.deleted);
+			Assert.assertFalse(oldApk.exists());
+			Assert.assertTrue(sharedApk.exists());
+			Assert.assertFalse(new File(dir, StoreCollector.STATE_FILE).exists());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+}
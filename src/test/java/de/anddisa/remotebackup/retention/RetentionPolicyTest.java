@@ -0,0 +1,91 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.retention;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.remotebackup.catalog.CatalogEntry;
+
+public class RetentionPolicyTest {
+
+	@Test
+	public void testParse() {
+		Assert.assertEquals("7d,4w,12m", RetentionPolicy.parse("7d, 4w,12m").toString());
+		Assert.assertEquals("0d,2w,0m", RetentionPolicy.parse("2w").toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseInvalid() {
+		RetentionPolicy.parse("7x");
+	}
+
+	@Test
+	public void testExpired() {
+		List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+		// two backups a day from 2013-01-01 to 2013-03-31, the morning ones not verified
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2013, Calendar.JANUARY, 1, 8, 0);
+		while (calendar.get(Calendar.MONTH) <= Calendar.MARCH) {
+			entries.add(entry(calendar.getTimeInMillis(), false));
+			calendar.set(Calendar.HOUR_OF_DAY, 20);
+			entries.add(entry(calendar.getTimeInMillis(), true));
+			calendar.set(Calendar.HOUR_OF_DAY, 8);
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		// the latest one failed
+		entries.add(entry(calendar.getTimeInMillis(), false));
+
+		List<CatalogEntry> expired = new RetentionPolicy(3, 0, 3).getExpired(entries);
+		List<CatalogEntry> kept = new ArrayList<CatalogEntry>(entries);
+		kept.removeAll(expired);
+		List<String> names = new ArrayList<String>();
+		for (CatalogEntry entry : kept) {
+			names.add(entry.file);
+		}
+		// the latest (verified) backups of the last days and months
+		Assert.assertEquals("[02-28 20, 03-30 20, 03-31 20, 04-01 08]", names.toString());
+
+		// the latest backup and the latest verified one
+		Assert.assertEquals(1, new RetentionPolicy(0, 0, 0).getExpired(entries.subList(0, 3)).size());
+		Assert.assertTrue(new RetentionPolicy(0, 0, 0).getExpired(new ArrayList<CatalogEntry>()).isEmpty());
+	}
+
+	@Test
+	public void testWeeks() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2013, Calendar.MARCH, 13, 12, 0);
+		long week = RetentionPolicy.getPeriod(calendar.getTimeInMillis(), Calendar.WEEK_OF_YEAR);
+		for (int i = 0; i < 7; i++) {
+			long time = RetentionPolicy.getPeriod(week + i * 24L * 3600 * 1000 + 3600 * 1000, Calendar.WEEK_OF_YEAR);
+			Assert.assertEquals(week, time);
+		}
+		Assert.assertTrue(week <= calendar.getTimeInMillis());
+		Assert.assertTrue(calendar.getTimeInMillis() - week < 7 * 24L * 3600 * 1000);
+	}
+
+	private static CatalogEntry entry(long time, boolean verified) {
+		String name = new SimpleDateFormat("MM-dd HH").format(new Date(time));
+		return new CatalogEntry(time, "X1", "smdk4210", CatalogEntry.TYPE_IMAGE, "DATAFS", name, 10, "", "", 5, verified);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.scrub;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.image.ChunkManifest;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+public class BackupScrubberTest {
+
+	@Test
+	public void testScrub() throws Exception {
+		File dir = FileUtil.createTempDir("scrub");
+		try {
+			File day1 = new File(dir, "2013-01-01");
+			File day2 = new File(dir, "2013-01-02");
+			day1.mkdirs();
+			day2.mkdirs();
+			File tar = createWithMD5(new File(day1, "data.tar"), "tar content");
+			File image = createWithMD5(new File(day2, "system.img"), "image content which is split into chunks");
+			ChunkManifest.loadOrCompute(image, 8);
+			File other = createWithMD5(new File(day2, "data.tar"), "other tar content");
+			// a hard linked copy is verified once
+			FileUtil.hardlinkFile(tar, new File(day2, "old.tar"));
+			FileUtil.hardlinkFile(new File(tar.getPath() + ".md5"), new File(day2, "old.tar.md5"));
+			Assert.assertEquals(4, BackupScrubber.findTargets(dir).size());
+
+			// corrupt a chunk of the image and the other tar
+			RandomAccessFile raf = new RandomAccessFile(image, "rw");
+			raf.seek(17);
+			raf.write('X');
+			raf.close();
+			raf = new RandomAccessFile(other, "rw");
+			raf.write('X');
+			raf.close();
+
+			BackupScrubber scrubber = new BackupScrubber(dir, 2, new RateLimiter(0));
+			// nothing is started after the deadline
+			BackupScrubber.Result result = scrubber.run(0);
+			Assert.assertEquals(0, result.verified);
+			Assert.assertFalse(result.complete);
+
+			result = scrubber.run(Long.MAX_VALUE);
+			Assert.assertEquals(4, result.verified);
+			Assert.assertTrue(result.complete);
+			Assert.assertEquals("[2013-01-02/data.tar, 2013-01-02/system.img]", result.failed.toString());
+			Assert.assertFalse(new File(dir, BackupScrubber.STATE_FILE).exists());
+			Assert.assertTrue(new File(dir, BackupScrubber.LAST_STATE_FILE).isFile());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testRateLimiter() throws Exception {
+		RateLimiter limiter = new RateLimiter(1000);
+		long start = System.currentTimeMillis();
+		limiter.acquire(100);
+		limiter.acquire(100);
+		limiter.acquire(100);
+		// the third request waits for the first two
+		Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+	}
+
+	private static File createWithMD5(File file, String content) throws Exception {
+		FileUtil.writeToFile(content, file);
+		FileUtil.writeToFile(MD5Utils.md5sum(file.getPath()) + "  " + file.getName() + "\n", new File(file.getPath() + ".md5"));
+		return file;
+	}
+}
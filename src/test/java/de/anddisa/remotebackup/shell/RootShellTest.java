@@ -0,0 +1,61 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.shell;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class RootShellTest {
+
+	@Test
+	public void testFraming() throws Exception {
+		// a local shell stands in for the one of the device
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		RootShell shell = new RootShell(new ProcessBuilder("/bin/sh").start(), "");
+		try {
+			RootShell.Result result = shell.execute("echo hello; echo world");
+			Assert.assertEquals("hello\nworld\n", result.output);
+			Assert.assertEquals(0, result.exitCode);
+			// no trailing line feed, quotes, stderr and exit code
+			result = shell.execute("printf \"it's\"; echo ' oops' >&2; exit_code() { return 3; }; exit_code");
+			Assert.assertEquals("it's oops\n", result.output);
+			Assert.assertEquals(3, result.exitCode);
+			// a syntax error does not break the framing
+			Assert.assertTrue(shell.execute("if then").exitCode != 0);
+			Assert.assertEquals("", shell.execute("true").output);
+
+			List<RootShell.Result> results = shell.executeBatch(Arrays.asList("echo 1", "false", "echo 3"));
+			Assert.assertEquals(3, results.size());
+			Assert.assertEquals("1\n", results.get(0).output);
+			Assert.assertEquals(1, results.get(1).exitCode);
+			Assert.assertEquals("3\n", results.get(2).output);
+
+			// commands run in a subshell
+			Assert.assertEquals("2\n", shell.execute("exit 2; echo 1").output + shell.execute("echo 2").output);
+			// the session ends within a batch
+			results = shell.executeBatch(Arrays.asList("echo 1", "kill -9 $$", "echo 3"));
+			Assert.assertEquals(1, results.size());
+			Assert.assertFalse(shell.isAlive());
+			Assert.assertTrue(shell.executeBatch(Arrays.asList("echo 1")).isEmpty());
+		} finally {
+			shell.close();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FindFilterTest {
+
+	@Test
+	public void testExpression() {
+		FindFilter filter = new FindFilter();
+		Assert.assertTrue(filter.isEmpty());
+		Assert.assertEquals("busybox find /data -print0", filter.toFindCommand("/data"));
+
+		filter.addExclude("data/dalvik-cache/");
+		filter.addExclude("*/cache");
+		filter.addInclude("/data/data/**");
+		filter.setMinSize(1);
+		filter.setMaxSize(1024);
+		filter.setMaxAge(7);
+		Assert.assertFalse(filter.isEmpty());
+		Assert.assertEquals("\\( -path '/data/dalvik-cache' -o -path '*/cache' \\) -prune -o ! -type d"
+				+ " \\( -path '/data/data/*' -o -path '/data/data/*/*' \\) -size +0c -size -1025c -mtime -7",
+				filter.toExpression(true));
+		// directories are listed whatever the predicates say
+		Assert.assertEquals("busybox find /data \\( -path '/data/dalvik-cache' -o -path '*/cache' \\) -prune -o"
+				+ " \\( -type d -o \\( -path '/data/data/*' -o -path '/data/data/*/*' \\) -size +0c -size -1025c -mtime -7 \\)"
+				+ " -print0", filter.toFindCommand("/data"));
+	}
+
+	@Test
+	public void testQuote() {
+		Assert.assertEquals("'/sdcard/it'\\''s'", FindFilter.quote("/sdcard/it's"));
+	}
+}
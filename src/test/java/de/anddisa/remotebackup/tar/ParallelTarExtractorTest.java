@@ -0,0 +1,88 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class ParallelTarExtractorTest {
+
+	@Test
+	public void testExtractWhileParsing() throws Exception {
+		File dir = FileUtil.createTempDir("parallelextract");
+		try {
+			ParallelTarExtractor extractor = new ParallelTarExtractor(dir, 3);
+			TarStreamParser parser = new TarStreamParser();
+			parser.addListener(extractor);
+			byte[] archive = TarIndexTest.createArchive();
+			for (int i = 0; i < archive.length; i += 100) {
+				parser.write(archive, i, Math.min(100, archive.length - i));
+			}
+			parser.close();
+
+			Assert.assertEquals(6, extractor.getExtractedCount());
+			Assert.assertEquals(16, new File(dir, "data/data/com.foo/x.db").length());
+			Assert.assertEquals(6, new File(dir, "data/data/com.foo/y.xml").length());
+			Assert.assertTrue(new File(dir, "data/system/packages.xml").isFile());
+			Assert.assertEquals(1364000000000L, new File(dir, "data/data/com.foo").lastModified());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testFailureKeepsOtherListeners() throws Exception {
+		File dir = FileUtil.createTempDir("parallelextract");
+		try {
+			// the target directory cannot be created
+			File blocked = new File(dir, "blocked");
+			FileUtil.writeToFile("", blocked);
+			ParallelTarExtractor extractor = new ParallelTarExtractor(new File(blocked, "out"), 2);
+			File indexFile = new File(dir, "data.tar.idx");
+			TarStreamParser parser = new TarStreamParser();
+			parser.addListener(extractor);
+			parser.addListener(new TarIndexer(indexFile));
+			byte[] archive = TarIndexTest.createArchive();
+			parser.write(archive, 0, archive.length);
+			parser.close();
+
+			Assert.assertNotNull(extractor.getFailure());
+			Assert.assertTrue(parser.isFinished());
+			Assert.assertTrue(indexFile.isFile());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testPatterns() throws Exception {
+		File dir = FileUtil.createTempDir("parallelextract");
+		try {
+			File tarFile = new File(dir, "data.tar");
+			FileUtil.writeToFile(new ByteArrayInputStream(TarIndexTest.createArchive()), tarFile);
+			File out = new File(dir, "out");
+			Assert.assertEquals(3, ParallelTarExtractor.extract(tarFile, out, 2, "data/data/com.foo"));
+			Assert.assertTrue(new File(out, "data/data/com.foo/x.db").isFile());
+			Assert.assertFalse(new File(out, "data/system").exists());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+}
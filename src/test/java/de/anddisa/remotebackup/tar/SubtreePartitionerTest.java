@@ -0,0 +1,75 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class SubtreePartitionerTest {
+
+	@Test
+	public void testPartition() throws Exception {
+		Map<String, Long> sizes = SubtreePartitioner.parseDu("900\t/sdcard/DCIM\n"
+				+ "500\t/sdcard/Music\n"
+				+ "400\t/sdcard/Download\n"
+				+ "4\t/sdcard/notes.txt\n"
+				+ "1804\t/sdcard\n", "/sdcard");
+		Assert.assertEquals(4, sizes.size());
+		List<List<String>> groups = SubtreePartitioner.partition(sizes, 2);
+		Assert.assertEquals(2, groups.size());
+		Assert.assertEquals(Arrays.asList("/sdcard/DCIM", "/sdcard/notes.txt"), groups.get(0));
+		Assert.assertEquals(Arrays.asList("/sdcard/Music", "/sdcard/Download"), groups.get(1));
+		// never more groups than entries
+		Assert.assertEquals(4, SubtreePartitioner.partition(sizes, 8).size());
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+		File dir = FileUtil.createTempDir("tarmerger");
+		try {
+			File part0 = new File(dir, "data.part00.tar");
+			FileOutputStream fos = new FileOutputStream(part0);
+			fos.write(TarIndexTest.createArchive());
+			fos.close();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			TarIndexTest.writeFile(bos, "data/local/tmp/z.txt", "z");
+			bos.write(new byte[1024]);
+			File part1 = new File(dir, "data.part01.tar");
+			fos = new FileOutputStream(part1);
+			fos.write(bos.toByteArray());
+			fos.close();
+
+			File merged = new File(dir, "data.tar");
+			TarMerger.merge(Arrays.asList(part0, part1), merged);
+			TarIndex index = TarIndex.build(merged);
+			Assert.assertEquals(7, index.getEntries().size());
+			Assert.assertNotNull(index.get("data/local/tmp/z.txt"));
+			Assert.assertTrue(TarIndex.getIndexFile(merged).exists());
+			Assert.assertEquals(4, TarDigestManifest.load(TarDigestManifest.getManifestFile(merged)).getDigests().size());
+			Assert.assertTrue(new File(merged.getPath() + ".md5").exists());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+public class TarDigestManifestTest {
+
+	@Test
+	public void testDiffAgainstDeviceOutput() throws Exception {
+		TarDigestManifest manifest = new TarDigestManifest();
+		TarStreamParser parser = new TarStreamParser();
+		parser.addListener(manifest);
+		byte[] archive = TarIndexTest.createArchive();
+		parser.write(archive, 0, archive.length);
+		parser.close();
+
+		Assert.assertEquals(3, manifest.getDigests().size());
+		Assert.assertEquals(MD5Utils.md5sumFromString("<map/>"), manifest.getDigests().get("data/data/com.foo/y.xml"));
+
+		// md5sum output as produced by busybox find ... -exec md5sum on the device
+		String deviceOutput = MD5Utils.md5sumFromString("database content") + "  /data/data/com.foo/x.db\n"
+				+ MD5Utils.md5sumFromString("<map version=\"2\"/>") + "  /data/data/com.foo/y.xml\n"
+				+ MD5Utils.md5sumFromString("") + "  /data/data/com.foo/z.xml\n";
+		List<String> diff = manifest.diff(TarDigestManifest.parse(deviceOutput));
+		Assert.assertEquals(3, diff.size());
+		Assert.assertTrue(diff.contains("changed: data/data/com.foo/y.xml"));
+		Assert.assertTrue(diff.contains("missing: data/system/packages.xml"));
+		Assert.assertTrue(diff.contains("new: data/data/com.foo/z.xml"));
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class TarIndexTest {
+
+	/**
+	 * writes a minimal ustar header
+	 */
+	static void writeHeader(ByteArrayOutputStream bos, String name, char type, long size) throws IOException {
+		byte[] header = new byte[512];
+		byte[] nameBytes = name.getBytes("UTF-8");
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		putOctal(header, 100, 8, type == '5' ? 0755 : 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, 1364000000L);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long sum = 0;
+		for (byte b : header) {
+			sum += b & 0xff;
+		}
+		putOctal(header, 148, 7, sum);
+		bos.write(header);
+	}
+
+	static void putOctal(byte[] header, int offset, int length, long value) {
+		String s = Long.toOctalString(value);
+		while (s.length() < length - 1) {
+			s = "0" + s;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			header[offset + i] = (byte) s.charAt(i);
+		}
+	}
+
+	static void writeFile(ByteArrayOutputStream bos, String name, String content) throws IOException {
+		byte[] data = content.getBytes("UTF-8");
+		writeHeader(bos, name, '0', data.length);
+		bos.write(data);
+		bos.write(new byte[(int) TarStreamParser.getPadding(data.length)]);
+	}
+
+	static byte[] createArchive() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		writeHeader(bos, "data/", '5', 0);
+		writeHeader(bos, "data/data/", '5', 0);
+		writeHeader(bos, "data/data/com.foo/", '5', 0);
+		writeFile(bos, "data/data/com.foo/x.db", "database content");
+		writeFile(bos, "data/data/com.foo/y.xml", "<map/>");
+		writeFile(bos, "data/system/packages.xml", "");
+		bos.write(new byte[1024]);
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testParseInChunks() throws Exception {
+		byte[] archive = createArchive();
+		TarIndexer indexer = new TarIndexer();
+		TarStreamParser parser = new TarStreamParser();
+		parser.addListener(indexer);
+		// odd chunk sizes to cross header and data boundaries
+		for (int i = 0; i < archive.length; i += 77) {
+			parser.write(archive, i, Math.min(77, archive.length - i));
+		}
+		parser.close();
+		Assert.assertTrue(parser.isFinished());
+		List<TarEntry> entries = indexer.getIndex().getEntries();
+		Assert.assertEquals(6, entries.size());
+		TarEntry db = indexer.getIndex().get("/data/data/com.foo/x.db");
+		Assert.assertNotNull(db);
+		Assert.assertEquals(16, db.size);
+		Assert.assertEquals("database content", new String(archive, (int) db.dataOffset, (int) db.size, "UTF-8"));
+		Assert.assertEquals(0644, db.mode);
+		Assert.assertEquals(1364000000L, db.mtime);
+	}
+
+	@Test
+	public void testFindAndExtract() throws Exception {
+		File dir = FileUtil.createTempDir("tarindex");
+		try {
+			File tarFile = new File(dir, "data.tar");
+			FileOutputStream fos = new FileOutputStream(tarFile);
+			fos.write(createArchive());
+			fos.close();
+
+			IndexedTarReader reader = IndexedTarReader.open(tarFile);
+			Assert.assertTrue(TarIndex.getIndexFile(tarFile).exists());
+			Assert.assertEquals(2, reader.getIndex().find("data/data/*/*.*").size());
+			Assert.assertEquals(1, reader.getIndex().find("**/packages.xml").size());
+			// a matching directory includes its content
+			Assert.assertEquals(3, reader.getIndex().find("/data/data/com.foo").size());
+
+			// the stored index is read back identically
+			TarIndex loaded = TarIndex.load(TarIndex.getIndexFile(tarFile));
+			Assert.assertEquals(reader.getIndex().getEntries().size(), loaded.getEntries().size());
+
+			File out = new File(dir, "out");
+			reader.extract(out, "data/data/com.foo/x.db");
+			File extracted = new File(out, "data/data/com.foo/x.db");
+			Assert.assertTrue(extracted.isFile());
+			Assert.assertEquals(16, extracted.length());
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+}
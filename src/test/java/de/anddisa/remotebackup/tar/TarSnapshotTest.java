@@ -0,0 +1,195 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+public class TarSnapshotTest {
+
+	@Test
+	public void testManifestDiff() throws Exception {
+		FileManifest previous = FileManifest.parse("12 0 1364000000 41f9 /data\n"
+				+ "13 16 1364000000 81b0 /data/a.db\n"
+				+ "14 6 1364000000 81b0 /data/b.xml\n"
+				+ "15 6 1364000000 81b0 /data/my file.txt\n");
+		FileManifest current = FileManifest.parse("12 0 1364000100 41f9 /data\n"
+				+ "13 16 1364000000 81b0 /data/a.db\n"
+				+ "16 8 1364000100 81b0 /data/b.xml\n"
+				+ "stat: can't stat '/data/gone': No such file or directory\n"
+				+ "17 3 1364000100 81b0 /data/c.txt\n");
+		Assert.assertTrue(current.get("/data").isDirectory());
+		Assert.assertEquals(15, previous.get("data/my file.txt").inode);
+
+		List<FileManifest.Entry> changed = current.getChanged(previous);
+		Assert.assertEquals(3, changed.size());
+		Assert.assertEquals("data", changed.get(0).path);
+		Assert.assertEquals("data/b.xml", changed.get(1).path);
+		Assert.assertEquals("data/c.txt", changed.get(2).path);
+		Assert.assertEquals(Arrays.asList("data/my file.txt"), current.getDeleted(previous));
+		Assert.assertTrue(current.getNewDirectories(previous).isEmpty());
+
+		current.add(new FileManifest.Entry("data/new", 18, 0, 1364000100, 0x41f9));
+		current.add(new FileManifest.Entry("data/new/d.txt", 19, 1, 1364000100, 0x81b0));
+		Assert.assertEquals("data/new", current.getNewDirectories(previous).get(0).path);
+		current.remove("/data/new");
+		Assert.assertNotNull(current.get("data/new/d.txt"));
+		current.removeTree("/data");
+		Assert.assertTrue(current.getEntries().isEmpty());
+	}
+
+	@Test
+	public void testResolveChain() throws Exception {
+		File dir = FileUtil.createTempDir("tarsnapshot");
+		try {
+			File full = new File(dir, "full");
+			File inc = new File(dir, "inc");
+			full.mkdir();
+			inc.mkdir();
+
+			TarSnapshot first = new TarSnapshot(full, "data");
+			write(new File(full, "data.tar"), TarIndexTest.createArchive());
+			first.addVolume("data.tar");
+			first.save();
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			TarIndexTest.writeFile(bos, "data/data/com.foo/y.xml", "<map version=\"2\"/>");
+			bos.write(new byte[1024]);
+			TarSnapshot second = TarSnapshot.load(TarSnapshot.getChainFile(full, "data")).linkTo(inc);
+			File volume = new File(inc, "data.inc.tar");
+			write(volume, bos.toByteArray());
+			TarSnapshot.saveDeleted(volume, Arrays.asList("data/system"));
+			second.addVolume("data.inc.tar");
+			second.save();
+
+			new FileManifest().save(FileManifest.getManifestFile(inc, "data"));
+
+			TarSnapshot loaded = TarSnapshot.load(TarSnapshot.getChainFile(inc, "data"));
+			Assert.assertEquals(2, loaded.getVolumes().size());
+			Assert.assertTrue(loaded.getFiles().contains(FileManifest.getManifestFile(inc, "data")));
+			Assert.assertTrue(new File(inc, "data.tar").exists());
+			Map<String, TarSnapshot.Member> members = loaded.resolve();
+			Assert.assertFalse(members.containsKey("data/system/packages.xml"));
+			Assert.assertEquals(1, members.get("data/data/com.foo/y.xml").volume);
+			Assert.assertEquals(0, members.get("data/data/com.foo/x.db").volume);
+
+			File out = new File(dir, "out");
+			loaded.extract(out, "data/data/com.foo");
+			Assert.assertEquals(18, new File(out, "data/data/com.foo/y.xml").length());
+			Assert.assertEquals(16, new File(out, "data/data/com.foo/x.db").length());
+
+			TarSnapshot consolidated = TarConsolidator.consolidate(TarSnapshot.getChainFile(inc, "data"));
+			Assert.assertEquals(Arrays.asList("data.inc" + TarConsolidator.FULL_SUFFIX), consolidated.getVolumes());
+			Assert.assertFalse(new File(inc, "data.tar").exists());
+			Assert.assertFalse(new File(inc, "data.inc.tar").exists());
+			Assert.assertTrue(new File(full, "data.tar").exists());
+			Map<String, TarSnapshot.Member> consolidatedMembers = TarSnapshot.load(TarSnapshot.getChainFile(inc, "data")).resolve();
+			Assert.assertEquals(members.keySet(), consolidatedMembers.keySet());
+			Assert.assertEquals(18, consolidatedMembers.get("data/data/com.foo/y.xml").entry.size);
+			Assert.assertTrue(MD5Utils.compareMD5(consolidated.getVolumeFile(0).getPath(), consolidated.getVolumeFile(0).getPath() + ".md5"));
+			Assert.assertEquals(MD5Utils.md5sumFromString("<map version=\"2\"/>"),
+					consolidated.getDigests().getDigests().get("data/data/com.foo/y.xml"));
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testIncrementalKeepsDirectories() throws Exception {
+		FileManifest previous = FileManifest.parse("12 0 1364000000 41f9 /data\n"
+				+ "13 0 1364000000 41f9 /data/data\n"
+				+ "14 0 1364000000 41f9 /data/data/com.foo\n"
+				+ "15 16 1364000000 81b0 /data/data/com.foo/x.db\n");
+		FileManifest current = FileManifest.parse("12 0 1364000000 41f9 /data\n"
+				+ "13 0 1364000100 41f9 /data/data\n"
+				+ "14 0 1364000000 41f9 /data/data/com.foo\n"
+				+ "15 16 1364000000 81b0 /data/data/com.foo/x.db\n"
+				+ "16 0 1364000100 41f9 /data/data/com.bar\n"
+				+ "17 0 1364000100 41f9 /data/data/com.bar/cache\n");
+		List<String> changed = new ArrayList<String>();
+		for (FileManifest.Entry entry : current.getChanged(previous)) {
+			changed.add(entry.path);
+		}
+		// the empty directory as well, the unchanged content of data/data is not tared again
+		Assert.assertEquals(Arrays.asList("data/data", "data/data/com.bar", "data/data/com.bar/cache"), changed);
+
+		File dir = FileUtil.createTempDir("tarsnapshot");
+		try {
+			TarSnapshot snapshot = new TarSnapshot(dir, "data");
+			write(new File(dir, "data.tar"), TarIndexTest.createArchive());
+			snapshot.addVolume("data.tar");
+
+			// what tar --no-recursion writes for the changed entries
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			TarArchiveWriter writer = new TarArchiveWriter(bos);
+			for (FileManifest.Entry entry : current.getChanged(previous)) {
+				TarEntry tarEntry = new TarEntry();
+				tarEntry.name = entry.path + "/";
+				tarEntry.type = TarEntry.TYPE_DIRECTORY;
+				tarEntry.mode = entry.mode & 07777;
+				tarEntry.uid = entry.path.startsWith("data/data/com.bar") ? 10050 : 1000;
+				tarEntry.gid = tarEntry.uid;
+				tarEntry.mtime = entry.mtime;
+				writer.putEntry(tarEntry);
+				writer.closeEntry();
+			}
+			writer.finish();
+			write(new File(dir, "data.inc.tar"), bos.toByteArray());
+			snapshot.addVolume("data.inc.tar");
+			snapshot.save();
+
+			// the stream restoring the chain carries the headers of the latest versions
+			File restored = new File(dir, "restored.tar");
+			FileOutputStream fos = new FileOutputStream(restored);
+			try {
+				TarStreamWriter.write(TarStreamWriter.select(TarSnapshot.getChainFile(dir, "data")), fos);
+			} finally {
+				fos.close();
+			}
+			TarIndex index = TarIndex.build(restored);
+			TarEntry bar = index.get("data/data/com.bar");
+			Assert.assertTrue(bar.isDirectory());
+			Assert.assertEquals(0771, bar.mode);
+			Assert.assertEquals(10050, bar.uid);
+			Assert.assertEquals(10050, bar.gid);
+			Assert.assertEquals(10050, index.get("data/data/com.bar/cache").uid);
+			Assert.assertEquals(1000, index.get("data/data").uid);
+			Assert.assertEquals(1364000100L, index.get("data/data").mtime);
+			Assert.assertNotNull(index.get("data/data/com.foo/x.db"));
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	private static void write(File file, byte[] data) throws Exception {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+
+public class TarStreamWriterTest {
+
+	@Test
+	public void testSelectPartitionAndWrite() throws Exception {
+		File dir = FileUtil.createTempDir("tarstreamwriter");
+		try {
+			File tarFile = new File(dir, "data.tar");
+			FileUtil.writeToFile(new ByteArrayInputStream(TarIndexTest.createArchive()), tarFile);
+
+			List<TarStreamWriter.Item> items = TarStreamWriter.select(tarFile);
+			Assert.assertEquals(6, items.size());
+			List<List<TarStreamWriter.Item>> groups = TarStreamWriter.partition(items, 2);
+			Assert.assertEquals(2, groups.size());
+			// data/data/... is the largest subtree and stays together
+			Assert.assertEquals(4, groups.get(0).size());
+			Assert.assertEquals("data/data", groups.get(0).get(0).entry.getPath());
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			TarStreamWriter.write(TarStreamWriter.select(tarFile, "data/data/com.foo/x.db"), bos);
+			TarIndexer indexer = new TarIndexer();
+			TarStreamParser parser = new TarStreamParser();
+			parser.addListener(indexer);
+			parser.write(bos.toByteArray(), 0, bos.size());
+			parser.close();
+			Assert.assertTrue(parser.isFinished());
+			Assert.assertEquals(1, indexer.getIndex().getEntries().size());
+			Assert.assertEquals(16, indexer.getIndex().get("data/data/com.foo/x.db").size);
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testPartitionKeepsHardLinks() {
+		List<TarStreamWriter.Item> items = new ArrayList<TarStreamWriter.Item>();
+		items.add(createItem("data/app/a.apk", TarEntry.TYPE_FILE, null));
+		items.add(createItem("data/data/b.db", TarEntry.TYPE_FILE, null));
+		items.add(createItem("data/media/c.jpg", TarEntry.TYPE_FILE, null));
+		items.add(createItem("data/local/a.apk", TarEntry.TYPE_HARDLINK, "data/app/a.apk"));
+		List<List<TarStreamWriter.Item>> groups = TarStreamWriter.partition(items, 4);
+		Assert.assertEquals(3, groups.size());
+		for (List<TarStreamWriter.Item> group : groups) {
+			if (group.get(0).entry.name.equals("data/app/a.apk")) {
+				// the link follows its target
+				Assert.assertEquals(2, group.size());
+				Assert.assertEquals("data/local/a.apk", group.get(1).entry.name);
+				return;
+			}
+		}
+		Assert.fail("no group of data/app");
+	}
+
+	private static TarStreamWriter.Item createItem(String name, char type, String linkName) {
+		TarEntry entry = new TarEntry();
+		entry.name = name;
+		entry.type = type;
+		entry.linkName = linkName;
+		entry.size = type == TarEntry.TYPE_FILE ? 1000 : 0;
+		entry.dataOffset = TarStreamParser.BLOCK_SIZE;
+		return new TarStreamWriter.Item(null, entry);
+	}
+}
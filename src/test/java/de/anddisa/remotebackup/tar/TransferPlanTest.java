@@ -0,0 +1,87 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.tar;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.utils.MD5Utils;
+
+public class TransferPlanTest {
+
+	private static final String LISTING = "1 4096 1380000000 41f9 /sdcard\n"
+			+ "2 4096 1380000000 41f9 /sdcard/DCIM\n"
+			+ "3 3000 1380000001 81b0 /sdcard/DCIM/a.mp4\n"
+			+ "4 5000 1380000002 81b0 /sdcard/DCIM/b.mp4\n"
+			+ "5 12 1380000003 81b0 /sdcard/notes.txt\n"
+			+ "6 4096 1380000004 41f9 /sdcard/empty\n"
+			+ "7 8 1380000005 a1ff /sdcard/link\n";
+
+	@Test
+	public void testCreate() throws Exception {
+		TransferPlan plan = TransferPlan.create(FileManifest.parse(LISTING), 1000);
+		// all directories, even if their files are pulled
+		Assert.assertEquals(Arrays.asList("/sdcard", "/sdcard/DCIM", "/sdcard/notes.txt", "/sdcard/empty", "/sdcard/link"), plan.getTarPaths());
+		Assert.assertEquals(2, plan.getSyncFiles().size());
+		// largest first
+		Assert.assertEquals("sdcard/DCIM/b.mp4", plan.getSyncFiles().get(0).path);
+		Assert.assertEquals("sdcard/DCIM/a.mp4", plan.getSyncFiles().get(1).path);
+		Assert.assertEquals(8000, plan.getSyncBytes());
+		Assert.assertEquals(20, plan.getTarBytes());
+		// symbolic links are tared whatever their size
+		plan = TransferPlan.create(FileManifest.parse(LISTING), 0);
+		Assert.assertEquals(Arrays.asList("/sdcard", "/sdcard/DCIM", "/sdcard/empty", "/sdcard/link"), plan.getTarPaths());
+		Assert.assertEquals(3, plan.getSyncFiles().size());
+	}
+
+	@Test
+	public void testWriteVolume() throws Exception {
+		File dir = FileUtil.createTempDir("transferplan");
+		try {
+			TransferPlan plan = TransferPlan.create(FileManifest.parse(LISTING), 1000);
+			File b = new File(dir, "b.part");
+			File a = new File(dir, "a.part");
+			FileUtil.writeToFile(repeat('b', 5000), b);
+			FileUtil.writeToFile(repeat('a', 3000), a);
+			File volume = new File(dir, "sdcard.sync.tar");
+			TransferPlan.writeVolume(plan.getSyncFiles(), Arrays.asList(b, a), volume);
+
+			TarIndex index = TarIndex.build(volume);
+			Assert.assertEquals(2, index.getEntries().size());
+			TarEntry entry = index.get("sdcard/DCIM/a.mp4");
+			Assert.assertEquals(3000, entry.size);
+			Assert.assertEquals(0660, entry.mode);
+			Assert.assertEquals(1380000001L, entry.mtime);
+			Map<String, String> digests = TarDigestManifest.load(TarDigestManifest.getManifestFile(volume)).getDigests();
+			Assert.assertEquals(MD5Utils.md5sum(a.getPath()), digests.get("sdcard/DCIM/a.mp4"));
+			Assert.assertEquals(MD5Utils.md5sum(volume.getPath()), MD5Utils.readMD5(volume.getPath() + ".md5"));
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.watch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChangeCollectorTest {
+
+	@Test
+	public void testInotifydEvents() {
+		ChangeCollector collector = new ChangeCollector();
+		InotifydReceiver receiver = new InotifydReceiver(collector);
+		receiver.processLine("n\t/data/data/com.foo\tdatabases");
+		receiver.processLine("w\t/data/data/com.foo/databases\tfoo.db");
+		receiver.processLine("d\t/data/data/com.foo/databases\tfoo.db-journal");
+		receiver.processLine("w\t/data/data/com.foo/databases\tfoo.db-journal");
+		receiver.processLine("m\t/data/data/com.foo/databases\tfoo.db");
+		receiver.processLine("garbage");
+
+		ChangeCollector.Batch batch = collector.takeBatch();
+		Assert.assertFalse(batch.rescan);
+		Assert.assertEquals("[/data/data/com.foo/databases, /data/data/com.foo/databases/foo.db-journal]", batch.changed.toString());
+		Assert.assertEquals("[/data/data/com.foo/databases/foo.db]", batch.deleted.toString());
+		Assert.assertTrue(collector.takeBatch().isEmpty());
+
+		receiver.processLine("x\t/data/data/com.foo");
+		Assert.assertTrue(collector.takeBatch().rescan);
+	}
+
+	@Test
+	public void testWindow() throws InterruptedException {
+		final ChangeCollector collector = new ChangeCollector();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				collector.addChanged("/sdcard/a");
+				collector.addChanged("/sdcard/b");
+			}
+		});
+		producer.start();
+		ChangeCollector.Batch batch = collector.awaitBatch(200);
+		producer.join();
+		Assert.assertEquals(2, batch.changed.size());
+		Assert.assertEquals(2, collector.getEventCount());
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * (C) 2013 AndDiSa
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.anddisa.remotebackup.yaffs2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.anddisa.adb.util.FileUtil;
+import de.anddisa.remotebackup.tar.TarEntry;
+import de.anddisa.remotebackup.tar.TarIndex;
+
+public class Yaffs2ImageTest {
+
+	private static final int PAGE = 2048;
+	private static final int SPARE = 64;
+
+	@Test
+	public void testParseImage() throws Exception {
+		File dir = FileUtil.createTempDir("yaffs2");
+		try {
+			for (int tagsOffset : new int[] { 0, 2 }) {
+				File imageFile = new File(dir, "system" + tagsOffset + ".img");
+				write(imageFile, createImage(tagsOffset));
+				Yaffs2Image image = Yaffs2Image.open(imageFile);
+				try {
+					Assert.assertEquals(tagsOffset, image.getLayout().tagsOffset);
+					checkImage(image, dir);
+				} finally {
+					image.close();
+				}
+			}
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testImageWithoutSpareArea() throws Exception {
+		File dir = FileUtil.createTempDir("yaffs2");
+		try {
+			File imageFile = new File(dir, "system.img");
+			byte[] data = new byte[64 * PAGE];
+			Arrays.fill(data, (byte) 0x5a);
+			write(imageFile, data);
+			Yaffs2Image.open(imageFile);
+		} finally {
+			FileUtil.recursiveDelete(dir);
+		}
+	}
+
+	private static void checkImage(Yaffs2Image image, File dir) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (TarEntry entry : image.getIndex().getEntries()) {
+			names.add(entry.name);
+		}
+		Assert.assertEquals(Arrays.asList("app/", "app/a.bin", "app/link", "app/same", "etc/"), names);
+
+		TarEntry file = image.getIndex().get("app/a.bin");
+		Assert.assertEquals(3000, file.size);
+		Assert.assertEquals(0644, file.mode);
+		Assert.assertEquals(1000, file.uid);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		image.copy(image.getObject(file), bos);
+		byte[] expected = new byte[3000];
+		// the first chunk was rewritten in a later block
+		Arrays.fill(expected, 0, PAGE, (byte) 'n');
+		Arrays.fill(expected, PAGE, 3000, (byte) 'b');
+		Assert.assertArrayEquals(expected, bos.toByteArray());
+
+		Assert.assertEquals("a.bin", image.getIndex().get("app/link").linkName);
+		TarEntry hardLink = image.getIndex().get("app/same");
+		Assert.assertEquals(TarEntry.TYPE_HARDLINK, hardLink.type);
+		Assert.assertEquals("app/a.bin", hardLink.linkName);
+
+		File destDir = new File(dir, "x");
+		List<TarEntry> extracted = image.extract(destDir, "app/*.bin", "app/same");
+		Assert.assertEquals(2, extracted.size());
+		Assert.assertEquals(3000, new File(destDir, "app/same").length());
+		FileUtil.recursiveDelete(destDir);
+
+		File tarFile = new File(dir, "system.tar");
+		FileOutputStream os = new FileOutputStream(tarFile);
+		try {
+			Assert.assertEquals(5, image.writeTar(os));
+		} finally {
+			os.close();
+		}
+		TarIndex index = TarIndex.build(tarFile);
+		Assert.assertEquals(3000, index.get("app/a.bin").size);
+		Assert.assertEquals("app/a.bin", index.get("app/same").linkName);
+		tarFile.delete();
+	}
+
+	/**
+	 * root with the directories app and etc; app contains a file of two
+	 * chunks, a symbolic link and a hard link to it; a deleted file
+	 */
+	private static byte[] createImage(int tagsOffset) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int seq = 0x1000;
+		writeChunk(bos, tagsOffset, seq, 257, 0, header(3, 1, "app", 040755, 0, 0, null, 0), 0);
+		writeChunk(bos, tagsOffset, seq, 258, 1, fill('a', PAGE), PAGE);
+		writeChunk(bos, tagsOffset, seq, 258, 2, fill('b', 952), 952);
+		writeChunk(bos, tagsOffset, seq, 258, 0, header(1, 257, "a.bin", 0100644, 1000, 3000, null, 0), 0);
+		writeChunk(bos, tagsOffset, seq, 259, 0, header(2, 257, "link", 0120777, 0, 0, "a.bin", 0), 0);
+		writeChunk(bos, tagsOffset, seq, 260, 0, header(1, 257, "gone", 0100644, 0, 0, null, 0), 0);
+		// erased chunk
+		byte[] erased = new byte[PAGE + SPARE];
+		Arrays.fill(erased, (byte) 0xff);
+		bos.write(erased, 0, erased.length);
+		seq++;
+		writeChunk(bos, tagsOffset, seq, 258, 1, fill('n', PAGE), PAGE);
+		writeChunk(bos, tagsOffset, seq, 260, 0, header(1, 4, "gone", 0100644, 0, 0, null, 0), 0);
+		writeChunk(bos, tagsOffset, seq, 261, 0, header(4, 257, "same", 0100644, 0, 0, null, 258), 0);
+		writeChunk(bos, tagsOffset, seq, 262, 0, header(3, 1, "etc", 040755, 0, 0, null, 0), 0);
+		return bos.toByteArray();
+	}
+
+	private static byte[] header(int type, int parent, String name, int mode, int uid, int size, String alias, int equivalent) {
+		byte[] h = fill(0xff, PAGE);
+		putInt(h, 0, type);
+		putInt(h, 4, parent);
+		putString(h, 10, name);
+		putInt(h, 268, mode);
+		putInt(h, 272, uid);
+		putInt(h, 276, uid);
+		putInt(h, 284, 1300000000);
+		putInt(h, 292, size);
+		putInt(h, 296, equivalent);
+		putString(h, 300, alias != null ? alias : "");
+		return h;
+	}
+
+	private static void writeChunk(ByteArrayOutputStream bos, int tagsOffset, int seq, int objectId, int chunkId, byte[] data, int byteCount) {
+		byte[] chunk = fill(0xff, PAGE + SPARE);
+		System.arraycopy(data, 0, chunk, 0, data.length);
+		putInt(chunk, PAGE + tagsOffset, seq);
+		putInt(chunk, PAGE + tagsOffset + 4, objectId);
+		putInt(chunk, PAGE + tagsOffset + 8, chunkId);
+		putInt(chunk, PAGE + tagsOffset + 12, byteCount);
+		bos.write(chunk, 0, chunk.length);
+	}
+
+	private static byte[] fill(int value, int length) {
+		byte[] b = new byte[length];
+		Arrays.fill(b, (byte) value);
+		return b;
+	}
+
+	private static void putString(byte[] b, int offset, String s) {
+		byte[] bytes = s.getBytes();
+		System.arraycopy(bytes, 0, b, offset, bytes.length);
+		b[offset + bytes.length] = 0;
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+		b[offset + 2] = (byte) (value >> 16);
+		b[offset + 3] = (byte) (value >> 24);
+	}
+
+	private static void write(File file, byte[] data) throws Exception {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+}